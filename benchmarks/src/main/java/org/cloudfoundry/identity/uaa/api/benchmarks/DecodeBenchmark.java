@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.impl.StreamingSearchResultsReader;
+import org.cloudfoundry.identity.uaa.api.common.impl.StringPool;
+import org.cloudfoundry.identity.uaa.api.common.impl.StringPoolModule;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
+import org.cloudfoundry.identity.uaa.api.common.model.WrappedSearchResults;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Decoding pages of users, the same way the client's message converter does with and without a string pool,
+ * streaming them one user at a time, and decoding pages restricted to <code>id</code> and <code>userName</code> into
+ * full users and into records
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DecodeBenchmark {
+	private static final TypeReference<WrappedSearchResults<ScimUser>> USERS_REF = new TypeReference<WrappedSearchResults<ScimUser>>() {
+	};
+
+	private static final List<String> PROJECTED_ATTRIBUTES = Arrays.asList("id", "userName");
+
+	@Param({ "100", "500", "1000" })
+	public int pageSize;
+
+	private ObjectMapper mapper;
+
+	private ObjectMapper pooledMapper;
+
+	private StreamingSearchResultsReader reader;
+
+	private byte[] page;
+
+	private byte[] projectedPage;
+
+	@Setup
+	public void setUp() throws Exception {
+		mapper = new ObjectMapper();
+		reader = new StreamingSearchResultsReader(mapper);
+		pooledMapper = new ObjectMapper().registerModule(new StringPoolModule(new StringPool()));
+		page = mapper.writeValueAsBytes(StubUaaServer.usersPage(pageSize));
+
+		ObjectNode projected = (ObjectNode) mapper.readTree(page);
+		for (JsonNode user : projected.get("resources")) {
+			((ObjectNode) user).retain(PROJECTED_ATTRIBUTES);
+		}
+		projectedPage = mapper.writeValueAsBytes(projected);
+	}
+
+	@Benchmark
+	public WrappedSearchResults<ScimUser> decodeUsers() throws Exception {
+		return mapper.readValue(page, USERS_REF);
+	}
+
+	@Benchmark
+	public WrappedSearchResults<ScimUser> decodeUsersPooled() throws Exception {
+		return pooledMapper.readValue(page, USERS_REF);
+	}
+
+	@Benchmark
+	public StreamedSearchResults<ScimUser> streamUsers(final Blackhole blackhole) throws Exception {
+		return reader.read(new ByteArrayInputStream(page), ScimUser.class, new UaaResultHandler<ScimUser>() {
+			public boolean handle(ScimUser user) {
+				blackhole.consume(user);
+				return true;
+			}
+		});
+	}
+
+	@Benchmark
+	public StreamedSearchResults<ScimUser> streamFirstUser(final Blackhole blackhole) throws Exception {
+		return reader.read(new ByteArrayInputStream(page), ScimUser.class, new UaaResultHandler<ScimUser>() {
+			public boolean handle(ScimUser user) {
+				blackhole.consume(user);
+				return false;
+			}
+		});
+	}
+
+	@Benchmark
+	public WrappedSearchResults<ScimUser> decodeProjectedUsers() throws Exception {
+		return mapper.readValue(projectedPage, USERS_REF);
+	}
+
+	@Benchmark
+	public StreamedSearchResults<ScimRecord> streamProjectedRecords(final Blackhole blackhole) throws Exception {
+		return reader.readRecords(new ByteArrayInputStream(projectedPage), PROJECTED_ATTRIBUTES,
+				new UaaResultHandler<ScimRecord>() {
+					public boolean handle(ScimRecord record) {
+						blackhole.consume(record);
+						return true;
+					}
+				});
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.UaaConnectionFactory;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
+import org.cloudfoundry.identity.uaa.rest.SearchResults;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.common.AuthenticationScheme;
+
+/**
+ * A user search through the public API against {@link StubUaaServer}: filter building, request encoding, the HTTP
+ * round trip over loopback and response decoding
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExchangeBenchmark {
+	@Param({ "1", "100" })
+	public int pageSize;
+
+	private StubUaaServer server;
+
+	private UaaUserOperations operations;
+
+	@Setup
+	public void setUp() throws Exception {
+		server = new StubUaaServer(pageSize);
+
+		ClientCredentialsResourceDetails credentials = new ClientCredentialsResourceDetails();
+		credentials.setAccessTokenUri(server.getUrl() + "/oauth/token");
+		credentials.setClientAuthenticationScheme(AuthenticationScheme.header);
+		credentials.setClientId("benchmark");
+		credentials.setClientSecret("benchmarksecret");
+
+		operations = UaaConnectionFactory.getConnection(server.getUrl(), credentials).userOperations();
+
+		// fetch the token outside the measurement
+		getUsers();
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Benchmark
+	public SearchResults<ScimUser> getUsers() {
+		FilterRequest request = new FilterRequestBuilder().startsWith("userName", "user").count(pageSize).build();
+		return operations.getUsers(request);
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.benchmarks;
+
+import java.net.URL;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+
+/**
+ * Building SCIM filters and request URLs. These run on every search, before any I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FilterBenchmark {
+	private UaaConnectionHelper helper;
+
+	private FilterRequest request;
+
+	private Date date;
+
+	private Calendar calendar;
+
+	@Setup
+	public void setUp() throws Exception {
+		helper = new UaaConnectionHelper(new URL("http://localhost:8080/uaa"), new ClientCredentialsResourceDetails());
+		request = buildSearch();
+		date = new Date(1420070400000L);
+		calendar = Calendar.getInstance(TimeZone.getTimeZone("America/Denver"));
+		calendar.setTime(date);
+	}
+
+	/**
+	 * A typical search: two comparisons, a nested alternative, attributes and paging
+	 */
+	@Benchmark
+	public FilterRequest build() {
+		return buildSearch();
+	}
+
+	@Benchmark
+	public String buildScimFilterUrl() {
+		return helper.buildScimFilterUrl("/Users", request);
+	}
+
+	/**
+	 * Formats the date through the shared ISO formatter
+	 */
+	@Benchmark
+	public String dateFilter() {
+		return new FilterRequestBuilder().greaterThan("meta.lastModified", date).build().getFilter();
+	}
+
+	/**
+	 * Formats the calendar through a formatter created for its time zone
+	 */
+	@Benchmark
+	public String calendarFilter() {
+		return new FilterRequestBuilder().greaterThan("meta.lastModified", calendar).build().getFilter();
+	}
+
+	private static FilterRequest buildSearch() {
+		return new FilterRequestBuilder().equals("origin", "uaa").startsWith("userName", "john.")
+				.equals("active", true).present("emails").or().precedence().attributes("id", "userName", "emails")
+				.start(1).count(100).build();
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.directory.UaaMembershipIndex;
+import org.cloudfoundry.identity.uaa.api.directory.UaaMembershipIndexBuilder;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Membership queries against 100,000 users in 200 groups of 5,000, answered from a {@link UaaMembershipIndex} and by
+ * walking the <code>ScimGroup</code> pages the index is built from
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MembershipBenchmark {
+	private static final int USERS = 100000;
+
+	private static final int GROUPS = 200;
+
+	private static final int GROUP_SIZE = 5000;
+
+	private List<ScimGroup> groups;
+
+	private UaaMembershipIndex index;
+
+	private String user;
+
+	private String group;
+
+	private int[] into;
+
+	@Setup
+	public void setUp() {
+		groups = groups();
+
+		UaaMembershipIndexBuilder builder = new UaaMembershipIndexBuilder();
+		builder.addAll(groups);
+		index = builder.build();
+
+		user = memberId(USERS / 2);
+		group = groups.get(GROUPS - 1).getId();
+		into = new int[GROUPS];
+	}
+
+	/**
+	 * 200 groups of 5,000 users each, spread so that every user is in 10 groups
+	 */
+	public static List<ScimGroup> groups() {
+		List<ScimGroup> groups = new ArrayList<ScimGroup>(GROUPS);
+		for (int g = 0; g < GROUPS; g++) {
+			ScimGroup group = new ScimGroup(String.format("f1e2d3c4-0000-4000-8000-%012d", g), "group" + g);
+			List<ScimGroupMember> members = new ArrayList<ScimGroupMember>(GROUP_SIZE);
+			for (int i = 0; i < GROUP_SIZE; i++) {
+				members.add(new ScimGroupMember(memberId((g * GROUP_SIZE / 10 + i) % USERS)));
+			}
+			group.setMembers(members);
+			groups.add(group);
+		}
+		return groups;
+	}
+
+	@Benchmark
+	public boolean indexIsMember() {
+		return index.isMember(user, group);
+	}
+
+	@Benchmark
+	public int indexGroupsOf() {
+		return index.groupsOf(user, into);
+	}
+
+	@Benchmark
+	public boolean pagesIsMember() {
+		for (ScimGroup candidate : groups) {
+			if (candidate.getId().equals(group)) {
+				for (ScimGroupMember member : candidate.getMembers()) {
+					if (member.getMemberId().equals(user)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	@Benchmark
+	public int pagesGroupsOf() {
+		int found = 0;
+		for (ScimGroup candidate : groups) {
+			for (ScimGroupMember member : candidate.getMembers()) {
+				if (member.getMemberId().equals(user)) {
+					into[found++] = 0;
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	private static String memberId(int i) {
+		return String.format("7c4f8a3e-0000-4000-8000-%012d", i);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.cloudfoundry.identity.uaa.rest.SearchResults;
+import org.cloudfoundry.identity.uaa.scim.ScimCore;
+import org.cloudfoundry.identity.uaa.scim.ScimMeta;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process HTTP server answering just enough of the UAA API for the benchmarks: client credentials tokens from
+ * <code>/oauth/token</code> and a fixed page of users from <code>/Users</code>. Responses are rendered once, up front,
+ * so the server adds as little as possible to the measured client cost.
+ */
+public class StubUaaServer {
+	private static final byte[] TOKEN = ("{\"access_token\":\"benchmark-token\",\"token_type\":\"bearer\","
+			+ "\"expires_in\":86400,\"scope\":\"scim.read scim.write\",\"jti\":\"benchmark\"}").getBytes();
+
+	static {
+		// without TCP_NODELAY, the JDK server's separate header and body writes meet delayed ACKs on loopback and every
+		// request takes ~40ms. Must be set before the first server is created.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Start a server on an ephemeral port
+	 * 
+	 * @param pageSize the number of users returned by every <code>/Users</code> request
+	 * @throws IOException if the server cannot be started
+	 */
+	public StubUaaServer(int pageSize) throws IOException {
+		final byte[] users = new ObjectMapper().writeValueAsBytes(usersPage(pageSize));
+
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/uaa/oauth/token", new FixedResponseHandler(TOKEN));
+		server.createContext("/uaa/Users", new FixedResponseHandler(users));
+
+		executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return the base URL of the stub UAA
+	 */
+	public URL getUrl() throws IOException {
+		return new URL("http", "localhost", server.getAddress().getPort(), "/uaa");
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @param size the number of users
+	 * @return a search result like the UAA would return for an unfiltered <code>/Users</code> request
+	 */
+	public static SearchResults<ScimUser> usersPage(int size) {
+		List<ScimUser> users = new ArrayList<ScimUser>(size);
+		Date created = new Date(1420070400000L);
+
+		for (int i = 0; i < size; i++) {
+			ScimUser user = new ScimUser("7c4f8a3e-0000-4000-8000-" + String.format("%012d", i), "user" + i
+					+ "@example.com", "Given" + i, "Family" + i);
+			user.addEmail("user" + i + "@example.com");
+			user.setMeta(new ScimMeta(created, created, 3));
+			user.setSchemas(ScimCore.SCHEMAS);
+			user.setOrigin("uaa");
+			user.setVerified(true);
+			user.setGroups(Collections.singleton(new ScimUser.Group("f1e2d3c4-0000-4000-8000-000000000001",
+					"scim.read")));
+			users.add(user);
+		}
+
+		return new SearchResults<ScimUser>(Arrays.asList(ScimCore.SCHEMAS), users, 1, size, size);
+	}
+
+	/**
+	 * Drains the request and answers with a fixed JSON body
+	 */
+	private static class FixedResponseHandler implements HttpHandler {
+		private final byte[] body;
+
+		FixedResponseHandler(byte[] body) {
+			this.body = body;
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			InputStream in = exchange.getRequestBody();
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) >= 0) {
+				// drain
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+			exchange.sendResponseHeaders(200, body.length);
+
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+	}
+}
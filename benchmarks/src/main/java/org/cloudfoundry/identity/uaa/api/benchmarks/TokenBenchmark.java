@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.benchmarks;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cloudfoundry.identity.uaa.api.common.model.TokenKey;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenClaims;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenOperations;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenVerifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * {@link UaaTokenVerifier#verify(String)} for an RS256 signed token of the size the UAA issues, seen before and seen
+ * for the first time
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TokenBenchmark {
+	private UaaTokenVerifier cached;
+
+	private UaaTokenVerifier uncached;
+
+	private char[] token;
+
+	private String[] tokens;
+
+	private int next;
+
+	@Setup
+	public void setUp() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair keyPair = generator.generateKeyPair();
+
+		RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+		final TokenKey key = new TokenKey();
+		key.setKid("key-1");
+		key.setKty("RSA");
+		key.setAlg("RS256");
+		key.setN(Base64.encodeBase64URLSafeString(publicKey.getModulus().toByteArray()));
+		key.setE(Base64.encodeBase64URLSafeString(publicKey.getPublicExponent().toByteArray()));
+
+		UaaTokenOperations operations = new UaaTokenOperations() {
+			public List<TokenKey> getTokenKeys() {
+				return Collections.singletonList(key);
+			}
+
+			// never called: the verifier only fetches token keys
+			public UaaTokenClaims checkToken(String token) {
+				throw new UnsupportedOperationException("checkToken");
+			}
+		};
+
+		cached = new UaaTokenVerifier(operations, "https://uaa.example.com/oauth/token", 10000);
+		uncached = new UaaTokenVerifier(operations, "https://uaa.example.com/oauth/token", 1);
+
+		tokens = new String[] { sign(keyPair, "marissa"), sign(keyPair, "admin") };
+		token = tokens[0].toCharArray();
+		cached.verify(tokens[0]);
+	}
+
+	/**
+	 * A token seen before, in a new string as it would be read from a request
+	 */
+	@Benchmark
+	public UaaTokenClaims verifyCached() {
+		return cached.verify(new String(token));
+	}
+
+	/**
+	 * A token not in the cache: parsed, its signature checked and its claims decoded
+	 */
+	@Benchmark
+	public UaaTokenClaims verifyUncached() {
+		next ^= 1;
+		return uncached.verify(tokens[next]);
+	}
+
+	private static String sign(KeyPair keyPair, String userName) throws Exception {
+		long now = System.currentTimeMillis() / 1000;
+
+		Map<String, Object> claims = new LinkedHashMap<String, Object>();
+		claims.put("jti", "8b3d1c2e4f5a4b6c9d7e0f1a2b3c4d5e");
+		claims.put("sub", "2b3c4d5e-6f7a-4b8c-9d0e-1f2a3b4c5d6e");
+		claims.put("scope", Arrays.asList("openid", "cloud_controller.read", "cloud_controller.write",
+				"password.write", "scim.userids", "uaa.user"));
+		claims.put("client_id", "cf");
+		claims.put("cid", "cf");
+		claims.put("azp", "cf");
+		claims.put("grant_type", "password");
+		claims.put("user_id", "2b3c4d5e-6f7a-4b8c-9d0e-1f2a3b4c5d6e");
+		claims.put("origin", "uaa");
+		claims.put("user_name", userName);
+		claims.put("email", userName + "@example.com");
+		claims.put("auth_time", now);
+		claims.put("rev_sig", "a1b2c3d4");
+		claims.put("iat", now);
+		claims.put("exp", now + TimeUnit.DAYS.toSeconds(1));
+		claims.put("iss", "https://uaa.example.com/oauth/token");
+		claims.put("zid", "uaa");
+		claims.put("aud", Arrays.asList("cloud_controller", "scim", "password", "cf", "uaa", "openid"));
+
+		ObjectMapper mapper = new ObjectMapper();
+		String content = Base64.encodeBase64URLSafeString("{\"alg\":\"RS256\",\"kid\":\"key-1\",\"typ\":\"JWT\"}"
+				.getBytes("US-ASCII")) + "." + Base64.encodeBase64URLSafeString(mapper.writeValueAsBytes(claims));
+
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(keyPair.getPrivate());
+		signature.update(content.getBytes("US-ASCII"));
+		return content + "." + Base64.encodeBase64URLSafeString(signature.sign());
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.loadtest;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cloudfoundry.identity.uaa.api.UaaConnectionFactory;
+import org.cloudfoundry.identity.uaa.api.client.test.FakeUaaServer;
+import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.cloudfoundry.identity.uaa.scim.ScimUser.Email;
+import org.cloudfoundry.identity.uaa.scim.ScimUser.Name;
+
+/**
+ * The system under load: a {@link FakeUaaServer} seeded with users and groups, and a single {@link UaaConnection}
+ * shared by every worker, as an application would share it
+ */
+public class LoadFixture {
+	private static final String PASSWORD = "p4ssw0rd";
+
+	private final FakeUaaServer server;
+
+	private final UaaConnection connection;
+
+	private final String[] userNames;
+
+	private final String[] groupIds;
+
+	private final AtomicLong created = new AtomicLong();
+
+	/**
+	 * @param users the number of users to seed
+	 * @param groups the number of groups to seed
+	 * @throws IOException if the server cannot be started
+	 */
+	public LoadFixture(int users, int groups) throws IOException {
+		server = new FakeUaaServer();
+
+		userNames = new String[users];
+		for (int i = 0; i < users; i++) {
+			userNames[i] = "user" + i;
+			server.addUser(userNames[i], PASSWORD);
+		}
+
+		groupIds = new String[groups];
+		for (int i = 0; i < groups; i++) {
+			groupIds[i] = server.addGroup("group" + i);
+		}
+
+		connection = UaaConnectionFactory.getConnection(server.getUrl(), server.getClientCredentials());
+	}
+
+	public FakeUaaServer getServer() {
+		return server;
+	}
+
+	public UaaConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * @param random the worker's random
+	 * @return the name of a seeded user
+	 */
+	public String randomUserName(Random random) {
+		return userNames[random.nextInt(userNames.length)];
+	}
+
+	/**
+	 * @param random the worker's random
+	 * @return the ID of a seeded group
+	 */
+	public String randomGroupId(Random random) {
+		return groupIds[random.nextInt(groupIds.length)];
+	}
+
+	/**
+	 * @return a user that has not been created yet
+	 */
+	public ScimUser newUser() {
+		String userName = "loaduser" + created.incrementAndGet();
+
+		ScimUser user = new ScimUser();
+		user.setUserName(userName);
+		user.setPassword(PASSWORD);
+		user.setName(new Name("Load", "User"));
+
+		Email email = new Email();
+		email.setValue(userName + "@test.com");
+		user.setEmails(Collections.singletonList(email));
+
+		return user;
+	}
+
+	public void stop() {
+		server.stop();
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.loadtest;
+
+import java.util.Random;
+
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.rest.SearchResults;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+
+/**
+ * The operations a load test can mix. Each one is a single call, or a short sequence of calls, an application would
+ * make through the public API.
+ */
+public enum LoadOperation {
+	/**
+	 * Look up a seeded user by name
+	 */
+	LOOKUP {
+		@Override
+		void execute(LoadFixture fixture, Random random) {
+			String userName = fixture.randomUserName(random);
+			if (fixture.getConnection().userOperations().getUserByName(userName) == null) {
+				throw new IllegalStateException(userName + " not found");
+			}
+		}
+	},
+
+	/**
+	 * Search for a page of up to 20 users whose names start with a random prefix
+	 */
+	SEARCH {
+		@Override
+		void execute(LoadFixture fixture, Random random) {
+			SearchResults<ScimUser> results = fixture.getConnection().userOperations()
+					.getUsers(new FilterRequestBuilder().startsWith("userName", "user" + random.nextInt(10))
+							.count(20).build());
+			if (results == null) {
+				throw new IllegalStateException("No search results");
+			}
+		}
+	},
+
+	/**
+	 * Add a seeded user to a seeded group, then remove them again
+	 */
+	MEMBERSHIP {
+		@Override
+		void execute(LoadFixture fixture, Random random) {
+			String groupId = fixture.randomGroupId(random);
+			String userName = fixture.randomUserName(random);
+
+			fixture.getConnection().groupOperations().addMember(groupId, userName);
+			fixture.getConnection().groupOperations().deleteMember(groupId, userName);
+		}
+	},
+
+	/**
+	 * Create a new user. Created users are not deleted, so searches slow down as the test runs
+	 */
+	CREATE {
+		@Override
+		void execute(LoadFixture fixture, Random random) {
+			fixture.getConnection().userOperations().createUser(fixture.newUser());
+		}
+	};
+
+	abstract void execute(LoadFixture fixture, Random random);
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.loadtest;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cloudfoundry.identity.uaa.api.metrics.impl.LatencyHistogram;
+
+/**
+ * The results of a {@link LoadTest} run. Only operations started in the measurement window, after the warmup, are
+ * counted.
+ */
+public class LoadReport {
+	private final String description;
+
+	private final Map<LoadOperation, OperationResult> results = new EnumMap<LoadOperation, OperationResult>(
+			LoadOperation.class);
+
+	private final LatencyHistogram total = new LatencyHistogram();
+
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	private volatile boolean allocationSupported = true;
+
+	private long durationNanos;
+
+	private int peakClientThreads;
+
+	private int peakThreads;
+
+	private long gcCount;
+
+	private long gcMillis;
+
+	LoadReport(String description) {
+		this.description = description;
+		for (LoadOperation operation : LoadOperation.values()) {
+			results.put(operation, new OperationResult());
+		}
+	}
+
+	void record(LoadOperation operation, long latencyNanos, Throwable error) {
+		OperationResult result = results.get(operation);
+		result.latency.record(latencyNanos);
+		total.record(latencyNanos);
+
+		if (error != null) {
+			result.errors.incrementAndGet();
+			result.firstError.compareAndSet(null, error);
+		}
+	}
+
+	void addAllocatedBytes(long bytes) {
+		if (bytes < 0) {
+			allocationSupported = false;
+		}
+		else {
+			allocatedBytes.addAndGet(bytes);
+		}
+	}
+
+	void setDurationNanos(long durationNanos) {
+		this.durationNanos = durationNanos;
+	}
+
+	void setPeakThreads(int peakThreads, int peakClientThreads) {
+		this.peakThreads = peakThreads;
+		this.peakClientThreads = peakClientThreads;
+	}
+
+	void setGc(long gcCount, long gcMillis) {
+		this.gcCount = gcCount;
+		this.gcMillis = gcMillis;
+	}
+
+	/**
+	 * @return completed operations per second in the measurement window, including failed ones
+	 */
+	public double getThroughput() {
+		return durationNanos == 0 ? 0 : total.getCount() * (double) TimeUnit.SECONDS.toNanos(1) / durationNanos;
+	}
+
+	/**
+	 * @return the latency of every measured operation
+	 */
+	public LatencyHistogram getLatency() {
+		return total;
+	}
+
+	/**
+	 * @param operation an operation
+	 * @return the latency of the operation
+	 */
+	public LatencyHistogram getLatency(LoadOperation operation) {
+		return results.get(operation).latency;
+	}
+
+	/**
+	 * @param operation an operation
+	 * @return the number of times the operation failed
+	 */
+	public long getErrors(LoadOperation operation) {
+		return results.get(operation).errors.get();
+	}
+
+	/**
+	 * @return bytes allocated by the worker threads per operation, or -1 if the JVM cannot measure it
+	 */
+	public long getAllocatedBytesPerOperation() {
+		if (!allocationSupported) {
+			return -1;
+		}
+
+		return total.getCount() == 0 ? 0 : allocatedBytes.get() / total.getCount();
+	}
+
+	/**
+	 * @return the most live threads in the JVM, excluding the fake server's, during the measurement window
+	 */
+	public int getPeakClientThreads() {
+		return peakClientThreads;
+	}
+
+	public void print(PrintStream out) {
+		out.println(description);
+		out.println();
+		out.printf("%-12s %10s %8s %10s %10s %10s %10s %10s%n", "operation", "count", "errors", "p50 ms", "p90 ms",
+				"p99 ms", "p99.9 ms", "max ms");
+
+		for (Map.Entry<LoadOperation, OperationResult> result : results.entrySet()) {
+			if (result.getValue().latency.getCount() > 0) {
+				printRow(out, result.getKey().name().toLowerCase(), result.getValue().latency,
+						result.getValue().errors.get());
+			}
+		}
+
+		long errors = 0;
+		for (OperationResult result : results.values()) {
+			errors += result.errors.get();
+		}
+		printRow(out, "all", total, errors);
+
+		out.println();
+		out.printf("throughput      %,.1f ops/s%n", getThroughput());
+		out.printf("allocation      %s%n", allocationSupported ? String.format("%,d bytes/op (worker threads)",
+				getAllocatedBytesPerOperation()) : "not supported by this JVM");
+		out.printf("threads         %d peak, %d excluding the fake server%n", peakThreads, peakClientThreads);
+		out.printf("gc              %d collections, %d ms%n", gcCount, gcMillis);
+
+		for (Map.Entry<LoadOperation, OperationResult> result : results.entrySet()) {
+			Throwable error = result.getValue().firstError.get();
+			if (error != null) {
+				out.printf("first %s error: %s%n", result.getKey().name().toLowerCase(), error);
+			}
+		}
+	}
+
+	private static void printRow(PrintStream out, String name, LatencyHistogram latency, long errors) {
+		out.printf("%-12s %10d %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n", name, latency.getCount(), errors,
+				millis(latency.getPercentile(0.5)), millis(latency.getPercentile(0.9)),
+				millis(latency.getPercentile(0.99)), millis(latency.getPercentile(0.999)), millis(latency.getMax()));
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static class OperationResult {
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		private final AtomicLong errors = new AtomicLong();
+
+		private final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+	}
+}
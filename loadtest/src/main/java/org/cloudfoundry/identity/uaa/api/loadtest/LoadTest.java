@@ -0,0 +1,412 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.util.Assert;
+
+/**
+ * Drives a mix of operations through one shared {@link org.cloudfoundry.identity.uaa.api.common.UaaConnection}
+ * against an in-process {@link org.cloudfoundry.identity.uaa.api.client.test.FakeUaaServer} and reports throughput,
+ * latency percentiles, allocation and thread counts.
+ * <p>
+ * In the closed model each worker starts its next operation as soon as the previous one completes, which measures
+ * the most one JVM can sustain at a given concurrency. In the open model operations are scheduled at a fixed rate
+ * regardless of how long earlier ones took, and latency is measured from the scheduled start, so time spent waiting
+ * for a free worker is counted rather than hidden.
+ */
+public class LoadTest {
+	public enum Model {
+		CLOSED, OPEN
+	}
+
+	private static final String SERVER_THREAD_PREFIX = "fake-uaa-";
+
+	private Model model = Model.CLOSED;
+
+	private int threads = 8;
+
+	private int rate = 500;
+
+	private long warmupNanos = TimeUnit.SECONDS.toNanos(5);
+
+	private long durationNanos = TimeUnit.SECONDS.toNanos(30);
+
+	private OperationMix mix = OperationMix.parse("lookup=60,search=25,membership=10,create=5");
+
+	private int users = 1000;
+
+	private int groups = 100;
+
+	private long minLatencyMillis;
+
+	private long maxLatencyMillis;
+
+	private double errorRatio;
+
+	public void setModel(Model model) {
+		Assert.notNull(model, "model must not be null");
+		this.model = model;
+	}
+
+	/**
+	 * @param threads the number of concurrent workers
+	 */
+	public void setThreads(int threads) {
+		Assert.isTrue(threads > 0, "threads must be positive");
+		this.threads = threads;
+	}
+
+	/**
+	 * @param rate the operations per second to schedule in the open model; ignored in the closed model
+	 */
+	public void setRate(int rate) {
+		Assert.isTrue(rate > 0, "rate must be positive");
+		this.rate = rate;
+	}
+
+	public void setWarmup(long warmup, TimeUnit unit) {
+		Assert.isTrue(warmup >= 0, "warmup must not be negative");
+		this.warmupNanos = unit.toNanos(warmup);
+	}
+
+	public void setDuration(long duration, TimeUnit unit) {
+		Assert.isTrue(duration > 0, "duration must be positive");
+		this.durationNanos = unit.toNanos(duration);
+	}
+
+	public void setMix(OperationMix mix) {
+		Assert.notNull(mix, "mix must not be null");
+		this.mix = mix;
+	}
+
+	/**
+	 * @param users the number of users to seed the server with
+	 * @param groups the number of groups to seed the server with
+	 */
+	public void setDataSize(int users, int groups) {
+		Assert.isTrue(users > 0 && groups > 0, "users and groups must be positive");
+		this.users = users;
+		this.groups = groups;
+	}
+
+	/**
+	 * Have the server delay every response by a random time between the bounds, to model a remote UAA
+	 */
+	public void setServerLatency(long minimum, long maximum, TimeUnit unit) {
+		Assert.isTrue(minimum >= 0 && maximum >= minimum, "latency bounds are invalid");
+		this.minLatencyMillis = unit.toMillis(minimum);
+		this.maxLatencyMillis = unit.toMillis(maximum);
+	}
+
+	/**
+	 * @param errorRatio the fraction of requests, other than token requests, the server fails with a 503
+	 */
+	public void setServerErrorRatio(double errorRatio) {
+		Assert.isTrue(errorRatio >= 0 && errorRatio <= 1, "error ratio must be between 0 and 1");
+		this.errorRatio = errorRatio;
+	}
+
+	/**
+	 * Seed a fresh server, run the warmup and measurement, and stop the server
+	 * 
+	 * @return the results of the measurement window
+	 * @throws Exception if the server cannot be started or the run is interrupted
+	 */
+	public LoadReport run() throws Exception {
+		LoadFixture fixture = new LoadFixture(users, groups);
+		try {
+			// fetch the token before any worker starts
+			fixture.getConnection().userOperations().getUserByName(fixture.randomUserName(new Random()));
+
+			if (maxLatencyMillis > 0) {
+				fixture.getServer().injectLatency("", minLatencyMillis, maxLatencyMillis, TimeUnit.MILLISECONDS);
+			}
+			if (errorRatio > 0) {
+				for (String prefix : new String[] { "/Users", "/Groups" }) {
+					fixture.getServer().injectErrors(prefix, errorRatio, 503);
+				}
+			}
+
+			return run(fixture);
+		}
+		finally {
+			fixture.stop();
+		}
+	}
+
+	private LoadReport run(LoadFixture fixture) throws InterruptedException {
+		LoadReport report = new LoadReport(describe());
+
+		long start = System.nanoTime();
+		long measureStart = start + warmupNanos;
+		long end = measureStart + durationNanos;
+
+		CountDownLatch done = new CountDownLatch(threads);
+		AtomicLong sequence = new AtomicLong();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(new Worker(fixture, report, sequence, done, start, measureStart, end),
+					"load-worker-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+
+		sleepUntil(measureStart);
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		threadBean.resetPeakThreadCount();
+		long gcCount = -totalGcCount();
+		long gcMillis = -totalGcMillis();
+
+		int peakClientThreads = 0;
+		while (!done.await(100, TimeUnit.MILLISECONDS)) {
+			peakClientThreads = Math.max(peakClientThreads, countClientThreads(threadBean));
+		}
+
+		report.setDurationNanos(Math.max(System.nanoTime(), end) - measureStart);
+		report.setPeakThreads(threadBean.getPeakThreadCount(), peakClientThreads);
+		report.setGc(gcCount + totalGcCount(), gcMillis + totalGcMillis());
+
+		return report;
+	}
+
+	private String describe() {
+		StringBuilder description = new StringBuilder();
+		description.append(model.name().toLowerCase()).append(" model, ").append(threads).append(" threads");
+		if (model == Model.OPEN) {
+			description.append(", ").append(rate).append(" ops/s scheduled");
+		}
+		description.append(", mix ").append(mix);
+		description.append(", ").append(users).append(" users, ").append(groups).append(" groups");
+		if (maxLatencyMillis > 0) {
+			description.append(", server latency ").append(minLatencyMillis).append('-').append(maxLatencyMillis)
+					.append(" ms");
+		}
+		if (errorRatio > 0) {
+			description.append(", server error ratio ").append(errorRatio);
+		}
+		description.append(", ").append(TimeUnit.NANOSECONDS.toSeconds(durationNanos)).append(" s measured after ")
+				.append(TimeUnit.NANOSECONDS.toSeconds(warmupNanos)).append(" s warmup");
+
+		return description.toString();
+	}
+
+	private static int countClientThreads(ThreadMXBean threadBean) {
+		int count = 0;
+		for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+			if (info != null && !info.getThreadName().startsWith(SERVER_THREAD_PREFIX)) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	private static long totalGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, collector.getCollectionCount());
+		}
+
+		return count;
+	}
+
+	private static long totalGcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+
+		return millis;
+	}
+
+	private static void sleepUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	/**
+	 * @return the bytes allocated by the current thread so far, or -1 if the JVM cannot tell
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+			if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+				return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+
+		return -1;
+	}
+
+	private class Worker implements Runnable {
+		private final LoadFixture fixture;
+
+		private final LoadReport report;
+
+		private final AtomicLong sequence;
+
+		private final CountDownLatch done;
+
+		private final long start;
+
+		private final long measureStart;
+
+		private final long end;
+
+		private final Random random = new Random();
+
+		Worker(LoadFixture fixture, LoadReport report, AtomicLong sequence, CountDownLatch done, long start,
+				long measureStart, long end) {
+			this.fixture = fixture;
+			this.report = report;
+			this.sequence = sequence;
+			this.done = done;
+			this.start = start;
+			this.measureStart = measureStart;
+			this.end = end;
+		}
+
+		public void run() {
+			long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+			long allocatedAtMeasureStart = Long.MIN_VALUE;
+
+			try {
+				while (true) {
+					long scheduled;
+					if (model == Model.OPEN) {
+						scheduled = start + sequence.getAndIncrement() * intervalNanos;
+						if (scheduled >= end) {
+							break;
+						}
+						sleepUntil(scheduled);
+					}
+					else {
+						scheduled = System.nanoTime();
+						if (scheduled >= end) {
+							break;
+						}
+					}
+
+					boolean measured = scheduled >= measureStart;
+					if (measured && allocatedAtMeasureStart == Long.MIN_VALUE) {
+						allocatedAtMeasureStart = allocatedBytes();
+					}
+
+					LoadOperation operation = mix.next(random);
+					Throwable error = null;
+					try {
+						operation.execute(fixture, random);
+					}
+					catch (RuntimeException e) {
+						error = e;
+					}
+
+					if (measured) {
+						report.record(operation, System.nanoTime() - scheduled, error);
+					}
+				}
+
+				if (allocatedAtMeasureStart != Long.MIN_VALUE) {
+					report.addAllocatedBytes(allocatedAtMeasureStart < 0 ? -1 : allocatedBytes()
+							- allocatedAtMeasureStart);
+				}
+			}
+			finally {
+				done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Run a load test and print its report. Options are given as <code>--name=value</code>:
+	 * <ul>
+	 * <li><code>model</code>: <code>closed</code> (default) or <code>open</code></li>
+	 * <li><code>threads</code>: concurrent workers, default 8</li>
+	 * <li><code>rate</code>: operations per second in the open model, default 500</li>
+	 * <li><code>warmup</code>, <code>duration</code>: seconds, default 5 and 30</li>
+	 * <li><code>mix</code>: default <code>lookup=60,search=25,membership=10,create=5</code></li>
+	 * <li><code>users</code>, <code>groups</code>: seeded data, default 1000 and 100</li>
+	 * <li><code>latency</code>: server latency in milliseconds, <code>min-max</code> or a single value</li>
+	 * <li><code>errors</code>: fraction of SCIM requests the server fails with a 503</li>
+	 * </ul>
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest();
+		int users = test.users;
+		int groups = test.groups;
+
+		for (String arg : args) {
+			Assert.isTrue(arg.startsWith("--") && arg.contains("="), "expected --name=value, got " + arg);
+
+			String name = arg.substring(2, arg.indexOf('='));
+			String value = arg.substring(arg.indexOf('=') + 1);
+
+			if ("model".equals(name)) {
+				test.setModel(Model.valueOf(value.toUpperCase()));
+			}
+			else if ("threads".equals(name)) {
+				test.setThreads(Integer.parseInt(value));
+			}
+			else if ("rate".equals(name)) {
+				test.setRate(Integer.parseInt(value));
+			}
+			else if ("warmup".equals(name)) {
+				test.setWarmup(Long.parseLong(value), TimeUnit.SECONDS);
+			}
+			else if ("duration".equals(name)) {
+				test.setDuration(Long.parseLong(value), TimeUnit.SECONDS);
+			}
+			else if ("mix".equals(name)) {
+				test.setMix(OperationMix.parse(value));
+			}
+			else if ("users".equals(name)) {
+				users = Integer.parseInt(value);
+			}
+			else if ("groups".equals(name)) {
+				groups = Integer.parseInt(value);
+			}
+			else if ("latency".equals(name)) {
+				String[] bounds = value.split("-");
+				test.setServerLatency(Long.parseLong(bounds[0]), Long.parseLong(bounds[bounds.length - 1]),
+						TimeUnit.MILLISECONDS);
+			}
+			else if ("errors".equals(name)) {
+				test.setServerErrorRatio(Double.parseDouble(value));
+			}
+			else {
+				throw new IllegalArgumentException("Unknown option " + name);
+			}
+		}
+		test.setDataSize(users, groups);
+
+		test.run().print(System.out);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.loadtest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.springframework.util.Assert;
+
+/**
+ * A weighted choice of {@link LoadOperation}s, for example <code>lookup=60,search=25,membership=10,create=5</code>
+ */
+public class OperationMix {
+	private final LoadOperation[] operations;
+
+	private final int[] cumulativeWeights;
+
+	private final Map<LoadOperation, Integer> weights;
+
+	/**
+	 * @param weights the relative weight of each operation; operations without a weight are not run
+	 */
+	public OperationMix(Map<LoadOperation, Integer> weights) {
+		Assert.notEmpty(weights, "at least one operation must be weighted");
+
+		this.weights = new EnumMap<LoadOperation, Integer>(weights);
+		this.operations = new LoadOperation[weights.size()];
+		this.cumulativeWeights = new int[weights.size()];
+
+		int i = 0;
+		int total = 0;
+		for (Map.Entry<LoadOperation, Integer> weight : this.weights.entrySet()) {
+			Assert.isTrue(weight.getValue() > 0, "weights must be positive");
+
+			total += weight.getValue();
+			operations[i] = weight.getKey();
+			cumulativeWeights[i] = total;
+			i++;
+		}
+	}
+
+	/**
+	 * @param mix a comma separated list of <code>operation=weight</code> pairs
+	 * @return the parsed mix
+	 * @throws IllegalArgumentException if an operation or weight is invalid
+	 */
+	public static OperationMix parse(String mix) {
+		Map<LoadOperation, Integer> weights = new EnumMap<LoadOperation, Integer>(LoadOperation.class);
+		for (String pair : mix.split(",")) {
+			String[] parts = pair.trim().split("=");
+			Assert.isTrue(parts.length == 2, "expected operation=weight, got " + pair);
+
+			weights.put(LoadOperation.valueOf(parts[0].trim().toUpperCase()), Integer.valueOf(parts[1].trim()));
+		}
+
+		return new OperationMix(weights);
+	}
+
+	/**
+	 * @param random the worker's random
+	 * @return an operation, chosen in proportion to its weight
+	 */
+	public LoadOperation next(Random random) {
+		int choice = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (choice < cumulativeWeights[i]) {
+				return operations[i];
+			}
+		}
+
+		return operations[operations.length - 1];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<LoadOperation, Integer> weight : weights.entrySet()) {
+			if (builder.length() > 0) {
+				builder.append(',');
+			}
+			builder.append(weight.getKey().name().toLowerCase()).append('=').append(weight.getValue());
+		}
+
+		return builder.toString();
+	}
+}
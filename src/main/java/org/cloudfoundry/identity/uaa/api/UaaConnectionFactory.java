@@ -14,10 +14,15 @@
 package org.cloudfoundry.identity.uaa.api;
 
 import java.net.URL;
+import java.util.List;
 
+import org.cloudfoundry.identity.uaa.api.client.impl.ClientDetailsCache;
 import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
+import org.cloudfoundry.identity.uaa.api.common.UaaTokenStore;
+import org.cloudfoundry.identity.uaa.api.common.impl.FileTokenStore;
 import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
 import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaNodeBalancer;
 import org.springframework.security.oauth2.client.resource.OAuth2ProtectedResourceDetails;
 
 /**
@@ -43,4 +48,89 @@ public final class UaaConnectionFactory {
 		UaaConnectionHelper helper = new UaaConnectionHelper(uaaUrl, credentials);
 		return new UaaConnectionImpl(helper);
 	}
+
+	/**
+	 * Get a connection object spread over several UAA servers sharing one database. Each request is sent to the
+	 * healthy server with the fewest requests in flight; see {@link UaaNodeBalancer} for details.
+	 * 
+	 * @param uaaUrls the base {@link URL}s of the UAA servers. Each may have a path prefix.
+	 * @param credentials the {@link OAuth2ProtectedResourceDetails} representing the current user. May be client-only
+	 * @return the connection entry point
+	 */
+	public static UaaConnection getConnection(List<URL> uaaUrls, OAuth2ProtectedResourceDetails credentials) {
+		return getConnection(new UaaNodeBalancer(uaaUrls), credentials);
+	}
+
+	/**
+	 * Get a connection object spread over several UAA servers, with custom balancing settings.
+	 * 
+	 * @param nodes the UAA servers
+	 * @param credentials the {@link OAuth2ProtectedResourceDetails} representing the current user. May be client-only
+	 * @return the connection entry point
+	 */
+	public static UaaConnection getConnection(UaaNodeBalancer nodes, OAuth2ProtectedResourceDetails credentials) {
+		UaaConnectionHelper helper = new UaaConnectionHelper(nodes, credentials);
+		return new UaaConnectionImpl(helper);
+	}
+
+	/**
+	 * Get a connection object for the given UAA server that keeps its token in a store, such as a
+	 * {@link FileTokenStore} shared by the runs of a command line or batch tool, and reuses the token found there
+	 * until it expires.
+	 * 
+	 * @param uaaUrl the base {@link URL} of the UAA server. May have a path prefix.
+	 * @param credentials the {@link OAuth2ProtectedResourceDetails} representing the current user. May be client-only
+	 * @param tokenStore the store to keep the token in
+	 * @return the connection entry point
+	 */
+	public static UaaConnection getConnection(URL uaaUrl, OAuth2ProtectedResourceDetails credentials,
+			UaaTokenStore tokenStore) {
+		UaaConnectionHelper helper = new UaaConnectionHelper(uaaUrl, credentials);
+		helper.setTokenStore(tokenStore);
+		return new UaaConnectionImpl(helper);
+	}
+
+	/**
+	 * Get a connection object spread over several UAA servers that keeps its token in a store.
+	 * 
+	 * @param nodes the UAA servers
+	 * @param credentials the {@link OAuth2ProtectedResourceDetails} representing the current user. May be client-only
+	 * @param tokenStore the store to keep the token in
+	 * @return the connection entry point
+	 * @see #getConnection(URL, OAuth2ProtectedResourceDetails, UaaTokenStore)
+	 */
+	public static UaaConnection getConnection(UaaNodeBalancer nodes, OAuth2ProtectedResourceDetails credentials,
+			UaaTokenStore tokenStore) {
+		UaaConnectionHelper helper = new UaaConnectionHelper(nodes, credentials);
+		helper.setTokenStore(tokenStore);
+		return new UaaConnectionImpl(helper);
+	}
+
+	/**
+	 * Get a connection object for the given UAA server that caches the clients it looks up by ID. A cache may be
+	 * shared by connections, including connections with different credentials.
+	 * 
+	 * @param uaaUrl the base {@link URL} of the UAA server. May have a path prefix.
+	 * @param credentials the {@link OAuth2ProtectedResourceDetails} representing the current user. May be client-only
+	 * @param clientDetailsCache the cache to keep clients in
+	 * @return the connection entry point
+	 */
+	public static UaaConnection getConnection(URL uaaUrl, OAuth2ProtectedResourceDetails credentials,
+			ClientDetailsCache clientDetailsCache) {
+		return new UaaConnectionImpl(new UaaConnectionHelper(uaaUrl, credentials), clientDetailsCache);
+	}
+
+	/**
+	 * Get a connection object spread over several UAA servers that caches the clients it looks up by ID.
+	 * 
+	 * @param nodes the UAA servers
+	 * @param credentials the {@link OAuth2ProtectedResourceDetails} representing the current user. May be client-only
+	 * @param clientDetailsCache the cache to keep clients in
+	 * @return the connection entry point
+	 * @see #getConnection(URL, OAuth2ProtectedResourceDetails, ClientDetailsCache)
+	 */
+	public static UaaConnection getConnection(UaaNodeBalancer nodes, OAuth2ProtectedResourceDetails credentials,
+			ClientDetailsCache clientDetailsCache) {
+		return new UaaConnectionImpl(new UaaConnectionHelper(nodes, credentials), clientDetailsCache);
+	}
 }
@@ -13,6 +13,9 @@
  */
 package org.cloudfoundry.identity.uaa.api.client;
 
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
 import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.springframework.security.oauth2.provider.client.BaseClientDetails;
@@ -67,6 +70,33 @@ public interface UaaClientOperations {
 	 */
 	public SearchResults<BaseClientDetails> getClients(FilterRequest request);
 
+	/**
+	 * Get a page of clients restricted to the attributes the {@link FilterRequest} asks for, decoding each one straight
+	 * into the projection type instead of a full {@link BaseClientDetails}. Pass {@link ScimRecord} to get flat records
+	 * holding just the requested attributes, or any class with fields or setters named after them; undeclared
+	 * attributes are ignored. Memory use then scales with the attributes requested rather than the size of a full
+	 * BaseClientDetails.
+	 * 
+	 * @param request the {@link FilterRequest}, which must set attributes
+	 * @param projection the type to decode each of the clients as
+	 * @return The page of projected clients.
+	 * @see org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder#attributes(String...)
+	 */
+	public <T> SearchResults<T> getClients(FilterRequest request, Class<T> projection);
+
+	/**
+	 * Stream a page of clients based on the given {@link FilterRequest}: each client is given to the handler as soon as
+	 * it has been read, and the page is never held in memory as a whole. Use this instead of {@link
+	 * #getClients(FilterRequest)} for large pages, or to act on the first results while the rest are still arriving.
+	 * 
+	 * @param request the {@link FilterRequest}
+	 * @param handler receives each client, and can stop the page early
+	 * @return the paging information of the page; its resources are always empty
+	 * @see org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder
+	 */
+	public StreamedSearchResults<BaseClientDetails> streamClients(FilterRequest request,
+			UaaResultHandler<? super BaseClientDetails> handler);
+
 	/**
 	 * Change a client's secret. Note that you MUST have the existing secret, as the APIs require it.
 	 * 
@@ -0,0 +1,292 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.impl;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+import org.springframework.util.Assert;
+import org.springframework.web.client.RestClientException;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A read-through cache of {@link BaseClientDetails} used by {@link UaaClientOperationsImpl#findById(String)}. Entries
+ * live for a fixed time and the least recently used entry is evicted when the cache is full. An entry that has been
+ * read at least twice and is past 80% of its lifetime is reloaded in the background, so hot clients are never read
+ * from the UAA on the caller's thread. Updating, deleting or changing the secret of a client through the same
+ * connection drops its entry for every connection sharing the cache.
+ * <p>
+ * Entries are kept per credentials, so a cache shared by connections with different credentials never serves one
+ * connection what another read. Clients are held encoded, and each caller gets its own copy, which it may modify.
+ * 
+ * @see org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl
+ */
+public class ClientDetailsCache {
+	private static class Entry {
+		final String clientId;
+
+		final byte[] client;
+
+		final long loadedAtNanos;
+
+		final AtomicInteger reads = new AtomicInteger();
+
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(String clientId, byte[] client) {
+			this.clientId = clientId;
+			this.client = client;
+			this.loadedAtNanos = System.nanoTime();
+		}
+	}
+
+	private static final int HOT_READS = 2;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper().configure(
+			DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	private static final Log log = LogFactory.getLog(ClientDetailsCache.class);
+
+	private final Map<String, Entry> entries;
+
+	private final long ttlNanos;
+
+	private final long refreshAfterNanos;
+
+	private final ExecutorService refresher;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong refreshes = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param maxEntries the maximum number of cached clients
+	 * @param ttl how long a client is cached
+	 * @param unit the unit of <code>ttl</code>
+	 */
+	public ClientDetailsCache(int maxEntries, long ttl, TimeUnit unit) {
+		this(maxEntries, ttl, unit, null);
+	}
+
+	/**
+	 * @param maxEntries the maximum number of cached clients
+	 * @param ttl how long a client is cached
+	 * @param unit the unit of <code>ttl</code>
+	 * @param refresher runs background reloads of hot entries; if null, a single daemon thread is created
+	 */
+	public ClientDetailsCache(final int maxEntries, long ttl, TimeUnit unit, ExecutorService refresher) {
+		Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+		Assert.isTrue(ttl > 0, "ttl must be positive");
+
+		this.ttlNanos = unit.toNanos(ttl);
+		this.refreshAfterNanos = ttlNanos / 5 * 4;
+		this.refresher = refresher != null ? refresher : Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "uaa-client-details-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get a client, loading it if it is not cached or has expired
+	 * 
+	 * @param credentialsKey identifies the credentials the client is read with
+	 * @param clientId the client ID
+	 * @param loader reads the client from the UAA
+	 * @return a copy of the client
+	 */
+	public BaseClientDetails get(String credentialsKey, final String clientId,
+			final Callable<BaseClientDetails> loader) {
+		final String key = credentialsKey + " " + clientId;
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+
+		long age = entry == null ? 0 : System.nanoTime() - entry.loadedAtNanos;
+		if (entry == null || age >= ttlNanos) {
+			misses.incrementAndGet();
+			return load(key, clientId, loader);
+		}
+
+		hits.incrementAndGet();
+		if (entry.reads.incrementAndGet() >= HOT_READS && age >= refreshAfterNanos
+				&& entry.refreshing.compareAndSet(false, true)) {
+			final Entry stale = entry;
+			try {
+				refresher.execute(new Runnable() {
+					public void run() {
+						try {
+							refreshes.incrementAndGet();
+							load(key, clientId, loader);
+						}
+						catch (RuntimeException e) {
+							log.warn("Background refresh of client " + clientId + " failed", e);
+							stale.refreshing.set(false);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				stale.refreshing.set(false);
+			}
+		}
+
+		return fromJson(entry.client);
+	}
+
+	private BaseClientDetails load(String key, String clientId, Callable<BaseClientDetails> loader) {
+		long invalidationsBefore = invalidations.get();
+
+		BaseClientDetails client;
+		try {
+			client = loader.call();
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RestClientException(e.getMessage(), e);
+		}
+
+		if (client != null) {
+			Entry entry = new Entry(clientId, toJson(client));
+			synchronized (entries) {
+				// don't cache a client that may have been changed while it was loading
+				if (invalidations.get() == invalidationsBefore) {
+					entries.put(key, entry);
+				}
+			}
+		}
+
+		return client;
+	}
+
+	private static byte[] toJson(BaseClientDetails client) {
+		try {
+			return MAPPER.writeValueAsBytes(client);
+		}
+		catch (IOException e) {
+			throw new RestClientException("Could not copy client: " + e.getMessage(), e);
+		}
+	}
+
+	private static BaseClientDetails fromJson(byte[] client) {
+		try {
+			return MAPPER.readValue(client, BaseClientDetails.class);
+		}
+		catch (IOException e) {
+			throw new RestClientException("Could not copy client: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Drop a client from the cache, whatever credentials it was read with
+	 * 
+	 * @param clientId the client ID
+	 */
+	public void invalidate(String clientId) {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			for (Iterator<Entry> cached = entries.values().iterator(); cached.hasNext();) {
+				if (cached.next().clientId.equals(clientId)) {
+					cached.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop every client from the cache
+	 */
+	public void clear() {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return the number of cached clients
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return the number of reads served from the cache
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of reads that went to the UAA
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of background reloads of hot entries
+	 */
+	public long getRefreshCount() {
+		return refreshes.get();
+	}
+
+	/**
+	 * @return the number of entries evicted to stay within the size limit
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+}
@@ -15,11 +15,15 @@ package org.cloudfoundry.identity.uaa.api.client.impl;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.api.client.UaaClientOperations;
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
 import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaOperation;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
 import org.cloudfoundry.identity.uaa.api.common.model.WrappedSearchResults;
 import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
@@ -43,38 +47,121 @@ public class UaaClientOperationsImpl implements UaaClientOperations {
 
 	private UaaConnectionHelper helper;
 
+	private ClientDetailsCache cache;
+
 	public UaaClientOperationsImpl(UaaConnectionHelper helper) {
+		this(helper, null);
+	}
+
+	/**
+	 * @param helper the connection helper
+	 * @param cache caches {@link #findById(String)} results; may be null
+	 */
+	public UaaClientOperationsImpl(UaaConnectionHelper helper, ClientDetailsCache cache) {
 		this.helper = helper;
+		this.cache = cache;
 	}
 
 	public BaseClientDetails create(BaseClientDetails client) {
 		Assert.notNull(client);
 		Assert.hasText(client.getClientId());
 
-		return helper.post("/oauth/clients", client, CLIENT_REF);
+		UaaOperation operation = helper.beginOperation("clients.create");
+		try {
+			return helper.post("/oauth/clients", client, CLIENT_REF);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
-	public BaseClientDetails findById(String clientId) {
+	public BaseClientDetails findById(final String clientId) {
 		Assert.hasText(clientId);
-		return helper.get("/oauth/clients/{id}", CLIENT_REF, clientId);
+
+		UaaOperation operation = helper.beginOperation("clients.findById");
+		try {
+			if (cache != null) {
+				return cache.get(helper.getCredentialsKey(), clientId, new Callable<BaseClientDetails>() {
+					public BaseClientDetails call() {
+						return helper.get("/oauth/clients/{id}", CLIENT_REF, clientId);
+					}
+				});
+			}
+
+			return helper.get("/oauth/clients/{id}", CLIENT_REF, clientId);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public BaseClientDetails update(BaseClientDetails client) {
 		Assert.notNull(client);
 		Assert.hasText(client.getClientId());
 
-		return helper.put("/oauth/clients/{id}", client, CLIENT_REF, client.getClientId());
+		UaaOperation operation = helper.beginOperation("clients.update");
+		try {
+			return helper.put("/oauth/clients/{id}", client, CLIENT_REF, client.getClientId());
+		}
+		finally {
+			invalidate(client.getClientId());
+			operation.end();
+		}
 	}
 
 	public BaseClientDetails delete(String clientId) {
 		Assert.hasText(clientId);
-		return helper.delete("/oauth/clients/{id}", CLIENT_REF, clientId);
+
+		UaaOperation operation = helper.beginOperation("clients.delete");
+		try {
+			return helper.delete("/oauth/clients/{id}", CLIENT_REF, clientId);
+		}
+		finally {
+			invalidate(clientId);
+			operation.end();
+		}
+	}
+
+	public StreamedSearchResults<BaseClientDetails> streamClients(FilterRequest request,
+			UaaResultHandler<? super BaseClientDetails> handler) {
+		Assert.notNull(request);
+		Assert.notNull(handler);
+
+		UaaOperation operation = helper.beginOperation("clients.stream");
+		try {
+			return helper.stream(helper.buildScimFilterUrl("/oauth/clients", request), BaseClientDetails.class,
+					handler);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public SearchResults<BaseClientDetails> getClients(FilterRequest request) {
 		Assert.notNull(request);
 
-		return helper.get(helper.buildScimFilterUrl("/oauth/clients", request), CLIENTS_REF);
+		UaaOperation operation = helper.beginOperation("clients.search");
+		try {
+			return helper.get(helper.buildScimFilterUrl("/oauth/clients", request), CLIENTS_REF);
+		}
+		finally {
+			operation.end();
+		}
+	}
+
+	public <T> SearchResults<T> getClients(FilterRequest request, Class<T> projection) {
+		Assert.notNull(request);
+		Assert.notEmpty(request.getAttributes(), "projections need the attributes to request");
+		Assert.notNull(projection);
+
+		UaaOperation operation = helper.beginOperation("clients.project");
+		try {
+			return helper.getProjected(helper.buildScimFilterUrl("/oauth/clients", request), request.getAttributes(),
+					projection);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public boolean changeClientSecret(String clientId, String oldSecret, String newSecret) {
@@ -82,11 +169,26 @@ public class UaaClientOperationsImpl implements UaaClientOperations {
 		body.put("oldSecret", oldSecret);
 		body.put("secret", newSecret);
 
-		String result = helper.put("/oauth/clients/{id}/secret", body, STRING_REF, clientId);
+		String result;
+		UaaOperation operation = helper.beginOperation("clients.changeSecret");
+		try {
+			result = helper.put("/oauth/clients/{id}/secret", body, STRING_REF, clientId);
+		}
+		finally {
+			invalidate(clientId);
+			operation.end();
+		}
+
 		if (log.isDebugEnabled()) {
 			log.debug(result);
 		}
 
 		return (result != null);
 	}
+
+	private void invalidate(String clientId) {
+		if (cache != null) {
+			cache.invalidate(clientId);
+		}
+	}
 }
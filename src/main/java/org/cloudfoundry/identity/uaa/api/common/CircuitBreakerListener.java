@@ -0,0 +1,30 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.CircuitBreaker.State;
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
+
+/**
+ * Receives circuit breaker state changes. Called on the thread whose request caused the transition, so implementations
+ * should return quickly.
+ */
+public interface CircuitBreakerListener {
+	/**
+	 * @param category the category of endpoint the breaker protects
+	 * @param from the previous state
+	 * @param to the new state
+	 */
+	public void onStateTransition(UaaEndpointCategory category, State from, State to);
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common;
+
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Thrown instead of calling the UAA while the circuit breaker for an endpoint category is open. No stack trace is
+ * captured, so rejecting a call is cheap.
+ * 
+ * @see org.cloudfoundry.identity.uaa.api.common.impl.CircuitBreaker
+ */
+public class CircuitBreakerOpenException extends RestClientException {
+	private static final long serialVersionUID = 1L;
+
+	private final UaaEndpointCategory category;
+
+	public CircuitBreakerOpenException(UaaEndpointCategory category) {
+		super("Circuit breaker for " + category + " endpoints is open");
+		this.category = category;
+	}
+
+	/**
+	 * @return the category of endpoint whose breaker rejected the call
+	 */
+	public UaaEndpointCategory getCategory() {
+		return category;
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+}
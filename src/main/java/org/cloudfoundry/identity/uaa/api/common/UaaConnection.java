@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.api.common;
 
 import org.cloudfoundry.identity.uaa.api.client.UaaClientOperations;
 import org.cloudfoundry.identity.uaa.api.group.UaaGroupOperations;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenOperations;
 import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
 
 /**
@@ -34,6 +35,11 @@ public interface UaaConnection {
 	 */
 	public UaaGroupOperations groupOperations();
 
+	/**
+	 * @return an entry point for token APIs
+	 */
+	public UaaTokenOperations tokenOperations();
+
 	/**
 	 * @return an entry point for user APIs
 	 */
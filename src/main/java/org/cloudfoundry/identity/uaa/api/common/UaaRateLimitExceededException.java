@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Thrown when a request is rejected by the client side rate limiter before it is sent to the UAA
+ * 
+ * @see org.cloudfoundry.identity.uaa.api.common.impl.UaaRateLimiter
+ */
+public class UaaRateLimitExceededException extends RestClientException {
+	private static final long serialVersionUID = 1L;
+
+	public UaaRateLimitExceededException(String msg) {
+		super(msg);
+	}
+}
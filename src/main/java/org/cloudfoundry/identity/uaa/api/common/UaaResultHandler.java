@@ -0,0 +1,26 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common;
+
+/**
+ * Receives the resources of a streamed search one at a time, while the response is still being read. Called on the
+ * thread making the request.
+ */
+public interface UaaResultHandler<T> {
+	/**
+	 * @param resource the next resource of the page
+	 * @return true to keep reading, false to stop and discard the rest of the page
+	 */
+	public boolean handle(T resource);
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+/**
+ * Keeps the access tokens connections obtain, so they outlive the connection that obtained them. Keys identify the
+ * token endpoint, client, user, scopes and a key derived from the secrets the token was obtained with, so a token is
+ * only found again with the same credentials. Called from any thread that makes requests, so implementations must be
+ * safe for concurrent use.
+ * 
+ * @see org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper#setTokenStore(UaaTokenStore)
+ */
+public interface UaaTokenStore {
+	/**
+	 * @param key identifies the credentials
+	 * @return the token last stored for the credentials, which may have expired, or null if there is none
+	 */
+	public OAuth2AccessToken get(String key);
+
+	/**
+	 * @param key identifies the credentials
+	 * @param token a token just obtained or refreshed for the credentials
+	 */
+	public void put(String key, OAuth2AccessToken token);
+
+	/**
+	 * Forget the token for the credentials if it is still the given one, such as one that could not be refreshed, so
+	 * a token another connection has stored since is kept
+	 * 
+	 * @param key identifies the credentials
+	 * @param token the token to forget
+	 */
+	public void remove(String key, OAuth2AccessToken token);
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.Assert;
+
+/**
+ * Limits the number of requests in flight to the UAA, adjusting the limit to observed round trip times using additive
+ * increase / multiplicative decrease (AIMD). While requests complete successfully within the target latency and the
+ * limit is actually being used, the limit grows by roughly one per round trip. A failed request or one slower than the
+ * target shrinks it by the backoff ratio, at most once per round trip so a single slow burst does not collapse it.
+ */
+public class AdaptiveConcurrencyLimiter {
+	private final long targetLatencyNanos;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final double backoffRatio;
+
+	private double limit;
+
+	private int inFlight;
+
+	private long nextDecreaseNanos;
+
+	/**
+	 * Create a limiter starting at 10 concurrent requests, bounded between 1 and 200, halving on overload
+	 * 
+	 * @param targetLatency the round trip time above which UAA is considered overloaded
+	 * @param unit the unit of <code>targetLatency</code>
+	 */
+	public AdaptiveConcurrencyLimiter(long targetLatency, TimeUnit unit) {
+		this(targetLatency, unit, 10, 1, 200, 0.5);
+	}
+
+	/**
+	 * @param targetLatency the round trip time above which UAA is considered overloaded
+	 * @param unit the unit of <code>targetLatency</code>
+	 * @param initialLimit the starting limit
+	 * @param minLimit the lowest the limit may fall
+	 * @param maxLimit the highest the limit may grow
+	 * @param backoffRatio the factor applied to the limit on overload. Must be between 0 and 1.
+	 */
+	public AdaptiveConcurrencyLimiter(long targetLatency, TimeUnit unit, int initialLimit, int minLimit,
+			int maxLimit, double backoffRatio) {
+		Assert.isTrue(targetLatency > 0, "targetLatency must be positive");
+		Assert.isTrue(minLimit >= 1 && minLimit <= initialLimit && initialLimit <= maxLimit,
+				"limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+		Assert.isTrue(backoffRatio > 0 && backoffRatio < 1, "backoffRatio must be between 0 and 1");
+
+		this.targetLatencyNanos = unit.toNanos(targetLatency);
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.backoffRatio = backoffRatio;
+		this.limit = initialLimit;
+		this.nextDecreaseNanos = System.nanoTime();
+	}
+
+	/**
+	 * Wait until a request may be sent. Every successful call must be followed by a call to
+	 * {@link #release(long, boolean)}.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (inFlight >= (int) limit) {
+			wait();
+		}
+
+		inFlight++;
+	}
+
+	/**
+	 * Wait up to the given timeout until a request may be sent.
+	 * 
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of <code>timeout</code>
+	 * @return true if the request may be sent, in which case {@link #release(long, boolean)} must be called after it
+	 * completes
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (inFlight >= (int) limit) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Record the outcome of a request and let the next one through
+	 * 
+	 * @param latencyNanos the observed round trip time
+	 * @param success false if the request failed in a way that indicates UAA is overloaded (timeouts, I/O errors, 5xx
+	 * and 429 responses)
+	 */
+	public synchronized void release(long latencyNanos, boolean success) {
+		inFlight--;
+
+		long now = System.nanoTime();
+		if (!success || latencyNanos > targetLatencyNanos) {
+			if (now - nextDecreaseNanos >= 0) {
+				limit = Math.max(minLimit, limit * backoffRatio);
+				nextDecreaseNanos = now + latencyNanos;
+			}
+		}
+		else if (inFlight + 1 >= limit / 2) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * @return the current concurrency limit
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * @return the number of requests currently in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+}
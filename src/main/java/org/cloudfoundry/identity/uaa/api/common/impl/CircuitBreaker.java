@@ -0,0 +1,230 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.api.common.CircuitBreakerListener;
+import org.cloudfoundry.identity.uaa.api.common.CircuitBreakerOpenException;
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
+import org.springframework.util.Assert;
+
+/**
+ * A circuit breaker for one {@link UaaEndpointCategory}. Outcomes of the most recent calls are kept in a ring buffer;
+ * when the failure rate or the slow call rate reaches its threshold the breaker opens and rejects calls with
+ * {@link CircuitBreakerOpenException} until the open duration has passed. It then lets a few probe calls through
+ * (half open) and closes again only if they all succeed.
+ * 
+ * @see CircuitBreakerRegistry
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final byte FAILED = 1;
+
+	private static final byte SLOW = 2;
+
+	private final UaaEndpointCategory category;
+
+	private final CircuitBreakerConfig config;
+
+	private final List<CircuitBreakerListener> listeners;
+
+	private final byte[] window;
+
+	private int windowPosition;
+
+	private int recordedCalls;
+
+	private int failedCalls;
+
+	private int slowCalls;
+
+	private volatile State state = State.CLOSED;
+
+	private volatile long openUntilNanos;
+
+	private int halfOpenPermits;
+
+	private int halfOpenSuccesses;
+
+	/**
+	 * @param category the category of endpoint this breaker protects
+	 * @param config the breaker settings
+	 * @param listeners notified of state transitions. The list is read, not copied, so a concurrent list may be
+	 * shared between breakers.
+	 */
+	public CircuitBreaker(UaaEndpointCategory category, CircuitBreakerConfig config,
+			List<CircuitBreakerListener> listeners) {
+		Assert.notNull(category);
+		Assert.notNull(config);
+		Assert.isTrue(config.getWindowSize() > 0, "windowSize must be positive");
+		Assert.isTrue(config.getHalfOpenCalls() > 0, "halfOpenCalls must be positive");
+
+		this.category = category;
+		this.config = config;
+		this.listeners = listeners;
+		this.window = new byte[config.getWindowSize()];
+	}
+
+	/**
+	 * Ask to make a call. Every call that is permitted must be followed by {@link #onResult(long, boolean)} or
+	 * {@link #releasePermission()}.
+	 * 
+	 * @throws CircuitBreakerOpenException if the breaker is open, or half open with all probes in flight
+	 */
+	public void acquirePermission() {
+		if (state == State.CLOSED) {
+			return;
+		}
+
+		if (state == State.OPEN && System.nanoTime() - openUntilNanos < 0) {
+			throw new CircuitBreakerOpenException(category);
+		}
+
+		if (!acquireSlowPath()) {
+			throw new CircuitBreakerOpenException(category);
+		}
+	}
+
+	private synchronized boolean acquireSlowPath() {
+		if (state == State.OPEN) {
+			if (System.nanoTime() - openUntilNanos < 0) {
+				return false;
+			}
+
+			halfOpenPermits = config.getHalfOpenCalls();
+			halfOpenSuccesses = 0;
+			transitionTo(State.HALF_OPEN);
+		}
+
+		if (state == State.HALF_OPEN) {
+			if (halfOpenPermits == 0) {
+				return false;
+			}
+
+			halfOpenPermits--;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Give back a permission that was not used to make a call
+	 */
+	public synchronized void releasePermission() {
+		if (state == State.HALF_OPEN) {
+			halfOpenPermits++;
+		}
+	}
+
+	/**
+	 * Record the outcome of a permitted call
+	 * 
+	 * @param durationNanos how long the call took
+	 * @param failed true if the call failed in a way that indicates the UAA is unhealthy
+	 */
+	public synchronized void onResult(long durationNanos, boolean failed) {
+		boolean slow = durationNanos > config.getSlowCallDurationNanos();
+
+		switch (state) {
+		case HALF_OPEN:
+			if (failed || slow) {
+				open();
+			}
+			else if (++halfOpenSuccesses >= config.getHalfOpenCalls()) {
+				resetWindow();
+				transitionTo(State.CLOSED);
+			}
+			break;
+		case CLOSED:
+			record(failed, slow);
+			if (recordedCalls >= config.getMinimumCalls()
+					&& (failedCalls * 100 >= config.getFailureRateThreshold() * recordedCalls || slowCalls * 100 >= config
+							.getSlowCallRateThreshold() * recordedCalls)) {
+				open();
+			}
+			break;
+		default:
+			// a call that was permitted before the breaker opened; it no longer matters
+		}
+	}
+
+	/**
+	 * @return the current state
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the category of endpoint this breaker protects
+	 */
+	public UaaEndpointCategory getCategory() {
+		return category;
+	}
+
+	private void record(boolean failed, boolean slow) {
+		if (recordedCalls == window.length) {
+			byte evicted = window[windowPosition];
+			if ((evicted & FAILED) != 0) {
+				failedCalls--;
+			}
+			if ((evicted & SLOW) != 0) {
+				slowCalls--;
+			}
+		}
+		else {
+			recordedCalls++;
+		}
+
+		byte outcome = 0;
+		if (failed) {
+			outcome |= FAILED;
+			failedCalls++;
+		}
+		if (slow) {
+			outcome |= SLOW;
+			slowCalls++;
+		}
+
+		window[windowPosition] = outcome;
+		windowPosition = (windowPosition + 1) % window.length;
+	}
+
+	private void resetWindow() {
+		windowPosition = 0;
+		recordedCalls = 0;
+		failedCalls = 0;
+		slowCalls = 0;
+	}
+
+	private void open() {
+		openUntilNanos = System.nanoTime() + config.getOpenDurationNanos();
+		transitionTo(State.OPEN);
+	}
+
+	private void transitionTo(State newState) {
+		State oldState = state;
+		state = newState;
+
+		if (listeners != null && oldState != newState) {
+			for (CircuitBreakerListener listener : listeners) {
+				listener.onStateTransition(category, oldState, newState);
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings for a {@link CircuitBreaker}. The defaults open the breaker when half of the last 50 calls (with at least 10
+ * recorded) failed or took longer than 5 seconds, keep it open for 30 seconds, then let 3 probe calls through.
+ */
+public class CircuitBreakerConfig {
+	private int windowSize = 50;
+
+	private int minimumCalls = 10;
+
+	private int failureRateThreshold = 50;
+
+	private int slowCallRateThreshold = 50;
+
+	private long slowCallDurationNanos = TimeUnit.SECONDS.toNanos(5);
+
+	private long openDurationNanos = TimeUnit.SECONDS.toNanos(30);
+
+	private int halfOpenCalls = 3;
+
+	/**
+	 * @return the number of most recent calls the failure and slow call rates are computed over
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * @return the number of calls that must be recorded before the breaker may open
+	 */
+	public int getMinimumCalls() {
+		return minimumCalls;
+	}
+
+	public void setMinimumCalls(int minimumCalls) {
+		this.minimumCalls = minimumCalls;
+	}
+
+	/**
+	 * @return the percentage of failed calls at which the breaker opens
+	 */
+	public int getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	public void setFailureRateThreshold(int failureRateThreshold) {
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	/**
+	 * @return the percentage of slow calls at which the breaker opens
+	 */
+	public int getSlowCallRateThreshold() {
+		return slowCallRateThreshold;
+	}
+
+	public void setSlowCallRateThreshold(int slowCallRateThreshold) {
+		this.slowCallRateThreshold = slowCallRateThreshold;
+	}
+
+	/**
+	 * @return the duration above which a call counts as slow, in nanoseconds
+	 */
+	public long getSlowCallDurationNanos() {
+		return slowCallDurationNanos;
+	}
+
+	public void setSlowCallDuration(long duration, TimeUnit unit) {
+		this.slowCallDurationNanos = unit.toNanos(duration);
+	}
+
+	/**
+	 * @return how long the breaker stays open before probing, in nanoseconds
+	 */
+	public long getOpenDurationNanos() {
+		return openDurationNanos;
+	}
+
+	public void setOpenDuration(long duration, TimeUnit unit) {
+		this.openDurationNanos = unit.toNanos(duration);
+	}
+
+	/**
+	 * @return the number of probe calls let through while half open. The breaker closes if they all succeed.
+	 */
+	public int getHalfOpenCalls() {
+		return halfOpenCalls;
+	}
+
+	public void setHalfOpenCalls(int halfOpenCalls) {
+		this.halfOpenCalls = halfOpenCalls;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.cloudfoundry.identity.uaa.api.common.CircuitBreakerListener;
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
+import org.springframework.util.Assert;
+
+/**
+ * One {@link CircuitBreaker} per {@link UaaEndpointCategory}, so a failing <code>/Groups</code> endpoint does not stop
+ * token or <code>/Users</code> calls. Set it on a connection with
+ * {@link UaaConnectionHelper#setCircuitBreakers(CircuitBreakerRegistry)}.
+ */
+public class CircuitBreakerRegistry {
+	private final Map<UaaEndpointCategory, CircuitBreaker> breakers = new EnumMap<UaaEndpointCategory, CircuitBreaker>(
+			UaaEndpointCategory.class);
+
+	private final List<CircuitBreakerListener> listeners = new CopyOnWriteArrayList<CircuitBreakerListener>();
+
+	/**
+	 * Create a registry using the default {@link CircuitBreakerConfig} for every category
+	 */
+	public CircuitBreakerRegistry() {
+		this(new CircuitBreakerConfig());
+	}
+
+	/**
+	 * @param config the settings used for every category
+	 */
+	public CircuitBreakerRegistry(CircuitBreakerConfig config) {
+		Assert.notNull(config);
+
+		for (UaaEndpointCategory category : UaaEndpointCategory.values()) {
+			breakers.put(category, new CircuitBreaker(category, config, listeners));
+		}
+	}
+
+	/**
+	 * Use different settings for one category. Should be called before the registry is in use.
+	 * 
+	 * @param category the category
+	 * @param config the settings
+	 * @return the registry (for chaining)
+	 */
+	public CircuitBreakerRegistry configure(UaaEndpointCategory category, CircuitBreakerConfig config) {
+		breakers.put(category, new CircuitBreaker(category, config, listeners));
+		return this;
+	}
+
+	/**
+	 * @param category the category
+	 * @return the breaker for the category
+	 */
+	public CircuitBreaker get(UaaEndpointCategory category) {
+		return breakers.get(category);
+	}
+
+	/**
+	 * @param listener notified of state transitions of every breaker in this registry
+	 */
+	public void addListener(CircuitBreakerListener listener) {
+		Assert.notNull(listener);
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener a previously added listener
+	 */
+	public void removeListener(CircuitBreakerListener listener) {
+		listeners.remove(listener);
+	}
+}
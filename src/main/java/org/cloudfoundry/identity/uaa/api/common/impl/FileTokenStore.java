@@ -0,0 +1,285 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.api.common.UaaTokenStore;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.util.Assert;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A {@link UaaTokenStore} kept in a file, so short-lived processes such as command line and batch tools reuse the
+ * tokens earlier runs obtained until they expire, and refresh them after that, instead of obtaining one per run.
+ * <p>
+ * The file holds bearer tokens, so it and the directory it is created in are readable by their owner only where the
+ * file system supports POSIX permissions. Every change is written to a new file that replaces the old one atomically,
+ * so readers never see a partial file, and changes are serialized between processes by a lock on a
+ * <code>.lock</code> file next to it, so processes sharing the store do not lose each other's tokens. Tokens that
+ * have expired and cannot be refreshed are dropped whenever the file is written. A file that cannot be read is
+ * treated as empty and one that cannot be written is logged, so requests never fail because of the store.
+ * 
+ * @see org.cloudfoundry.identity.uaa.api.UaaConnectionFactory#getConnection(java.net.URL,
+ *      org.springframework.security.oauth2.client.resource.OAuth2ProtectedResourceDetails, UaaTokenStore)
+ */
+public class FileTokenStore implements UaaTokenStore {
+	private static final Log log = LogFactory.getLog(FileTokenStore.class);
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/**
+	 * File locks are held by the process, not the thread, so threads of one process serialize on these first
+	 */
+	private static final ConcurrentMap<File, Object> LOCKS = new ConcurrentHashMap<File, Object>();
+
+	private static final Set<StandardOpenOption> LOCK_OPTIONS = EnumSet.of(StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE);
+
+	private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+	private final File file;
+
+	private final File lockFile;
+
+	private final Object lock;
+
+	/**
+	 * @param file the file to keep tokens in. It and its directory are created when the first token is stored.
+	 */
+	public FileTokenStore(File file) {
+		Assert.notNull(file, "file must not be null");
+
+		this.file = file.getAbsoluteFile();
+		this.lockFile = new File(this.file.getPath() + ".lock");
+
+		Object lock = new Object();
+		Object existing = LOCKS.putIfAbsent(this.file, lock);
+		this.lock = existing != null ? existing : lock;
+	}
+
+	/**
+	 * @return the file tokens are kept in
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	public OAuth2AccessToken get(String key) {
+		JsonNode stored = read().get(key);
+		if (stored == null) {
+			return null;
+		}
+
+		OAuth2AccessToken token = toToken(stored);
+		return isUsable(token) ? token : null;
+	}
+
+	public void put(String key, OAuth2AccessToken token) {
+		Assert.notNull(token, "token must not be null");
+		update(key, toJson(token), null);
+	}
+
+	public void remove(String key, OAuth2AccessToken token) {
+		Assert.notNull(token, "token must not be null");
+		update(key, null, token.getValue());
+	}
+
+	/**
+	 * Replace the token for a key, or remove it if <code>stored</code> is null and the token is still the expected
+	 * one, holding the lock file throughout so changes made by other processes in the meantime are kept
+	 */
+	private void update(String key, JsonNode stored, String expected) {
+		synchronized (lock) {
+			try {
+				File directory = file.getParentFile();
+				if (!directory.isDirectory()) {
+					Files.createDirectories(directory.toPath(), privateAttributes(true));
+				}
+
+				FileChannel channel = FileChannel.open(lockFile.toPath(), LOCK_OPTIONS, privateAttributes(false));
+				try {
+					FileLock fileLock = channel.lock();
+					try {
+						ObjectNode tokens = read();
+						for (Iterator<Map.Entry<String, JsonNode>> entries = tokens.fields(); entries.hasNext();) {
+							if (!isUsable(toToken(entries.next().getValue()))) {
+								entries.remove();
+							}
+						}
+
+						if (stored == null) {
+							if (!expected.equals(tokens.path(key).path("access_token").asText(null))) {
+								return;
+							}
+							tokens.remove(key);
+						}
+						else {
+							tokens.set(key, stored);
+						}
+
+						write(tokens);
+					}
+					finally {
+						fileLock.release();
+					}
+				}
+				finally {
+					channel.close();
+				}
+			}
+			catch (IOException e) {
+				log.warn("Could not save tokens to " + file, e);
+			}
+		}
+	}
+
+	private ObjectNode read() {
+		if (!file.isFile()) {
+			return MAPPER.createObjectNode();
+		}
+
+		try {
+			JsonNode tokens = MAPPER.readTree(file);
+			if (tokens != null && tokens.isObject()) {
+				return (ObjectNode) tokens;
+			}
+		}
+		catch (IOException e) {
+			log.warn("Ignoring unreadable token store " + file, e);
+		}
+
+		return MAPPER.createObjectNode();
+	}
+
+	private void write(ObjectNode tokens) throws IOException {
+		Path temp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp", privateAttributes(false));
+		try {
+			RandomAccessFile raf = new RandomAccessFile(temp.toFile(), "rw");
+			try {
+				raf.write(MAPPER.writeValueAsBytes(tokens));
+				raf.getChannel().force(true);
+			}
+			finally {
+				raf.close();
+			}
+
+			try {
+				Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @param directory true for a directory, false for a file
+	 * @return attributes making a new file or directory accessible to its owner only, if the file system supports it
+	 */
+	private static FileAttribute<?>[] privateAttributes(boolean directory) {
+		if (!POSIX) {
+			return new FileAttribute<?>[0];
+		}
+		return new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(PosixFilePermissions
+				.fromString(directory ? "rwx------" : "rw-------")) };
+	}
+
+	private static boolean isUsable(OAuth2AccessToken token) {
+		return token != null && (!token.isExpired() || token.getRefreshToken() != null);
+	}
+
+	private static JsonNode toJson(OAuth2AccessToken token) {
+		ObjectNode stored = MAPPER.createObjectNode();
+		stored.put("access_token", token.getValue());
+		stored.put("token_type", token.getTokenType());
+		if (token.getRefreshToken() != null) {
+			stored.put("refresh_token", token.getRefreshToken().getValue());
+		}
+		if (token.getExpiration() != null) {
+			stored.put("expires_at", token.getExpiration().getTime());
+		}
+		if (token.getScope() != null) {
+			ArrayNode scope = stored.putArray("scope");
+			for (String granted : token.getScope()) {
+				scope.add(granted);
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * @return the token, or null if the entry is not one
+	 */
+	private static OAuth2AccessToken toToken(JsonNode stored) {
+		String value = stored.path("access_token").asText(null);
+		if (value == null) {
+			return null;
+		}
+
+		DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(value);
+		token.setTokenType(stored.path("token_type").asText(OAuth2AccessToken.BEARER_TYPE));
+		if (stored.hasNonNull("refresh_token")) {
+			token.setRefreshToken(new DefaultOAuth2RefreshToken(stored.get("refresh_token").asText()));
+		}
+		if (stored.hasNonNull("expires_at")) {
+			token.setExpiration(new Date(stored.get("expires_at").asLong()));
+		}
+		if (stored.path("scope").isArray()) {
+			List<String> scope = new ArrayList<String>();
+			for (JsonNode granted : stored.get("scope")) {
+				scope.add(granted.asText());
+			}
+			token.setScope(new LinkedHashSet<String>(scope));
+		}
+		else {
+			token.setScope(Collections.<String> emptySet());
+		}
+		return token;
+	}
+}
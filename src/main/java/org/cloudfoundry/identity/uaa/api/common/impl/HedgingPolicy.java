@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.util.Assert;
+
+/**
+ * Settings for hedged GET requests. When a GET has not completed after the hedge delay, a duplicate is sent (to a
+ * different UAA server when several are configured) and whichever answers first is used. The delay tracks a percentile
+ * of recently observed GET latencies, never dropping below the configured minimum. To cap the extra load, each request
+ * earns a fraction of a hedge and a hedge is only sent when a whole one has been earned. When the executor has no
+ * thread to spare, the GET is sent on the caller's thread without a hedge, and a hedge that cannot be started is
+ * skipped.
+ * 
+ * @see UaaConnectionHelper#setHedgingPolicy(HedgingPolicy)
+ */
+public class HedgingPolicy {
+	private static final int SAMPLES = 256;
+
+	private static final int RECOMPUTE_EVERY = 32;
+
+	private static final int BUDGET_SCALE = 1000;
+
+	private static final int DEFAULT_THREADS = 32;
+
+	private final ExecutorService executor;
+
+	private final double percentile;
+
+	private final long minDelayNanos;
+
+	private final int budgetPerRequest;
+
+	private final int maxBudget;
+
+	private final AtomicInteger budget = new AtomicInteger();
+
+	private final long[] samples = new long[SAMPLES];
+
+	private int sampleCount;
+
+	private volatile long delayNanos;
+
+	/**
+	 * Hedge after the 95th percentile latency (but at least 10ms), with a budget of 5% extra requests
+	 */
+	public HedgingPolicy() {
+		this(0.95, 10, TimeUnit.MILLISECONDS, 0.05, null);
+	}
+
+	/**
+	 * @param percentile the latency percentile after which to hedge, between 0 and 1
+	 * @param minDelay the minimum hedge delay, also used until enough latencies have been observed
+	 * @param unit the unit of <code>minDelay</code>
+	 * @param budgetRatio the maximum number of hedges as a fraction of requests, between 0 and 1
+	 * @param executor runs the requests; if null, a pool of at most 32 daemon threads is created. An executor that
+	 * rejects tasks rather than queueing them keeps requests from waiting behind one another.
+	 */
+	public HedgingPolicy(double percentile, long minDelay, TimeUnit unit, double budgetRatio, ExecutorService executor) {
+		Assert.isTrue(percentile > 0 && percentile < 1, "percentile must be between 0 and 1");
+		Assert.isTrue(budgetRatio > 0 && budgetRatio <= 1, "budgetRatio must be between 0 and 1");
+
+		this.percentile = percentile;
+		this.minDelayNanos = unit.toNanos(minDelay);
+		this.delayNanos = minDelayNanos;
+		this.budgetPerRequest = (int) (budgetRatio * BUDGET_SCALE);
+		this.maxBudget = 10 * BUDGET_SCALE;
+		this.executor = executor != null ? executor : newDefaultExecutor();
+	}
+
+	private static ExecutorService newDefaultExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "uaa-hedge-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * @return the executor running the requests
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return how long to wait for the first attempt before hedging, in nanoseconds
+	 */
+	public long getDelayNanos() {
+		return delayNanos;
+	}
+
+	/**
+	 * Earn budget for a new request
+	 */
+	void onRequest() {
+		int current;
+		do {
+			current = budget.get();
+			if (current >= maxBudget) {
+				return;
+			}
+		} while (!budget.compareAndSet(current, Math.min(maxBudget, current + budgetPerRequest)));
+	}
+
+	/**
+	 * @return true if there is budget for a hedge, in which case it has been spent
+	 */
+	boolean tryAcquireHedge() {
+		int current;
+		do {
+			current = budget.get();
+			if (current < BUDGET_SCALE) {
+				return false;
+			}
+		} while (!budget.compareAndSet(current, current - BUDGET_SCALE));
+
+		return true;
+	}
+
+	/**
+	 * Record the latency of a successful GET
+	 * 
+	 * @param latencyNanos the observed latency
+	 */
+	synchronized void recordLatency(long latencyNanos) {
+		samples[sampleCount % SAMPLES] = latencyNanos;
+		sampleCount++;
+
+		if (sampleCount % RECOMPUTE_EVERY == 0) {
+			long[] sorted = Arrays.copyOf(samples, Math.min(sampleCount, SAMPLES));
+			Arrays.sort(sorted);
+			delayNanos = Math.max(minDelayNanos, sorted[(int) (percentile * (sorted.length - 1))]);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Collapses concurrent identical requests into one. The first caller for a key runs the request on its own thread;
+ * callers arriving with the same key while it is in flight wait for it and receive the same result object, so results
+ * shared this way should be treated as read only, unless a {@link Copier} is given. Nothing is cached once the request
+ * completes.
+ * <p>
+ * One coalescer may be shared by several connections, as keys include the credentials.
+ * 
+ * @see UaaConnectionHelper#setRequestCoalescer(RequestCoalescer)
+ */
+public class RequestCoalescer {
+	private final ConcurrentMap<String, Call<?>> inFlight = new ConcurrentHashMap<String, Call<?>>();
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong collapsed = new AtomicLong();
+
+	/**
+	 * Run the request, or join an identical one already in flight
+	 * 
+	 * @param key identifies the request
+	 * @param request the request
+	 * @return the result
+	 */
+	public <T> T execute(String key, Callable<T> request) {
+		return execute(key, request, null);
+	}
+
+	/**
+	 * Run the request, or join an identical one already in flight. With a copier, no two callers get the same result
+	 * object: the caller that ran the request keeps the result, and when others joined it, takes a snapshot before
+	 * returning, from which each of them gets a copy. Nothing is copied when no one joins.
+	 * 
+	 * @param key identifies the request
+	 * @param request the request
+	 * @param copier copies the result for callers that joined; if null they share it
+	 * @return the result
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T execute(String key, Callable<T> request, Copier<T> copier) {
+		requests.incrementAndGet();
+
+		Call<T> call = new Call<T>(request, copier);
+		Call<T> existing;
+		while ((existing = (Call<T>) inFlight.putIfAbsent(key, call)) != null) {
+			if (existing.join(copier)) {
+				collapsed.incrementAndGet();
+				return existing.copyFor(copier);
+			}
+			// it completed as we found it and is on its way out of the map
+		}
+
+		try {
+			call.task.run();
+		}
+		finally {
+			inFlight.remove(key, call);
+		}
+
+		return call.complete();
+	}
+
+	/**
+	 * @return the number of requests passed to {@link #execute(String, Callable)}
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of requests that joined an identical one instead of going to the network
+	 */
+	public long getCollapsedCount() {
+		return collapsed.get();
+	}
+
+	/**
+	 * @return the number of distinct requests currently in flight
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	private static <T> T resultOf(FutureTask<T> task) {
+		try {
+			return task.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RestClientException(cause.getMessage(), cause);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RestClientException("Interrupted while waiting for a response", e);
+		}
+	}
+
+	/**
+	 * Copies a result for callers that joined a request, by way of a snapshot taken once by the caller that ran it
+	 * 
+	 * @param <T> the type of the result
+	 */
+	public interface Copier<T> {
+		/**
+		 * @param result the result, which the caller that ran the request has not yet been given
+		 * @return a snapshot that does not change when the result does
+		 */
+		byte[] snapshot(T result);
+
+		/**
+		 * @param snapshot a snapshot of the result
+		 * @return an object of the joining caller's own
+		 */
+		T copy(byte[] snapshot);
+	}
+
+	private static class Call<T> {
+		private final FutureTask<T> task;
+
+		private final CountDownLatch snapshotTaken = new CountDownLatch(1);
+
+		private Copier<T> copier;
+
+		private int copies;
+
+		private boolean closed;
+
+		private volatile byte[] snapshot;
+
+		private volatile RuntimeException snapshotFailure;
+
+		Call(Callable<T> request, Copier<T> copier) {
+			this.task = new FutureTask<T>(request);
+			this.copier = copier;
+		}
+
+		synchronized boolean join(Copier<T> joiner) {
+			if (closed) {
+				return false;
+			}
+
+			if (joiner != null) {
+				copies++;
+				if (copier == null) {
+					copier = joiner;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Called by the caller that ran the request once no one else can join it
+		 */
+		T complete() {
+			Copier<T> snapshotter;
+			synchronized (this) {
+				closed = true;
+				snapshotter = copies > 0 ? copier : null;
+			}
+
+			try {
+				T result = resultOf(task);
+				if (snapshotter != null && result != null) {
+					try {
+						snapshot = snapshotter.snapshot(result);
+					}
+					catch (RuntimeException e) {
+						// only the callers that joined go without
+						snapshotFailure = e;
+					}
+				}
+				return result;
+			}
+			finally {
+				snapshotTaken.countDown();
+			}
+		}
+
+		T copyFor(Copier<T> joiner) {
+			T result = resultOf(task);
+			if (joiner == null || result == null) {
+				return result;
+			}
+
+			try {
+				snapshotTaken.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RestClientException("Interrupted while waiting for a response", e);
+			}
+
+			if (snapshotFailure != null) {
+				throw snapshotFailure;
+			}
+			if (snapshot == null) {
+				throw new RestClientException("The response could not be copied");
+			}
+			return joiner.copy(snapshot);
+		}
+	}
+}
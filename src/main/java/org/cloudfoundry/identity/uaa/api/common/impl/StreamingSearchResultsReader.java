@@ -0,0 +1,285 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
+import org.springframework.util.Assert;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads a page of SCIM search results one resource at a time. Only the resource being decoded is held in memory; the
+ * body is never buffered and no tree of the page is built, so memory use does not grow with the page size and the
+ * first resource is available as soon as its bytes arrive.
+ * <p>
+ * Resources are decoded either with the mapper, into any type it can bind, or into {@link ScimRecord}s holding just
+ * the attributes a search asked for.
+ */
+public class StreamingSearchResultsReader {
+	private final ObjectMapper mapper;
+
+	private final StringPool pool;
+
+	/**
+	 * @param mapper the mapper to decode each resource with
+	 */
+	public StreamingSearchResultsReader(ObjectMapper mapper) {
+		this(mapper, null);
+	}
+
+	/**
+	 * @param mapper the mapper to decode each resource with
+	 * @param pool the pool to deduplicate the string values of records and schemas through, or null. Resources
+	 *            decoded by the mapper are pooled only if it has a {@link StringPoolModule}.
+	 */
+	public StreamingSearchResultsReader(ObjectMapper mapper, StringPool pool) {
+		Assert.notNull(mapper, "mapper must not be null");
+		this.mapper = mapper;
+		this.pool = pool;
+	}
+
+	/**
+	 * @param body the JSON page, which is read up to the end of the page or until the handler stops
+	 * @param resourceType the type to decode each resource as
+	 * @param handler receives each resource as it is decoded
+	 * @return the paging information of the page
+	 * @throws IOException if the body cannot be read or is not a page of results
+	 */
+	public <T> StreamedSearchResults<T> read(InputStream body, final Class<T> resourceType,
+			UaaResultHandler<? super T> handler) throws IOException {
+		Assert.notNull(resourceType, "resourceType must not be null");
+
+		return read(body, new ResourceDecoder<T>() {
+			public T decode(JsonParser parser) throws IOException {
+				return mapper.readValue(parser, resourceType);
+			}
+		}, handler);
+	}
+
+	/**
+	 * @param body the JSON page, which is read up to the end of the page or until the handler stops
+	 * @param attributes the attributes the search asked for; each record holds these and nothing else
+	 * @param handler receives each record as it is decoded
+	 * @return the paging information of the page
+	 * @throws IOException if the body cannot be read or is not a page of results
+	 */
+	public StreamedSearchResults<ScimRecord> readRecords(InputStream body, List<String> attributes,
+			UaaResultHandler<? super ScimRecord> handler) throws IOException {
+		Assert.notEmpty(attributes, "attributes must not be empty");
+
+		final List<String> layout = Collections.unmodifiableList(new ArrayList<String>(attributes));
+		return read(body, new ResourceDecoder<ScimRecord>() {
+			public ScimRecord decode(JsonParser parser) throws IOException {
+				return decodeRecord(parser, layout);
+			}
+		}, handler);
+	}
+
+	private <T> StreamedSearchResults<T> read(InputStream body, ResourceDecoder<T> decoder,
+			UaaResultHandler<? super T> handler) throws IOException {
+		Assert.notNull(handler, "handler must not be null");
+
+		List<String> schemas = new ArrayList<String>();
+		int startIndex = 0;
+		int itemsPerPage = 0;
+		int totalResults = 0;
+		int delivered = 0;
+
+		JsonParser parser = mapper.getFactory().createParser(body);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Expected a JSON object, got " + parser.getCurrentToken());
+			}
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+
+				if ("resources".equals(field) && value == JsonToken.START_ARRAY) {
+					JsonToken element;
+					while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+						if (element == null) {
+							throw new IOException("Unexpected end of resources");
+						}
+						if (element != JsonToken.START_OBJECT) {
+							parser.skipChildren();
+							continue;
+						}
+
+						T resource = decoder.decode(parser);
+						delivered++;
+						if (!handler.handle(resource)) {
+							return new StreamedSearchResults<T>(schemas, startIndex, itemsPerPage, totalResults,
+									delivered, false);
+						}
+					}
+				}
+				else if ("startIndex".equals(field) && value.isNumeric()) {
+					startIndex = parser.getIntValue();
+				}
+				else if ("itemsPerPage".equals(field) && value.isNumeric()) {
+					itemsPerPage = parser.getIntValue();
+				}
+				else if ("totalResults".equals(field) && value.isNumeric()) {
+					totalResults = parser.getIntValue();
+				}
+				else if ("schemas".equals(field) && value == JsonToken.START_ARRAY) {
+					while (parser.nextToken() != JsonToken.END_ARRAY) {
+						if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+							schemas.add(text(parser));
+						}
+						else {
+							parser.skipChildren();
+						}
+					}
+				}
+				else {
+					parser.skipChildren();
+				}
+			}
+		}
+		finally {
+			parser.close();
+		}
+
+		return new StreamedSearchResults<T>(schemas, startIndex, itemsPerPage, totalResults, delivered, true);
+	}
+
+	/**
+	 * Read one resource into a record. A field is kept if an attribute names it, or names something inside it, such
+	 * as <code>name.familyName</code> or <code>emails.value</code>; every other field is skipped without being
+	 * decoded.
+	 */
+	private ScimRecord decodeRecord(JsonParser parser, List<String> attributes) throws IOException {
+		Object[] values = new Object[attributes.size()];
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+
+			boolean wanted = false;
+			for (int i = 0; i < values.length && !wanted; i++) {
+				wanted = matches(attributes.get(i), field) >= 0;
+			}
+
+			if (!wanted) {
+				parser.skipChildren();
+				continue;
+			}
+
+			Object value = token.isScalarValue() ? scalarValue(parser, token) : mapper.readValue(parser, Object.class);
+			for (int i = 0; i < values.length; i++) {
+				int match = matches(attributes.get(i), field);
+				if (match == 0) {
+					values[i] = value;
+				}
+				else if (match > 0) {
+					values[i] = valueAt(value, attributes.get(i).substring(match));
+				}
+			}
+		}
+
+		return new ScimRecord(attributes, values);
+	}
+
+	/**
+	 * @return 0 if the attribute is the field, the offset of the rest of the attribute's path if it is inside the
+	 * field, or -1
+	 */
+	private static int matches(String attribute, String field) {
+		if (attribute.equalsIgnoreCase(field)) {
+			return 0;
+		}
+
+		int length = field.length();
+		if (attribute.length() > length + 1 && attribute.charAt(length) == '.'
+				&& attribute.regionMatches(true, 0, field, 0, length)) {
+			return length + 1;
+		}
+
+		return -1;
+	}
+
+	private String text(JsonParser parser) throws IOException {
+		if (pool == null) {
+			return parser.getText();
+		}
+
+		return pool.intern(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+	}
+
+	private Object scalarValue(JsonParser parser, JsonToken token) throws IOException {
+		switch (token) {
+		case VALUE_STRING:
+			return text(parser);
+		case VALUE_NUMBER_INT:
+			return parser.getNumberValue();
+		case VALUE_NUMBER_FLOAT:
+			return parser.getDoubleValue();
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @param value a decoded JSON value
+	 * @param path a dotted path inside it
+	 * @return the value at the path. Multi-valued attributes give a list of the value at the path in each element.
+	 */
+	private static Object valueAt(Object value, String path) {
+		int dot = path.indexOf('.');
+		String name = dot < 0 ? path : path.substring(0, dot);
+
+		Object child = null;
+		if (value instanceof List) {
+			List<Object> children = new ArrayList<Object>();
+			for (Object element : (List<?>) value) {
+				Object elementChild = valueAt(element, path);
+				if (elementChild != null) {
+					children.add(elementChild);
+				}
+			}
+			return children;
+		}
+		else if (value instanceof Map) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (name.equalsIgnoreCase(String.valueOf(entry.getKey()))) {
+					child = entry.getValue();
+					break;
+				}
+			}
+		}
+
+		return child == null || dot < 0 ? child : valueAt(child, path.substring(dot + 1));
+	}
+
+	private interface ResourceDecoder<T> {
+		T decode(JsonParser parser) throws IOException;
+	}
+}
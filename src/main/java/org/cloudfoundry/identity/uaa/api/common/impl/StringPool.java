@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import org.springframework.util.Assert;
+
+/**
+ * A bounded pool for deduplicating strings that repeat across many decoded resources, such as schema URNs, origins,
+ * zone IDs, group names and member types. Each string hashes to one slot; a string found in its slot is returned in
+ * place of the copy, and any other string replaces the slot's occupant. Values that recur often therefore stay pooled
+ * while one-off values such as IDs pass through, and the pool never grows beyond its capacity.
+ * <p>
+ * Safe for concurrent use without locking: slots are read and written racily, which at worst costs a missed
+ * deduplication, and strings are immutable so a racy read always sees a complete one.
+ */
+public class StringPool {
+	private final String[] slots;
+
+	private final int mask;
+
+	private final int maxLength;
+
+	/**
+	 * A pool of 4096 slots for strings of up to 64 characters
+	 */
+	public StringPool() {
+		this(4096, 64);
+	}
+
+	/**
+	 * @param capacity the number of slots, rounded up to a power of two
+	 * @param maxLength strings longer than this are never pooled
+	 */
+	public StringPool(int capacity, int maxLength) {
+		Assert.isTrue(capacity > 0 && capacity <= 1 << 30, "capacity must be between 1 and 2^30");
+		Assert.isTrue(maxLength > 0, "maxLength must be positive");
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+
+		this.slots = new String[size];
+		this.mask = size - 1;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @param value a string, or null
+	 * @return an equal string from the pool, or the given one, which may now be pooled
+	 */
+	public String intern(String value) {
+		if (value == null || value.length() > maxLength) {
+			return value;
+		}
+
+		int slot = spread(value.hashCode()) & mask;
+		String pooled = slots[slot];
+		if (value.equals(pooled)) {
+			return pooled;
+		}
+
+		slots[slot] = value;
+		return value;
+	}
+
+	/**
+	 * Pool a string without creating it unless it is not already pooled
+	 * 
+	 * @param chars a buffer holding the string
+	 * @param offset the start of the string in the buffer
+	 * @param length the length of the string
+	 * @return an equal string from the pool, or a new one, which may now be pooled
+	 */
+	public String intern(char[] chars, int offset, int length) {
+		if (length > maxLength) {
+			return new String(chars, offset, length);
+		}
+
+		int hash = 0;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + chars[i];
+		}
+
+		int slot = spread(hash) & mask;
+		String pooled = slots[slot];
+		if (pooled != null && matches(pooled, chars, offset, length)) {
+			return pooled;
+		}
+
+		String value = new String(chars, offset, length);
+		slots[slot] = value;
+		return value;
+	}
+
+	/**
+	 * @return the number of slots
+	 */
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	private static boolean matches(String pooled, char[] chars, int offset, int length) {
+		if (pooled.length() != length) {
+			return false;
+		}
+
+		for (int i = 0; i < length; i++) {
+			if (pooled.charAt(i) != chars[offset + i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Mix the high bits of a hash into the low bits used to pick a slot, as short strings differing only in their
+	 * last characters would otherwise collide in small pools
+	 */
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.io.IOException;
+
+import org.springframework.util.Assert;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+import com.fasterxml.jackson.databind.deser.std.StringDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * A Jackson module that passes every decoded string value, including the elements of string arrays and collections,
+ * through a {@link StringPool}. Pooled values are matched against the parser's buffer, so a string that is already
+ * pooled is never allocated again.
+ */
+public class StringPoolModule extends SimpleModule {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param pool the pool to deduplicate strings through
+	 */
+	public StringPoolModule(StringPool pool) {
+		super("StringPoolModule");
+		Assert.notNull(pool, "pool must not be null");
+
+		addDeserializer(String.class, new PooledStringDeserializer(pool));
+	}
+
+	private static class PooledStringDeserializer extends StdScalarDeserializer<String> {
+		private static final long serialVersionUID = 1L;
+
+		private final transient StringPool pool;
+
+		PooledStringDeserializer(StringPool pool) {
+			super(String.class);
+			this.pool = pool;
+		}
+
+		@Override
+		public String deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+			if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+				return pool.intern(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+			}
+
+			return pool.intern(StringDeserializer.instance.deserialize(parser, context));
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.Assert;
+
+/**
+ * A thread safe token bucket. Permits are added at a fixed rate up to a maximum burst size. Callers that need to wait
+ * reserve their permit up front, so waiting threads are served in arrival order and no refill thread is needed.
+ */
+public class TokenBucket {
+	private final double nanosPerPermit;
+
+	private final double maxPermits;
+
+	private double storedPermits;
+
+	private long nextFreeNanos;
+
+	/**
+	 * Create a new bucket, initially full
+	 * 
+	 * @param permitsPerSecond the steady state rate. Must be positive.
+	 * @param burst the maximum number of permits that can be handed out at once after a quiet period. Must be at
+	 * least 1.
+	 */
+	public TokenBucket(double permitsPerSecond, int burst) {
+		Assert.isTrue(permitsPerSecond > 0, "permitsPerSecond must be positive");
+		Assert.isTrue(burst >= 1, "burst must be at least 1");
+
+		this.nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+		this.maxPermits = burst;
+		this.storedPermits = burst;
+		this.nextFreeNanos = System.nanoTime();
+	}
+
+	/**
+	 * Take a permit, waiting as long as necessary
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException {
+		sleep(reserve(System.nanoTime(), Long.MAX_VALUE));
+	}
+
+	/**
+	 * Take a permit only if one is available right now
+	 * 
+	 * @return true if a permit was taken
+	 */
+	public boolean tryAcquire() {
+		return reserve(System.nanoTime(), 0) == 0;
+	}
+
+	/**
+	 * Take a permit if one becomes available within the given timeout
+	 * 
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of <code>timeout</code>
+	 * @return true if a permit was taken, false if none would have been available in time (in which case this method
+	 * returns immediately rather than waiting out the timeout)
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+		long waitNanos = reserve(System.nanoTime(), Math.max(0, unit.toNanos(timeout)));
+		if (waitNanos < 0) {
+			return false;
+		}
+
+		sleep(waitNanos);
+		return true;
+	}
+
+	/**
+	 * Reserve a permit if it can be granted within <code>maxWaitNanos</code>
+	 * 
+	 * @return the number of nanoseconds the caller must wait before using the permit, or -1 if no permit was reserved
+	 */
+	private synchronized long reserve(long now, long maxWaitNanos) {
+		if (now > nextFreeNanos) {
+			storedPermits = Math.min(maxPermits, storedPermits + (now - nextFreeNanos) / nanosPerPermit);
+			nextFreeNanos = now;
+		}
+
+		double fromStored = Math.min(1, storedPermits);
+		long permitNanos = nextFreeNanos + (long) ((1 - fromStored) * nanosPerPermit);
+
+		long waitNanos = permitNanos - now;
+		if (waitNanos > maxWaitNanos) {
+			return -1;
+		}
+
+		storedPermits -= fromStored;
+		nextFreeNanos = permitNanos;
+
+		return waitNanos;
+	}
+
+	private static void sleep(long nanos) throws InterruptedException {
+		if (nanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		}
+	}
+}
@@ -13,26 +13,55 @@
  */
 package org.cloudfoundry.identity.uaa.api.common.impl;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.api.common.UaaRateLimitExceededException;
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.UaaTokenStore;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
 import org.cloudfoundry.identity.uaa.api.common.model.WrappedSearchResults;
 import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
 import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.api.metrics.UaaMetrics;
+import org.cloudfoundry.identity.uaa.api.tracing.UaaSpan;
+import org.cloudfoundry.identity.uaa.api.tracing.UaaTracer;
+import org.cloudfoundry.identity.uaa.api.tracing.impl.NoopUaaTracer;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.scim.ScimCore;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpOutputMessage;
 import org.springframework.http.HttpRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -40,18 +69,35 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.ClientHttpRequestExecution;
 import org.springframework.http.client.ClientHttpRequestInterceptor;
 import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.converter.GenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
 import org.springframework.security.oauth2.client.resource.OAuth2ProtectedResourceDetails;
 import org.springframework.security.oauth2.client.token.AccessTokenProvider;
 import org.springframework.security.oauth2.client.token.AccessTokenProviderChain;
 import org.springframework.security.oauth2.client.token.DefaultAccessTokenRequest;
 import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsAccessTokenProvider;
+import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeAccessTokenProvider;
 import org.springframework.security.oauth2.client.token.grant.implicit.ImplicitAccessTokenProvider;
 import org.springframework.security.oauth2.client.token.grant.password.ResourceOwnerPasswordAccessTokenProvider;
+import org.springframework.security.oauth2.client.token.grant.password.ResourceOwnerPasswordResourceDetails;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
 import org.springframework.util.Assert;
 import org.springframework.util.CollectionUtils;
+import org.springframework.util.MultiValueMap;
 import org.springframework.util.StringUtils;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriTemplate;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * A helper clas used by the various <code>*Operations</code> implementations to handle JSON HTTP communications with
@@ -65,14 +111,64 @@ public class UaaConnectionHelper {
 			Arrays.<AccessTokenProvider> asList(new ClientCredentialsAccessTokenProvider(),
 					new ImplicitAccessTokenProvider(), new ResourceOwnerPasswordAccessTokenProvider()));
 
-	private OAuth2AccessToken token;
+	/**
+	 * The grants whose tokens can be refreshed. Authorization code tokens cannot be obtained without a user agent, but
+	 * can be refreshed once found in a token store.
+	 */
+	private static final AccessTokenProviderChain REFRESH_CHAIN = new AccessTokenProviderChain(
+			Arrays.<AccessTokenProvider> asList(new ResourceOwnerPasswordAccessTokenProvider(),
+					new AuthorizationCodeAccessTokenProvider()));
 
-	private URL url;
+	private volatile OAuth2AccessToken token;
+
+	private final Object tokenLock = new Object();
+
+	private UaaNodeBalancer nodes;
 
 	private OAuth2ProtectedResourceDetails creds;
 
+	private UaaRateLimiter rateLimiter;
+
+	private AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+	private CircuitBreakerRegistry circuitBreakers;
+
+	private HedgingPolicy hedgingPolicy;
+
+	private RequestCoalescer requestCoalescer;
+
+	private UaaResponseCache responseCache;
+
+	private UaaMetrics metrics;
+
+	private UaaTracer tracer = NoopUaaTracer.INSTANCE;
+
+	private MappingJackson2HttpMessageConverter jsonConverter;
+
+	private StreamingSearchResultsReader streamingReader = STREAMING_READER;
+
+	private ObjectMapper copyMapper = COPY_MAPPER;
+
+	private UaaTokenStore tokenStore;
+
+	private String tokenStoreKey;
+
 	private static final Log log = LogFactory.getLog(UaaConnectionHelper.class);
 
+	/**
+	 * Derived once per helper, so this is paid once per connection rather than per request
+	 */
+	private static final int TOKEN_STORE_KEY_ITERATIONS = 10000;
+
+	private static final StreamingSearchResultsReader STREAMING_READER = new StreamingSearchResultsReader(
+			new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false));
+
+	private static final ObjectMapper COPY_MAPPER = new ObjectMapper().configure(
+			DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	private static final ParameterizedTypeReference<StreamedSearchResults<?>> STREAMED_REF = new ParameterizedTypeReference<StreamedSearchResults<?>>() {
+	};
+
 	/**
 	 * Establish connectivity information for this session.
 	 * 
@@ -81,10 +177,156 @@ public class UaaConnectionHelper {
 	 * @see org.cloudfoundry.identity.uaa.api.UaaConnectionFactory#getConnection(URL, OAuth2ProtectedResourceDetails)
 	 */
 	public UaaConnectionHelper(URL url, OAuth2ProtectedResourceDetails creds) {
-		this.url = url;
+		this(new UaaNodeBalancer(Collections.singletonList(url)), creds);
+	}
+
+	/**
+	 * Establish connectivity information for a session spread over several UAA servers.
+	 * 
+	 * @param nodes the UAA servers
+	 * @param creds
+	 * @see org.cloudfoundry.identity.uaa.api.UaaConnectionFactory#getConnection(List, OAuth2ProtectedResourceDetails)
+	 */
+	public UaaConnectionHelper(UaaNodeBalancer nodes, OAuth2ProtectedResourceDetails creds) {
+		this.nodes = nodes;
 		this.creds = creds;
 	}
 
+	/**
+	 * Throttle requests made through this helper. By default no limits are applied.
+	 * 
+	 * @param rateLimiter the limiter, or null to disable rate limiting
+	 */
+	public void setRateLimiter(UaaRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Bound the number of requests this helper has in flight, adapting to the observed UAA latency. By default the
+	 * number of concurrent requests is not limited.
+	 * 
+	 * @param concurrencyLimiter the limiter, or null to disable concurrency limiting
+	 */
+	public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
+	/**
+	 * Fail fast while an endpoint category is unhealthy, rather than waiting on the socket timeout for every call. By
+	 * default no circuit breakers are used.
+	 * 
+	 * @param circuitBreakers the breakers, or null to disable circuit breaking
+	 */
+	public void setCircuitBreakers(CircuitBreakerRegistry circuitBreakers) {
+		this.circuitBreakers = circuitBreakers;
+	}
+
+	/**
+	 * Hedge GET requests: if one has not completed within the policy's delay, send a duplicate and use whichever
+	 * response arrives first. By default requests are not hedged.
+	 * 
+	 * @param hedgingPolicy the policy, or null to disable hedging
+	 */
+	public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+		this.hedgingPolicy = hedgingPolicy;
+	}
+
+	/**
+	 * Collapse concurrent identical GET requests into one network call. Each caller receives its own copy of the
+	 * response, decoded from the shared JSON, so it may modify what it receives. By default every GET is sent.
+	 * 
+	 * @param requestCoalescer the coalescer, which may be shared with other connections, or null to disable coalescing
+	 */
+	public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+		this.requestCoalescer = requestCoalescer;
+	}
+
+	/**
+	 * Cache GET responses for users, groups and clients. Responses are cached as JSON and decoded for each caller, so
+	 * callers may modify what they receive. By default nothing is cached.
+	 * 
+	 * @param responseCache the cache, which may be shared with other connections, or null to disable caching
+	 */
+	public void setResponseCache(UaaResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	/**
+	 * Report latencies, status codes and payload sizes of the requests made through this helper. By default nothing
+	 * is reported.
+	 * 
+	 * @param metrics the metrics sink, or null to disable reporting
+	 */
+	public void setMetrics(UaaMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Trace operations, token fetches, HTTP exchanges and response decoding. By default nothing is traced.
+	 * 
+	 * @param tracer the tracer, or null to disable tracing
+	 */
+	public void setTracer(UaaTracer tracer) {
+		this.tracer = tracer == null ? NoopUaaTracer.INSTANCE : tracer;
+	}
+
+	/**
+	 * Deduplicate the string values of decoded responses, so that values repeated across a large page, such as
+	 * schemas, origins and group names, are held once. Decoding then also shares one mapper across requests rather
+	 * than creating one per request. By default strings are not deduplicated.
+	 * 
+	 * @param stringPool the pool, which may be shared with other connections, or null to disable deduplication
+	 */
+	public void setStringPool(StringPool stringPool) {
+		if (stringPool == null) {
+			this.jsonConverter = null;
+			this.streamingReader = STREAMING_READER;
+			this.copyMapper = COPY_MAPPER;
+			return;
+		}
+
+		ObjectMapper mapper = new ObjectMapper().registerModule(new StringPoolModule(stringPool));
+		MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
+		converter.setObjectMapper(mapper);
+
+		this.jsonConverter = converter;
+		this.streamingReader = new StreamingSearchResultsReader(mapper.copy().configure(
+				DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false), stringPool);
+		this.copyMapper = mapper.copy().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	}
+
+	/**
+	 * Keep access tokens in a store that outlives this helper, such as a {@link UaaTokenPool} shared by the
+	 * connections of many users. A token found in the store is used, or refreshed if it has expired, instead of
+	 * obtaining a new one, and every token obtained or refreshed is put back. Once its token expires, a connection
+	 * looks in the store again before renewing, so connections sharing credentials renew a token once rather than once
+	 * each. By default a token lives as long as the helper.
+	 * 
+	 * @param tokenStore the store, which may be shared with other connections, or null to disable
+	 */
+	public void setTokenStore(UaaTokenStore tokenStore) {
+		this.tokenStore = tokenStore;
+	}
+
+	/**
+	 * @return the access token requests are sent with, obtained or refreshed first if needed
+	 */
+	public OAuth2AccessToken getAccessToken() {
+		UaaOperation operation = UaaOperation.current();
+		return getAccessToken(operation == null ? null : operation.getSpan());
+	}
+
+	/**
+	 * Begin a logical operation on the current thread. Requests made until the operation is ended are attributed to
+	 * it.
+	 * 
+	 * @param name the operation name, such as <code>users.getByName</code>
+	 * @return the operation, which must be ended on this thread
+	 */
+	public UaaOperation beginOperation(String name) {
+		return new UaaOperation(name, metrics, tracer);
+	}
+
 	/**
 	 * Do an HTTP GET
 	 * 
@@ -94,9 +336,177 @@ public class UaaConnectionHelper {
 	 * @return the response body
 	 * @see #exchange(HttpMethod, Object, String, ParameterizedTypeReference, Object...)
 	 */
-	public <ResponseType> ResponseType get(String uri, ParameterizedTypeReference<ResponseType> responseType,
-			Object... uriVariables) {
-		return exchange(HttpMethod.GET, null, uri, responseType, uriVariables);
+	public <ResponseType> ResponseType get(final String uri, final ParameterizedTypeReference<ResponseType> responseType,
+			final Object... uriVariables) {
+		RequestCoalescer coalescer = requestCoalescer;
+		final UaaResponseCache cache = responseCache;
+		final UaaEndpointCategory category = UaaEndpointCategory.of(uri);
+		boolean cacheable = cache != null && UaaResponseCache.isCacheable(category);
+		if (coalescer == null && !cacheable) {
+			return bodyOf(doGet(new HttpHeaders(), uri, responseType, uriVariables));
+		}
+
+		final String key = getCredentialsKey() + " " + new UriTemplate(uri).expand(uriVariables);
+		if (!cacheable) {
+			// nothing is stored, so the caller that sends the request keeps what it decoded and only those who join it
+			// are given copies
+			return coalescer.execute(key, new Callable<ResponseType>() {
+				public ResponseType call() {
+					return bodyOf(doGet(new HttpHeaders(), uri, responseType, uriVariables));
+				}
+			}, new RequestCoalescer.Copier<ResponseType>() {
+				public byte[] snapshot(ResponseType result) {
+					return toJson(result);
+				}
+
+				public ResponseType copy(byte[] snapshot) {
+					return fromJson(snapshot, responseType);
+				}
+			});
+		}
+
+		if (coalescer != null) {
+			return fromJson(coalescer.execute(key, new Callable<byte[]>() {
+				public byte[] call() {
+					return cachedGet(cache, key, category, uri, responseType, uriVariables);
+				}
+			}), responseType);
+		}
+
+		return fromJson(cachedGet(cache, key, category, uri, responseType, uriVariables), responseType);
+	}
+
+	/**
+	 * Do a GET through the response cache. The response is returned as JSON, which is what the cache keeps, so that
+	 * each caller sharing it through the coalescer or the cache decodes an object of its own.
+	 * 
+	 * @param key the rendered URI and credentials of the request
+	 * @return the response body as JSON, or null if there is none
+	 * @see #get(String, ParameterizedTypeReference, Object...)
+	 */
+	private <ResponseType> byte[] cachedGet(UaaResponseCache cache, String key, UaaEndpointCategory category,
+			String uri, ParameterizedTypeReference<ResponseType> responseType, Object... uriVariables) {
+		UaaResponseCache.Entry entry = cache.get(key, category);
+		if (entry != null && entry.isFresh()) {
+			return entry.body;
+		}
+
+		HttpHeaders headers = new HttpHeaders();
+		if (entry != null && entry.etag != null) {
+			headers.setIfNoneMatch(entry.etag);
+		}
+
+		long generation = cache.getGeneration(category);
+		ResponseEntity<ResponseType> response = doGet(headers, uri, responseType, uriVariables);
+
+		if (entry != null && HttpStatus.NOT_MODIFIED.equals(response.getStatusCode())) {
+			cache.revalidated(entry);
+			return entry.body;
+		}
+
+		byte[] body = toJson(bodyOf(response));
+		if (body != null) {
+			cache.put(key, category, generation, body, response.getHeaders().getETag());
+		}
+
+		return body;
+	}
+
+	private byte[] toJson(Object body) {
+		if (body == null) {
+			return null;
+		}
+
+		try {
+			return copyMapper.writeValueAsBytes(body);
+		}
+		catch (IOException e) {
+			throw new RestClientException("Could not copy response: " + e.getMessage(), e);
+		}
+	}
+
+	private <ResponseType> ResponseType fromJson(byte[] json, ParameterizedTypeReference<ResponseType> responseType) {
+		if (json == null) {
+			return null;
+		}
+
+		try {
+			return copyMapper.readValue(json, copyMapper.getTypeFactory().constructType(responseType.getType()));
+		}
+		catch (IOException e) {
+			throw new RestClientException("Could not copy response: " + e.getMessage(), e);
+		}
+	}
+
+	private <ResponseType> ResponseEntity<ResponseType> doGet(HttpHeaders headers, String uri,
+			ParameterizedTypeReference<ResponseType> responseType, Object... uriVariables) {
+		if (hedgingPolicy != null) {
+			return hedgedGet(hedgingPolicy, headers, uri, responseType, uriVariables);
+		}
+
+		return send(null, HttpMethod.GET, headers, null, uri, responseType, null, uriVariables);
+	}
+
+	/**
+	 * Do an HTTP GET of a page of SCIM resources, giving each resource to the handler as it is read instead of
+	 * collecting the page. Streamed requests are never cached, coalesced or hedged, as the handler may already have
+	 * acted on part of a page.
+	 * 
+	 * @param uri the URI of the endpoint (relative to the base URL set in the constructor)
+	 * @param resourceType the type of the resources in the page
+	 * @param handler receives each resource
+	 * @param uriVariables any uri variables
+	 * @return the paging information of the page
+	 * @see StreamingSearchResultsReader
+	 */
+	public <ResourceType> StreamedSearchResults<ResourceType> stream(String uri, Class<ResourceType> resourceType,
+			UaaResultHandler<? super ResourceType> handler, Object... uriVariables) {
+		return stream(uri, resourceType, null, handler, uriVariables);
+	}
+
+	/**
+	 * Do an HTTP GET of a page of SCIM resources restricted to some attributes, decoding each resource straight into
+	 * a caller's type, or into a {@link ScimRecord}, rather than a full SCIM object. Projected requests are never
+	 * cached or coalesced, as those are keyed by URI alone and the same URI can be read as different types.
+	 * 
+	 * @param uri the URI of the endpoint (relative to the base URL set in the constructor), including the
+	 * <code>attributes</code> parameter
+	 * @param attributes the requested attributes, which are the fields of a {@link ScimRecord}
+	 * @param projection the type to decode each resource as; fields it does not declare are ignored
+	 * @param uriVariables any uri variables
+	 * @return the page of projected resources
+	 */
+	public <ResourceType> SearchResults<ResourceType> getProjected(String uri, List<String> attributes,
+			Class<ResourceType> projection, Object... uriVariables) {
+		final List<ResourceType> resources = new ArrayList<ResourceType>();
+		StreamedSearchResults<ResourceType> page = stream(uri, projection, attributes,
+				new UaaResultHandler<ResourceType>() {
+					public boolean handle(ResourceType resource) {
+						resources.add(resource);
+						return true;
+					}
+				}, uriVariables);
+
+		if (page == null) {
+			return null;
+		}
+
+		return new SearchResults<ResourceType>(page.getSchemas(), resources, page.getStartIndex(),
+				page.getItemsPerPage(), page.getTotalResults());
+	}
+
+	@SuppressWarnings("unchecked")
+	private <ResourceType> StreamedSearchResults<ResourceType> stream(String uri, Class<ResourceType> resourceType,
+			List<String> attributes, UaaResultHandler<? super ResourceType> handler, Object... uriVariables) {
+		Assert.notNull(resourceType, "resourceType must not be null");
+		Assert.notNull(handler, "handler must not be null");
+		Assert.isTrue(!ScimRecord.class.equals(resourceType) || !CollectionUtils.isEmpty(attributes),
+				"records need the requested attributes");
+
+		StreamingConverter<ResourceType> decoder = new StreamingConverter<ResourceType>(streamingReader,
+				resourceType, attributes, handler);
+		return (StreamedSearchResults<ResourceType>) bodyOf(send(null, HttpMethod.GET, new HttpHeaders(), null, uri,
+				STREAMED_REF, decoder, uriVariables));
 	}
 
 	/**
@@ -128,6 +538,29 @@ public class UaaConnectionHelper {
 		return exchange(HttpMethod.POST, body, uri, responseType, uriVariables);
 	}
 
+	/**
+	 * Do an HTTP POST of a form, authenticated with the client ID and secret over HTTP Basic rather than with an
+	 * access token, as the UAA requires for the endpoints resource servers use, such as <code>/check_token</code>
+	 *
+	 * @param uri the URI of the endpoint (relative to the base URL set in the constructor)
+	 * @param form the form fields
+	 * @param responseType the object type to be returned
+	 * @param uriVariables any uri variables
+	 * @return the response body
+	 * @see #exchange(HttpMethod, HttpHeaders, Object, String, ParameterizedTypeReference, Object...)
+	 */
+	public <ResponseType> ResponseType postFormAsClient(String uri, MultiValueMap<String, String> form,
+			ParameterizedTypeReference<ResponseType> responseType, Object... uriVariables) {
+		String secret = creds.getClientSecret() == null ? "" : creds.getClientSecret();
+		byte[] basic = (creds.getClientId() + ":" + secret).getBytes(StandardCharsets.UTF_8);
+
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("Authorization", "Basic " + Base64.encodeBase64String(basic));
+		headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+
+		return exchange(HttpMethod.POST, headers, form, uri, responseType, uriVariables);
+	}
+
 	/**
 	 * Do an HTTP PUT
 	 *
@@ -236,10 +669,172 @@ public class UaaConnectionHelper {
 	 */
 	private <RequestType, ResponseType> ResponseType exchange(HttpMethod method, HttpHeaders headers, RequestType body,
 			String uri, ParameterizedTypeReference<ResponseType> responseType, Object... uriVariables) {
-		getHeaders(headers);
+		return bodyOf(send(null, method, headers, body, uri, responseType, null, uriVariables));
+	}
+
+	private static <ResponseType> ResponseType bodyOf(ResponseEntity<ResponseType> responseEntity) {
+		if (HttpStatus.Series.SUCCESSFUL.equals(responseEntity.getStatusCode().series())) {
+			return responseEntity.getBody();
+		}
+		else {
+			return null;
+		}
+	}
+
+	/**
+	 * Send a GET, and a duplicate of it if it is slow to complete
+	 * 
+	 * @param policy the hedging policy
+	 * @param headers additional request headers
+	 * @param uri the URI of the endpoint (relative to the base URL set in the constructor)
+	 * @param responseType the object type to be returned
+	 * @param uriVariables any uri variables
+	 * @return the first successful response
+	 * @see HedgingPolicy
+	 */
+	private <ResponseType> ResponseEntity<ResponseType> hedgedGet(HedgingPolicy policy, final HttpHeaders headers,
+			final String uri, final ParameterizedTypeReference<ResponseType> responseType, final Object... uriVariables) {
+		policy.onRequest();
 
-		RestTemplate template = new RestTemplate();
-		template.setInterceptors(LoggerInterceptor.INTERCEPTOR);
+		CompletionService<ResponseEntity<ResponseType>> completion = new ExecutorCompletionService<ResponseEntity<ResponseType>>(
+				policy.getExecutor());
+		List<Future<ResponseEntity<ResponseType>>> futures = new ArrayList<Future<ResponseEntity<ResponseType>>>(2);
+
+		final UaaOperation operation = UaaOperation.current();
+		final Attempt primary = new Attempt(null, operation);
+		List<Attempt> attempts = new ArrayList<Attempt>(2);
+		attempts.add(primary);
+		long start = System.nanoTime();
+		try {
+			futures.add(completion.submit(new Callable<ResponseEntity<ResponseType>>() {
+				public ResponseEntity<ResponseType> call() throws Exception {
+					return send(primary, HttpMethod.GET, copyOf(headers), null, uri, responseType, null, uriVariables);
+				}
+			}));
+		}
+		catch (RejectedExecutionException e) {
+			// every hedging thread is busy, so wait for this one on the caller's thread rather than queue behind them
+			return send(null, HttpMethod.GET, headers, null, uri, responseType, null, uriVariables);
+		}
+
+		try {
+			Future<ResponseEntity<ResponseType>> done = completion.poll(policy.getDelayNanos(), TimeUnit.NANOSECONDS);
+			if (done == null && policy.tryAcquireHedge()) {
+				final Attempt hedge = new Attempt(primary.node, operation);
+				try {
+					futures.add(completion.submit(new Callable<ResponseEntity<ResponseType>>() {
+						public ResponseEntity<ResponseType> call() throws Exception {
+							return send(hedge, HttpMethod.GET, copyOf(headers), null, uri, responseType, null,
+									uriVariables);
+						}
+					}));
+					attempts.add(hedge);
+					if (metrics != null) {
+						metrics.recordRetry(getOperationName(operation, UaaEndpointCategory.of(uri), HttpMethod.GET));
+					}
+				}
+				catch (RejectedExecutionException e) {
+					// no thread to spare for the hedge, so just wait for the primary
+				}
+			}
+
+			ExecutionException firstFailure = null;
+			for (int remaining = futures.size(); remaining > 0; remaining--) {
+				if (done == null) {
+					done = completion.take();
+				}
+
+				try {
+					ResponseEntity<ResponseType> result = done.get();
+					policy.recordLatency(System.nanoTime() - start);
+					return result;
+				}
+				catch (ExecutionException e) {
+					if (firstFailure == null) {
+						firstFailure = e;
+					}
+				}
+
+				done = null;
+			}
+
+			Throwable cause = firstFailure.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RestClientException(cause.getMessage(), cause);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RestClientException("Interrupted while waiting for a response", e);
+		}
+		finally {
+			// an attempt still running has lost, so its failure says nothing about its node
+			for (Attempt attempt : attempts) {
+				attempt.abandoned = true;
+			}
+			for (Future<ResponseEntity<ResponseType>> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private static HttpHeaders copyOf(HttpHeaders headers) {
+		HttpHeaders copy = new HttpHeaders();
+		copy.putAll(headers);
+		return copy;
+	}
+
+	/**
+	 * Make a REST call with custom headers, optionally steering it away from a node
+	 * 
+	 * @param attempt records the node the request is sent to, and which node to avoid. May be null.
+	 * @param decoder a converter to read the response with in preference to the defaults. May be null.
+	 * @return the response, successful or not
+	 * @see #exchange(HttpMethod, HttpHeaders, Object, String, ParameterizedTypeReference, Object...)
+	 */
+	private <RequestType, ResponseType> ResponseEntity<ResponseType> send(Attempt attempt, HttpMethod method,
+			HttpHeaders headers, RequestType body, String uri, ParameterizedTypeReference<ResponseType> responseType,
+			HttpMessageConverter<?> decoder, Object... uriVariables) {
+		UaaOperation operation = attempt == null ? UaaOperation.current() : attempt.operation;
+		UaaSpan parentSpan = operation == null ? null : operation.getSpan();
+
+		getHeaders(headers, parentSpan);
+
+		UaaMetrics metrics = this.metrics;
+		UaaTracer tracer = this.tracer;
+		boolean tracing = tracer != NoopUaaTracer.INSTANCE;
+		MeteringInterceptor meter = metrics == null && !tracing ? null : new MeteringInterceptor();
+
+		UaaSpan httpSpan = null;
+		RestTemplate template;
+		if (tracing) {
+			httpSpan = tracer.startSpan(UaaTracer.HTTP_SPAN, parentSpan);
+			template = new DecodeTracingRestTemplate(tracer, httpSpan);
+		}
+		else {
+			template = new RestTemplate();
+		}
+
+		if (meter == null) {
+			template.setInterceptors(LoggerInterceptor.INTERCEPTOR);
+		}
+		else {
+			template.setInterceptors(Arrays.<ClientHttpRequestInterceptor> asList(new LoggerInterceptor(), meter));
+		}
+
+		if (jsonConverter != null) {
+			List<HttpMessageConverter<?>> converters = template.getMessageConverters();
+			for (int i = 0; i < converters.size(); i++) {
+				if (converters.get(i) instanceof MappingJackson2HttpMessageConverter) {
+					converters.set(i, jsonConverter);
+				}
+			}
+		}
+
+		if (decoder != null) {
+			template.getMessageConverters().add(0, decoder);
+		}
 
 		HttpEntity<RequestType> requestEntity = null;
 		if (body == null) {
@@ -249,22 +844,177 @@ public class UaaConnectionHelper {
 			requestEntity = new HttpEntity<RequestType>(body, headers);
 		}
 
+		UaaEndpointCategory category = UaaEndpointCategory.of(uri);
+		AdaptiveConcurrencyLimiter limiter = concurrencyLimiter;
+		CircuitBreaker breaker;
+
+		try {
+			breaker = getCircuitBreaker(category);
+		}
+		catch (RuntimeException e) {
+			endSpan(httpSpan, e);
+			throw e;
+		}
+
+		try {
+			if (rateLimiter != null) {
+				rateLimiter.acquire(UaaRateLimiter.Category.of(method));
+			}
+
+			if (limiter != null) {
+				acquire(limiter);
+			}
+		}
+		catch (RuntimeException e) {
+			if (breaker != null) {
+				breaker.releasePermission();
+			}
+			endSpan(httpSpan, e);
+			throw e;
+		}
+
+		UaaNodeBalancer.Node node = nodes.select(attempt == null ? null : attempt.avoid);
+		if (attempt != null) {
+			attempt.node = node;
+		}
+
+		if (httpSpan != null) {
+			httpSpan.setAttribute(UaaSpan.ENDPOINT, category.name().toLowerCase());
+			httpSpan.setAttribute(UaaSpan.METHOD, method.name());
+			httpSpan.setAttribute(UaaSpan.SERVER, node.getUrl().toString());
+		}
+
 		// combine url into the varargs
 		List<Object> varList = new ArrayList<Object>();
-		varList.add(url);
+		varList.add(node.getUrl());
 		if (uriVariables != null && uriVariables.length > 0) {
 			varList.addAll(Arrays.asList(uriVariables));
 		}
 
-		ResponseEntity<ResponseType> responseEntity = template.exchange("{base}" + uri, method, requestEntity,
-				responseType, varList.toArray());
+		ResponseEntity<ResponseType> responseEntity;
+		long start = System.nanoTime();
+		boolean failed = true;
+		RuntimeException error = null;
+		try {
+			responseEntity = template.exchange("{base}" + uri, method, requestEntity, responseType, varList.toArray());
+			failed = false;
+		}
+		catch (RuntimeException e) {
+			failed = isFailure(e);
+			error = e;
+			throw e;
+		}
+		finally {
+			long elapsed = System.nanoTime() - start;
+			if (limiter != null) {
+				limiter.release(elapsed, !failed);
+			}
+			if (breaker != null) {
+				breaker.onResult(elapsed, failed);
+			}
+			if (error == null) {
+				nodes.onSuccess(node, elapsed);
+			}
+			else if (failed && (attempt == null || !attempt.abandoned)) {
+				nodes.onFailure(node);
+			}
+			else {
+				nodes.onIgnored(node);
+			}
+			if (responseCache != null && !HttpMethod.GET.equals(method)) {
+				responseCache.invalidate(category);
+			}
+			if (metrics != null) {
+				metrics.recordRequest(getOperationName(operation, category, method), category, meter.status, elapsed,
+						meter.bytesSent, meter.bytesReceived);
+			}
+			if (httpSpan != null) {
+				if (meter.status != UaaMetrics.NO_RESPONSE) {
+					httpSpan.setAttribute(UaaSpan.STATUS, meter.status);
+				}
+				endSpan(httpSpan, error);
+			}
+		}
 
-		if (HttpStatus.Series.SUCCESSFUL.equals(responseEntity.getStatusCode().series())) {
-			return responseEntity.getBody();
+		return responseEntity;
+	}
+
+	/**
+	 * @param operation the operation a request was made under, or null
+	 * @param category the category of the endpoint called
+	 * @param method the request method
+	 * @return the name the request is reported under
+	 */
+	private static String getOperationName(UaaOperation operation, UaaEndpointCategory category, HttpMethod method) {
+		if (operation != null) {
+			return operation.getRoot().getName();
 		}
-		else {
+
+		return category.name().toLowerCase() + "." + method;
+	}
+
+	private static void endSpan(UaaSpan span, Throwable error) {
+		if (span != null) {
+			if (error != null) {
+				span.setError(error);
+			}
+			span.end();
+		}
+	}
+
+	/**
+	 * Get the breaker for a category of endpoints, and ask it for permission to make a call
+	 * 
+	 * @param category the category of endpoint about to be called
+	 * @return the breaker, or null if circuit breaking is disabled
+	 * @throws org.cloudfoundry.identity.uaa.api.common.CircuitBreakerOpenException if the breaker is open
+	 */
+	private CircuitBreaker getCircuitBreaker(UaaEndpointCategory category) {
+		CircuitBreakerRegistry registry = circuitBreakers;
+		if (registry == null) {
 			return null;
 		}
+
+		CircuitBreaker breaker = registry.get(category);
+		breaker.acquirePermission();
+		return breaker;
+	}
+
+	private static void acquire(AdaptiveConcurrencyLimiter limiter) {
+		try {
+			limiter.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UaaRateLimitExceededException("Interrupted while waiting for a concurrency permit");
+		}
+	}
+
+	/**
+	 * @param e the exception thrown by a call to the UAA
+	 * @return true if the exception indicates the UAA is unhealthy, rather than a problem with the request itself
+	 */
+	private static boolean isFailure(RuntimeException e) {
+		if (e instanceof OAuth2AccessDeniedException) {
+			// the token endpoint's errors all arrive as a 403 wrapping what actually went wrong
+			return e.getCause() instanceof RuntimeException && isFailure((RuntimeException) e.getCause());
+		}
+		else if (e instanceof HttpStatusCodeException) {
+			return isOverloaded(((HttpStatusCodeException) e).getStatusCode());
+		}
+		else if (e instanceof OAuth2Exception) {
+			return ((OAuth2Exception) e).getHttpErrorCode() >= 500;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param status the status of a failed response
+	 * @return true if the status indicates the UAA is overloaded, rather than a problem with the request itself
+	 */
+	private static boolean isOverloaded(HttpStatus status) {
+		return HttpStatus.Series.SERVER_ERROR.equals(status.series()) || status.value() == 429;
 	}
 
 	/**
@@ -326,14 +1076,73 @@ public class UaaConnectionHelper {
 		return uriBuilder.toString();
 	}
 
+	/**
+	 * @return a string identifying the credentials used by this connection, but not their secrets
+	 */
+	public String getCredentialsKey() {
+		StringBuilder key = new StringBuilder(creds.getAccessTokenUri()).append(' ').append(creds.getClientId());
+		if (creds instanceof ResourceOwnerPasswordResourceDetails) {
+			key.append(':').append(((ResourceOwnerPasswordResourceDetails) creds).getUsername());
+		}
+		if (creds.isScoped()) {
+			key.append(' ').append(creds.getScope());
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * @return the key of this connection's token in the token store: the credentials key, with the scopes in a fixed
+	 *         order, and a key derived from the client secret and password so a token is only shared with the same
+	 *         credentials. Stores such as {@link FileTokenStore} write keys to disk, so the secrets go through PBKDF2
+	 *         salted with the rest of the key rather than a fast hash, which would make them cheap to guess.
+	 */
+	private String getTokenStoreKey() {
+		if (tokenStoreKey == null) {
+			StringBuilder key = new StringBuilder(creds.getAccessTokenUri()).append(' ').append(creds.getClientId());
+			StringBuilder secrets = new StringBuilder(String.valueOf(creds.getClientSecret()));
+			if (creds instanceof ResourceOwnerPasswordResourceDetails) {
+				ResourceOwnerPasswordResourceDetails user = (ResourceOwnerPasswordResourceDetails) creds;
+				key.append(':').append(user.getUsername());
+				secrets.append('\n').append(user.getPassword());
+			}
+			if (creds.isScoped()) {
+				key.append(' ').append(new TreeSet<String>(creds.getScope()));
+			}
+
+			try {
+				PBEKeySpec spec = new PBEKeySpec(secrets.toString().toCharArray(), key.toString().getBytes(
+						StandardCharsets.UTF_8), TOKEN_STORE_KEY_ITERATIONS, 256);
+				try {
+					byte[] derived = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec)
+							.getEncoded();
+					key.append(' ').append(Base64.encodeBase64URLSafeString(derived));
+				}
+				finally {
+					spec.clearPassword();
+				}
+			}
+			catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+
+			tokenStoreKey = key.toString();
+		}
+
+		return tokenStoreKey;
+	}
+
 	/**
 	 * Add the Authorization, Content-Type, and Accept headers to the request
 	 * 
 	 * @param headers
+	 * @param parentSpan the span of the operation in progress, or null
 	 */
-	private void getHeaders(HttpHeaders headers) {
-		OAuth2AccessToken token = getAccessToken();
-		headers.add("Authorization", token.getTokenType() + " " + token.getValue());
+	private void getHeaders(HttpHeaders headers, UaaSpan parentSpan) {
+		if (!headers.containsKey("Authorization")) {
+			OAuth2AccessToken token = getAccessToken(parentSpan);
+			headers.add("Authorization", token.getTokenType() + " " + token.getValue());
+		}
 
 		if (headers.getContentType() == null) {
 			headers.setContentType(MediaType.APPLICATION_JSON);
@@ -345,28 +1154,351 @@ public class UaaConnectionHelper {
 	}
 
 	/**
-	 * Get the OAuth access token (and refresh it if necessary)
+	 * Get the OAuth access token (and refresh it if necessary). Requests run on several threads, such as hedged
+	 * attempts, so renewal is serialized: the first caller to find the token expired renews it, and the others wait
+	 * and use the token it got.
 	 * 
+	 * @param parentSpan the span of the operation in progress, or null
 	 * @return
 	 */
-	private OAuth2AccessToken getAccessToken() {
-		if (token == null) {
-			token = CHAIN.obtainAccessToken(creds, new DefaultAccessTokenRequest());
+	private OAuth2AccessToken getAccessToken(UaaSpan parentSpan) {
+		OAuth2AccessToken current = token;
+		if (current != null && !current.isExpired()) {
+			return current;
+		}
+
+		synchronized (tokenLock) {
+			current = token;
+			if (current != null && !current.isExpired()) {
+				return current;
+			}
+
+			// another connection sharing the store may have renewed the token already
+			UaaTokenStore store = tokenStore;
+			if (store != null) {
+				OAuth2AccessToken stored = store.get(getTokenStoreKey());
+				if (stored != null) {
+					current = stored;
+				}
+			}
+
+			OAuth2AccessToken renewed;
+			if (current == null) {
+				renewed = requestToken(null, parentSpan);
+			}
+			else if (current.isExpired()) {
+				try {
+					renewed = renewAccessToken(current, parentSpan);
+				}
+				catch (RuntimeException e) {
+					if (store != null) {
+						store.remove(getTokenStoreKey(), current);
+					}
+					throw e;
+				}
+			}
+			else {
+				token = current;
+				return current;
+			}
+
+			token = renewed;
+			if (store != null && renewed != null) {
+				store.put(getTokenStoreKey(), renewed);
+			}
+			return renewed;
+		}
+	}
+
+	/**
+	 * Renew an expired access token the way its grant allows. A token with a refresh token, such as one obtained with
+	 * the password or authorization code grant, is refreshed; if the UAA rejects the refresh token, a new token is
+	 * obtained instead where the grant allows it. Any other token, such as a client credentials token, is obtained
+	 * again.
+	 * 
+	 * @param expired the expired token
+	 * @param parentSpan the span of the operation in progress, or null
+	 * @return the new token
+	 */
+	private OAuth2AccessToken renewAccessToken(OAuth2AccessToken expired, UaaSpan parentSpan) {
+		if (expired.getRefreshToken() == null || !REFRESH_CHAIN.supportsRefresh(creds)) {
+			return requestToken(null, parentSpan);
+		}
+
+		try {
+			return requestToken(expired.getRefreshToken(), parentSpan);
+		}
+		catch (OAuth2AccessDeniedException e) {
+			// a rejected refresh token carries the UAA's error; a failure to reach the UAA does not
+			if (!(e.getCause() instanceof OAuth2Exception) || !CHAIN.supportsResource(creds)) {
+				throw e;
+			}
+
+			log.debug("The refresh token was rejected; obtaining a new access token", e);
+			return requestToken(null, parentSpan);
+		}
+	}
+
+	/**
+	 * Call the token endpoint, subject to the token rate limit and circuit breaker
+	 * 
+	 * @param refreshToken the refresh token to refresh with, or null to obtain a new token
+	 * @param parentSpan the span of the operation in progress, or null
+	 * @return the new token
+	 */
+	private OAuth2AccessToken requestToken(OAuth2RefreshToken refreshToken, UaaSpan parentSpan) {
+		boolean refresh = refreshToken != null;
+		UaaSpan span = tracer.startSpan(UaaTracer.TOKEN_SPAN, parentSpan);
+		span.setAttribute(UaaSpan.ENDPOINT, UaaEndpointCategory.TOKEN.name().toLowerCase());
+		span.setAttribute(UaaSpan.GRANT, refresh ? "refresh" : "obtain");
+
+		CircuitBreaker breaker;
+		try {
+			if (rateLimiter != null) {
+				rateLimiter.acquire(UaaRateLimiter.Category.TOKEN);
+			}
+
+			breaker = getCircuitBreaker(UaaEndpointCategory.TOKEN);
 		}
-		else if (token.isExpired()) {
-			refreshAccessToken();
+		catch (RuntimeException e) {
+			endSpan(span, e);
+			throw e;
 		}
 
-		return token;
+		long start = System.nanoTime();
+		boolean failed = true;
+		boolean obtained = false;
+		RuntimeException error = null;
+		try {
+			OAuth2AccessToken newToken;
+			if (refresh) {
+				newToken = REFRESH_CHAIN.refreshAccessToken(creds, refreshToken, new DefaultAccessTokenRequest());
+			}
+			else {
+				newToken = CHAIN.obtainAccessToken(creds, new DefaultAccessTokenRequest());
+			}
+
+			failed = false;
+			obtained = newToken != null;
+			return newToken;
+		}
+		catch (RuntimeException e) {
+			failed = isFailure(e);
+			error = e;
+			throw e;
+		}
+		finally {
+			long elapsed = System.nanoTime() - start;
+			if (breaker != null) {
+				breaker.onResult(elapsed, failed);
+			}
+			if (metrics != null) {
+				metrics.recordTokenRequest(refresh, elapsed, obtained);
+			}
+			endSpan(span, error);
+		}
 	}
 
 	/**
-	 * refresh the access token
+	 * One of several concurrent attempts at the same request
 	 */
-	private void refreshAccessToken() {
-		Assert.notNull(token);
+	private static class Attempt {
+		private final UaaNodeBalancer.Node avoid;
+
+		private final UaaOperation operation;
 
-		token = CHAIN.refreshAccessToken(creds, token.getRefreshToken(), new DefaultAccessTokenRequest());
+		private volatile UaaNodeBalancer.Node node;
+
+		private volatile boolean abandoned;
+
+		Attempt(UaaNodeBalancer.Node avoid, UaaOperation operation) {
+			this.avoid = avoid;
+			this.operation = operation;
+		}
+	}
+
+	/**
+	 * A template that traces the decoding of response bodies as a child of the HTTP exchange span
+	 */
+	private static class DecodeTracingRestTemplate extends RestTemplate {
+		private final UaaTracer tracer;
+
+		private final UaaSpan parent;
+
+		DecodeTracingRestTemplate(UaaTracer tracer, UaaSpan parent) {
+			this.tracer = tracer;
+			this.parent = parent;
+		}
+
+		@Override
+		protected <T> ResponseExtractor<ResponseEntity<T>> responseEntityExtractor(Type responseType) {
+			final ResponseExtractor<ResponseEntity<T>> delegate = super.responseEntityExtractor(responseType);
+
+			return new ResponseExtractor<ResponseEntity<T>>() {
+				public ResponseEntity<T> extractData(ClientHttpResponse response) throws IOException {
+					UaaSpan span = tracer.startSpan(UaaTracer.DECODE_SPAN, parent);
+					Throwable error = null;
+					try {
+						ResponseEntity<T> entity = delegate.extractData(response);
+
+						if (entity.getBody() instanceof StreamedSearchResults) {
+							int count = ((StreamedSearchResults<?>) entity.getBody()).getDeliveredCount();
+							span.setAttribute(UaaSpan.RESULT_COUNT, count);
+							parent.setAttribute(UaaSpan.RESULT_COUNT, count);
+						}
+						else if (entity.getBody() instanceof SearchResults) {
+							Collection<?> resources = ((SearchResults<?>) entity.getBody()).getResources();
+							int count = resources == null ? 0 : resources.size();
+							span.setAttribute(UaaSpan.RESULT_COUNT, count);
+							parent.setAttribute(UaaSpan.RESULT_COUNT, count);
+						}
+
+						return entity;
+					}
+					catch (IOException e) {
+						error = e;
+						throw e;
+					}
+					catch (RuntimeException e) {
+						error = e;
+						throw e;
+					}
+					finally {
+						endSpan(span, error);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Reads a page of search results with a {@link StreamingSearchResultsReader}, for {@link #stream} and
+	 * {@link #getProjected}
+	 */
+	private static class StreamingConverter<ResourceType> implements GenericHttpMessageConverter<Object> {
+		private final StreamingSearchResultsReader reader;
+
+		private final Class<ResourceType> resourceType;
+
+		private final List<String> attributes;
+
+		private final UaaResultHandler<? super ResourceType> handler;
+
+		StreamingConverter(StreamingSearchResultsReader reader, Class<ResourceType> resourceType,
+				List<String> attributes, UaaResultHandler<? super ResourceType> handler) {
+			this.reader = reader;
+			this.resourceType = resourceType;
+			this.attributes = attributes;
+			this.handler = handler;
+		}
+
+		public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+			return STREAMED_REF.getType().equals(type);
+		}
+
+		public boolean canRead(Class<?> clazz, MediaType mediaType) {
+			return false;
+		}
+
+		public boolean canWrite(Class<?> clazz, MediaType mediaType) {
+			return false;
+		}
+
+		public List<MediaType> getSupportedMediaTypes() {
+			return Collections.singletonList(MediaType.APPLICATION_JSON);
+		}
+
+		@SuppressWarnings("unchecked")
+		public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) throws IOException {
+			if (ScimRecord.class.equals(resourceType)) {
+				return reader.readRecords(inputMessage.getBody(), attributes,
+						(UaaResultHandler<? super ScimRecord>) handler);
+			}
+
+			return reader.read(inputMessage.getBody(), resourceType, handler);
+		}
+
+		public Object read(Class<? extends Object> clazz, HttpInputMessage inputMessage) throws IOException {
+			return read((Type) clazz, null, inputMessage);
+		}
+
+		public void write(Object t, MediaType contentType, HttpOutputMessage outputMessage) {
+			throw new HttpMessageNotWritableException("Only reads search results");
+		}
+	}
+
+	/**
+	 * An interceptor used to measure a single HTTP call: the status and the number of bytes sent and received
+	 */
+	private static class MeteringInterceptor implements ClientHttpRequestInterceptor {
+		private int status = UaaMetrics.NO_RESPONSE;
+
+		private long bytesSent;
+
+		private long bytesReceived;
+
+		public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution)
+				throws IOException {
+			bytesSent = body.length;
+
+			ClientHttpResponse response = execution.execute(request, body);
+			status = response.getRawStatusCode();
+
+			return new CountingResponse(response);
+		}
+
+		/**
+		 * Counts the response body bytes as the message converters read them
+		 */
+		private class CountingResponse implements ClientHttpResponse {
+			private final ClientHttpResponse delegate;
+
+			CountingResponse(ClientHttpResponse delegate) {
+				this.delegate = delegate;
+			}
+
+			public InputStream getBody() throws IOException {
+				return new FilterInputStream(delegate.getBody()) {
+					@Override
+					public int read() throws IOException {
+						int read = super.read();
+						if (read >= 0) {
+							bytesReceived++;
+						}
+						return read;
+					}
+
+					@Override
+					public int read(byte[] buffer, int offset, int length) throws IOException {
+						int read = super.read(buffer, offset, length);
+						if (read > 0) {
+							bytesReceived += read;
+						}
+						return read;
+					}
+				};
+			}
+
+			public HttpHeaders getHeaders() {
+				return delegate.getHeaders();
+			}
+
+			public HttpStatus getStatusCode() throws IOException {
+				return delegate.getStatusCode();
+			}
+
+			public int getRawStatusCode() throws IOException {
+				return delegate.getRawStatusCode();
+			}
+
+			public String getStatusText() throws IOException {
+				return delegate.getStatusText();
+			}
+
+			public void close() {
+				delegate.close();
+			}
+		}
 	}
 
 	/**
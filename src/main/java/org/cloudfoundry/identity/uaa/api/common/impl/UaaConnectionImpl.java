@@ -14,10 +14,14 @@
 package org.cloudfoundry.identity.uaa.api.common.impl;
 
 import org.cloudfoundry.identity.uaa.api.client.UaaClientOperations;
+import org.cloudfoundry.identity.uaa.api.client.impl.ClientDetailsCache;
 import org.cloudfoundry.identity.uaa.api.client.impl.UaaClientOperationsImpl;
 import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
 import org.cloudfoundry.identity.uaa.api.group.UaaGroupOperations;
 import org.cloudfoundry.identity.uaa.api.group.impl.UaaGroupOperationsImpl;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenOperations;
+import org.cloudfoundry.identity.uaa.api.token.impl.TokenCheckCache;
+import org.cloudfoundry.identity.uaa.api.token.impl.UaaTokenOperationsImpl;
 import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
 import org.cloudfoundry.identity.uaa.api.user.impl.UaaUserOperationsImpl;
 
@@ -29,18 +33,46 @@ public class UaaConnectionImpl implements UaaConnection {
 
 	private UaaConnectionHelper helper;
 
+	private ClientDetailsCache clientDetailsCache;
+
+	private TokenCheckCache tokenCheckCache;
+
 	public UaaConnectionImpl(UaaConnectionHelper helper) {
+		this(helper, null);
+	}
+
+	/**
+	 * @param helper the connection helper
+	 * @param clientDetailsCache caches client lookups made through {@link #clientOperations()}; may be null
+	 */
+	public UaaConnectionImpl(UaaConnectionHelper helper, ClientDetailsCache clientDetailsCache) {
+		this(helper, clientDetailsCache, null);
+	}
+
+	/**
+	 * @param helper the connection helper
+	 * @param clientDetailsCache caches client lookups made through {@link #clientOperations()}; may be null
+	 * @param tokenCheckCache caches token checks made through {@link #tokenOperations()}; may be null
+	 */
+	public UaaConnectionImpl(UaaConnectionHelper helper, ClientDetailsCache clientDetailsCache,
+			TokenCheckCache tokenCheckCache) {
 		this.helper = helper;
+		this.clientDetailsCache = clientDetailsCache;
+		this.tokenCheckCache = tokenCheckCache;
 	}
 
 	public UaaClientOperations clientOperations() {
-		return new UaaClientOperationsImpl(helper);
+		return new UaaClientOperationsImpl(helper, clientDetailsCache);
 	}
 
 	public UaaGroupOperations groupOperations() {
 		return new UaaGroupOperationsImpl(helper);
 	}
 
+	public UaaTokenOperations tokenOperations() {
+		return new UaaTokenOperationsImpl(helper, tokenCheckCache);
+	}
+
 	public UaaUserOperations userOperations() {
 		return new UaaUserOperationsImpl(helper);
 	}
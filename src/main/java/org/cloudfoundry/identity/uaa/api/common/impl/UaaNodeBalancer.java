@@ -0,0 +1,317 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Spreads requests over several UAA servers sharing one database. Each request goes to the healthy node with the fewest
+ * outstanding requests ({@link Strategy#LEAST_OUTSTANDING}) or with the lowest exponentially weighted moving average
+ * latency scaled by its outstanding requests ({@link Strategy#EWMA_LATENCY}). A node that fails several times in a row
+ * is ejected, and a background task probes its <code>/healthz</code> endpoint until it answers again. If every node is
+ * ejected, requests still go to the least loaded one rather than failing outright.
+ * <p>
+ * Only API requests are balanced; tokens are still obtained from the access token URI of the credentials.
+ */
+public class UaaNodeBalancer {
+	public enum Strategy {
+		LEAST_OUTSTANDING, EWMA_LATENCY
+	}
+
+	/**
+	 * A single UAA server
+	 */
+	public static class Node {
+		private final URL url;
+
+		private final AtomicInteger outstanding = new AtomicInteger();
+
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+		private volatile boolean healthy = true;
+
+		private volatile double ewmaLatencyNanos;
+
+		Node(URL url) {
+			this.url = url;
+		}
+
+		/**
+		 * @return the base URL of the server
+		 */
+		public URL getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return the number of requests currently in flight to the server
+		 */
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		/**
+		 * @return the moving average latency of the server, in nanoseconds
+		 */
+		public double getEwmaLatencyNanos() {
+			return ewmaLatencyNanos;
+		}
+
+		/**
+		 * @return false if the server has been ejected
+		 */
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		synchronized void recordLatency(long latencyNanos, double alpha) {
+			ewmaLatencyNanos = ewmaLatencyNanos == 0 ? latencyNanos : ewmaLatencyNanos + alpha
+					* (latencyNanos - ewmaLatencyNanos);
+		}
+
+		@Override
+		public String toString() {
+			return url.toString();
+		}
+	}
+
+	private static final double EWMA_ALPHA = 0.2;
+
+	private static final Log log = LogFactory.getLog(UaaNodeBalancer.class);
+
+	private final List<Node> nodes;
+
+	private final Strategy strategy;
+
+	private final int ejectAfterFailures;
+
+	private final long probeIntervalMillis;
+
+	private final AtomicInteger nextStart = new AtomicInteger();
+
+	private ScheduledExecutorService prober;
+
+	/**
+	 * Balance over the given servers by least outstanding requests, ejecting a node after 3 consecutive failures and
+	 * probing ejected nodes every 5 seconds
+	 * 
+	 * @param urls the base URLs of the UAA servers
+	 */
+	public UaaNodeBalancer(List<URL> urls) {
+		this(urls, Strategy.LEAST_OUTSTANDING, 3, 5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param urls the base URLs of the UAA servers
+	 * @param strategy how to pick a node for each request
+	 * @param ejectAfterFailures the number of consecutive failures after which a node is ejected
+	 * @param probeInterval how often ejected nodes are probed
+	 * @param unit the unit of <code>probeInterval</code>
+	 */
+	public UaaNodeBalancer(List<URL> urls, Strategy strategy, int ejectAfterFailures, long probeInterval,
+			TimeUnit unit) {
+		Assert.notEmpty(urls);
+		Assert.notNull(strategy);
+		Assert.isTrue(ejectAfterFailures > 0, "ejectAfterFailures must be positive");
+
+		List<Node> nodeList = new ArrayList<Node>(urls.size());
+		for (URL url : urls) {
+			Assert.notNull(url);
+			nodeList.add(new Node(url));
+		}
+
+		this.nodes = Collections.unmodifiableList(nodeList);
+		this.strategy = strategy;
+		this.ejectAfterFailures = ejectAfterFailures;
+		this.probeIntervalMillis = unit.toMillis(probeInterval);
+	}
+
+	/**
+	 * @return all nodes, healthy or not
+	 */
+	public List<Node> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Pick the node for a request. The caller must report the outcome with {@link #onSuccess(Node, long)} or
+	 * {@link #onFailure(Node)}.
+	 * 
+	 * @return the node
+	 */
+	public Node select() {
+		return select(null);
+	}
+
+	/**
+	 * Pick the node for a request, avoiding the given node if any other is available
+	 * 
+	 * @param avoid a node not to pick, or null
+	 * @return the node
+	 * @see #select()
+	 */
+	public Node select(Node avoid) {
+		Node best = null;
+
+		if (nodes.size() == 1) {
+			best = nodes.get(0);
+		}
+		else {
+			// rotate the starting point so ties are spread evenly
+			int start = (nextStart.getAndIncrement() & Integer.MAX_VALUE) % nodes.size();
+			double bestScore = Double.MAX_VALUE;
+			boolean bestHealthy = false;
+
+			for (int i = 0; i < nodes.size(); i++) {
+				Node node = nodes.get((start + i) % nodes.size());
+				if (node == avoid) {
+					continue;
+				}
+
+				double score = score(node);
+				if ((node.healthy && !bestHealthy) || (node.healthy == bestHealthy && score < bestScore)) {
+					best = node;
+					bestScore = score;
+					bestHealthy = node.healthy;
+				}
+			}
+		}
+
+		best.outstanding.incrementAndGet();
+		return best;
+	}
+
+	private double score(Node node) {
+		if (strategy == Strategy.EWMA_LATENCY) {
+			return (node.ewmaLatencyNanos + 1) * (node.outstanding.get() + 1);
+		}
+
+		return node.outstanding.get();
+	}
+
+	/**
+	 * Report a completed request
+	 * 
+	 * @param node the node the request was sent to
+	 * @param latencyNanos the round trip time
+	 */
+	public void onSuccess(Node node, long latencyNanos) {
+		node.outstanding.decrementAndGet();
+		node.consecutiveFailures.set(0);
+		node.recordLatency(latencyNanos, EWMA_ALPHA);
+	}
+
+	/**
+	 * Report a request that failed in a way that indicates the node is unhealthy
+	 * 
+	 * @param node the node the request was sent to
+	 */
+	public void onFailure(Node node) {
+		node.outstanding.decrementAndGet();
+
+		if (node.consecutiveFailures.incrementAndGet() >= ejectAfterFailures && nodes.size() > 1 && node.healthy) {
+			log.warn("Ejecting UAA node " + node);
+			node.healthy = false;
+			startProber();
+		}
+	}
+
+	/**
+	 * Report a request that completed with an error unrelated to the health of the node, such as a client error
+	 * status, or one abandoned by the caller, such as the slower of two hedged attempts
+	 * 
+	 * @param node the node the request was sent to
+	 */
+	public void onIgnored(Node node) {
+		node.outstanding.decrementAndGet();
+	}
+
+	/**
+	 * Stop probing ejected nodes
+	 */
+	public synchronized void shutdown() {
+		if (prober != null) {
+			prober.shutdownNow();
+			prober = null;
+		}
+	}
+
+	private synchronized void startProber() {
+		if (prober != null) {
+			return;
+		}
+
+		prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "uaa-node-prober");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		prober.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (Node node : nodes) {
+					if (!node.healthy && probe(node)) {
+						log.info("Re-admitting UAA node " + node);
+						node.consecutiveFailures.set(0);
+						node.healthy = true;
+					}
+				}
+			}
+		}, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean probe(Node node) {
+		HttpURLConnection connection = null;
+		try {
+			String path = node.url.getPath();
+			if (path.endsWith("/")) {
+				path = path.substring(0, path.length() - 1);
+			}
+
+			connection = (HttpURLConnection) new URL(node.url, path + "/healthz").openConnection();
+			connection.setConnectTimeout((int) probeIntervalMillis);
+			connection.setReadTimeout((int) probeIntervalMillis);
+
+			return connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+		}
+		catch (IOException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Probe of " + node + " failed", e);
+			}
+
+			return false;
+		}
+		finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+}
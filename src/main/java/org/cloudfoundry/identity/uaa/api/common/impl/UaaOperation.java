@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import org.cloudfoundry.identity.uaa.api.metrics.UaaMetrics;
+import org.cloudfoundry.identity.uaa.api.tracing.UaaSpan;
+import org.cloudfoundry.identity.uaa.api.tracing.UaaTracer;
+
+/**
+ * A logical API operation in progress on the current thread, such as <code>users.getByName</code>. Operations nest:
+ * one that calls another becomes its parent, and HTTP requests are attributed to the outermost (root) operation. An
+ * operation must be ended on the thread that began it:
+ * 
+ * <pre>
+ * UaaOperation operation = helper.beginOperation(&quot;users.getByName&quot;);
+ * try {
+ * 	...
+ * }
+ * finally {
+ * 	operation.end();
+ * }
+ * </pre>
+ * 
+ * @see UaaConnectionHelper#beginOperation(String)
+ */
+public final class UaaOperation {
+	private static final ThreadLocal<UaaOperation> CURRENT = new ThreadLocal<UaaOperation>();
+
+	private final String name;
+
+	private final UaaOperation parent;
+
+	private final UaaMetrics metrics;
+
+	private final UaaSpan span;
+
+	private final long startNanos;
+
+	UaaOperation(String name, UaaMetrics metrics, UaaTracer tracer) {
+		this.name = name;
+		this.parent = CURRENT.get();
+		this.metrics = metrics;
+		this.span = tracer.startSpan(name, parent == null ? null : parent.span);
+		this.startNanos = System.nanoTime();
+
+		CURRENT.set(this);
+	}
+
+	/**
+	 * @return the operation in progress on the current thread, or null
+	 */
+	static UaaOperation current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * @return the operation name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the operation that began this one, or null if this is a root operation
+	 */
+	public UaaOperation getParent() {
+		return parent;
+	}
+
+	/**
+	 * @return the span tracing this operation
+	 */
+	UaaSpan getSpan() {
+		return span;
+	}
+
+	/**
+	 * @return the outermost operation this one is part of
+	 */
+	public UaaOperation getRoot() {
+		UaaOperation root = this;
+		while (root.parent != null) {
+			root = root.parent;
+		}
+		return root;
+	}
+
+	/**
+	 * End the operation, making its parent current again
+	 */
+	public void end() {
+		span.end();
+
+		if (parent == null) {
+			CURRENT.remove();
+
+			if (metrics != null) {
+				metrics.recordOperation(name, System.nanoTime() - startNanos);
+			}
+		}
+		else {
+			CURRENT.set(parent);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaRateLimitExceededException;
+import org.springframework.http.HttpMethod;
+import org.springframework.util.Assert;
+
+/**
+ * Client side rate limits for a {@link UaaConnectionHelper}. Reads (GET requests), writes (everything else) and token
+ * requests each get their own {@link TokenBucket}; a category without a configured limit is not throttled. For
+ * example, to let a batch job write at 20 requests per second and wait at most 5 seconds for a permit:
+ * 
+ * <pre>
+ * UaaRateLimiter limiter = new UaaRateLimiter(Mode.TIMEOUT, 5, TimeUnit.SECONDS);
+ * limiter.setLimit(Category.WRITE, 20, 1);
+ * helper.setRateLimiter(limiter);
+ * </pre>
+ */
+public class UaaRateLimiter {
+	/**
+	 * What to do when no permit is immediately available
+	 */
+	public enum Mode {
+		/**
+		 * wait until a permit is available
+		 */
+		BLOCKING,
+
+		/**
+		 * fail immediately with {@link UaaRateLimitExceededException}
+		 */
+		NON_BLOCKING,
+
+		/**
+		 * wait up to the configured timeout, then fail with {@link UaaRateLimitExceededException}
+		 */
+		TIMEOUT
+	}
+
+	/**
+	 * The kind of request being limited
+	 */
+	public enum Category {
+		READ, WRITE, TOKEN;
+
+		/**
+		 * @param method the HTTP method of an API request
+		 * @return {@link #READ} for GET requests, {@link #WRITE} otherwise
+		 */
+		public static Category of(HttpMethod method) {
+			return HttpMethod.GET.equals(method) ? READ : WRITE;
+		}
+	}
+
+	private final Map<Category, TokenBucket> buckets = new EnumMap<Category, TokenBucket>(Category.class);
+
+	private final Mode mode;
+
+	private final long timeoutNanos;
+
+	/**
+	 * Create a limiter that waits as long as necessary for a permit
+	 */
+	public UaaRateLimiter() {
+		this(Mode.BLOCKING, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param mode what to do when no permit is immediately available
+	 * @param timeout the maximum time to wait in {@link Mode#TIMEOUT} mode, ignored otherwise
+	 * @param unit the unit of <code>timeout</code>
+	 */
+	public UaaRateLimiter(Mode mode, long timeout, TimeUnit unit) {
+		Assert.notNull(mode);
+		Assert.notNull(unit);
+
+		this.mode = mode;
+		this.timeoutNanos = unit.toNanos(timeout);
+	}
+
+	/**
+	 * Limit a category of requests. Should be called before the limiter is in use.
+	 * 
+	 * @param category the category to limit
+	 * @param permitsPerSecond the steady state requests per second
+	 * @param burst the number of requests that may be sent at once after a quiet period
+	 * @return the limiter (for chaining)
+	 */
+	public UaaRateLimiter setLimit(Category category, double permitsPerSecond, int burst) {
+		Assert.notNull(category);
+
+		buckets.put(category, new TokenBucket(permitsPerSecond, burst));
+		return this;
+	}
+
+	/**
+	 * Take a permit for a request, according to the configured {@link Mode}
+	 * 
+	 * @param category the request category
+	 * @throws UaaRateLimitExceededException if no permit could be obtained
+	 */
+	public void acquire(Category category) {
+		TokenBucket bucket = buckets.get(category);
+		if (bucket == null) {
+			return;
+		}
+
+		boolean acquired;
+		try {
+			switch (mode) {
+			case BLOCKING:
+				bucket.acquire();
+				acquired = true;
+				break;
+			case NON_BLOCKING:
+				acquired = bucket.tryAcquire();
+				break;
+			default:
+				acquired = bucket.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UaaRateLimitExceededException("Interrupted while waiting for a " + category + " permit");
+		}
+
+		if (!acquired) {
+			throw new UaaRateLimitExceededException("Client side rate limit exceeded for " + category + " requests");
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
+import org.springframework.util.Assert;
+
+/**
+ * A bounded, least recently used cache of GET responses for users, groups and clients. Entries are served without a
+ * network call for the time to live; after that, an entry that came with an <code>ETag</code> is revalidated with
+ * <code>If-None-Match</code> so an unchanged resource costs a bodiless 304. Any write through a connection using the
+ * cache invalidates every cached response of the same endpoint category, including search results. Users and groups
+ * are invalidated together, as memberships show on both: a user's <code>groups</code> attribute changes when a group
+ * is written, and a group's members change when a user is deleted.
+ * <p>
+ * Responses are held as JSON and decoded for each caller, so callers may modify what they receive.
+ * 
+ * @see UaaConnectionHelper#setResponseCache(UaaResponseCache)
+ */
+public class UaaResponseCache {
+	static class Entry {
+		final byte[] body;
+
+		final String etag;
+
+		final long generation;
+
+		volatile long expiresAtNanos;
+
+		Entry(byte[] body, String etag, long generation, long expiresAtNanos) {
+			this.body = body;
+			this.etag = etag;
+			this.generation = generation;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+
+		boolean isFresh() {
+			return System.nanoTime() - expiresAtNanos < 0;
+		}
+	}
+
+	private final Map<String, Entry> entries;
+
+	private final long ttlNanos;
+
+	private final AtomicLongArray generations = new AtomicLongArray(UaaEndpointCategory.values().length);
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong revalidations = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries the maximum number of cached responses
+	 * @param ttl how long a response is served without asking the UAA
+	 * @param unit the unit of <code>ttl</code>
+	 */
+	public UaaResponseCache(final int maxEntries, long ttl, TimeUnit unit) {
+		Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+
+		this.ttlNanos = unit.toNanos(ttl);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @param category the category of a GET endpoint
+	 * @return true if responses of the category are cached
+	 */
+	public static boolean isCacheable(UaaEndpointCategory category) {
+		return category == UaaEndpointCategory.USERS || category == UaaEndpointCategory.GROUPS
+				|| category == UaaEndpointCategory.CLIENTS;
+	}
+
+	/**
+	 * @param key the request key
+	 * @param category the category of the endpoint
+	 * @return the cached entry, fresh or stale, or null if there is none or it was invalidated
+	 */
+	Entry get(String key, UaaEndpointCategory category) {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+
+		if (entry == null || entry.generation != generations.get(category.ordinal())) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		if (entry.isFresh()) {
+			hits.incrementAndGet();
+		}
+
+		return entry;
+	}
+
+	/**
+	 * @param category the category of an endpoint about to be read
+	 * @return the generation to pass to {@link #put(String, UaaEndpointCategory, long, byte[], String)} once the
+	 * response arrives, so responses that race with a write are not cached
+	 */
+	long getGeneration(UaaEndpointCategory category) {
+		return generations.get(category.ordinal());
+	}
+
+	void put(String key, UaaEndpointCategory category, long generation, byte[] body, String etag) {
+		if (generation != generations.get(category.ordinal())) {
+			return;
+		}
+
+		Entry entry = new Entry(body, etag, generation, System.nanoTime() + ttlNanos);
+		synchronized (entries) {
+			entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * Record that the UAA answered 304 Not Modified for a stale entry
+	 * 
+	 * @param entry the entry
+	 */
+	void revalidated(Entry entry) {
+		revalidations.incrementAndGet();
+		entry.expiresAtNanos = System.nanoTime() + ttlNanos;
+	}
+
+	/**
+	 * Drop every cached response of a category, and of the users or groups category for the other
+	 * 
+	 * @param category the category
+	 */
+	public void invalidate(UaaEndpointCategory category) {
+		generations.incrementAndGet(category.ordinal());
+		if (category == UaaEndpointCategory.USERS) {
+			generations.incrementAndGet(UaaEndpointCategory.GROUPS.ordinal());
+		}
+		else if (category == UaaEndpointCategory.GROUPS) {
+			generations.incrementAndGet(UaaEndpointCategory.USERS.ordinal());
+		}
+	}
+
+	/**
+	 * Drop every cached response
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return the number of cached responses, including invalidated ones not yet evicted
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return the number of requests served from the cache without a network call
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of stale entries the UAA confirmed as unchanged
+	 */
+	public long getRevalidationCount() {
+		return revalidations.get();
+	}
+
+	/**
+	 * @return the number of requests with no usable cached response
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.api.common.UaaTokenStore;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.util.Assert;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * An in-memory {@link UaaTokenStore} for acting as many users, one connection each. Tokens outlive the connections
+ * that obtained them: a new connection for a user and scopes already in the pool uses the pooled token, and refreshes
+ * it with its refresh token once it has expired rather than sending the user's password again. The least recently used
+ * token is evicted when the pool is full.
+ * <p>
+ * {@link #mint(Collection, int)} obtains tokens for many connections at once with bounded parallelism, as a load test
+ * does before it starts.
+ * 
+ * @see UaaConnectionHelper#setTokenStore(UaaTokenStore)
+ */
+public class UaaTokenPool implements UaaTokenStore {
+	private static final Log log = LogFactory.getLog(UaaTokenPool.class);
+
+	private final Map<String, OAuth2AccessToken> tokens;
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxTokens the maximum number of pooled tokens
+	 */
+	public UaaTokenPool(final int maxTokens) {
+		Assert.isTrue(maxTokens > 0, "maxTokens must be positive");
+
+		this.tokens = new LinkedHashMap<String, OAuth2AccessToken>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, OAuth2AccessToken> eldest) {
+				if (size() > maxTokens) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public OAuth2AccessToken get(String key) {
+		synchronized (tokens) {
+			OAuth2AccessToken token = tokens.get(key);
+			if (token != null && token.isExpired() && token.getRefreshToken() == null) {
+				tokens.remove(key);
+				return null;
+			}
+			return token;
+		}
+	}
+
+	public void put(String key, OAuth2AccessToken token) {
+		Assert.notNull(token, "token must not be null");
+		synchronized (tokens) {
+			tokens.put(key, token);
+		}
+	}
+
+	public void remove(String key, OAuth2AccessToken token) {
+		synchronized (tokens) {
+			OAuth2AccessToken stored = tokens.get(key);
+			if (stored != null && stored.getValue().equals(token.getValue())) {
+				tokens.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Make each helper use this pool and make sure it has a token, obtaining those it lacks. Failures are logged, not
+	 * thrown, so one bad user does not stop the rest.
+	 * 
+	 * @param helpers the connection helpers, usually one per user
+	 * @param parallelism the most tokens to request at a time
+	 * @return the number of helpers that hold a token
+	 */
+	public int mint(Collection<UaaConnectionHelper> helpers, int parallelism) {
+		Assert.notNull(helpers, "helpers must not be null");
+		Assert.isTrue(parallelism > 0, "parallelism must be positive");
+
+		final AtomicInteger threads = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "uaa-token-mint-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		try {
+			List<Future<OAuth2AccessToken>> minted = new ArrayList<Future<OAuth2AccessToken>>(helpers.size());
+			for (final UaaConnectionHelper helper : helpers) {
+				helper.setTokenStore(this);
+				minted.add(executor.submit(new Callable<OAuth2AccessToken>() {
+					public OAuth2AccessToken call() {
+						return helper.getAccessToken();
+					}
+				}));
+			}
+
+			int held = 0;
+			int failed = 0;
+			for (Future<OAuth2AccessToken> token : minted) {
+				try {
+					if (token.get() != null) {
+						held++;
+					}
+				}
+				catch (ExecutionException e) {
+					if (failed++ == 0) {
+						log.warn("Could not obtain a token", e.getCause());
+					}
+				}
+			}
+
+			if (failed > 1) {
+				log.warn("Could not obtain " + failed + " of " + minted.size() + " tokens");
+			}
+			return held;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RestClientException("Interrupted while obtaining tokens", e);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the number of pooled tokens
+	 */
+	public int size() {
+		synchronized (tokens) {
+			return tokens.size();
+		}
+	}
+
+	/**
+	 * @return the number of tokens evicted to stay within the size limit
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.model;
+
+import java.util.List;
+
+import org.springframework.util.Assert;
+
+/**
+ * A resource returned by a search that asked for specific attributes, holding just those attributes. Values are kept
+ * in an array in the order the attributes were requested, and the attribute names are shared by every record of a
+ * page, so a record costs little more than its values.
+ * <p>
+ * Values are strings, numbers, booleans or null. Complex attributes are maps and multi-valued attributes are lists;
+ * a dotted attribute such as <code>emails.value</code> holds the value at that path in each element.
+ */
+public class ScimRecord {
+	private final List<String> attributes;
+
+	private final Object[] values;
+
+	/**
+	 * @param attributes the requested attributes
+	 * @param values the value of each attribute, in the same order
+	 */
+	public ScimRecord(List<String> attributes, Object[] values) {
+		Assert.isTrue(attributes.size() == values.length, "there must be one value per attribute");
+
+		this.attributes = attributes;
+		this.values = values;
+	}
+
+	/**
+	 * @return the requested attributes, in the order they were requested
+	 */
+	public List<String> getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * @param attribute one of the requested attributes, in any case
+	 * @return its value, or null if the resource has no value for it
+	 * @throws IllegalArgumentException if the attribute was not requested
+	 */
+	public Object get(String attribute) {
+		for (int i = 0; i < values.length; i++) {
+			if (attributes.get(i).equalsIgnoreCase(attribute)) {
+				return values[i];
+			}
+		}
+
+		throw new IllegalArgumentException(attribute + " was not requested; requested " + attributes);
+	}
+
+	/**
+	 * @param attribute one of the requested attributes, in any case
+	 * @return its value as a string, or null if the resource has no value for it
+	 * @throws IllegalArgumentException if the attribute was not requested
+	 */
+	public String getString(String attribute) {
+		Object value = get(attribute);
+		return value == null ? null : value.toString();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("{");
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append(attributes.get(i)).append('=').append(values[i]);
+		}
+
+		return builder.append('}').toString();
+	}
+}
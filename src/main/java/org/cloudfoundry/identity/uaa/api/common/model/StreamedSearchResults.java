@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.model;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.cloudfoundry.identity.uaa.rest.SearchResults;
+
+/**
+ * The paging information of a streamed search. The resources themselves were given to a
+ * {@link org.cloudfoundry.identity.uaa.api.common.UaaResultHandler} as they were read, so {@link #getResources()} is
+ * always empty.
+ * <p>
+ * The UAA writes the resources before the paging fields, so if the handler stopped early, the start index, page size,
+ * total and schemas are not known and are 0 or empty.
+ */
+public class StreamedSearchResults<T> extends SearchResults<T> {
+	private final int deliveredCount;
+
+	private final boolean complete;
+
+	public StreamedSearchResults(Collection<String> schemas, int startIndex, int itemsPerPage, int totalResults,
+			int deliveredCount, boolean complete) {
+		super(schemas, Collections.<T> emptyList(), startIndex, itemsPerPage, totalResults);
+		this.deliveredCount = deliveredCount;
+		this.complete = complete;
+	}
+
+	/**
+	 * @return the number of resources given to the handler
+	 */
+	public int getDeliveredCount() {
+		return deliveredCount;
+	}
+
+	/**
+	 * @return false if the handler stopped before the end of the page
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * A token signing key as published by the UAA's <code>/token_keys</code> endpoint. RSA keys carry their modulus and
+ * exponent in <code>n</code> and <code>e</code> and a PEM encoding in <code>value</code>; for MAC keys,
+ * <code>value</code> is the shared secret and is only returned to clients allowed to see it.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TokenKey {
+	private String kid;
+
+	private String kty;
+
+	private String alg;
+
+	private String use;
+
+	private String value;
+
+	private String n;
+
+	private String e;
+
+	/**
+	 * @return the key ID, which tokens signed with the key name in their <code>kid</code> header
+	 */
+	public String getKid() {
+		return kid;
+	}
+
+	public void setKid(String kid) {
+		this.kid = kid;
+	}
+
+	/**
+	 * @return the key type: <code>RSA</code> or <code>MAC</code>
+	 */
+	public String getKty() {
+		return kty;
+	}
+
+	public void setKty(String kty) {
+		this.kty = kty;
+	}
+
+	/**
+	 * @return the signing algorithm, for example <code>RS256</code> or <code>HS256</code>
+	 */
+	public String getAlg() {
+		return alg;
+	}
+
+	public void setAlg(String alg) {
+		this.alg = alg;
+	}
+
+	public String getUse() {
+		return use;
+	}
+
+	public void setUse(String use) {
+		this.use = use;
+	}
+
+	/**
+	 * @return the PEM encoded public key, or the shared secret of a MAC key
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	/**
+	 * @return the base64url encoded modulus of an RSA key
+	 */
+	public String getN() {
+		return n;
+	}
+
+	public void setN(String n) {
+		this.n = n;
+	}
+
+	/**
+	 * @return the base64url encoded public exponent of an RSA key
+	 */
+	public String getE() {
+		return e;
+	}
+
+	public void setE(String e) {
+		this.e = e;
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.common.model;
+
+/**
+ * The families of UAA endpoints used by this client
+ */
+public enum UaaEndpointCategory {
+	TOKEN, USERS, GROUPS, CLIENTS, OTHER;
+
+	/**
+	 * @param uri a URI relative to the UAA base URL (for example <code>/Users/{id}</code>)
+	 * @return the category of the endpoint
+	 */
+	public static UaaEndpointCategory of(String uri) {
+		if (uri.startsWith("/Users")) {
+			return USERS;
+		}
+		else if (uri.startsWith("/Groups")) {
+			return GROUPS;
+		}
+		else if (uri.startsWith("/oauth/clients")) {
+			return CLIENTS;
+		}
+		else if (uri.startsWith("/oauth/token") || uri.startsWith("/check_token") || uri.startsWith("/token_key")) {
+			return TOKEN;
+		}
+
+		return OTHER;
+	}
+}
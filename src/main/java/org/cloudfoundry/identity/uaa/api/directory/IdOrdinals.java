@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.directory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Assigns dense ordinals, from 0, to string IDs. The characters of every ID are held in one direct buffer and the
+ * hash table is an int array, so there is no object per ID and looking an ID up allocates nothing.
+ * <p>
+ * Not thread-safe while IDs are being added; safe for concurrent lookups once they no longer are.
+ */
+final class IdOrdinals {
+	private ByteBuffer chars = ByteBuffer.allocateDirect(64 * 1024);
+
+	private int[] starts = new int[1024];
+
+	private int[] hashes = new int[1024];
+
+	private int[] table = new int[2048];
+
+	private int size;
+
+	/**
+	 * @return the ordinal of the ID, or -1 if it has none
+	 */
+	int ordinal(String id) {
+		int hash = SnapshotFormat.hash(id);
+		int mask = table.length - 1;
+
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int ordinal = table[slot] - 1;
+			if (ordinal < 0) {
+				return -1;
+			}
+			if (hashes[ordinal] == hash && matches(ordinal, id)) {
+				return ordinal;
+			}
+		}
+	}
+
+	/**
+	 * @return the ordinal of the ID, assigning the next one if it has none
+	 */
+	int add(String id) {
+		int ordinal = ordinal(id);
+		if (ordinal >= 0) {
+			return ordinal;
+		}
+
+		ordinal = size;
+		if (ordinal + 1 == starts.length) {
+			starts = Arrays.copyOf(starts, starts.length * 2);
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+		}
+
+		int start = starts[ordinal];
+		ensureChars(start + id.length() * 2);
+		for (int i = 0; i < id.length(); i++) {
+			chars.putChar(start + i * 2, id.charAt(i));
+		}
+
+		starts[ordinal + 1] = start + id.length() * 2;
+		hashes[ordinal] = SnapshotFormat.hash(id);
+		size++;
+
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		else {
+			insert(ordinal);
+		}
+
+		return ordinal;
+	}
+
+	/**
+	 * @return the ID with the ordinal
+	 */
+	String id(int ordinal) {
+		if (ordinal < 0 || ordinal >= size) {
+			throw new IndexOutOfBoundsException("No ID with ordinal " + ordinal);
+		}
+
+		char[] id = new char[(starts[ordinal + 1] - starts[ordinal]) / 2];
+		for (int i = 0; i < id.length; i++) {
+			id[i] = chars.getChar(starts[ordinal] + i * 2);
+		}
+		return new String(id);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the bytes held outside the heap
+	 */
+	long offHeapBytes() {
+		return chars.capacity();
+	}
+
+	private boolean matches(int ordinal, String id) {
+		int start = starts[ordinal];
+		if ((starts[ordinal + 1] - start) / 2 != id.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < id.length(); i++) {
+			if (chars.getChar(start + i * 2) != id.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void ensureChars(int capacity) {
+		if (capacity <= chars.capacity()) {
+			return;
+		}
+
+		ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(capacity,
+				(int) Math.min(Integer.MAX_VALUE, chars.capacity() * 2L)));
+		ByteBuffer old = chars.duplicate();
+		old.clear();
+		grown.put(old);
+		chars = grown;
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		for (int ordinal = 0; ordinal < size; ordinal++) {
+			insert(ordinal);
+		}
+	}
+
+	private void insert(int ordinal) {
+		int mask = table.length - 1;
+		int slot = hashes[ordinal] & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = ordinal + 1;
+	}
+}
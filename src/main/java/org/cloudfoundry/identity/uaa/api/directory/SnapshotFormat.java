@@ -0,0 +1,267 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.directory;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.scim.ScimMeta;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+
+/**
+ * The binary layout of a directory snapshot. All numbers are big-endian and all offsets are from the start of the
+ * file, which limits a snapshot to 2 GB.
+ * 
+ * <pre>
+ * header        64 bytes: magic, format version, written at, last modified, user count, group count, the offsets of
+ *               the six tables below and the file length
+ * records       each an int length followed by a user or group record
+ * user order    an int offset per user, in the order they were written
+ * user IDs      an open-addressed hash table of record offsets, keyed by ID: an int capacity, then the slots
+ * user names    the same, keyed by lower-cased user name
+ * group order, group IDs and group names likewise
+ * </pre>
+ * 
+ * Records begin with their creation and modification times, version, ID and name, so the hash tables and the
+ * catch-up high-water mark can read those without decoding the rest. Strings are an unsigned short byte length, or
+ * 0xFFFF for null, followed by UTF-8.
+ */
+final class SnapshotFormat {
+	static final int MAGIC = 0x55414153;
+
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 64;
+
+	static final int WRITTEN_AT = 8;
+
+	static final int LAST_MODIFIED = 16;
+
+	static final int USER_COUNT = 24;
+
+	static final int GROUP_COUNT = 28;
+
+	static final int USER_ORDER = 32;
+
+	static final int USER_IDS = 36;
+
+	static final int USER_NAMES = 40;
+
+	static final int GROUP_ORDER = 44;
+
+	static final int GROUP_IDS = 48;
+
+	static final int GROUP_NAMES = 52;
+
+	static final int LENGTH = 56;
+
+	/**
+	 * The offset of the ID within a record, after its length, creation time, modification time and version
+	 */
+	static final int ID = 4 + 8 + 8 + 4;
+
+	static final long NO_DATE = Long.MIN_VALUE;
+
+	private static final int NULL_STRING = 0xFFFF;
+
+	private static final byte ACTIVE = 1;
+
+	private static final byte VERIFIED = 2;
+
+	private SnapshotFormat() {
+	}
+
+	static int hash(String key) {
+		int hash = key.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+	static String nameKey(String name) {
+		return name == null ? "" : name.toLowerCase(Locale.ENGLISH);
+	}
+
+	static int tableCapacity(int count) {
+		return Math.max(2, Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1);
+	}
+
+	static long time(Date date) {
+		return date == null ? NO_DATE : date.getTime();
+	}
+
+	static Date date(long time) {
+		return time == NO_DATE ? null : new Date(time);
+	}
+
+	static void writeUser(DataOutput out, ScimUser user) throws IOException {
+		writeMeta(out, user.getMeta());
+		writeString(out, user.getId());
+		writeString(out, user.getUserName());
+		writeString(out, user.getExternalId());
+		writeString(out, user.getOrigin());
+		writeString(out, user.getZoneId());
+		writeString(out, user.getName() == null ? null : user.getName().getGivenName());
+		writeString(out, user.getName() == null ? null : user.getName().getFamilyName());
+		writeString(out, user.getDisplayName());
+		out.writeByte((user.isActive() ? ACTIVE : 0) | (user.isVerified() ? VERIFIED : 0));
+
+		List<ScimUser.Email> emails = user.getEmails() == null ? new ArrayList<ScimUser.Email>() : user.getEmails();
+		out.writeShort(emails.size());
+		for (ScimUser.Email email : emails) {
+			writeString(out, email.getValue());
+			out.writeBoolean(email.isPrimary());
+		}
+
+		List<ScimUser.Group> groups = user.getGroups() == null ? new ArrayList<ScimUser.Group>()
+				: new ArrayList<ScimUser.Group>(user.getGroups());
+		out.writeShort(groups.size());
+		for (ScimUser.Group group : groups) {
+			writeString(out, group.getValue());
+			writeString(out, group.getDisplay());
+			out.writeByte(group.getType() == null ? -1 : group.getType().ordinal());
+		}
+	}
+
+	static ScimUser readUser(ByteBuffer in) {
+		ScimMeta meta = readMeta(in);
+
+		ScimUser user = new ScimUser();
+		user.setMeta(meta);
+		user.setId(readString(in));
+		user.setUserName(readString(in));
+		user.setExternalId(readString(in));
+		user.setOrigin(readString(in));
+		user.setZoneId(readString(in));
+
+		String givenName = readString(in);
+		String familyName = readString(in);
+		if (givenName != null || familyName != null) {
+			user.setName(new ScimUser.Name(givenName, familyName));
+		}
+
+		user.setDisplayName(readString(in));
+
+		byte flags = in.get();
+		user.setActive((flags & ACTIVE) != 0);
+		user.setVerified((flags & VERIFIED) != 0);
+
+		int emailCount = in.getShort() & 0xFFFF;
+		if (emailCount > 0) {
+			List<ScimUser.Email> emails = new ArrayList<ScimUser.Email>(emailCount);
+			for (int i = 0; i < emailCount; i++) {
+				ScimUser.Email email = new ScimUser.Email();
+				email.setValue(readString(in));
+				email.setPrimary(in.get() != 0);
+				emails.add(email);
+			}
+			user.setEmails(emails);
+		}
+
+		int groupCount = in.getShort() & 0xFFFF;
+		List<ScimUser.Group> groups = new ArrayList<ScimUser.Group>(groupCount);
+		for (int i = 0; i < groupCount; i++) {
+			String value = readString(in);
+			String display = readString(in);
+			byte type = in.get();
+			groups.add(new ScimUser.Group(value, display, type < 0 ? null : ScimUser.Group.Type.values()[type]));
+		}
+		user.setGroups(groups);
+
+		return user;
+	}
+
+	static void writeGroup(DataOutput out, ScimGroup group) throws IOException {
+		writeMeta(out, group.getMeta());
+		writeString(out, group.getId());
+		writeString(out, group.getDisplayName());
+		writeString(out, group.getExternalId());
+
+		List<ScimGroupMember> members = group.getMembers() == null ? new ArrayList<ScimGroupMember>() : group
+				.getMembers();
+		out.writeInt(members.size());
+		for (ScimGroupMember member : members) {
+			writeString(out, member.getMemberId());
+			out.writeByte(member.getType() == null ? -1 : member.getType().ordinal());
+			writeString(out, member.getOrigin());
+		}
+	}
+
+	static ScimGroup readGroup(ByteBuffer in) {
+		ScimMeta meta = readMeta(in);
+
+		ScimGroup group = new ScimGroup();
+		group.setMeta(meta);
+		group.setId(readString(in));
+		group.setDisplayName(readString(in));
+		group.setExternalId(readString(in));
+
+		int memberCount = in.getInt();
+		List<ScimGroupMember> members = new ArrayList<ScimGroupMember>(memberCount);
+		for (int i = 0; i < memberCount; i++) {
+			ScimGroupMember member = new ScimGroupMember(readString(in));
+			byte type = in.get();
+			member.setType(type < 0 ? null : ScimGroupMember.Type.values()[type]);
+			member.setOrigin(readString(in));
+			members.add(member);
+		}
+		group.setMembers(members);
+
+		return group;
+	}
+
+	static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeShort(NULL_STRING);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length >= NULL_STRING) {
+			throw new IllegalArgumentException("Value too long for a snapshot: " + value.substring(0, 32) + "...");
+		}
+
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(ByteBuffer in) {
+		int length = in.getShort() & 0xFFFF;
+		if (length == NULL_STRING) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeMeta(DataOutput out, ScimMeta meta) throws IOException {
+		out.writeLong(meta == null ? NO_DATE : time(meta.getCreated()));
+		out.writeLong(meta == null ? NO_DATE : time(meta.getLastModified()));
+		out.writeInt(meta == null ? 0 : meta.getVersion());
+	}
+
+	private static ScimMeta readMeta(ByteBuffer in) {
+		Date created = date(in.getLong());
+		Date lastModified = date(in.getLong());
+		return new ScimMeta(created, lastModified, in.getInt());
+	}
+}
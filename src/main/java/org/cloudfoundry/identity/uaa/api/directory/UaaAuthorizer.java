@@ -0,0 +1,389 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.directory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.rest.SearchResults;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
+import org.springframework.web.client.HttpClientErrorException;
+
+/**
+ * Decides whether a user may use a scope through a client, the way the UAA grants scopes: the scope must be one of
+ * the client's scopes, which may contain <code>*</code> wildcards, and the name of one of the user's effective groups,
+ * and the user must be active. Effective groups come from a {@link UaaGroupResolver}, so nested groups count.
+ * <p>
+ * Decisions are cached in a bounded, least recently used cache keyed by user, client and scope. Each decision
+ * remembers the user's version, the client's scopes and the resolver's generation it was made under, and is made
+ * again once any of them changes. Users and clients are rechecked against the UAA at most once per recheck interval,
+ * and versions seen elsewhere can be passed to {@link #observe(ScimUser)} and {@link #observe(BaseClientDetails)}.
+ * Every decision, cached or not, first lets the resolver check for modified groups if its refresh interval has
+ * elapsed, so a membership removed or a group deleted in the UAA revokes a cached grant within that interval.
+ * <p>
+ * Safe for concurrent use.
+ */
+public class UaaAuthorizer {
+	private final UaaConnection connection;
+
+	private final UaaGroupResolver resolver;
+
+	private final Map<String, Decision> decisions;
+
+	private final ConcurrentMap<String, UserState> users = new ConcurrentHashMap<String, UserState>();
+
+	private final ConcurrentMap<String, ClientState> clients = new ConcurrentHashMap<String, ClientState>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private long recheckInterval = TimeUnit.SECONDS.toNanos(30);
+
+	/**
+	 * @param connection the connection to look users, groups and clients up through
+	 * @param maxDecisions the maximum number of cached decisions
+	 */
+	public UaaAuthorizer(UaaConnection connection, int maxDecisions) {
+		this(connection, new UaaGroupResolver(connection.groupOperations()), maxDecisions);
+	}
+
+	/**
+	 * @param connection the connection to look users and clients up through
+	 * @param resolver the resolver of effective groups, which may be shared
+	 * @param maxDecisions the maximum number of cached decisions
+	 */
+	public UaaAuthorizer(UaaConnection connection, UaaGroupResolver resolver, final int maxDecisions) {
+		Assert.notNull(connection, "connection must not be null");
+		Assert.notNull(resolver, "resolver must not be null");
+		Assert.isTrue(maxDecisions > 0, "maxDecisions must be positive");
+
+		this.connection = connection;
+		this.resolver = resolver;
+		this.decisions = new LinkedHashMap<String, Decision>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+				return size() > maxDecisions;
+			}
+		};
+	}
+
+	/**
+	 * How long a user's version and a client's scopes are trusted before they are looked up again. By default 30
+	 * seconds.
+	 * 
+	 * @param interval the interval
+	 * @param unit the unit of the interval
+	 */
+	public void setRecheckInterval(long interval, TimeUnit unit) {
+		Assert.isTrue(interval >= 0, "interval must not be negative");
+		this.recheckInterval = unit.toNanos(interval);
+	}
+
+	/**
+	 * @param userId a user ID
+	 * @param clientId a client ID
+	 * @param scope a scope
+	 * @return true if the user may be granted the scope through the client
+	 */
+	public boolean isAuthorized(String userId, String clientId, String scope) {
+		Assert.hasText(userId, "userId must not be empty");
+		Assert.hasText(clientId, "clientId must not be empty");
+		Assert.hasText(scope, "scope must not be empty");
+
+		UserState user = user(userId);
+		ClientState client = client(clientId);
+		resolver.refreshIfDue();
+		long generation = resolver.getGeneration();
+		String key = userId + '\n' + clientId + '\n' + scope;
+
+		Decision decision;
+		synchronized (decisions) {
+			decision = decisions.get(key);
+		}
+
+		if (decision != null && decision.user == user && decision.client == client
+				&& decision.generation == generation) {
+			hits.incrementAndGet();
+			return decision.authorized;
+		}
+
+		misses.incrementAndGet();
+		boolean authorized = user.active && client.allows(scope) && resolver.getGroupNames(userId).contains(scope);
+
+		synchronized (decisions) {
+			decisions.put(key, new Decision(user, client, generation, authorized));
+		}
+		return authorized;
+	}
+
+	/**
+	 * @param userId a user ID
+	 * @param clientId a client ID
+	 * @return the scopes the user may be granted through the client: the names of the user's effective groups that
+	 *         match one of the client's scopes
+	 */
+	public Set<String> getEffectiveScopes(String userId, String clientId) {
+		Assert.hasText(userId, "userId must not be empty");
+		Assert.hasText(clientId, "clientId must not be empty");
+
+		UserState user = user(userId);
+		ClientState client = client(clientId);
+		if (!user.active) {
+			return Collections.emptySet();
+		}
+
+		Set<String> scopes = new LinkedHashSet<String>();
+		for (String group : resolver.getGroupNames(userId)) {
+			if (client.allows(group)) {
+				scopes.add(group);
+			}
+		}
+		return scopes;
+	}
+
+	/**
+	 * Record a user's current version, such as one just read or written through the client. Decisions made under an
+	 * older version are made again.
+	 * 
+	 * @param user the user
+	 */
+	public void observe(ScimUser user) {
+		Assert.notNull(user, "user must not be null");
+		update(user.getId(), new UserState(user.getVersion(), user.isActive(), true));
+	}
+
+	/**
+	 * Record a client's current scopes, such as those just read or written through the client. Decisions made under
+	 * other scopes are made again.
+	 * 
+	 * @param client the client
+	 */
+	public void observe(BaseClientDetails client) {
+		Assert.notNull(client, "client must not be null");
+		update(client.getClientId(), new ClientState(client.getScope(), lastModified(client)));
+	}
+
+	/**
+	 * Look the user up again before the next decision about them
+	 * 
+	 * @param userId the user ID
+	 */
+	public void invalidateUser(String userId) {
+		users.remove(userId);
+	}
+
+	/**
+	 * Look the client up again before the next decision about it
+	 * 
+	 * @param clientId the client ID
+	 */
+	public void invalidateClient(String clientId) {
+		clients.remove(clientId);
+	}
+
+	/**
+	 * Forget every decision and everything looked up
+	 */
+	public void invalidateAll() {
+		users.clear();
+		clients.clear();
+		synchronized (decisions) {
+			decisions.clear();
+		}
+	}
+
+	/**
+	 * @return the number of decisions served from the cache
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of decisions made
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private UserState user(String userId) {
+		UserState user = users.get(userId);
+		if (user != null && System.nanoTime() - user.checkedAt < recheckInterval) {
+			return user;
+		}
+
+		SearchResults<ScimRecord> found = connection.userOperations().getUsers(
+				new FilterRequestBuilder().equals("id", userId).attributes("id", "active", "meta.version").build(),
+				ScimRecord.class);
+
+		UserState current;
+		if (found.getResources().isEmpty()) {
+			current = new UserState(-1, false, false);
+		}
+		else {
+			ScimRecord record = found.getResources().iterator().next();
+			Object version = record.get("meta.version");
+			current = new UserState(version instanceof Number ? ((Number) version).intValue() : 0,
+					!Boolean.FALSE.equals(record.get("active")), true);
+		}
+
+		return update(userId, current);
+	}
+
+	private ClientState client(String clientId) {
+		ClientState client = clients.get(clientId);
+		if (client != null && System.nanoTime() - client.checkedAt < recheckInterval) {
+			return client;
+		}
+
+		ClientState current;
+		try {
+			BaseClientDetails details = connection.clientOperations().findById(clientId);
+			current = new ClientState(details.getScope(), lastModified(details));
+		}
+		catch (HttpClientErrorException e) {
+			if (e.getStatusCode() != HttpStatus.NOT_FOUND) {
+				throw e;
+			}
+			current = new ClientState(Collections.<String> emptySet(), null);
+		}
+
+		return update(clientId, current);
+	}
+
+	/**
+	 * Keep the state already held if it is unchanged, so the decisions made under it stay valid
+	 */
+	private UserState update(String userId, UserState current) {
+		UserState held = users.get(userId);
+		if (held != null && held.version == current.version && held.active == current.active
+				&& held.exists == current.exists) {
+			held.checkedAt = System.nanoTime();
+			return held;
+		}
+
+		users.put(userId, current);
+		return current;
+	}
+
+	private ClientState update(String clientId, ClientState current) {
+		ClientState held = clients.get(clientId);
+		if (held != null && held.scopes.equals(current.scopes)
+				&& ObjectUtils.nullSafeEquals(held.lastModified, current.lastModified)) {
+			held.checkedAt = System.nanoTime();
+			return held;
+		}
+
+		clients.put(clientId, current);
+		return current;
+	}
+
+	private static Object lastModified(BaseClientDetails client) {
+		return client.getAdditionalInformation() == null ? null : client.getAdditionalInformation().get(
+				"lastModified");
+	}
+
+	private static class UserState {
+		private final int version;
+
+		private final boolean active;
+
+		private final boolean exists;
+
+		private volatile long checkedAt = System.nanoTime();
+
+		UserState(int version, boolean active, boolean exists) {
+			this.version = version;
+			this.active = active && exists;
+			this.exists = exists;
+		}
+	}
+
+	private static class ClientState {
+		private final Set<String> scopes;
+
+		private final Pattern[] wildcards;
+
+		private final Object lastModified;
+
+		private volatile long checkedAt = System.nanoTime();
+
+		ClientState(Collection<String> scopes, Object lastModified) {
+			this.scopes = scopes == null ? Collections.<String> emptySet() : new LinkedHashSet<String>(scopes);
+			this.lastModified = lastModified;
+
+			int count = 0;
+			for (String scope : this.scopes) {
+				count += scope.contains("*") ? 1 : 0;
+			}
+
+			this.wildcards = new Pattern[count];
+			int i = 0;
+			for (String scope : this.scopes) {
+				if (scope.contains("*")) {
+					wildcards[i++] = Pattern.compile(Pattern.quote(scope).replace("*", "\\E.*\\Q"));
+				}
+			}
+		}
+
+		boolean allows(String scope) {
+			if (scopes.contains(scope)) {
+				return true;
+			}
+
+			for (Pattern wildcard : wildcards) {
+				if (wildcard.matcher(scope).matches()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Decision {
+		private final UserState user;
+
+		private final ClientState client;
+
+		private final long generation;
+
+		private final boolean authorized;
+
+		Decision(UserState user, ClientState client, long generation, boolean authorized) {
+			this.user = user;
+			this.client = client;
+			this.generation = generation;
+			this.authorized = authorized;
+		}
+	}
+}
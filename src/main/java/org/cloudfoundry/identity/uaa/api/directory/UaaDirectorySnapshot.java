@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.directory;
+
+import static org.cloudfoundry.identity.uaa.api.directory.SnapshotFormat.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.springframework.util.Assert;
+
+/**
+ * A read-only, memory-mapped snapshot of a UAA's users, groups and memberships, as written by
+ * {@link UaaDirectorySnapshotWriter}. Opening a snapshot reads only its header; users and groups are decoded when
+ * they are looked up, through hash tables that live in the mapped file rather than on the heap, so a snapshot of
+ * millions of users opens in milliseconds and costs the heap nothing until it is used.
+ * <p>
+ * A snapshot holds each user's ID, user name, external ID, origin, zone, given and family names, display name,
+ * emails, active and verified flags, groups and meta data, and each group's ID, display name, external ID, members
+ * and meta data. Passwords are never held. User and group names are matched case-insensitively, as the UAA does.
+ * <p>
+ * Safe for concurrent use. Use {@link UaaDirectorySnapshotLoader} to bring a snapshot up to date after a restart.
+ */
+public class UaaDirectorySnapshot implements Closeable {
+	private final File file;
+
+	private final long writtenAt;
+
+	private final long lastModified;
+
+	private final int userCount;
+
+	private final int groupCount;
+
+	private volatile ByteBuffer buffer;
+
+	private UaaDirectorySnapshot(File file, ByteBuffer buffer) {
+		this.file = file;
+		this.buffer = buffer;
+		this.writtenAt = buffer.getLong(WRITTEN_AT);
+		this.lastModified = buffer.getLong(LAST_MODIFIED);
+		this.userCount = buffer.getInt(USER_COUNT);
+		this.groupCount = buffer.getInt(GROUP_COUNT);
+	}
+
+	/**
+	 * Map a snapshot into memory
+	 * 
+	 * @param file the snapshot
+	 * @return the opened snapshot
+	 * @throws IOException if the file cannot be read, or is not a complete snapshot of this format
+	 */
+	public static UaaDirectorySnapshot open(File file) throws IOException {
+		Assert.notNull(file, "file must not be null");
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is not a directory snapshot");
+			}
+
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buffer.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a directory snapshot");
+			}
+			if (buffer.getInt(4) != VERSION) {
+				throw new IOException(file + " is a directory snapshot of unsupported version " + buffer.getInt(4));
+			}
+			if (buffer.getInt(LENGTH) != size) {
+				throw new IOException(file + " is truncated");
+			}
+
+			return new UaaDirectorySnapshot(file, buffer);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the snapshot file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return when the snapshot was written
+	 */
+	public Date getWrittenAt() {
+		return new Date(writtenAt);
+	}
+
+	/**
+	 * @return the latest modification time of any user or group in the snapshot, but no later than the writer's
+	 *         {@link UaaDirectorySnapshotWriter#setLastModifiedLimit(Date) limit}, or null if none has one. Anything
+	 *         modified at or after this time may be missing from the snapshot.
+	 */
+	public Date getLastModified() {
+		return date(lastModified);
+	}
+
+	/**
+	 * @return the number of users
+	 */
+	public int getUserCount() {
+		return userCount;
+	}
+
+	/**
+	 * @return the number of groups
+	 */
+	public int getGroupCount() {
+		return groupCount;
+	}
+
+	/**
+	 * @param id a user ID
+	 * @return the user, or null if the snapshot has none with that ID
+	 */
+	public ScimUser getUser(String id) {
+		int offset = find(USER_IDS, id, false);
+		return offset == 0 ? null : readUser(record(offset));
+	}
+
+	/**
+	 * @param userName a user name, in any case
+	 * @return the user, or null if the snapshot has none with that name
+	 */
+	public ScimUser getUserByName(String userName) {
+		int offset = find(USER_NAMES, userName, true);
+		return offset == 0 ? null : readUser(record(offset));
+	}
+
+	/**
+	 * @param id a user ID
+	 * @return true if the snapshot has a user with that ID
+	 */
+	public boolean containsUser(String id) {
+		return find(USER_IDS, id, false) != 0;
+	}
+
+	/**
+	 * @param id a group ID
+	 * @return the group, or null if the snapshot has none with that ID
+	 */
+	public ScimGroup getGroup(String id) {
+		int offset = find(GROUP_IDS, id, false);
+		return offset == 0 ? null : readGroup(record(offset));
+	}
+
+	/**
+	 * @param displayName a group name, in any case
+	 * @return the group, or null if the snapshot has none with that name
+	 */
+	public ScimGroup getGroupByName(String displayName) {
+		int offset = find(GROUP_NAMES, displayName, true);
+		return offset == 0 ? null : readGroup(record(offset));
+	}
+
+	/**
+	 * @param id a group ID
+	 * @return true if the snapshot has a group with that ID
+	 */
+	public boolean containsGroup(String id) {
+		return find(GROUP_IDS, id, false) != 0;
+	}
+
+	/**
+	 * Decode every user, in the order they were written
+	 * 
+	 * @param handler receives each user
+	 * @return the number of users delivered before the handler stopped
+	 */
+	public int users(UaaResultHandler<? super ScimUser> handler) {
+		Assert.notNull(handler, "handler must not be null");
+
+		ByteBuffer buffer = buffer();
+		int order = buffer.getInt(USER_ORDER);
+		for (int i = 0; i < userCount; i++) {
+			if (!handler.handle(readUser(record(buffer.getInt(order + i * 4))))) {
+				return i + 1;
+			}
+		}
+
+		return userCount;
+	}
+
+	/**
+	 * Decode every group, in the order they were written
+	 * 
+	 * @param handler receives each group
+	 * @return the number of groups delivered before the handler stopped
+	 */
+	public int groups(UaaResultHandler<? super ScimGroup> handler) {
+		Assert.notNull(handler, "handler must not be null");
+
+		ByteBuffer buffer = buffer();
+		int order = buffer.getInt(GROUP_ORDER);
+		for (int i = 0; i < groupCount; i++) {
+			if (!handler.handle(readGroup(record(buffer.getInt(order + i * 4))))) {
+				return i + 1;
+			}
+		}
+
+		return groupCount;
+	}
+
+	/**
+	 * Release the snapshot. The mapping itself is released when the snapshot is garbage collected.
+	 */
+	public void close() {
+		buffer = null;
+	}
+
+	/**
+	 * @param users true for the user table, false for the group table
+	 * @param index the position of a record in write order
+	 * @return the offset of the record
+	 */
+	int offsetAt(boolean users, int index) {
+		ByteBuffer buffer = buffer();
+		return buffer.getInt(buffer.getInt(users ? USER_ORDER : GROUP_ORDER) + index * 4);
+	}
+
+	/**
+	 * @param offset the offset of a record
+	 * @return a copy of the record, including its length
+	 */
+	byte[] copyRecord(int offset) {
+		ByteBuffer record = buffer().duplicate();
+		byte[] bytes = new byte[4 + record.getInt(offset)];
+		record.position(offset);
+		record.get(bytes);
+		return bytes;
+	}
+
+	private int find(int table, String key, boolean byName) {
+		if (key == null) {
+			return 0;
+		}
+
+		ByteBuffer buffer = buffer();
+		int start = buffer.getInt(table);
+		int mask = buffer.getInt(start) - 1;
+		String hashed = byName ? nameKey(key) : key;
+
+		for (int slot = hash(hashed) & mask;; slot = (slot + 1) & mask) {
+			int offset = buffer.getInt(start + 4 + slot * 4);
+			if (offset == 0) {
+				return 0;
+			}
+
+			ByteBuffer record = buffer.duplicate();
+			record.position(offset + ID);
+			String stored = readString(record);
+			if (byName) {
+				stored = readString(record);
+			}
+
+			if (byName ? key.equalsIgnoreCase(stored) : key.equals(stored)) {
+				return offset;
+			}
+		}
+	}
+
+	private ByteBuffer record(int offset) {
+		ByteBuffer record = buffer().duplicate();
+		record.position(offset + 4);
+		return record;
+	}
+
+	private ByteBuffer buffer() {
+		ByteBuffer buffer = this.buffer;
+		if (buffer == null) {
+			throw new IllegalStateException("Snapshot " + file + " is closed");
+		}
+		return buffer;
+	}
+}
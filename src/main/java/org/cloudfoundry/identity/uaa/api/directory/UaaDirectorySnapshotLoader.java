@@ -0,0 +1,474 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.directory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.rest.SearchResults;
+import org.cloudfoundry.identity.uaa.scim.ScimCore;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * Keeps a {@link UaaDirectorySnapshot} of a UAA up to date across restarts. The first load scans every user and group
+ * into a new snapshot; each load after that opens the existing snapshot and asks the UAA only for what was modified
+ * since the snapshot's {@link UaaDirectorySnapshot#getLastModified() high-water mark}, plus the number of users and
+ * groups. The snapshot is rewritten only if something changed. The high-water mark is never later than when the scan
+ * that wrote it started, less the {@link #setClockSkew(long, TimeUnit) clock skew}, so anything modified during a
+ * scan is asked for again by the next one.
+ * <p>
+ * Deletions do not show up in a modification query, so when the counts disagree with the snapshot, the loader also
+ * lists the IDs of every user or group, fetching just the <code>id</code> attribute, and drops those that are gone
+ * and fetches any that are missing.
+ * <p>
+ * Adding a user to a group modifies the group, not the user, so when any group changed the loader also rebuilds each
+ * user's direct and inherited groups from the group records, rewriting the snapshot a second time.
+ */
+public class UaaDirectorySnapshotLoader {
+	private static final Log log = LogFactory.getLog(UaaDirectorySnapshotLoader.class);
+
+	private static final int ID_BATCH_SIZE = 50;
+
+	private final Resources<ScimUser> users;
+
+	private final Resources<ScimGroup> groups;
+
+	private int pageSize = 500;
+
+	private long clockSkew = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * @param connection the connection to scan the UAA through
+	 */
+	public UaaDirectorySnapshotLoader(final UaaConnection connection) {
+		Assert.notNull(connection, "connection must not be null");
+
+		this.users = new Resources<ScimUser>("users") {
+			@Override
+			StreamedSearchResults<ScimUser> stream(FilterRequest request, UaaResultHandler<? super ScimUser> handler) {
+				return connection.userOperations().streamUsers(request, handler);
+			}
+
+			@Override
+			SearchResults<ScimRecord> records(FilterRequest request) {
+				return connection.userOperations().getUsers(request, ScimRecord.class);
+			}
+
+			@Override
+			ScimCore find(UaaDirectorySnapshot snapshot, String id) {
+				return snapshot.getUser(id);
+			}
+
+			@Override
+			int count(UaaDirectorySnapshot snapshot) {
+				return snapshot.getUserCount();
+			}
+
+			@Override
+			void add(UaaDirectorySnapshotWriter writer, ScimUser user) throws IOException {
+				writer.addUser(user);
+			}
+
+			@Override
+			void remove(UaaDirectorySnapshotWriter writer, String id) {
+				writer.removeUser(id);
+			}
+
+			@Override
+			Set<String> ids(UaaDirectorySnapshotWriter writer) {
+				return new HashSet<String>(writer.getUserIds());
+			}
+		};
+
+		this.groups = new Resources<ScimGroup>("groups") {
+			@Override
+			StreamedSearchResults<ScimGroup> stream(FilterRequest request, UaaResultHandler<? super ScimGroup> handler) {
+				return connection.groupOperations().streamGroups(request, handler);
+			}
+
+			@Override
+			SearchResults<ScimRecord> records(FilterRequest request) {
+				return connection.groupOperations().getGroups(request, ScimRecord.class);
+			}
+
+			@Override
+			ScimCore find(UaaDirectorySnapshot snapshot, String id) {
+				return snapshot.getGroup(id);
+			}
+
+			@Override
+			int count(UaaDirectorySnapshot snapshot) {
+				return snapshot.getGroupCount();
+			}
+
+			@Override
+			void add(UaaDirectorySnapshotWriter writer, ScimGroup group) throws IOException {
+				writer.addGroup(group);
+			}
+
+			@Override
+			void remove(UaaDirectorySnapshotWriter writer, String id) {
+				writer.removeGroup(id);
+			}
+
+			@Override
+			Set<String> ids(UaaDirectorySnapshotWriter writer) {
+				return new HashSet<String>(writer.getGroupIds());
+			}
+		};
+	}
+
+	/**
+	 * The number of users or groups to ask for per request. By default 500, the UAA's maximum.
+	 * 
+	 * @param pageSize the page size
+	 */
+	public void setPageSize(int pageSize) {
+		Assert.isTrue(pageSize > 0, "pageSize must be positive");
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * How far the UAA's clock may be behind this host's. By default one minute.
+	 * 
+	 * @param skew the skew
+	 * @param unit the unit of the skew
+	 */
+	public void setClockSkew(long skew, TimeUnit unit) {
+		Assert.isTrue(skew >= 0, "skew must not be negative");
+		this.clockSkew = unit.toMillis(skew);
+	}
+
+	/**
+	 * Open a snapshot and bring it up to date, or build it if it does not exist or cannot be read
+	 * 
+	 * @param file the snapshot
+	 * @return the up to date snapshot
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public UaaDirectorySnapshot load(File file) throws IOException {
+		Assert.notNull(file, "file must not be null");
+
+		if (!file.exists()) {
+			return rebuild(file);
+		}
+
+		UaaDirectorySnapshot snapshot;
+		try {
+			snapshot = UaaDirectorySnapshot.open(file);
+		}
+		catch (IOException e) {
+			log.warn("Could not open snapshot " + file + ", rebuilding it", e);
+			return rebuild(file);
+		}
+
+		return catchUp(snapshot);
+	}
+
+	/**
+	 * Scan every user and group into a new snapshot
+	 * 
+	 * @param file the snapshot to write
+	 * @return the new snapshot
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public UaaDirectorySnapshot rebuild(File file) throws IOException {
+		UaaDirectorySnapshotWriter writer = new UaaDirectorySnapshotWriter(file);
+		try {
+			writer.setLastModifiedLimit(scanStart());
+			users.scan(null, writer.userHandler());
+			groups.scan(null, writer.groupHandler());
+			return writer.commit();
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Bring a snapshot up to date. If anything changed, the snapshot is closed and its file replaced.
+	 * 
+	 * @param snapshot the snapshot
+	 * @return the given snapshot if nothing changed, otherwise the new one
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public UaaDirectorySnapshot catchUp(UaaDirectorySnapshot snapshot) throws IOException {
+		Assert.notNull(snapshot, "snapshot must not be null");
+
+		Date since = snapshot.getLastModified();
+		if (since == null) {
+			snapshot.close();
+			return rebuild(snapshot.getFile());
+		}
+
+		Date started = scanStart();
+		List<ScimUser> changedUsers = users.changedSince(since, snapshot);
+		List<ScimGroup> changedGroups = groups.changedSince(since, snapshot);
+		boolean reconcileUsers = users.countDiffers(snapshot, changedUsers);
+		boolean reconcileGroups = groups.countDiffers(snapshot, changedGroups);
+
+		if (log.isDebugEnabled()) {
+			log.debug("Snapshot " + snapshot.getFile() + " is behind by " + changedUsers.size() + " users and "
+					+ changedGroups.size() + " groups" + (reconcileUsers || reconcileGroups ? ", and has deletions" : ""));
+		}
+
+		if (changedUsers.isEmpty() && changedGroups.isEmpty() && !reconcileUsers && !reconcileGroups) {
+			return snapshot;
+		}
+
+		UaaDirectorySnapshotWriter writer = new UaaDirectorySnapshotWriter(snapshot.getFile());
+		try {
+			writer.setLastModifiedLimit(started);
+			writer.addAll(snapshot);
+			users.addAll(writer, changedUsers);
+			groups.addAll(writer, changedGroups);
+
+			if (reconcileUsers) {
+				users.reconcile(writer);
+			}
+			if (reconcileGroups) {
+				groups.reconcile(writer);
+			}
+
+			snapshot.close();
+			snapshot = writer.commit();
+		}
+		finally {
+			writer.close();
+		}
+
+		return changedGroups.isEmpty() && !reconcileGroups ? snapshot : regroupUsers(snapshot);
+	}
+
+	/**
+	 * Rewrite a snapshot with each user's groups rebuilt from its group records, as the UAA renders them: the groups
+	 * the user is a direct member of, then those they inherit through nested groups
+	 */
+	private UaaDirectorySnapshot regroupUsers(final UaaDirectorySnapshot snapshot) throws IOException {
+		UaaMembershipIndexBuilder builder = new UaaMembershipIndexBuilder();
+		builder.addAll(snapshot);
+		final UaaMembershipIndex index = builder.build();
+
+		UaaDirectorySnapshotWriter writer = new UaaDirectorySnapshotWriter(snapshot.getFile());
+		try {
+			writer.setLastModifiedLimit(snapshot.getLastModified());
+			final UaaResultHandler<ScimUser> userHandler = writer.userHandler();
+			snapshot.users(new UaaResultHandler<ScimUser>() {
+				public boolean handle(ScimUser user) {
+					user.setGroups(groupsOf(user.getId(), index, snapshot));
+					return userHandler.handle(user);
+				}
+			});
+			snapshot.groups(writer.groupHandler());
+
+			snapshot.close();
+			return writer.commit();
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the latest high-water mark a scan starting now may record
+	 */
+	private Date scanStart() {
+		return new Date(System.currentTimeMillis() - clockSkew);
+	}
+
+	private static List<ScimUser.Group> groupsOf(String userId, UaaMembershipIndex index,
+			UaaDirectorySnapshot snapshot) {
+		List<ScimUser.Group> groups = new ArrayList<ScimUser.Group>();
+		Set<String> seen = new HashSet<String>();
+		List<String> frontier = index.getGroupIds(userId);
+		ScimUser.Group.Type type = ScimUser.Group.Type.DIRECT;
+
+		while (!frontier.isEmpty()) {
+			List<String> next = new ArrayList<String>();
+			for (String groupId : frontier) {
+				ScimGroup group = snapshot.getGroup(groupId);
+				if (group != null && seen.add(groupId)) {
+					groups.add(new ScimUser.Group(groupId, group.getDisplayName(), type));
+					next.addAll(index.getGroupIds(groupId));
+				}
+			}
+			frontier = next;
+			type = ScimUser.Group.Type.INDIRECT;
+		}
+
+		return groups;
+	}
+
+	/**
+	 * Users or groups, and how to fetch and store them
+	 */
+	private abstract class Resources<T extends ScimCore> {
+		private final String name;
+
+		Resources(String name) {
+			this.name = name;
+		}
+
+		abstract StreamedSearchResults<T> stream(FilterRequest request, UaaResultHandler<? super T> handler);
+
+		abstract SearchResults<ScimRecord> records(FilterRequest request);
+
+		abstract ScimCore find(UaaDirectorySnapshot snapshot, String id);
+
+		abstract int count(UaaDirectorySnapshot snapshot);
+
+		abstract void add(UaaDirectorySnapshotWriter writer, T resource) throws IOException;
+
+		abstract void remove(UaaDirectorySnapshotWriter writer, String id);
+
+		abstract Set<String> ids(UaaDirectorySnapshotWriter writer);
+
+		/**
+		 * Stream every page of a search
+		 */
+		void scan(Date since, UaaResultHandler<? super T> handler) {
+			for (int start = 1;; start += pageSize) {
+				FilterRequestBuilder builder = new FilterRequestBuilder();
+				if (since != null) {
+					builder.greaterThanOrEquals("meta.lastModified", since);
+				}
+
+				StreamedSearchResults<T> page = stream(builder.start(start).count(pageSize).build(), handler);
+				if (!page.isComplete() || page.getDeliveredCount() == 0
+						|| start - 1 + page.getDeliveredCount() >= page.getTotalResults()) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return the resources modified at or after a time, less those the snapshot already has. Filters only have
+		 *         a precision of seconds, so the search overlaps the snapshot a little.
+		 */
+		List<T> changedSince(Date since, UaaDirectorySnapshot snapshot) {
+			final List<T> changed = new ArrayList<T>();
+			scan(since, new UaaResultHandler<T>() {
+				public boolean handle(T resource) {
+					changed.add(resource);
+					return true;
+				}
+			});
+
+			for (Iterator<T> resources = changed.iterator(); resources.hasNext();) {
+				T resource = resources.next();
+				ScimCore held = find(snapshot, resource.getId());
+				if (held != null && held.getVersion() == resource.getVersion()
+						&& ObjectUtils.nullSafeEquals(held.getMeta().getLastModified(), lastModified(resource))) {
+					resources.remove();
+				}
+			}
+
+			return changed;
+		}
+
+		/**
+		 * @return true if the UAA has a different number of resources than the snapshot will once the changes are
+		 *         added
+		 */
+		boolean countDiffers(UaaDirectorySnapshot snapshot, List<T> changed) {
+			int expected = count(snapshot);
+			for (T resource : changed) {
+				if (find(snapshot, resource.getId()) == null) {
+					expected++;
+				}
+			}
+
+			FilterRequest request = new FilterRequestBuilder().attributes("id").count(1).build();
+			return records(request).getTotalResults() != expected;
+		}
+
+		void addAll(UaaDirectorySnapshotWriter writer, List<T> resources) throws IOException {
+			for (T resource : resources) {
+				add(writer, resource);
+			}
+		}
+
+		/**
+		 * Drop the resources the UAA no longer has and fetch those the snapshot is missing
+		 */
+		void reconcile(UaaDirectorySnapshotWriter writer) throws IOException {
+			Set<String> live = new HashSet<String>();
+			for (int start = 1;; start += pageSize) {
+				FilterRequest request = new FilterRequestBuilder().attributes("id").start(start).count(pageSize)
+						.build();
+				SearchResults<ScimRecord> page = records(request);
+				for (ScimRecord record : page.getResources()) {
+					live.add(record.getString("id"));
+				}
+
+				if (page.getResources().isEmpty() || start - 1 + page.getResources().size() >= page.getTotalResults()) {
+					break;
+				}
+			}
+
+			Set<String> held = ids(writer);
+			int removed = 0;
+			for (String id : held) {
+				if (!live.contains(id)) {
+					remove(writer, id);
+					removed++;
+				}
+			}
+
+			live.removeAll(held);
+			List<String> missing = new ArrayList<String>(live);
+			for (int i = 0; i < missing.size(); i += ID_BATCH_SIZE) {
+				FilterRequestBuilder builder = new FilterRequestBuilder(false);
+				for (String id : missing.subList(i, Math.min(missing.size(), i + ID_BATCH_SIZE))) {
+					builder.equals("id", id);
+				}
+
+				final List<T> fetched = new ArrayList<T>();
+				stream(builder.build(), new UaaResultHandler<T>() {
+					public boolean handle(T resource) {
+						fetched.add(resource);
+						return true;
+					}
+				});
+				addAll(writer, fetched);
+			}
+
+			if (log.isDebugEnabled()) {
+				log.debug("Reconciled " + name + ": " + removed + " removed, " + missing.size() + " fetched");
+			}
+		}
+
+		private Date lastModified(T resource) {
+			return resource.getMeta() == null ? null : resource.getMeta().getLastModified();
+		}
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.directory;
+
+import static org.cloudfoundry.identity.uaa.api.directory.SnapshotFormat.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.springframework.util.Assert;
+
+/**
+ * Writes a {@link UaaDirectorySnapshot}. Users and groups are encoded to a temporary file next to the snapshot as they
+ * are added, so only their IDs are held on the heap, and {@link #commit()} then appends the hash tables and moves
+ * the file into place atomically. Readers of the previous snapshot therefore never see a partial file.
+ * <p>
+ * Adding a user or group with an ID already added replaces it. {@link #userHandler()} and {@link #groupHandler()}
+ * adapt the writer to the streaming searches, so a full scan of a UAA never holds more than one page of results.
+ * <p>
+ * Not thread-safe.
+ */
+public class UaaDirectorySnapshotWriter implements Closeable {
+	private static final Log log = LogFactory.getLog(UaaDirectorySnapshotWriter.class);
+
+	private final File file;
+
+	private final File temp;
+
+	private final DataOutputStream out;
+
+	private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(512);
+
+	private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+	private final Map<String, Entry> users = new LinkedHashMap<String, Entry>();
+
+	private final Map<String, Entry> groups = new LinkedHashMap<String, Entry>();
+
+	private long lastModified = NO_DATE;
+
+	private Date lastModifiedLimit;
+
+	private IOException failure;
+
+	private boolean closed;
+
+	/**
+	 * @param file the snapshot to write, which is replaced on {@link #commit()}
+	 * @throws IOException if the temporary file cannot be created
+	 */
+	public UaaDirectorySnapshotWriter(File file) throws IOException {
+		Assert.notNull(file, "file must not be null");
+
+		this.file = file.getAbsoluteFile();
+		this.temp = File.createTempFile(file.getName(), ".tmp", this.file.getParentFile());
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+		out.write(new byte[HEADER_SIZE]);
+	}
+
+	/**
+	 * @param user the user to add, or to replace the user with the same ID
+	 * @throws IOException if the user cannot be written
+	 */
+	public void addUser(ScimUser user) throws IOException {
+		Assert.notNull(user, "user must not be null");
+		Assert.hasText(user.getId(), "user must have an ID");
+
+		recordBytes.reset();
+		writeUser(record, user);
+		users.put(user.getId(), append(user.getUserName()));
+		lastModified = Math.max(lastModified, user.getMeta() == null ? NO_DATE : time(user.getMeta()
+				.getLastModified()));
+	}
+
+	/**
+	 * @param group the group to add, or to replace the group with the same ID
+	 * @throws IOException if the group cannot be written
+	 */
+	public void addGroup(ScimGroup group) throws IOException {
+		Assert.notNull(group, "group must not be null");
+		Assert.hasText(group.getId(), "group must have an ID");
+
+		recordBytes.reset();
+		writeGroup(record, group);
+		groups.put(group.getId(), append(group.getDisplayName()));
+		lastModified = Math.max(lastModified, group.getMeta() == null ? NO_DATE : time(group.getMeta()
+				.getLastModified()));
+	}
+
+	/**
+	 * Add every user and group of a snapshot, copying their records without decoding them
+	 * 
+	 * @param snapshot the snapshot to copy
+	 * @throws IOException if the records cannot be written
+	 */
+	public void addAll(UaaDirectorySnapshot snapshot) throws IOException {
+		Assert.notNull(snapshot, "snapshot must not be null");
+
+		copy(snapshot, true, users, snapshot.getUserCount());
+		copy(snapshot, false, groups, snapshot.getGroupCount());
+		lastModified = Math.max(lastModified, time(snapshot.getLastModified()));
+	}
+
+	/**
+	 * Cap the snapshot's high-water mark, which is otherwise the latest modification time of anything added. A scan
+	 * should cap it at when it started: a resource read early in the scan and modified before a later page was read
+	 * is older than that page's resources, and would otherwise fall behind the mark and never be caught up with.
+	 * 
+	 * @param limit the latest high-water mark to record, or null for no limit
+	 */
+	public void setLastModifiedLimit(Date limit) {
+		this.lastModifiedLimit = limit;
+	}
+
+	/**
+	 * @param id the ID of a user to leave out of the snapshot
+	 */
+	public void removeUser(String id) {
+		users.remove(id);
+	}
+
+	/**
+	 * @param id the ID of a group to leave out of the snapshot
+	 */
+	public void removeGroup(String id) {
+		groups.remove(id);
+	}
+
+	/**
+	 * @return the IDs of the users added so far
+	 */
+	public Collection<String> getUserIds() {
+		return users.keySet();
+	}
+
+	/**
+	 * @return the IDs of the groups added so far
+	 */
+	public Collection<String> getGroupIds() {
+		return groups.keySet();
+	}
+
+	/**
+	 * @return a handler that adds each user it receives. If one cannot be written, the handler stops and
+	 *         {@link #commit()} fails.
+	 */
+	public UaaResultHandler<ScimUser> userHandler() {
+		return new UaaResultHandler<ScimUser>() {
+			public boolean handle(ScimUser user) {
+				try {
+					addUser(user);
+					return true;
+				}
+				catch (IOException e) {
+					failure = e;
+					return false;
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return a handler that adds each group it receives. If one cannot be written, the handler stops and
+	 *         {@link #commit()} fails.
+	 */
+	public UaaResultHandler<ScimGroup> groupHandler() {
+		return new UaaResultHandler<ScimGroup>() {
+			public boolean handle(ScimGroup group) {
+				try {
+					addGroup(group);
+					return true;
+				}
+				catch (IOException e) {
+					failure = e;
+					return false;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Finish the snapshot and move it into place
+	 * 
+	 * @return the new snapshot, opened
+	 * @throws IOException if the snapshot cannot be written, or a handler failed to write
+	 */
+	public UaaDirectorySnapshot commit() throws IOException {
+		Assert.state(!closed, "Writer already committed or closed");
+
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+
+			int userOrder = writeOrder(users);
+			int userIds = writeTable(users, true);
+			int userNames = writeTable(users, false);
+			int groupOrder = writeOrder(groups);
+			int groupIds = writeTable(groups, true);
+			int groupNames = writeTable(groups, false);
+			int length = out.size();
+			out.close();
+
+			long mark = lastModifiedLimit == null ? lastModified : Math.min(lastModified, lastModifiedLimit.getTime());
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(0, MAGIC).putInt(4, VERSION).putLong(WRITTEN_AT, System.currentTimeMillis())
+					.putLong(LAST_MODIFIED, mark).putInt(USER_COUNT, users.size())
+					.putInt(GROUP_COUNT, groups.size()).putInt(USER_ORDER, userOrder).putInt(USER_IDS, userIds)
+					.putInt(USER_NAMES, userNames).putInt(GROUP_ORDER, groupOrder).putInt(GROUP_IDS, groupIds)
+					.putInt(GROUP_NAMES, groupNames).putInt(LENGTH, length);
+
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				raf.write(header.array());
+				raf.getChannel().force(true);
+			}
+			finally {
+				raf.close();
+			}
+
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			if (log.isDebugEnabled()) {
+				log.debug("Wrote snapshot " + file + " of " + users.size() + " users and " + groups.size()
+						+ " groups in " + length + " bytes");
+			}
+
+			return UaaDirectorySnapshot.open(file);
+		}
+		finally {
+			close();
+		}
+	}
+
+	/**
+	 * Discard the snapshot, unless it has been committed
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		try {
+			out.close();
+		}
+		catch (IOException e) {
+			log.debug("Could not close " + temp, e);
+		}
+
+		if (temp.exists() && !temp.delete()) {
+			log.warn("Could not delete " + temp);
+		}
+	}
+
+	private void copy(UaaDirectorySnapshot snapshot, boolean user, Map<String, Entry> entries, int count)
+			throws IOException {
+		for (int i = 0; i < count; i++) {
+			byte[] bytes = snapshot.copyRecord(snapshot.offsetAt(user, i));
+
+			ByteBuffer keys = ByteBuffer.wrap(bytes);
+			keys.position(ID);
+			String id = readString(keys);
+			String name = readString(keys);
+
+			recordBytes.reset();
+			recordBytes.write(bytes, 4, bytes.length - 4);
+			entries.put(id, append(name));
+		}
+	}
+
+	private Entry append(String name) throws IOException {
+		Assert.state(!closed, "Writer already committed or closed");
+
+		int offset = out.size();
+		if (offset > Integer.MAX_VALUE - 4 - recordBytes.size()) {
+			throw new IOException("Snapshot " + file + " would exceed 2 GB");
+		}
+
+		out.writeInt(recordBytes.size());
+		recordBytes.writeTo(out);
+		return new Entry(offset, hash(nameKey(name)));
+	}
+
+	private int writeOrder(Map<String, Entry> entries) throws IOException {
+		int offset = out.size();
+		for (Entry entry : entries.values()) {
+			out.writeInt(entry.offset);
+		}
+		return offset;
+	}
+
+	private int writeTable(Map<String, Entry> entries, boolean byId) throws IOException {
+		int[] slots = new int[tableCapacity(entries.size())];
+		int mask = slots.length - 1;
+
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			int slot = (byId ? hash(entry.getKey()) : entry.getValue().nameHash) & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = entry.getValue().offset;
+		}
+
+		int offset = out.size();
+		out.writeInt(slots.length);
+		for (int slot : slots) {
+			out.writeInt(slot);
+		}
+		return offset;
+	}
+
+	private static class Entry {
+		private final int offset;
+
+		private final int nameHash;
+
+		Entry(int offset, int nameHash) {
+			this.offset = offset;
+			this.nameHash = nameHash;
+		}
+	}
+}
@@ -0,0 +1,535 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.directory;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.api.group.UaaGroupOperations;
+import org.cloudfoundry.identity.uaa.rest.SearchResults;
+import org.springframework.util.Assert;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Resolves the effective groups of a user or group: the groups it is a member of, the groups those are members of,
+ * and so on. The resolver walks up the membership graph breadth-first; the members of each level whose parents are
+ * not yet known are looked up together, in batches of <code>members.value eq</code> filters that run in parallel
+ * when an executor is set. Groups already visited are not expanded again, so membership cycles end the walk rather
+ * than loop.
+ * <p>
+ * Both the parents of each user or group and the effective groups of each group are memoized, so resolving a second
+ * user in the same groups costs one lookup. The memo is invalidated by group version: at most once per refresh
+ * interval, a resolution first asks the UAA for the groups modified since the last check, and forgets everything
+ * that depended on a group whose version changed, including the parents of its old and new members. A modified group
+ * the resolver has not seen before, such as a new one, is treated the same way, so the parents of its members are
+ * looked up again.
+ * <p>
+ * Deleted groups do not show up in that query, so each check also counts the UAA's groups. When the count is not
+ * what the modified groups account for, the resolver asks which of the groups it knows still exist and forgets
+ * everything that depended on those that do not.
+ * <p>
+ * Safe for concurrent use. A result computed while something it depends on was forgotten is returned but not
+ * memoized.
+ */
+public class UaaGroupResolver {
+	private static final Log log = LogFactory.getLog(UaaGroupResolver.class);
+
+	private static final String[] ATTRIBUTES = { "id", "displayName", "meta.version", "meta.lastModified",
+			"members.value" };
+
+	private static final int PAGE_SIZE = 500;
+
+	private static final int ID_BATCH_SIZE = 50;
+
+	private final UaaGroupOperations operations;
+
+	private final ConcurrentMap<String, Map<String, String>> parents = new ConcurrentHashMap<String, Map<String, String>>();
+
+	private final ConcurrentMap<String, Closure> closures = new ConcurrentHashMap<String, Closure>();
+
+	private final ConcurrentMap<String, Integer> versions = new ConcurrentHashMap<String, Integer>();
+
+	private final AtomicLong lookups = new AtomicLong();
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private final Object memoLock = new Object();
+
+	private ExecutorService executor;
+
+	private int batchSize = 20;
+
+	private long refreshInterval = TimeUnit.SECONDS.toNanos(30);
+
+	private volatile long lastRefresh = System.nanoTime();
+
+	private volatile Date lastModified;
+
+	private volatile int groupCount = -1;
+
+	/**
+	 * @param operations the operations to look groups up with
+	 */
+	public UaaGroupResolver(UaaGroupOperations operations) {
+		Assert.notNull(operations, "operations must not be null");
+		this.operations = operations;
+	}
+
+	/**
+	 * Run the batches of each level in parallel. By default they run one after another on the calling thread.
+	 * 
+	 * @param executor the executor to run batches on, or null to run them on the calling thread
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * The number of members to look the parents of up per request. By default 20.
+	 * 
+	 * @param batchSize the batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "batchSize must be positive");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * How often to check for modified groups. By default every 30 seconds.
+	 * 
+	 * @param interval the interval, or 0 to check before every resolution
+	 * @param unit the unit of the interval
+	 */
+	public void setRefreshInterval(long interval, TimeUnit unit) {
+		Assert.isTrue(interval >= 0, "interval must not be negative");
+		this.refreshInterval = unit.toNanos(interval);
+	}
+
+	/**
+	 * @param memberId the ID of a user or group
+	 * @return the IDs of every group it is a direct or indirect member of
+	 */
+	public Set<String> getGroupIds(String memberId) {
+		return Collections.unmodifiableSet(resolve(memberId).keySet());
+	}
+
+	/**
+	 * @param memberId the ID of a user or group
+	 * @return the names of every group it is a direct or indirect member of, which for a user are its scopes
+	 */
+	public Set<String> getGroupNames(String memberId) {
+		return Collections.unmodifiableSet(new HashSet<String>(resolve(memberId).values()));
+	}
+
+	/**
+	 * @param memberId the ID of a user or group
+	 * @param groupId the ID of a group
+	 * @return true if the user or group is a direct or indirect member of the group
+	 */
+	public boolean isMemberOf(String memberId, String groupId) {
+		return resolve(memberId).containsKey(groupId);
+	}
+
+	/**
+	 * Forget everything that depends on a group, such as after changing its members
+	 * 
+	 * @param groupId the ID of the group
+	 */
+	public void invalidate(String groupId) {
+		invalidate(Collections.singleton(groupId), Collections.<String> emptySet());
+	}
+
+	/**
+	 * Forget everything
+	 */
+	public void invalidateAll() {
+		synchronized (memoLock) {
+			generation.incrementAndGet();
+			parents.clear();
+			closures.clear();
+			versions.clear();
+		}
+	}
+
+	/**
+	 * Check for modified groups now, rather than when the refresh interval next elapses
+	 */
+	public void refresh() {
+		lastRefresh = System.nanoTime();
+
+		Date since = lastModified;
+		if (since == null) {
+			return;
+		}
+
+		int total = operations.getGroups(new FilterRequestBuilder().attributes("id").count(1).build(),
+				ScimRecord.class).getTotalResults();
+		int expected = groupCount;
+
+		List<ScimRecord> modified = new ArrayList<ScimRecord>();
+		Set<String> changed = new HashSet<String>();
+		Set<String> members = new HashSet<String>();
+		for (int start = 1;; start += PAGE_SIZE) {
+			SearchResults<ScimRecord> page = operations.getGroups(new FilterRequestBuilder()
+					.greaterThanOrEquals("meta.lastModified", since).attributes(ATTRIBUTES).start(start)
+					.count(PAGE_SIZE).build(), ScimRecord.class);
+
+			for (ScimRecord group : page.getResources()) {
+				String id = group.getString("id");
+				Integer known = versions.get(id);
+				if (known == null) {
+					expected++;
+				}
+				if (known == null || known.intValue() != version(group)) {
+					changed.add(id);
+					for (Object member : list(group.get("members.value"))) {
+						members.add(String.valueOf(member));
+					}
+				}
+				modified.add(group);
+			}
+
+			if (page.getResources().isEmpty() || start - 1 + page.getResources().size() >= page.getTotalResults()) {
+				break;
+			}
+		}
+
+		if (groupCount < 0 || total != expected) {
+			changed.addAll(deleted());
+		}
+		groupCount = total;
+
+		if (!changed.isEmpty()) {
+			if (log.isDebugEnabled()) {
+				log.debug("Groups " + changed + " changed; forgetting what depends on them");
+			}
+			invalidate(changed, members);
+		}
+
+		// only after invalidating, which forgets the versions of the changed groups
+		for (ScimRecord group : modified) {
+			observe(group);
+		}
+	}
+
+	/**
+	 * Check for modified groups if the refresh interval has elapsed since the last check. Resolutions do this first;
+	 * callers that keep results derived from this resolver should do it before comparing generations.
+	 */
+	public void refreshIfDue() {
+		if (System.nanoTime() - lastRefresh >= refreshInterval) {
+			refresh();
+		}
+	}
+
+	/**
+	 * @return a number that changes whenever anything memoized is forgotten, so results derived from this resolver
+	 *         can tell whether they may be stale
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @return the number of users and groups whose parents have been looked up from the UAA
+	 */
+	public long getLookupCount() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return the IDs of the groups the resolver knows that the UAA no longer has
+	 */
+	private Set<String> deleted() {
+		List<String> known = new ArrayList<String>(versions.keySet());
+		Set<String> deleted = new HashSet<String>(known);
+		for (int i = 0; i < known.size(); i += ID_BATCH_SIZE) {
+			FilterRequestBuilder builder = new FilterRequestBuilder(false);
+			for (String id : known.subList(i, Math.min(known.size(), i + ID_BATCH_SIZE))) {
+				builder.equals("id", id);
+			}
+
+			for (ScimRecord group : operations.getGroups(builder.attributes("id").count(ID_BATCH_SIZE).build(),
+					ScimRecord.class).getResources()) {
+				deleted.remove(group.getString("id"));
+			}
+		}
+		return deleted;
+	}
+
+	private Map<String, String> resolve(String memberId) {
+		Assert.hasText(memberId, "memberId must not be empty");
+
+		refreshIfDue();
+		long generationBefore = generation.get();
+
+		Closure cached = closures.get(memberId);
+		if (cached != null) {
+			return cached.groups;
+		}
+
+		Map<String, String> groups = new LinkedHashMap<String, String>();
+		Set<String> visited = new HashSet<String>();
+		visited.add(memberId);
+
+		List<String> level = Collections.singletonList(memberId);
+		while (!level.isEmpty()) {
+			Map<String, Map<String, String>> fetched = fetchParents(level);
+
+			List<String> next = new ArrayList<String>();
+			for (String member : level) {
+				Map<String, String> memberParents = fetched.containsKey(member) ? fetched.get(member) : parents
+						.get(member);
+				if (memberParents == null) {
+					continue;
+				}
+
+				for (Map.Entry<String, String> parent : memberParents.entrySet()) {
+					if (!visited.add(parent.getKey())) {
+						continue;
+					}
+
+					groups.put(parent.getKey(), parent.getValue());
+
+					Closure memo = closures.get(parent.getKey());
+					if (memo == null) {
+						next.add(parent.getKey());
+						continue;
+					}
+
+					for (Map.Entry<String, String> ancestor : memo.groups.entrySet()) {
+						if (visited.add(ancestor.getKey())) {
+							groups.put(ancestor.getKey(), ancestor.getValue());
+						}
+					}
+					visited.addAll(memo.dependencies);
+				}
+			}
+			level = next;
+		}
+
+		groups.remove(memberId);
+		synchronized (memoLock) {
+			// don't memoize a closure that may have been computed from parents forgotten in the meantime
+			if (generation.get() == generationBefore) {
+				closures.put(memberId, new Closure(groups, visited));
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Look up the parents of every member whose parents are not known
+	 * 
+	 * @return the parents looked up, by member
+	 */
+	private Map<String, Map<String, String>> fetchParents(Collection<String> members) {
+		List<String> unknown = new ArrayList<String>();
+		for (String member : members) {
+			if (!parents.containsKey(member)) {
+				unknown.add(member);
+			}
+		}
+
+		final Map<String, Map<String, String>> fetched = new ConcurrentHashMap<String, Map<String, String>>();
+		List<Callable<Void>> batches = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < unknown.size(); i += batchSize) {
+			final List<String> batch = unknown.subList(i, Math.min(unknown.size(), i + batchSize));
+			batches.add(new Callable<Void>() {
+				public Void call() {
+					fetched.putAll(fetchBatch(batch));
+					return null;
+				}
+			});
+		}
+
+		if (executor == null || batches.size() == 1) {
+			for (Callable<Void> batch : batches) {
+				try {
+					batch.call();
+				}
+				catch (RuntimeException e) {
+					throw e;
+				}
+				catch (Exception e) {
+					throw new RestClientException(e.getMessage(), e);
+				}
+			}
+			return fetched;
+		}
+
+		try {
+			for (Future<Void> future : executor.invokeAll(batches)) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RestClientException("Interrupted resolving groups", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RestClientException(e.getCause().getMessage(), e.getCause());
+		}
+		return fetched;
+	}
+
+	private Map<String, Map<String, String>> fetchBatch(List<String> batch) {
+		long generationBefore = generation.get();
+		Map<String, Map<String, String>> found = new HashMap<String, Map<String, String>>();
+		for (String member : batch) {
+			found.put(member, new LinkedHashMap<String, String>());
+		}
+
+		for (int start = 1;; start += PAGE_SIZE) {
+			FilterRequestBuilder builder = new FilterRequestBuilder(false);
+			for (String member : batch) {
+				builder.equals("members.value", member);
+			}
+
+			SearchResults<ScimRecord> page = operations.getGroups(builder.attributes(ATTRIBUTES).start(start)
+					.count(PAGE_SIZE).build(), ScimRecord.class);
+
+			for (ScimRecord group : page.getResources()) {
+				observe(group);
+				for (Object member : list(group.get("members.value"))) {
+					Map<String, String> memberParents = found.get(String.valueOf(member));
+					if (memberParents != null) {
+						memberParents.put(group.getString("id"), group.getString("displayName"));
+					}
+				}
+			}
+
+			if (page.getResources().isEmpty() || start - 1 + page.getResources().size() >= page.getTotalResults()) {
+				break;
+			}
+		}
+
+		lookups.addAndGet(batch.size());
+		synchronized (memoLock) {
+			if (generation.get() == generationBefore) {
+				parents.putAll(found);
+			}
+		}
+		return found;
+	}
+
+	private void observe(ScimRecord group) {
+		versions.put(group.getString("id"), version(group));
+
+		Object modified = group.get("meta.lastModified");
+		if (modified != null) {
+			Date date = parseDate(String.valueOf(modified));
+			synchronized (this) {
+				if (date != null && (lastModified == null || date.after(lastModified))) {
+					lastModified = date;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget the closures that visited a changed group, and the parents of its members and of anything listing it as a
+	 * parent
+	 */
+	private void invalidate(Set<String> groupIds, Set<String> members) {
+		synchronized (memoLock) {
+			generation.incrementAndGet();
+			forget(groupIds, members);
+		}
+	}
+
+	private void forget(Set<String> groupIds, Set<String> members) {
+		for (String member : members) {
+			parents.remove(member);
+		}
+
+		for (Iterator<Map.Entry<String, Map<String, String>>> entries = parents.entrySet().iterator(); entries
+				.hasNext();) {
+			Map.Entry<String, Map<String, String>> entry = entries.next();
+			if (!Collections.disjoint(entry.getValue().keySet(), groupIds)) {
+				entries.remove();
+			}
+		}
+
+		for (Iterator<Closure> memos = closures.values().iterator(); memos.hasNext();) {
+			Closure memo = memos.next();
+			if (!Collections.disjoint(memo.dependencies, groupIds) || !Collections.disjoint(memo.dependencies, members)) {
+				memos.remove();
+			}
+		}
+
+		versions.keySet().removeAll(groupIds);
+	}
+
+	private static int version(ScimRecord group) {
+		Object version = group.get("meta.version");
+		return version instanceof Number ? ((Number) version).intValue() : 0;
+	}
+
+	private static List<?> list(Object value) {
+		if (value instanceof List) {
+			return (List<?>) value;
+		}
+		return value == null ? Collections.emptyList() : Collections.singletonList(value);
+	}
+
+	private static Date parseDate(String value) {
+		try {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX").parse(value);
+		}
+		catch (ParseException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The effective groups of a user or group, and every user and group visited to find them
+	 */
+	private static class Closure {
+		private final Map<String, String> groups;
+
+		private final Set<String> dependencies;
+
+		Closure(Map<String, String> groups, Set<String> dependencies) {
+			this.groups = groups;
+			this.dependencies = dependencies;
+		}
+	}
+}
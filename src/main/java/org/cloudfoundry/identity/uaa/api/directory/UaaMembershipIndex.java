@@ -0,0 +1,281 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.directory;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Direct group memberships of users and groups, held as primitive adjacency lists outside the heap. Every ID is given
+ * a dense ordinal, and each ordinal has a sorted row of the groups it is a member of and, for groups, a sorted row of
+ * its members. For millions of memberships this takes a few bytes each, where {@link
+ * org.cloudfoundry.identity.uaa.scim.ScimGroupMember} graphs take a few hundred, and the queries below allocate
+ * nothing.
+ * <p>
+ * Groups that are members of other groups are indexed like users; nothing is expanded. Build an index with
+ * {@link UaaMembershipIndexBuilder}. Immutable and safe for concurrent use.
+ */
+public class UaaMembershipIndex {
+	private final IdOrdinals ids;
+
+	private final Adjacency groupsOf;
+
+	private final Adjacency membersOf;
+
+	UaaMembershipIndex(IdOrdinals ids, int[] members, int[] groups, int count) {
+		this.ids = ids;
+		this.groupsOf = new Adjacency(ids.size(), members, groups, count);
+		this.membersOf = new Adjacency(ids.size(), groups, members, count);
+	}
+
+	/**
+	 * @param id a user or group ID
+	 * @return its ordinal, or -1 if the ID is in no membership
+	 */
+	public int ordinal(String id) {
+		return id == null ? -1 : ids.ordinal(id);
+	}
+
+	/**
+	 * @param ordinal an ordinal from this index
+	 * @return the ID with the ordinal
+	 */
+	public String id(int ordinal) {
+		return ids.id(ordinal);
+	}
+
+	/**
+	 * @return the number of user and group IDs indexed
+	 */
+	public int getIdCount() {
+		return ids.size();
+	}
+
+	/**
+	 * @return the number of memberships indexed
+	 */
+	public int getMembershipCount() {
+		return groupsOf.size();
+	}
+
+	/**
+	 * @param memberId a user or group ID
+	 * @param groupId a group ID
+	 * @return true if the user or group is a direct member of the group
+	 */
+	public boolean isMember(String memberId, String groupId) {
+		return isMember(ordinal(memberId), ordinal(groupId));
+	}
+
+	/**
+	 * @param member the ordinal of a user or group
+	 * @param group the ordinal of a group
+	 * @return true if the user or group is a direct member of the group
+	 */
+	public boolean isMember(int member, int group) {
+		return member >= 0 && group >= 0 && groupsOf.contains(member, group);
+	}
+
+	/**
+	 * @param memberId a user or group ID
+	 * @return the number of groups it is a direct member of
+	 */
+	public int getGroupCount(String memberId) {
+		int member = ordinal(memberId);
+		return member < 0 ? 0 : groupsOf.count(member);
+	}
+
+	/**
+	 * @param memberId a user or group ID
+	 * @param into receives the ordinals of the groups it is a direct member of, in ascending order, up to its length
+	 * @return the number of groups it is a direct member of, which may be more than were copied
+	 */
+	public int groupsOf(String memberId, int[] into) {
+		int member = ordinal(memberId);
+		return member < 0 ? 0 : groupsOf.copy(member, into);
+	}
+
+	/**
+	 * @param member the ordinal of a user or group
+	 * @param into receives the ordinals of the groups it is a direct member of, in ascending order, up to its length
+	 * @return the number of groups it is a direct member of, which may be more than were copied
+	 */
+	public int groupsOf(int member, int[] into) {
+		return groupsOf.copy(member, into);
+	}
+
+	/**
+	 * @param memberId a user or group ID
+	 * @return the IDs of the groups it is a direct member of
+	 */
+	public List<String> getGroupIds(String memberId) {
+		return idsOf(groupsOf, ordinal(memberId));
+	}
+
+	/**
+	 * @param groupId a group ID
+	 * @return the number of its direct members
+	 */
+	public int getMemberCount(String groupId) {
+		int group = ordinal(groupId);
+		return group < 0 ? 0 : membersOf.count(group);
+	}
+
+	/**
+	 * @param groupId a group ID
+	 * @param into receives the ordinals of its direct members, in ascending order, up to its length
+	 * @return the number of its direct members, which may be more than were copied
+	 */
+	public int membersOf(String groupId, int[] into) {
+		int group = ordinal(groupId);
+		return group < 0 ? 0 : membersOf.copy(group, into);
+	}
+
+	/**
+	 * @param group the ordinal of a group
+	 * @param into receives the ordinals of its direct members, in ascending order, up to its length
+	 * @return the number of its direct members, which may be more than were copied
+	 */
+	public int membersOf(int group, int[] into) {
+		return membersOf.copy(group, into);
+	}
+
+	/**
+	 * @param groupId a group ID
+	 * @return the IDs of its direct members
+	 */
+	public List<String> getMemberIds(String groupId) {
+		return idsOf(membersOf, ordinal(groupId));
+	}
+
+	/**
+	 * @return the bytes this index holds outside the heap
+	 */
+	public long getOffHeapBytes() {
+		return ids.offHeapBytes() + groupsOf.offHeapBytes() + membersOf.offHeapBytes();
+	}
+
+	private List<String> idsOf(Adjacency adjacency, int row) {
+		if (row < 0) {
+			return new ArrayList<String>();
+		}
+
+		int[] ordinals = new int[adjacency.count(row)];
+		adjacency.copy(row, ordinals);
+
+		List<String> result = new ArrayList<String>(ordinals.length);
+		for (int ordinal : ordinals) {
+			result.add(ids.id(ordinal));
+		}
+		return result;
+	}
+
+	/**
+	 * Sorted rows of ordinals, in compressed sparse row form: row <code>r</code> is
+	 * <code>targets[starts[r]..starts[r + 1])</code>
+	 */
+	private static class Adjacency {
+		private final IntBuffer starts;
+
+		private final IntBuffer targets;
+
+		private final int rows;
+
+		Adjacency(int rows, int[] from, int[] to, int count) {
+			int[] rowStarts = new int[rows + 1];
+			for (int i = 0; i < count; i++) {
+				rowStarts[from[i] + 1]++;
+			}
+			for (int row = 0; row < rows; row++) {
+				rowStarts[row + 1] += rowStarts[row];
+			}
+
+			int[] filled = Arrays.copyOf(rowStarts, rows);
+			int[] rowTargets = new int[count];
+			for (int i = 0; i < count; i++) {
+				rowTargets[filled[from[i]]++] = to[i];
+			}
+
+			this.rows = rows;
+			this.starts = ByteBuffer.allocateDirect((rows + 1) * 4).asIntBuffer();
+			this.targets = ByteBuffer.allocateDirect(Math.max(1, count) * 4).asIntBuffer();
+
+			int size = 0;
+			for (int row = 0; row < rows; row++) {
+				starts.put(row, size);
+				Arrays.sort(rowTargets, rowStarts[row], rowStarts[row + 1]);
+				for (int i = rowStarts[row]; i < rowStarts[row + 1]; i++) {
+					if (i == rowStarts[row] || rowTargets[i] != rowTargets[i - 1]) {
+						targets.put(size++, rowTargets[i]);
+					}
+				}
+			}
+			starts.put(rows, size);
+		}
+
+		int size() {
+			return starts.get(rows);
+		}
+
+		int count(int row) {
+			checkRow(row);
+			return starts.get(row + 1) - starts.get(row);
+		}
+
+		int copy(int row, int[] into) {
+			int count = count(row);
+			int start = starts.get(row);
+			for (int i = 0; i < count && i < into.length; i++) {
+				into[i] = targets.get(start + i);
+			}
+			return count;
+		}
+
+		boolean contains(int row, int target) {
+			if (row >= rows) {
+				return false;
+			}
+
+			int low = starts.get(row);
+			int high = starts.get(row + 1) - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int value = targets.get(middle);
+				if (value < target) {
+					low = middle + 1;
+				}
+				else if (value > target) {
+					high = middle - 1;
+				}
+				else {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		long offHeapBytes() {
+			return starts.capacity() * 4L + targets.capacity() * 4L;
+		}
+
+		private void checkRow(int row) {
+			if (row < 0 || row >= rows) {
+				throw new IndexOutOfBoundsException("No ID with ordinal " + row);
+			}
+		}
+	}
+}
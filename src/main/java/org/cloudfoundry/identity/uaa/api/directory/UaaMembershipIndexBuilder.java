@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.directory;
+
+import java.util.Arrays;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.api.group.UaaGroupOperations;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.springframework.util.Assert;
+
+/**
+ * Builds a {@link UaaMembershipIndex} from groups and their members, as returned by
+ * {@link UaaGroupOperations#getGroups} or held in a {@link UaaDirectorySnapshot}. Memberships are kept in primitive
+ * arrays until {@link #build()}, so groups can be added a page at a time without holding the pages. Adding a group
+ * that was already added replaces its members.
+ * <p>
+ * Not thread-safe.
+ */
+public class UaaMembershipIndexBuilder {
+	private final IdOrdinals ids = new IdOrdinals();
+
+	private int[] members = new int[1024];
+
+	private int[] groups = new int[1024];
+
+	private int[] batches = new int[1024];
+
+	private int count;
+
+	/**
+	 * The batch of each group's current members, by group ordinal; edges from earlier batches were replaced
+	 */
+	private int[] groupBatches = new int[1024];
+
+	private int batch;
+
+	private boolean built;
+
+	/**
+	 * @param group a group and its members
+	 */
+	public void addGroup(ScimGroup group) {
+		Assert.notNull(group, "group must not be null");
+		Assert.hasText(group.getId(), "group must have an ID");
+		Assert.state(!built, "Index already built");
+
+		int groupOrdinal = ids.add(group.getId());
+		ensureGroupBatches(groupOrdinal);
+		groupBatches[groupOrdinal] = ++batch;
+
+		if (group.getMembers() == null) {
+			return;
+		}
+
+		for (ScimGroupMember member : group.getMembers()) {
+			if (member.getMemberId() != null) {
+				addEdge(ids.add(member.getMemberId()), groupOrdinal);
+			}
+		}
+	}
+
+	/**
+	 * @param groups groups and their members, such as a page of {@link UaaGroupOperations#getGroups} results
+	 */
+	public void addAll(Iterable<? extends ScimGroup> groups) {
+		Assert.notNull(groups, "groups must not be null");
+
+		for (ScimGroup group : groups) {
+			addGroup(group);
+		}
+	}
+
+	/**
+	 * @param snapshot a snapshot whose groups to add
+	 */
+	public void addAll(UaaDirectorySnapshot snapshot) {
+		Assert.notNull(snapshot, "snapshot must not be null");
+		snapshot.groups(groupHandler());
+	}
+
+	/**
+	 * Stream every group of a UAA, a page at a time
+	 * 
+	 * @param operations the operations to search groups with
+	 * @param pageSize the number of groups per request
+	 */
+	public void addAll(UaaGroupOperations operations, int pageSize) {
+		Assert.notNull(operations, "operations must not be null");
+		Assert.isTrue(pageSize > 0, "pageSize must be positive");
+
+		for (int start = 1;; start += pageSize) {
+			StreamedSearchResults<ScimGroup> page = operations.streamGroups(new FilterRequestBuilder().start(start)
+					.count(pageSize).build(), groupHandler());
+			if (page.getDeliveredCount() == 0 || start - 1 + page.getDeliveredCount() >= page.getTotalResults()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param id the ID of a group whose memberships to drop
+	 */
+	public void removeGroup(String id) {
+		Assert.state(!built, "Index already built");
+
+		int groupOrdinal = ids.ordinal(id);
+		if (groupOrdinal >= 0 && groupOrdinal < groupBatches.length) {
+			groupBatches[groupOrdinal] = 0;
+		}
+	}
+
+	/**
+	 * @return a handler that adds each group it receives
+	 */
+	public UaaResultHandler<ScimGroup> groupHandler() {
+		return new UaaResultHandler<ScimGroup>() {
+			public boolean handle(ScimGroup group) {
+				addGroup(group);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return the index. The builder cannot be used afterwards.
+	 */
+	public UaaMembershipIndex build() {
+		Assert.state(!built, "Index already built");
+		built = true;
+
+		int live = 0;
+		for (int i = 0; i < count; i++) {
+			if (batches[i] == groupBatches[groups[i]]) {
+				members[live] = members[i];
+				groups[live] = groups[i];
+				live++;
+			}
+		}
+
+		UaaMembershipIndex index = new UaaMembershipIndex(ids, members, groups, live);
+		members = groups = batches = groupBatches = null;
+		return index;
+	}
+
+	private void addEdge(int member, int group) {
+		if (count == members.length) {
+			members = Arrays.copyOf(members, count * 2);
+			groups = Arrays.copyOf(groups, count * 2);
+			batches = Arrays.copyOf(batches, count * 2);
+		}
+
+		members[count] = member;
+		groups[count] = group;
+		batches[count] = batch;
+		count++;
+	}
+
+	private void ensureGroupBatches(int groupOrdinal) {
+		if (groupOrdinal >= groupBatches.length) {
+			groupBatches = Arrays.copyOf(groupBatches, Math.max(groupOrdinal + 1, groupBatches.length * 2));
+		}
+	}
+}
@@ -13,6 +13,9 @@
  */
 package org.cloudfoundry.identity.uaa.api.group;
 
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
 import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
@@ -82,6 +85,32 @@ public interface UaaGroupOperations {
 	 */
 	public SearchResults<ScimGroup> getGroups(FilterRequest request);
 
+	/**
+	 * Get a page of groups restricted to the attributes the {@link FilterRequest} asks for, decoding each one straight
+	 * into the projection type instead of a full {@link ScimGroup}. Pass {@link ScimRecord} to get flat records holding
+	 * just the requested attributes, or any class with fields or setters named after them; undeclared attributes are
+	 * ignored. Memory use then scales with the attributes requested rather than the size of a full ScimGroup.
+	 * 
+	 * @param request the {@link FilterRequest}, which must set attributes
+	 * @param projection the type to decode each of the groups as
+	 * @return The page of projected groups.
+	 * @see org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder#attributes(String...)
+	 */
+	public <T> SearchResults<T> getGroups(FilterRequest request, Class<T> projection);
+
+	/**
+	 * Stream a page of groups based on the given {@link FilterRequest}: each group is given to the handler as soon as
+	 * it has been read, and the page is never held in memory as a whole. Use this instead of {@link
+	 * #getGroups(FilterRequest)} for large pages, or to act on the first results while the rest are still arriving.
+	 * 
+	 * @param request the {@link FilterRequest}
+	 * @param handler receives each group, and can stop the page early
+	 * @return the paging information of the page; its resources are always empty
+	 * @see org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder
+	 */
+	public StreamedSearchResults<ScimGroup> streamGroups(FilterRequest request,
+			UaaResultHandler<? super ScimGroup> handler);
+
 	/**
 	 * Create a mapping from an external LDAP group to an internal UAA group. Only effective when UAA is configured with
 	 * ldap/ldap-groups-map-to-scopes.xml (see <a
@@ -21,7 +21,10 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
 import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaOperation;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
 import org.cloudfoundry.identity.uaa.api.common.model.WrappedSearchResults;
 import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
 import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
@@ -69,19 +72,66 @@ public class UaaGroupOperationsImpl implements UaaGroupOperations {
 
 		group.setSchemas(SCHEMAS);
 
-		return helper.post("/Groups", group, GROUP_REF);
+		UaaOperation operation = helper.beginOperation("groups.create");
+		try {
+			return helper.post("/Groups", group, GROUP_REF);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public void deleteGroup(String groupId) {
 		Assert.hasText(groupId);
 
-		helper.delete("/Groups/{id}", OBJ_REF, groupId);
+		UaaOperation operation = helper.beginOperation("groups.delete");
+		try {
+			helper.delete("/Groups/{id}", OBJ_REF, groupId);
+		}
+		finally {
+			operation.end();
+		}
+	}
+
+	public StreamedSearchResults<ScimGroup> streamGroups(FilterRequest request,
+			UaaResultHandler<? super ScimGroup> handler) {
+		Assert.notNull(request);
+		Assert.notNull(handler);
+
+		UaaOperation operation = helper.beginOperation("groups.stream");
+		try {
+			return helper.stream(helper.buildScimFilterUrl("/Groups", request), ScimGroup.class, handler);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public SearchResults<ScimGroup> getGroups(FilterRequest request) {
 		Assert.notNull(request);
 
-		return helper.get(helper.buildScimFilterUrl("/Groups", request), GROUPS_REF);
+		UaaOperation operation = helper.beginOperation("groups.search");
+		try {
+			return helper.get(helper.buildScimFilterUrl("/Groups", request), GROUPS_REF);
+		}
+		finally {
+			operation.end();
+		}
+	}
+
+	public <T> SearchResults<T> getGroups(FilterRequest request, Class<T> projection) {
+		Assert.notNull(request);
+		Assert.notEmpty(request.getAttributes(), "projections need the attributes to request");
+		Assert.notNull(projection);
+
+		UaaOperation operation = helper.beginOperation("groups.project");
+		try {
+			return helper.getProjected(helper.buildScimFilterUrl("/Groups", request), request.getAttributes(),
+					projection);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public ScimGroupExternalMember createGroupMapping(ScimGroupExternalMemberType type, String identifier,
@@ -96,7 +146,13 @@ public class UaaGroupOperationsImpl implements UaaGroupOperations {
 		request.put(type.toString(), identifier);
 		request.put("externalGroup", externalGroupDn);
 
-		return helper.post("/Groups/External", request, EXT_GROUP_REF);
+		UaaOperation operation = helper.beginOperation("groups.createMapping");
+		try {
+			return helper.post("/Groups/External", request, EXT_GROUP_REF);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public void deleteGroupMapping(ScimGroupExternalMember mapping) {
@@ -115,60 +171,91 @@ public class UaaGroupOperationsImpl implements UaaGroupOperations {
 			type = "displayName";
 		}
 
-		helper.delete("/Groups/External/{type}/{id}/externalGroup/{externalGroup}", OBJ_REF, type, id, external);
+		UaaOperation operation = helper.beginOperation("groups.deleteMapping");
+		try {
+			helper.delete("/Groups/External/{type}/{id}/externalGroup/{externalGroup}", OBJ_REF, type, id, external);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public SearchResults<ScimGroupExternalMember> getGroupMappings(FilterRequest request) {
 		Assert.notNull(request);
-		return helper.get(helper.buildScimFilterUrl("/Groups/External", request), EXT_GROUPS_REF);
+
+		UaaOperation operation = helper.beginOperation("groups.searchMappings");
+		try {
+			return helper.get(helper.buildScimFilterUrl("/Groups/External", request), EXT_GROUPS_REF);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public ScimGroup updateGroupName(String groupId, String newName) {
-		ScimGroup group = getGroupById(groupId);
-		group.setDisplayName(newName);
+		UaaOperation operation = helper.beginOperation("groups.updateName");
+		try {
+			ScimGroup group = getGroupById(groupId);
+			group.setDisplayName(newName);
 
-		return updateGroup(group);
+			return updateGroup(group);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public ScimGroup addMember(String groupId, String memberUserName) {
 		Assert.hasText(memberUserName);
 
-		ScimGroup group = getGroupById(groupId);
+		UaaOperation operation = helper.beginOperation("groups.addMember");
+		try {
+			ScimGroup group = getGroupById(groupId);
 
-		String memberId = helper.getUserIdByName(memberUserName);
+			String memberId = helper.getUserIdByName(memberUserName);
 
-		List<ScimGroupMember> members = group.getMembers();
-		if (members == null) {
-			members = new ArrayList<ScimGroupMember>(1);
-		}
+			List<ScimGroupMember> members = group.getMembers();
+			if (members == null) {
+				members = new ArrayList<ScimGroupMember>(1);
+			}
 
-		ScimGroupMember member = new ScimGroupMember(memberId);
-		members.add(member);
-		group.setMembers(members);
+			ScimGroupMember member = new ScimGroupMember(memberId);
+			members.add(member);
+			group.setMembers(members);
 
-		return updateGroup(group);
+			return updateGroup(group);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public ScimGroup deleteMember(String groupId, String memberUserName) {
 		Assert.hasText(memberUserName);
 
-		ScimGroup group = getGroupById(groupId);
+		UaaOperation operation = helper.beginOperation("groups.deleteMember");
+		try {
+			ScimGroup group = getGroupById(groupId);
 
-		String memberId = helper.getUserIdByName(memberUserName);
+			String memberId = helper.getUserIdByName(memberUserName);
 
-		List<ScimGroupMember> members = group.getMembers();
-		if (members != null && !members.isEmpty()) {
-			for (Iterator<ScimGroupMember> iter = members.iterator(); iter.hasNext();) {
-				ScimGroupMember member = iter.next();
+			List<ScimGroupMember> members = group.getMembers();
+			if (members != null && !members.isEmpty()) {
+				for (Iterator<ScimGroupMember> iter = members.iterator(); iter.hasNext();) {
+					ScimGroupMember member = iter.next();
 
-				if (memberId.equals(member.getMemberId())) {
-					iter.remove();
-					break;
+					if (memberId.equals(member.getMemberId())) {
+						iter.remove();
+						break;
+					}
 				}
 			}
-		}
 
-		return updateGroup(group);
+			return updateGroup(group);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	private ScimGroup getGroupById(String groupId) {
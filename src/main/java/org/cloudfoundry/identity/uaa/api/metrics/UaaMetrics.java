@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.metrics;
+
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
+
+/**
+ * Receives measurements of UAA calls. Operation names identify the logical API operation the caller invoked, such as
+ * <code>users.getByName</code> or <code>groups.addMember</code>; requests made outside any operation are named after
+ * their endpoint category and HTTP method, such as <code>users.GET</code>. Implementations are called on request
+ * threads and must be thread safe and fast.
+ * 
+ * @see org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper#setMetrics(UaaMetrics)
+ * @see org.cloudfoundry.identity.uaa.api.metrics.impl.InMemoryUaaMetrics
+ */
+public interface UaaMetrics {
+	/**
+	 * Status reported for requests that failed without an HTTP response
+	 */
+	public static final int NO_RESPONSE = -1;
+
+	/**
+	 * Record a completed operation, end to end
+	 * 
+	 * @param operation the operation name
+	 * @param latencyNanos how long the operation took, including every request it made
+	 */
+	public void recordOperation(String operation, long latencyNanos);
+
+	/**
+	 * Record a single HTTP request
+	 * 
+	 * @param operation the operation the request was part of
+	 * @param category the category of the endpoint called
+	 * @param status the HTTP status, or {@link #NO_RESPONSE}
+	 * @param latencyNanos the round trip time
+	 * @param bytesSent the size of the request body
+	 * @param bytesReceived the number of response body bytes read
+	 */
+	public void recordRequest(String operation, UaaEndpointCategory category, int status, long latencyNanos,
+			long bytesSent, long bytesReceived);
+
+	/**
+	 * Record an additional attempt of a request, such as a hedged GET
+	 * 
+	 * @param operation the operation the request was part of
+	 */
+	public void recordRetry(String operation);
+
+	/**
+	 * Record a call to the token endpoint
+	 * 
+	 * @param refresh true if an existing token was refreshed, false if a new one was obtained
+	 * @param latencyNanos how long the call took
+	 * @param success false if no token was returned
+	 */
+	public void recordTokenRequest(boolean refresh, long latencyNanos, boolean success);
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.metrics.impl;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
+import org.cloudfoundry.identity.uaa.api.metrics.UaaMetrics;
+
+/**
+ * A {@link UaaMetrics} implementation that keeps everything in memory. Read the statistics directly with
+ * {@link #getOperations()} and {@link #getTokenRequests()}, or render them in the Prometheus text format with
+ * {@link #scrape()}.
+ */
+public class InMemoryUaaMetrics implements UaaMetrics {
+	/**
+	 * Statistics for one operation
+	 */
+	public static class OperationStats {
+		private final LatencyHistogram operationLatency = new LatencyHistogram();
+
+		private final LatencyHistogram requestLatency = new LatencyHistogram();
+
+		// index 0 counts requests without a response, 1-5 count 1xx-5xx
+		private final AtomicLongArray statusClasses = new AtomicLongArray(6);
+
+		private final AtomicLong bytesSent = new AtomicLong();
+
+		private final AtomicLong bytesReceived = new AtomicLong();
+
+		private final AtomicLong retries = new AtomicLong();
+
+		/**
+		 * @return end to end latencies of the operation
+		 */
+		public LatencyHistogram getOperationLatency() {
+			return operationLatency;
+		}
+
+		/**
+		 * @return latencies of the individual HTTP requests made by the operation
+		 */
+		public LatencyHistogram getRequestLatency() {
+			return requestLatency;
+		}
+
+		/**
+		 * @param statusClass 1 through 5 for 1xx through 5xx responses, or 0 for requests without a response
+		 * @return the number of requests with a status in the class
+		 */
+		public long getStatusCount(int statusClass) {
+			return statusClasses.get(statusClass);
+		}
+
+		public long getBytesSent() {
+			return bytesSent.get();
+		}
+
+		public long getBytesReceived() {
+			return bytesReceived.get();
+		}
+
+		public long getRetries() {
+			return retries.get();
+		}
+	}
+
+	private final ConcurrentMap<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+
+	private final LatencyHistogram tokenRequests = new LatencyHistogram();
+
+	private final LatencyHistogram tokenRefreshes = new LatencyHistogram();
+
+	private final AtomicLong tokenFailures = new AtomicLong();
+
+	public void recordOperation(String operation, long latencyNanos) {
+		statsFor(operation).operationLatency.record(latencyNanos);
+	}
+
+	public void recordRequest(String operation, UaaEndpointCategory category, int status, long latencyNanos,
+			long bytesSent, long bytesReceived) {
+		OperationStats stats = statsFor(operation);
+		stats.requestLatency.record(latencyNanos);
+		stats.statusClasses.incrementAndGet(status == NO_RESPONSE ? 0 : Math.min(5, Math.max(1, status / 100)));
+		stats.bytesSent.addAndGet(bytesSent);
+		stats.bytesReceived.addAndGet(bytesReceived);
+	}
+
+	public void recordRetry(String operation) {
+		statsFor(operation).retries.incrementAndGet();
+	}
+
+	public void recordTokenRequest(boolean refresh, long latencyNanos, boolean success) {
+		(refresh ? tokenRefreshes : tokenRequests).record(latencyNanos);
+		if (!success) {
+			tokenFailures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return statistics keyed by operation name
+	 */
+	public Map<String, OperationStats> getOperations() {
+		return Collections.<String, OperationStats> unmodifiableMap(operations);
+	}
+
+	/**
+	 * @return latencies of calls obtaining a new token
+	 */
+	public LatencyHistogram getTokenRequests() {
+		return tokenRequests;
+	}
+
+	/**
+	 * @return latencies of calls refreshing a token
+	 */
+	public LatencyHistogram getTokenRefreshes() {
+		return tokenRefreshes;
+	}
+
+	/**
+	 * @return the number of token endpoint calls that failed
+	 */
+	public long getTokenFailures() {
+		return tokenFailures.get();
+	}
+
+	/**
+	 * @return all statistics in the Prometheus text exposition format, with latencies in seconds
+	 */
+	public String scrape() {
+		StringBuilder out = new StringBuilder();
+
+		for (Map.Entry<String, OperationStats> entry : new TreeMap<String, OperationStats>(operations).entrySet()) {
+			String labels = "operation=\"" + entry.getKey() + "\"";
+			OperationStats stats = entry.getValue();
+
+			writeSummary(out, "uaa_client_operation_seconds", labels, stats.operationLatency);
+			writeSummary(out, "uaa_client_request_seconds", labels, stats.requestLatency);
+
+			for (int statusClass = 0; statusClass < 6; statusClass++) {
+				long statusCount = stats.statusClasses.get(statusClass);
+				if (statusCount > 0) {
+					out.append("uaa_client_requests_total{").append(labels).append(",status=\"")
+							.append(statusClass == 0 ? "none" : statusClass + "xx").append("\"} ").append(statusCount)
+							.append('\n');
+				}
+			}
+
+			writeValue(out, "uaa_client_request_bytes_sent_total", labels, stats.bytesSent.get());
+			writeValue(out, "uaa_client_request_bytes_received_total", labels, stats.bytesReceived.get());
+			writeValue(out, "uaa_client_request_retries_total", labels, stats.retries.get());
+		}
+
+		writeSummary(out, "uaa_client_token_seconds", "grant=\"obtain\"", tokenRequests);
+		writeSummary(out, "uaa_client_token_seconds", "grant=\"refresh\"", tokenRefreshes);
+		writeValue(out, "uaa_client_token_failures_total", null, tokenFailures.get());
+
+		return out.toString();
+	}
+
+	private OperationStats statsFor(String operation) {
+		OperationStats stats = operations.get(operation);
+		if (stats == null) {
+			OperationStats created = new OperationStats();
+			stats = operations.putIfAbsent(operation, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+
+		return stats;
+	}
+
+	private static void writeSummary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+		if (histogram.getCount() == 0) {
+			return;
+		}
+
+		for (double quantile : new double[] { 0.5, 0.9, 0.99 }) {
+			out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+					.append(toSeconds(histogram.getPercentile(quantile))).append('\n');
+		}
+
+		out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+		out.append(name).append("_sum{").append(labels).append("} ").append(toSeconds(histogram.getSum()))
+				.append('\n');
+	}
+
+	private static void writeValue(StringBuilder out, String name, String labels, long value) {
+		out.append(name);
+		if (labels != null) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	private static double toSeconds(long nanos) {
+		return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+}
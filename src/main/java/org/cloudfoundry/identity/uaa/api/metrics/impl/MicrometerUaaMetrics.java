@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.metrics.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
+import org.cloudfoundry.identity.uaa.api.metrics.UaaMetrics;
+import org.springframework.util.Assert;
+
+/**
+ * Reports to a Micrometer {@link MeterRegistry}. Micrometer is an optional dependency of this library; add
+ * <code>io.micrometer:micrometer-core</code> to your application to use this class.
+ */
+public class MicrometerUaaMetrics implements UaaMetrics {
+	private final MeterRegistry registry;
+
+	public MicrometerUaaMetrics(MeterRegistry registry) {
+		Assert.notNull(registry);
+		this.registry = registry;
+	}
+
+	public void recordOperation(String operation, long latencyNanos) {
+		registry.timer("uaa.client.operation", "operation", operation).record(latencyNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordRequest(String operation, UaaEndpointCategory category, int status, long latencyNanos,
+			long bytesSent, long bytesReceived) {
+		String statusTag = status == NO_RESPONSE ? "none" : String.valueOf(status);
+		String categoryTag = category.name().toLowerCase();
+
+		registry.timer("uaa.client.request", "operation", operation, "endpoint", categoryTag, "status", statusTag)
+				.record(latencyNanos, TimeUnit.NANOSECONDS);
+		registry.summary("uaa.client.request.sent", "operation", operation, "endpoint", categoryTag).record(
+				bytesSent);
+		registry.summary("uaa.client.request.received", "operation", operation, "endpoint", categoryTag).record(
+				bytesReceived);
+	}
+
+	public void recordRetry(String operation) {
+		registry.counter("uaa.client.request.retries", "operation", operation).increment();
+	}
+
+	public void recordTokenRequest(boolean refresh, long latencyNanos, boolean success) {
+		registry.timer("uaa.client.token", "grant", refresh ? "refresh" : "obtain", "outcome",
+				success ? "success" : "failure").record(latencyNanos, TimeUnit.NANOSECONDS);
+	}
+}
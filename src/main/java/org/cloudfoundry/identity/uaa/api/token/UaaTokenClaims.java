@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.token;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.util.Assert;
+
+/**
+ * The claims of a UAA access token, as carried in a JWT or returned by <code>/check_token</code>. Instances are
+ * immutable and may be shared between threads.
+ */
+public class UaaTokenClaims {
+	private final Map<String, Object> claims;
+
+	private final Set<String> scopes;
+
+	private final Set<String> audience;
+
+	private final long expiresAt;
+
+	/**
+	 * @param claims the claims, by name
+	 */
+	public UaaTokenClaims(Map<String, ?> claims) {
+		Assert.notNull(claims, "claims must not be null");
+
+		this.claims = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(claims));
+		this.scopes = strings(claims.get("scope"));
+		this.audience = strings(claims.get("aud"));
+		this.expiresAt = seconds(claims.get("exp"));
+	}
+
+	/**
+	 * @param name a claim name
+	 * @return the claim, or null if the token does not carry it
+	 */
+	public Object get(String name) {
+		return claims.get(name);
+	}
+
+	/**
+	 * @return every claim, by name
+	 */
+	public Map<String, Object> getClaims() {
+		return claims;
+	}
+
+	/**
+	 * @return the subject: the user ID of a user token, or the client ID of a client token
+	 */
+	public String getSubject() {
+		return string("sub");
+	}
+
+	/**
+	 * @return the ID of the user the token was issued to, or null for a client token
+	 */
+	public String getUserId() {
+		return string("user_id");
+	}
+
+	/**
+	 * @return the name of the user the token was issued to, or null for a client token
+	 */
+	public String getUserName() {
+		return string("user_name");
+	}
+
+	/**
+	 * @return the ID of the client the token was issued to
+	 */
+	public String getClientId() {
+		String clientId = string("client_id");
+		return clientId != null ? clientId : string("cid");
+	}
+
+	/**
+	 * @return the granted scopes
+	 */
+	public Set<String> getScopes() {
+		return scopes;
+	}
+
+	/**
+	 * @return the audience
+	 */
+	public Set<String> getAudience() {
+		return audience;
+	}
+
+	/**
+	 * @return the issuer
+	 */
+	public String getIssuer() {
+		return string("iss");
+	}
+
+	/**
+	 * @return the token ID
+	 */
+	public String getTokenId() {
+		return string("jti");
+	}
+
+	/**
+	 * @return the grant the token was obtained with, for example <code>password</code>
+	 */
+	public String getGrantType() {
+		return string("grant_type");
+	}
+
+	/**
+	 * @return when the token expires, or null if it does not say
+	 */
+	public Date getExpiresAt() {
+		return expiresAt == Long.MIN_VALUE ? null : new Date(expiresAt);
+	}
+
+	/**
+	 * @return when the token was issued, or null if it does not say
+	 */
+	public Date getIssuedAt() {
+		long issuedAt = seconds(claims.get("iat"));
+		return issuedAt == Long.MIN_VALUE ? null : new Date(issuedAt);
+	}
+
+	/**
+	 * @return when the token expires in milliseconds since the epoch, or {@link Long#MIN_VALUE} if it does not say
+	 */
+	long getExpiresAtMillis() {
+		return expiresAt;
+	}
+
+	@Override
+	public String toString() {
+		return "UaaTokenClaims" + claims;
+	}
+
+	private String string(String name) {
+		Object value = claims.get(name);
+		return value == null ? null : value.toString();
+	}
+
+	private static Set<String> strings(Object value) {
+		if (value == null) {
+			return Collections.emptySet();
+		}
+
+		Set<String> strings = new LinkedHashSet<String>();
+		if (value instanceof Collection) {
+			for (Object element : (Collection<?>) value) {
+				strings.add(String.valueOf(element));
+			}
+		}
+		else {
+			for (String element : value.toString().split(" ")) {
+				if (!element.isEmpty()) {
+					strings.add(element);
+				}
+			}
+		}
+		return Collections.unmodifiableSet(strings);
+	}
+
+	private static long seconds(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).longValue() * 1000;
+		}
+		return Long.MIN_VALUE;
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.token;
+
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.api.common.model.TokenKey;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+
+/**
+ * Provides endpoints to the UAA token APIs specified <a
+ * href="https://github.com/cloudfoundry/uaa/blob/master/docs/UAA-APIs.rst">here</a>, for services that receive UAA
+ * tokens rather than obtain them
+ */
+public interface UaaTokenOperations {
+	/**
+	 * Get the keys the UAA signs tokens with
+	 * 
+	 * @return the current signing keys, including any being rotated in or out
+	 * @see UaaTokenVerifier
+	 */
+	public List<TokenKey> getTokenKeys();
+
+	/**
+	 * Ask the UAA whether a token is valid, as is needed for tokens that cannot be verified locally. The connection's
+	 * client must have the <code>uaa.resource</code> authority.
+	 * 
+	 * @param token an encoded access token, without the <code>bearer</code> prefix
+	 * @return the token's claims
+	 * @throws InvalidTokenException if the token is invalid, expired or revoked
+	 * @see org.cloudfoundry.identity.uaa.api.token.impl.TokenCheckCache
+	 */
+	public UaaTokenClaims checkToken(String token);
+}
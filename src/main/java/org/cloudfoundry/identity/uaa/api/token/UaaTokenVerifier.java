@@ -0,0 +1,491 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.token;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.api.common.model.TokenKey;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.util.Assert;
+import org.springframework.web.client.RestClientException;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Verifies UAA access tokens locally, without a <code>/check_token</code> call per token. The signing keys are read
+ * from <code>/token_keys</code> on first use and again when a token names a key not seen yet, so a key the UAA rotates
+ * in is picked up at once, and every key refresh interval, so a key it rotates out stops being trusted. A token is
+ * accepted if it is signed by one of those keys with RS256, RS384, RS512, HS256, HS384 or HS512, has not expired, and
+ * carries the configured issuer and one of the configured audiences.
+ * <p>
+ * Verified tokens are kept in a bounded, least recently used cache until they expire or their key is withdrawn, so
+ * verifying a token seen before is a map lookup. Tokens are compared in full, never by a truncated hash, so a forged
+ * token cannot be served another token's claims.
+ * <p>
+ * Safe for concurrent use.
+ */
+public class UaaTokenVerifier {
+	private static final Log log = LogFactory.getLog(UaaTokenVerifier.class);
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static final TypeReference<Map<String, Object>> MAP_REF = new TypeReference<Map<String, Object>>() {
+	};
+
+	private static final Map<String, String> ALGORITHMS = new HashMap<String, String>();
+
+	static {
+		ALGORITHMS.put("RS256", "SHA256withRSA");
+		ALGORITHMS.put("RS384", "SHA384withRSA");
+		ALGORITHMS.put("RS512", "SHA512withRSA");
+		ALGORITHMS.put("HS256", "HmacSHA256");
+		ALGORITHMS.put("HS384", "HmacSHA384");
+		ALGORITHMS.put("HS512", "HmacSHA512");
+	}
+
+	private final UaaTokenOperations tokenOperations;
+
+	private final String issuer;
+
+	private final Map<String, Verified> verified;
+
+	private final Object fetchLock = new Object();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private volatile Keys keys;
+
+	private volatile Set<String> audience;
+
+	private volatile long clockSkew = TimeUnit.SECONDS.toMillis(60);
+
+	private volatile long keyRefreshInterval = TimeUnit.MINUTES.toNanos(10);
+
+	private volatile long unknownKeyInterval = TimeUnit.SECONDS.toNanos(5);
+
+	/**
+	 * @param tokenOperations the operations to read the signing keys through
+	 * @param issuer the issuer tokens must carry, such as <code>https://uaa.example.com/oauth/token</code>; null to
+	 *            accept any issuer
+	 * @param maxCachedTokens the maximum number of verified tokens to remember
+	 */
+	public UaaTokenVerifier(UaaTokenOperations tokenOperations, String issuer, final int maxCachedTokens) {
+		Assert.notNull(tokenOperations, "tokenOperations must not be null");
+		Assert.isTrue(maxCachedTokens > 0, "maxCachedTokens must be positive");
+
+		this.tokenOperations = tokenOperations;
+		this.issuer = issuer;
+		this.verified = new LinkedHashMap<String, Verified>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+				return size() > maxCachedTokens;
+			}
+		};
+	}
+
+	/**
+	 * The audiences a token must carry at least one of. By default the audience is not checked; null to disable.
+	 * 
+	 * @param audience the accepted audiences, usually resource IDs such as <code>cloud_controller</code>
+	 */
+	public void setAudience(String... audience) {
+		this.audience = audience == null ? null : new LinkedHashSet<String>(Arrays.asList(audience));
+		clear();
+	}
+
+	/**
+	 * How far clocks may disagree when checking expiry. By default 60 seconds.
+	 * 
+	 * @param skew the skew
+	 * @param unit the unit of the skew
+	 */
+	public void setClockSkew(long skew, TimeUnit unit) {
+		Assert.isTrue(skew >= 0, "skew must not be negative");
+		this.clockSkew = unit.toMillis(skew);
+	}
+
+	/**
+	 * How long the signing keys are trusted before they are read again. By default 10 minutes.
+	 * 
+	 * @param interval the interval
+	 * @param unit the unit of the interval
+	 */
+	public void setKeyRefreshInterval(long interval, TimeUnit unit) {
+		Assert.isTrue(interval > 0, "interval must be positive");
+		this.keyRefreshInterval = unit.toNanos(interval);
+	}
+
+	/**
+	 * The least time between two reads of the keys caused by tokens naming a key not seen yet, so a stream of such
+	 * tokens cannot become a stream of requests. By default 5 seconds.
+	 * 
+	 * @param interval the interval
+	 * @param unit the unit of the interval
+	 */
+	public void setUnknownKeyInterval(long interval, TimeUnit unit) {
+		Assert.isTrue(interval >= 0, "interval must not be negative");
+		this.unknownKeyInterval = unit.toNanos(interval);
+	}
+
+	/**
+	 * @param token an encoded access token, without the <code>bearer</code> prefix
+	 * @return the token's claims
+	 * @throws InvalidTokenException if the token is malformed, expired, not signed by a current key or not meant for
+	 *             this issuer or audience
+	 * @throws RestClientException if the signing keys cannot be read
+	 */
+	public UaaTokenClaims verify(String token) {
+		Assert.hasText(token, "token must not be empty");
+
+		Keys current = currentKeys();
+		long now = System.currentTimeMillis();
+
+		Verified entry;
+		synchronized (verified) {
+			entry = verified.get(token);
+		}
+
+		if (entry != null && current.contains(entry.key)) {
+			checkExpiry(entry.claims, now);
+			hits.incrementAndGet();
+			return entry.claims;
+		}
+
+		misses.incrementAndGet();
+
+		int headerEnd = token.indexOf('.');
+		int payloadEnd = token.indexOf('.', headerEnd + 1);
+		if (headerEnd <= 0 || payloadEnd <= headerEnd + 1 || token.indexOf('.', payloadEnd + 1) >= 0) {
+			throw new InvalidTokenException("Malformed token");
+		}
+
+		Map<String, Object> header = decodeJson(token.substring(0, headerEnd));
+		String alg = String.valueOf(header.get("alg"));
+		if (!ALGORITHMS.containsKey(alg)) {
+			throw new InvalidTokenException("Unsupported signing algorithm: " + alg);
+		}
+
+		Object kid = header.get("kid");
+		List<VerificationKey> candidates;
+		if (kid == null) {
+			candidates = current.all;
+		}
+		else {
+			VerificationKey key = current.byKid.get(kid.toString());
+			if (key == null) {
+				current = fetchKeys(current, unknownKeyInterval);
+				key = current.byKid.get(kid.toString());
+			}
+			if (key == null) {
+				throw new InvalidTokenException("Unknown signing key: " + kid);
+			}
+			candidates = Collections.singletonList(key);
+		}
+
+		byte[] content = token.substring(0, payloadEnd).getBytes(StandardCharsets.US_ASCII);
+		byte[] signature = Base64.decodeBase64(token.substring(payloadEnd + 1));
+
+		VerificationKey signer = null;
+		for (VerificationKey key : candidates) {
+			if (key.verifies(alg, content, signature)) {
+				signer = key;
+				break;
+			}
+		}
+		if (signer == null) {
+			throw new InvalidTokenException("Invalid token signature");
+		}
+
+		UaaTokenClaims claims = new UaaTokenClaims(decodeJson(token.substring(headerEnd + 1, payloadEnd)));
+		if (claims.getExpiresAtMillis() == Long.MIN_VALUE) {
+			throw new InvalidTokenException("Token has no expiry");
+		}
+		checkExpiry(claims, now);
+
+		Object notBefore = claims.get("nbf");
+		if (notBefore instanceof Number && ((Number) notBefore).longValue() * 1000 > now + clockSkew) {
+			throw new InvalidTokenException("Token is not valid yet");
+		}
+		if (issuer != null && !issuer.equals(claims.getIssuer())) {
+			throw new InvalidTokenException("Invalid issuer: " + claims.getIssuer());
+		}
+
+		Set<String> accepted = audience;
+		if (accepted != null && Collections.disjoint(accepted, claims.getAudience())) {
+			throw new InvalidTokenException("Invalid audience: " + claims.getAudience());
+		}
+
+		synchronized (verified) {
+			verified.put(token, new Verified(claims, signer));
+		}
+		return claims;
+	}
+
+	/**
+	 * Read the signing keys again now. Tokens verified with a key that is no longer published are verified again.
+	 * 
+	 * @throws RestClientException if the keys cannot be read
+	 */
+	public void refreshKeys() {
+		fetchKeys(keys, 0);
+	}
+
+	/**
+	 * @return the number of tokens served from the cache
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of tokens verified
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private void clear() {
+		synchronized (verified) {
+			verified.clear();
+		}
+	}
+
+	private void checkExpiry(UaaTokenClaims claims, long now) {
+		if (claims.getExpiresAtMillis() + clockSkew < now) {
+			throw new InvalidTokenException("Token has expired");
+		}
+	}
+
+	private Keys currentKeys() {
+		Keys current = keys;
+		if (current == null || System.nanoTime() - current.fetchedAt > keyRefreshInterval) {
+			current = fetchKeys(current, keyRefreshInterval);
+		}
+		return current;
+	}
+
+	/**
+	 * Read the keys unless another thread has done so within <code>interval</code>. Keys that are unchanged keep
+	 * their identity, so the tokens verified with them stay cached.
+	 * 
+	 * @param seen the keys the caller saw
+	 * @param interval how recently read keys must be to be kept
+	 * @return the current keys
+	 */
+	private Keys fetchKeys(Keys seen, long interval) {
+		synchronized (fetchLock) {
+			Keys current = keys;
+			if (current != null && (current != seen || System.nanoTime() - current.fetchedAt < interval)) {
+				return current;
+			}
+
+			List<TokenKey> published;
+			try {
+				published = tokenOperations.getTokenKeys();
+			}
+			catch (RestClientException e) {
+				if (current == null) {
+					throw e;
+				}
+
+				log.warn("Could not read the token keys; keeping the previous ones", e);
+				keys = new Keys(current.all, System.nanoTime());
+				return keys;
+			}
+
+			List<VerificationKey> all = new ArrayList<VerificationKey>();
+			for (TokenKey key : published) {
+				VerificationKey parsed = VerificationKey.of(key);
+				if (parsed == null) {
+					continue;
+				}
+
+				if (current != null) {
+					for (VerificationKey old : current.all) {
+						if (old.fingerprint.equals(parsed.fingerprint)) {
+							parsed = old;
+						}
+					}
+				}
+				all.add(parsed);
+			}
+
+			keys = new Keys(all, System.nanoTime());
+			return keys;
+		}
+	}
+
+	private static Map<String, Object> decodeJson(String segment) {
+		try {
+			return MAPPER.readValue(Base64.decodeBase64(segment), MAP_REF);
+		}
+		catch (IOException e) {
+			throw new InvalidTokenException("Malformed token", e);
+		}
+	}
+
+	private static class Verified {
+		private final UaaTokenClaims claims;
+
+		private final VerificationKey key;
+
+		Verified(UaaTokenClaims claims, VerificationKey key) {
+			this.claims = claims;
+			this.key = key;
+		}
+	}
+
+	private static class Keys {
+		private final List<VerificationKey> all;
+
+		private final Map<String, VerificationKey> byKid = new HashMap<String, VerificationKey>();
+
+		private final long fetchedAt;
+
+		Keys(List<VerificationKey> all, long fetchedAt) {
+			this.all = Collections.unmodifiableList(all);
+			this.fetchedAt = fetchedAt;
+			for (VerificationKey key : all) {
+				if (key.kid != null) {
+					byKid.put(key.kid, key);
+				}
+			}
+		}
+
+		boolean contains(VerificationKey key) {
+			for (VerificationKey candidate : all) {
+				if (candidate == key) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class VerificationKey {
+		private final String kid;
+
+		private final boolean rsa;
+
+		private final Key key;
+
+		private final String fingerprint;
+
+		VerificationKey(String kid, boolean rsa, Key key, String fingerprint) {
+			this.kid = kid;
+			this.rsa = rsa;
+			this.key = key;
+			this.fingerprint = fingerprint;
+		}
+
+		/**
+		 * @return the key, or null if it is of no type tokens can be verified with
+		 */
+		static VerificationKey of(TokenKey key) {
+			String alg = key.getAlg() == null ? "" : key.getAlg();
+			String fingerprint = key.getKid() + '\n' + alg + '\n' + key.getN() + '\n' + key.getE() + '\n'
+					+ key.getValue();
+
+			try {
+				if ("RSA".equals(key.getKty()) || alg.startsWith("RS")) {
+					PublicKey publicKey;
+					if (key.getN() != null && key.getE() != null) {
+						publicKey = KeyFactory.getInstance("RSA").generatePublic(
+								new RSAPublicKeySpec(new BigInteger(1, Base64.decodeBase64(key.getN())),
+										new BigInteger(1, Base64.decodeBase64(key.getE()))));
+					}
+					else if (key.getValue() != null && key.getValue().contains("BEGIN PUBLIC KEY")) {
+						String pem = key.getValue().replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+						publicKey = KeyFactory.getInstance("RSA").generatePublic(
+								new X509EncodedKeySpec(Base64.decodeBase64(pem)));
+					}
+					else {
+						log.warn("Ignoring RSA token key " + key.getKid() + " without a usable public key");
+						return null;
+					}
+					return new VerificationKey(key.getKid(), true, publicKey, fingerprint);
+				}
+
+				if (("MAC".equals(key.getKty()) || alg.startsWith("HS")) && key.getValue() != null) {
+					return new VerificationKey(key.getKid(), false, new SecretKeySpec(
+							key.getValue().getBytes(StandardCharsets.UTF_8), "HmacSHA256"), fingerprint);
+				}
+			}
+			catch (GeneralSecurityException e) {
+				log.warn("Ignoring token key " + key.getKid() + " that cannot be decoded", e);
+				return null;
+			}
+
+			log.debug("Ignoring token key " + key.getKid() + " of type " + key.getKty());
+			return null;
+		}
+
+		/**
+		 * Verify a signature made with <code>alg</code>. An RSA key only verifies RSA signatures and a MAC key only
+		 * MACs, so a public key can never be used as a MAC secret.
+		 */
+		boolean verifies(String alg, byte[] content, byte[] signature) {
+			try {
+				if (rsa && alg.startsWith("RS")) {
+					Signature verifier = Signature.getInstance(ALGORITHMS.get(alg));
+					verifier.initVerify((PublicKey) key);
+					verifier.update(content);
+					return verifier.verify(signature);
+				}
+
+				if (!rsa && alg.startsWith("HS")) {
+					Mac mac = Mac.getInstance(ALGORITHMS.get(alg));
+					mac.init(new SecretKeySpec(key.getEncoded(), ALGORITHMS.get(alg)));
+					return MessageDigest.isEqual(mac.doFinal(content), signature);
+				}
+			}
+			catch (GeneralSecurityException e) {
+				log.debug("Could not verify a token signature", e);
+			}
+			return false;
+		}
+	}
+}
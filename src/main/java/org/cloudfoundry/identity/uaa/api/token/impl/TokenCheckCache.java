@@ -0,0 +1,237 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.token.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.RequestCoalescer;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenClaims;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.util.Assert;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * A cache of <code>/check_token</code> results used by {@link UaaTokenOperationsImpl#checkToken(String)}. A valid
+ * token is remembered until it expires or for the time to live, whichever is sooner, and an invalid one for the
+ * shorter negative time to live, so a token that is revoked or becomes valid is noticed within those times. The least
+ * recently used entry is evicted when the cache is full. Concurrent checks of a token that is not cached are collapsed
+ * into one request, so a hot token costs one round trip however many threads see it at once. Failures other than an
+ * invalid token are not cached.
+ * <p>
+ * Tokens are compared in full. One cache may be shared by several connections to the same UAA.
+ * 
+ * @see org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl
+ */
+public class TokenCheckCache {
+	private static class Entry {
+		final UaaTokenClaims claims;
+
+		final String error;
+
+		final long expiresAtNanos;
+
+		Entry(UaaTokenClaims claims, String error, long expiresAtNanos) {
+			this.claims = claims;
+			this.error = error;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+
+	private final Map<String, Entry> entries;
+
+	private final RequestCoalescer coalescer = new RequestCoalescer();
+
+	private final long ttlNanos;
+
+	private final long negativeTtlNanos;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param maxEntries the maximum number of cached results
+	 * @param ttl the longest a valid token is cached, however far away its expiry
+	 * @param negativeTtl how long an invalid token is cached
+	 * @param unit the unit of <code>ttl</code> and <code>negativeTtl</code>
+	 */
+	public TokenCheckCache(final int maxEntries, long ttl, long negativeTtl, TimeUnit unit) {
+		Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+		Assert.isTrue(ttl > 0, "ttl must be positive");
+		Assert.isTrue(negativeTtl >= 0, "negativeTtl must not be negative");
+
+		this.ttlNanos = unit.toNanos(ttl);
+		this.negativeTtlNanos = unit.toNanos(negativeTtl);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get the result of checking a token, checking it if it is not cached or has expired
+	 * 
+	 * @param token the token
+	 * @param checker calls <code>/check_token</code>, throwing {@link InvalidTokenException} if the token is invalid
+	 * @return the token's claims
+	 * @throws InvalidTokenException if the token is invalid
+	 */
+	public UaaTokenClaims get(final String token, final Callable<UaaTokenClaims> checker) {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(token);
+		}
+
+		if (entry != null && nanoTime() - entry.expiresAtNanos < 0) {
+			hits.incrementAndGet();
+			if (entry.claims == null) {
+				throw new InvalidTokenException(entry.error);
+			}
+			return entry.claims;
+		}
+
+		misses.incrementAndGet();
+		return coalescer.execute(token, new Callable<UaaTokenClaims>() {
+			public UaaTokenClaims call() {
+				return check(token, checker);
+			}
+		});
+	}
+
+	private UaaTokenClaims check(String token, Callable<UaaTokenClaims> checker) {
+		long invalidationsBefore = invalidations.get();
+		long now = nanoTime();
+
+		UaaTokenClaims claims;
+		try {
+			claims = checker.call();
+		}
+		catch (InvalidTokenException e) {
+			if (negativeTtlNanos > 0) {
+				put(token, new Entry(null, e.getMessage(), now + negativeTtlNanos), invalidationsBefore);
+			}
+			throw e;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RestClientException(e.getMessage(), e);
+		}
+
+		long ttl = ttlNanos;
+		if (claims.getExpiresAt() != null) {
+			ttl = Math.min(ttl, TimeUnit.MILLISECONDS.toNanos(claims.getExpiresAt().getTime()
+					- System.currentTimeMillis()));
+		}
+		if (ttl > 0) {
+			put(token, new Entry(claims, null, now + ttl), invalidationsBefore);
+		}
+
+		return claims;
+	}
+
+	/**
+	 * The clock that cached results are timed by, which tests may move forward
+	 * 
+	 * @return the current time in nanoseconds, as from {@link System#nanoTime()}
+	 */
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	private void put(String token, Entry entry, long invalidationsBefore) {
+		synchronized (entries) {
+			// don't cache a result that may have been invalidated while it was being checked
+			if (invalidations.get() == invalidationsBefore) {
+				entries.put(token, entry);
+			}
+		}
+	}
+
+	/**
+	 * Drop a token from the cache, such as one known to have been revoked
+	 * 
+	 * @param token the token
+	 */
+	public void invalidate(String token) {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			entries.remove(token);
+		}
+	}
+
+	/**
+	 * Drop every token from the cache
+	 */
+	public void clear() {
+		synchronized (entries) {
+			invalidations.incrementAndGet();
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return the number of cached results
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return the number of checks served from the cache
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of checks not served from the cache, including those collapsed into another
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of checks that waited for an identical one in flight instead of going to the UAA
+	 */
+	public long getCollapsedCount() {
+		return coalescer.getCollapsedCount();
+	}
+
+	/**
+	 * @return the number of entries evicted to stay within the size limit
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.token.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaOperation;
+import org.cloudfoundry.identity.uaa.api.common.model.TokenKey;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenClaims;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenOperations;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.util.Assert;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * @see UaaTokenOperations
+ */
+public class UaaTokenOperationsImpl implements UaaTokenOperations {
+
+	private static final ParameterizedTypeReference<Map<String, List<TokenKey>>> KEYS_REF = new ParameterizedTypeReference<Map<String, List<TokenKey>>>() {
+	};
+
+	private static final ParameterizedTypeReference<Map<String, Object>> CLAIMS_REF = new ParameterizedTypeReference<Map<String, Object>>() {
+	};
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private UaaConnectionHelper helper;
+
+	private TokenCheckCache cache;
+
+	public UaaTokenOperationsImpl(UaaConnectionHelper helper) {
+		this(helper, null);
+	}
+
+	/**
+	 * @param helper the connection helper
+	 * @param cache caches the results of {@link #checkToken(String)}; may be null
+	 */
+	public UaaTokenOperationsImpl(UaaConnectionHelper helper, TokenCheckCache cache) {
+		this.helper = helper;
+		this.cache = cache;
+	}
+
+	public List<TokenKey> getTokenKeys() {
+		UaaOperation operation = helper.beginOperation("tokens.getTokenKeys");
+		try {
+			Map<String, List<TokenKey>> keys = helper.get("/token_keys", KEYS_REF);
+			if (keys == null || keys.get("keys") == null) {
+				return Collections.emptyList();
+			}
+			return keys.get("keys");
+		}
+		finally {
+			operation.end();
+		}
+	}
+
+	public UaaTokenClaims checkToken(final String token) {
+		Assert.hasText(token);
+
+		UaaOperation operation = helper.beginOperation("tokens.checkToken");
+		try {
+			if (cache != null) {
+				return cache.get(token, new Callable<UaaTokenClaims>() {
+					public UaaTokenClaims call() {
+						return check(token);
+					}
+				});
+			}
+
+			return check(token);
+		}
+		finally {
+			operation.end();
+		}
+	}
+
+	private UaaTokenClaims check(String token) {
+		MultiValueMap<String, String> form = new LinkedMultiValueMap<String, String>();
+		form.add("token", token);
+
+		try {
+			return new UaaTokenClaims(helper.postFormAsClient("/check_token", form, CLAIMS_REF));
+		}
+		catch (HttpClientErrorException e) {
+			if (e.getStatusCode() != HttpStatus.BAD_REQUEST) {
+				throw e;
+			}
+
+			JsonNode error;
+			try {
+				error = MAPPER.readTree(e.getResponseBodyAsString());
+			}
+			catch (IOException unreadable) {
+				throw e;
+			}
+			if (error == null || !"invalid_token".equals(error.path("error").asText())) {
+				throw e;
+			}
+
+			throw new InvalidTokenException(error.path("error_description").asText("Invalid token"));
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.tracing;
+
+/**
+ * A timed unit of work started by a {@link UaaTracer}. Each span is ended exactly once.
+ */
+public interface UaaSpan {
+	/**
+	 * The category of endpoint called, such as <code>users</code> or <code>token</code>
+	 */
+	public static final String ENDPOINT = "uaa.endpoint";
+
+	/**
+	 * The HTTP method of a request
+	 */
+	public static final String METHOD = "http.method";
+
+	/**
+	 * The base URL of the UAA server a request was sent to
+	 */
+	public static final String SERVER = "uaa.server";
+
+	/**
+	 * The HTTP status of a response
+	 */
+	public static final String STATUS = "http.status_code";
+
+	/**
+	 * The number of resources in a search result
+	 */
+	public static final String RESULT_COUNT = "uaa.result_count";
+
+	/**
+	 * The grant used to get a token: <code>obtain</code> or <code>refresh</code>
+	 */
+	public static final String GRANT = "uaa.grant";
+
+	/**
+	 * @param key the attribute name
+	 * @param value a String, Number or Boolean
+	 */
+	public void setAttribute(String key, Object value);
+
+	/**
+	 * Mark the span as failed
+	 * 
+	 * @param error the cause of the failure
+	 */
+	public void setError(Throwable error);
+
+	/**
+	 * End the span
+	 */
+	public void end();
+}
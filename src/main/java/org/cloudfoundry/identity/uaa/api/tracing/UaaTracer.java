@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.tracing;
+
+/**
+ * Opens spans around UAA calls. Every operation of the user, group and client APIs gets a span, named after the
+ * operation (for example <code>users.getByName</code>), with children for the token fetch ({@link #TOKEN_SPAN}), each
+ * HTTP exchange ({@link #HTTP_SPAN}) and the decoding of each response body ({@link #DECODE_SPAN}). Implement this
+ * interface to forward spans to a tracing system such as OpenTelemetry; the default does nothing.
+ * 
+ * @see org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper#setTracer(UaaTracer)
+ * @see org.cloudfoundry.identity.uaa.api.tracing.impl.NoopUaaTracer
+ */
+public interface UaaTracer {
+	/**
+	 * Name of the span around a call to the token endpoint
+	 */
+	public static final String TOKEN_SPAN = "uaa.token";
+
+	/**
+	 * Name of the span around an HTTP request and response
+	 */
+	public static final String HTTP_SPAN = "uaa.http";
+
+	/**
+	 * Name of the span around the decoding of a response body
+	 */
+	public static final String DECODE_SPAN = "uaa.decode";
+
+	/**
+	 * Start a span. Spans may be started and ended on different threads than their parents.
+	 * 
+	 * @param name the span name
+	 * @param parent the enclosing span, or null to start a root span
+	 * @return the started span, never null
+	 */
+	public UaaSpan startSpan(String name, UaaSpan parent);
+}
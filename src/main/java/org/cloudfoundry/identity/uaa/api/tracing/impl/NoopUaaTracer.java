@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.tracing.impl;
+
+import org.cloudfoundry.identity.uaa.api.tracing.UaaSpan;
+import org.cloudfoundry.identity.uaa.api.tracing.UaaTracer;
+
+/**
+ * A tracer that records nothing. This is the default.
+ */
+public final class NoopUaaTracer implements UaaTracer {
+	public static final NoopUaaTracer INSTANCE = new NoopUaaTracer();
+
+	private static final UaaSpan SPAN = new UaaSpan() {
+		public void setAttribute(String key, Object value) {
+		}
+
+		public void setError(Throwable error) {
+		}
+
+		public void end() {
+		}
+	};
+
+	private NoopUaaTracer() {
+	}
+
+	public UaaSpan startSpan(String name, UaaSpan parent) {
+		return SPAN;
+	}
+}
@@ -13,6 +13,9 @@
  */
 package org.cloudfoundry.identity.uaa.api.user;
 
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
 import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
@@ -79,4 +82,30 @@ public interface UaaUserOperations {
 	 * @see org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder
 	 */
 	public SearchResults<ScimUser> getUsers(FilterRequest request);
+
+	/**
+	 * Get a page of users restricted to the attributes the {@link FilterRequest} asks for, decoding each one straight
+	 * into the projection type instead of a full {@link ScimUser}. Pass {@link ScimRecord} to get flat records holding
+	 * just the requested attributes, or any class with fields or setters named after them; undeclared attributes are
+	 * ignored. Memory use then scales with the attributes requested rather than the size of a full ScimUser.
+	 * 
+	 * @param request the {@link FilterRequest}, which must set attributes
+	 * @param projection the type to decode each of the users as
+	 * @return The page of projected users.
+	 * @see org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder#attributes(String...)
+	 */
+	public <T> SearchResults<T> getUsers(FilterRequest request, Class<T> projection);
+
+	/**
+	 * Stream a page of users based on the given {@link FilterRequest}: each user is given to the handler as soon as it
+	 * has been read, and the page is never held in memory as a whole. Use this instead of {@link
+	 * #getUsers(FilterRequest)} for large pages, or to act on the first results while the rest are still arriving.
+	 * 
+	 * @param request the {@link FilterRequest}
+	 * @param handler receives each user, and can stop the page early
+	 * @return the paging information of the page; its resources are always empty
+	 * @see org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder
+	 */
+	public StreamedSearchResults<ScimUser> streamUsers(FilterRequest request,
+			UaaResultHandler<? super ScimUser> handler);
 }
@@ -18,7 +18,10 @@ import static org.cloudfoundry.identity.uaa.scim.ScimCore.*;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
 import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaOperation;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
 import org.cloudfoundry.identity.uaa.api.common.model.WrappedSearchResults;
 import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
 import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
@@ -58,7 +61,13 @@ public class UaaUserOperationsImpl implements UaaUserOperations {
 
 		user.setSchemas(SCHEMAS);
 
-		return helper.post("/Users", user, USER_REF);
+		UaaOperation operation = helper.beginOperation("users.create");
+		try {
+			return helper.post("/Users", user, USER_REF);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public ScimUser updateUser(ScimUser user) {
@@ -72,12 +81,25 @@ public class UaaUserOperationsImpl implements UaaUserOperations {
 
 		user.setPassword(null);
 
-		return helper.putScimObject("/Users/{id}", user, USER_REF, user.getId());
+		UaaOperation operation = helper.beginOperation("users.update");
+		try {
+			return helper.putScimObject("/Users/{id}", user, USER_REF, user.getId());
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public void deleteUser(String userId) {
 		Assert.hasText(userId);
-		helper.delete("/Users/{id}", STRING_REF, userId);
+
+		UaaOperation operation = helper.beginOperation("users.delete");
+		try {
+			helper.delete("/Users/{id}", STRING_REF, userId);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public void changeUserPassword(String userId, String oldPassword, String newPassword) {
@@ -89,23 +111,70 @@ public class UaaUserOperationsImpl implements UaaUserOperations {
 		passwordChange.put("password", newPassword);
 		passwordChange.put("oldPassword", oldPassword);
 
-		helper.put("/Users/{id}/password", passwordChange, STRING_REF, userId);
+		UaaOperation operation = helper.beginOperation("users.changePassword");
+		try {
+			helper.put("/Users/{id}/password", passwordChange, STRING_REF, userId);
+		}
+		finally {
+			operation.end();
+		}
+	}
+
+	public StreamedSearchResults<ScimUser> streamUsers(FilterRequest request,
+			UaaResultHandler<? super ScimUser> handler) {
+		Assert.notNull(request);
+		Assert.notNull(handler);
+
+		UaaOperation operation = helper.beginOperation("users.stream");
+		try {
+			return helper.stream(helper.buildScimFilterUrl("/Users", request), ScimUser.class, handler);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
 	public SearchResults<ScimUser> getUsers(FilterRequest request) {
 		Assert.notNull(request);
 
-		return helper.get(helper.buildScimFilterUrl("/Users", request), USERS_REF);
+		UaaOperation operation = helper.beginOperation("users.search");
+		try {
+			return helper.get(helper.buildScimFilterUrl("/Users", request), USERS_REF);
+		}
+		finally {
+			operation.end();
+		}
 	}
 
-	public ScimUser getUserByName(String userName) {
-		FilterRequest request = new FilterRequestBuilder().equals("username", userName).build();
-		SearchResults<ScimUser> result = getUsers(request);
+	public <T> SearchResults<T> getUsers(FilterRequest request, Class<T> projection) {
+		Assert.notNull(request);
+		Assert.notEmpty(request.getAttributes(), "projections need the attributes to request");
+		Assert.notNull(projection);
 
-		if (result != null && result.getResources() != null && result.getResources().size() == 1) {
-			return result.getResources().iterator().next();
+		UaaOperation operation = helper.beginOperation("users.project");
+		try {
+			return helper.getProjected(helper.buildScimFilterUrl("/Users", request), request.getAttributes(),
+					projection);
+		}
+		finally {
+			operation.end();
 		}
+	}
+
+	public ScimUser getUserByName(String userName) {
+		UaaOperation operation = helper.beginOperation("users.getByName");
+		try {
+			FilterRequest request = new FilterRequestBuilder().equals("username", userName).build();
+			SearchResults<ScimUser> result = getUsers(request);
 
-		return null;
+			if (result != null && result.getResources() != null && result.getResources().size() == 1) {
+				return result.getResources().iterator().next();
+			}
+
+			return null;
+		}
+		finally {
+			operation.end();
+		}
 	}
 }
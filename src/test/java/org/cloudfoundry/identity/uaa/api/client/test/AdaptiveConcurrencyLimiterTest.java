@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.AdaptiveConcurrencyLimiter;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void testLimitGrowsWhileFast() throws Exception {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(100, TimeUnit.MILLISECONDS, 2, 1, 10,
+				0.5);
+
+		for (int i = 0; i < 20; i++) {
+			limiter.acquire();
+			limiter.acquire();
+			limiter.release(FAST, true);
+			limiter.release(FAST, true);
+		}
+
+		assertTrue("Limit should have grown", limiter.getLimit() > 2);
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testLimitShrinksOnFailureAndBlocks() throws Exception {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(100, TimeUnit.MILLISECONDS, 4, 1, 10,
+				0.5);
+
+		limiter.acquire();
+		limiter.release(FAST, false);
+		assertEquals(2, limiter.getLimit());
+
+		assertTrue(limiter.tryAcquire(0, TimeUnit.SECONDS));
+		assertTrue(limiter.tryAcquire(0, TimeUnit.SECONDS));
+		assertFalse("Limit should be exhausted", limiter.tryAcquire(10, TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.CircuitBreakerListener;
+import org.cloudfoundry.identity.uaa.api.common.CircuitBreakerOpenException;
+import org.cloudfoundry.identity.uaa.api.common.impl.CircuitBreaker;
+import org.cloudfoundry.identity.uaa.api.common.impl.CircuitBreaker.State;
+import org.cloudfoundry.identity.uaa.api.common.impl.CircuitBreakerConfig;
+import org.cloudfoundry.identity.uaa.api.common.impl.CircuitBreakerRegistry;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+
+public class CircuitBreakerTest {
+
+	private CircuitBreakerRegistry registry;
+
+	private List<State> transitions;
+
+	@Before
+	public void setup() {
+		CircuitBreakerConfig config = new CircuitBreakerConfig();
+		config.setWindowSize(4);
+		config.setMinimumCalls(4);
+		config.setFailureRateThreshold(50);
+		config.setOpenDuration(50, TimeUnit.MILLISECONDS);
+		config.setHalfOpenCalls(1);
+
+		transitions = new ArrayList<State>();
+
+		registry = new CircuitBreakerRegistry(config);
+		registry.addListener(new CircuitBreakerListener() {
+			public void onStateTransition(UaaEndpointCategory category, State from, State to) {
+				transitions.add(to);
+			}
+		});
+	}
+
+	@Test
+	public void testOpensAndRecovers() throws Exception {
+		CircuitBreaker breaker = registry.get(UaaEndpointCategory.USERS);
+
+		call(breaker, false);
+		call(breaker, false);
+		call(breaker, true);
+		assertEquals(State.CLOSED, breaker.getState());
+
+		call(breaker, true);
+		assertEquals(State.OPEN, breaker.getState());
+		assertEquals("Other categories should be unaffected", State.CLOSED,
+				registry.get(UaaEndpointCategory.GROUPS).getState());
+
+		try {
+			breaker.acquirePermission();
+			fail("Open breaker should reject calls");
+		}
+		catch (CircuitBreakerOpenException expected) {
+			assertEquals(UaaEndpointCategory.USERS, expected.getCategory());
+		}
+
+		Thread.sleep(60);
+
+		breaker.acquirePermission();
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		breaker.onResult(0, false);
+
+		assertEquals(State.CLOSED, breaker.getState());
+		assertEquals(transitions.toString(), 3, transitions.size());
+	}
+
+	@Test
+	public void testFailedProbeReopens() throws Exception {
+		CircuitBreaker breaker = registry.get(UaaEndpointCategory.TOKEN);
+		for (int i = 0; i < 4; i++) {
+			call(breaker, true);
+		}
+
+		Thread.sleep(60);
+
+		call(breaker, true);
+		assertEquals(State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testTokenBreakerOpensWhenUaaIsDown() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+
+		ClientCredentialsResourceDetails credentials = new ClientCredentialsResourceDetails();
+		credentials.setAccessTokenUri("http://localhost:" + port + "/oauth/token");
+		credentials.setClientId("admin");
+		credentials.setClientSecret("adminsecret");
+
+		UaaConnectionHelper helper = new UaaConnectionHelper(new URL("http://localhost:" + port), credentials);
+		helper.setCircuitBreakers(registry);
+		for (int i = 0; i < 4; i++) {
+			getAccessToken(helper);
+		}
+		assertEquals(State.OPEN, registry.get(UaaEndpointCategory.TOKEN).getState());
+
+		try {
+			helper.getAccessToken();
+			fail("Open breaker should reject token requests");
+		}
+		catch (CircuitBreakerOpenException expected) {
+			assertEquals(UaaEndpointCategory.TOKEN, expected.getCategory());
+		}
+	}
+
+	@Test
+	public void testRejectedCredentialsDoNotOpenTokenBreaker() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			ClientCredentialsResourceDetails credentials = server.getClientCredentials();
+			credentials.setClientSecret("wrong");
+
+			UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), credentials);
+			helper.setCircuitBreakers(registry);
+			for (int i = 0; i < 4; i++) {
+				getAccessToken(helper);
+			}
+			assertEquals(State.CLOSED, registry.get(UaaEndpointCategory.TOKEN).getState());
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	private static void getAccessToken(UaaConnectionHelper helper) {
+		try {
+			helper.getAccessToken();
+			fail("Expected the token request to fail");
+		}
+		catch (OAuth2AccessDeniedException expected) {
+		}
+	}
+
+	private void call(CircuitBreaker breaker, boolean failed) {
+		breaker.acquirePermission();
+		breaker.onResult(0, failed);
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudfoundry.identity.uaa.api.UaaConnectionFactory;
+import org.cloudfoundry.identity.uaa.api.client.impl.ClientDetailsCache;
+import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
+import org.junit.Test;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+
+public class ClientDetailsCacheTest {
+	private static final String CREDENTIALS = "http://localhost/uaa/oauth/token admin";
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	private final Callable<BaseClientDetails> loader = new Callable<BaseClientDetails>() {
+		public BaseClientDetails call() throws Exception {
+			loads.incrementAndGet();
+			BaseClientDetails client = new BaseClientDetails();
+			client.setClientId("app");
+			client.setScope(Arrays.asList("openid"));
+			client.addAdditionalInformation("owner", "acme");
+			return client;
+		}
+	};
+
+	@Test
+	public void testReadThroughAndInvalidate() throws Exception {
+		ClientDetailsCache cache = new ClientDetailsCache(10, 1, TimeUnit.HOURS);
+
+		BaseClientDetails first = cache.get(CREDENTIALS, "app", loader);
+		assertEquals("app", cache.get(CREDENTIALS, "app", loader).getClientId());
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		cache.invalidate("app");
+		assertNotSame(first, cache.get(CREDENTIALS, "app", loader));
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testCallersGetCopies() throws Exception {
+		ClientDetailsCache cache = new ClientDetailsCache(10, 1, TimeUnit.HOURS);
+
+		BaseClientDetails first = cache.get(CREDENTIALS, "app", loader);
+		first.setScope(Arrays.asList("changed"));
+		BaseClientDetails second = cache.get(CREDENTIALS, "app", loader);
+		assertNotSame(first, second);
+		assertEquals(Collections.singleton("openid"), second.getScope());
+
+		second.addAdditionalInformation("owner", "other");
+		assertEquals("acme", cache.get(CREDENTIALS, "app", loader).getAdditionalInformation().get("owner"));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void testEntriesArePerCredentials() throws Exception {
+		ClientDetailsCache cache = new ClientDetailsCache(10, 1, TimeUnit.HOURS);
+
+		cache.get(CREDENTIALS, "app", loader);
+		cache.get(CREDENTIALS + ":marissa", "app", loader);
+		assertEquals("Other credentials may see the client differently", 2, loads.get());
+
+		cache.invalidate("app");
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testSharedByFactoryConnections() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			ClientDetailsCache cache = new ClientDetailsCache(10, 1, TimeUnit.HOURS);
+			UaaConnection first = UaaConnectionFactory.getConnection(server.getUrl(), server.getClientCredentials(),
+					cache);
+			UaaConnection second = UaaConnectionFactory.getConnection(server.getUrl(),
+					server.getClientCredentials(), cache);
+
+			assertNotNull(first.clientOperations().findById(FakeUaaServer.ADMIN_CLIENT_ID));
+			assertNotNull(second.clientOperations().findById(FakeUaaServer.ADMIN_CLIENT_ID));
+			assertEquals(1, server.getRequestCount("GET", "/oauth/clients/{id}"));
+			assertEquals(1, cache.getHitCount());
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testSizeCap() throws Exception {
+		ClientDetailsCache cache = new ClientDetailsCache(2, 1, TimeUnit.HOURS);
+
+		cache.get(CREDENTIALS, "a", loader);
+		cache.get(CREDENTIALS, "b", loader);
+		cache.get(CREDENTIALS, "a", loader);
+		cache.get(CREDENTIALS, "c", loader);
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+
+		cache.get(CREDENTIALS, "a", loader);
+		assertEquals("Most recently used entry should have been kept", 3, loads.get());
+	}
+
+	@Test
+	public void testHotEntriesRefreshAhead() throws Exception {
+		ClientDetailsCache cache = new ClientDetailsCache(10, 500, TimeUnit.MILLISECONDS);
+
+		cache.get(CREDENTIALS, "app", loader);
+		Thread.sleep(420);
+		cache.get(CREDENTIALS, "app", loader);
+		cache.get(CREDENTIALS, "app", loader);
+
+		for (int i = 0; i < 100 && loads.get() < 2; i++) {
+			Thread.sleep(5);
+		}
+
+		assertEquals(2, loads.get());
+		assertEquals(1, cache.getRefreshCount());
+		assertEquals("Refresh should not have been a miss", 1, cache.getMissCount());
+	}
+}
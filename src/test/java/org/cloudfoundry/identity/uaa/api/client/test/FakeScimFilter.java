@@ -0,0 +1,358 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import java.math.BigDecimal;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A SCIM filter expression, as accepted by {@link FakeUaaServer}. Supports the operators the client's
+ * {@link org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder} produces: <code>eq</code>,
+ * <code>co</code>, <code>sw</code>, <code>pr</code>, <code>gt</code>, <code>ge</code>, <code>lt</code>,
+ * <code>le</code>, <code>and</code>, <code>or</code> and parentheses. Attribute names are case insensitive, may be
+ * dotted (<code>meta.lastModified</code>, <code>members.value</code>) and match if any value of a multi-valued
+ * attribute matches.
+ */
+public abstract class FakeScimFilter {
+	/**
+	 * Matches everything
+	 */
+	public static final FakeScimFilter ALL = new FakeScimFilter() {
+		@Override
+		public boolean matches(JsonNode resource) {
+			return true;
+		}
+	};
+
+	private static final String[] DATE_PATTERNS = { "yyyy-MM-dd'T'HH:mm:ss.SSSX", "yyyy-MM-dd'T'HH:mm:ssX",
+			"yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ssXXX" };
+
+	/**
+	 * @param resource a SCIM resource as JSON
+	 * @return true if the resource satisfies the filter
+	 */
+	public abstract boolean matches(JsonNode resource);
+
+	/**
+	 * @param filter the filter expression, or null
+	 * @return the parsed filter
+	 * @throws IllegalArgumentException if the expression is invalid
+	 */
+	public static FakeScimFilter parse(String filter) {
+		if (filter == null || filter.trim().isEmpty()) {
+			return ALL;
+		}
+
+		Parser parser = new Parser(tokenize(filter));
+		FakeScimFilter parsed = parser.parseOr();
+		if (parser.position != parser.tokens.size()) {
+			throw new IllegalArgumentException("Unexpected '" + parser.tokens.get(parser.position) + "' in " + filter);
+		}
+
+		return parsed;
+	}
+
+	/**
+	 * @param resource a SCIM resource as JSON
+	 * @param attribute a dotted attribute path
+	 * @return every value at the path, descending into arrays
+	 */
+	public static List<JsonNode> valuesOf(JsonNode resource, String attribute) {
+		List<JsonNode> current = new ArrayList<JsonNode>();
+		current.add(resource);
+
+		for (String name : attribute.split("\\.")) {
+			List<JsonNode> next = new ArrayList<JsonNode>();
+			for (JsonNode node : current) {
+				JsonNode child = field(node, name);
+				if (child != null && child.isArray()) {
+					for (JsonNode element : child) {
+						next.add(element);
+					}
+				}
+				else if (child != null) {
+					next.add(child);
+				}
+			}
+			current = next;
+		}
+
+		return current;
+	}
+
+	/**
+	 * @param node a JSON object
+	 * @param name a field name, in any case
+	 * @return the field, or null
+	 */
+	public static JsonNode field(JsonNode node, String name) {
+		if (node == null || !node.isObject()) {
+			return null;
+		}
+
+		JsonNode exact = node.get(name);
+		if (exact != null) {
+			return exact;
+		}
+
+		for (Iterator<Map.Entry<String, JsonNode>> fields = node.fields(); fields.hasNext();) {
+			Map.Entry<String, JsonNode> field = fields.next();
+			if (field.getKey().equalsIgnoreCase(name)) {
+				return field.getValue();
+			}
+		}
+
+		return null;
+	}
+
+	private static List<Token> tokenize(String filter) {
+		List<Token> tokens = new ArrayList<Token>();
+
+		int i = 0;
+		while (i < filter.length()) {
+			char c = filter.charAt(i);
+
+			if (Character.isWhitespace(c)) {
+				i++;
+			}
+			else if (c == '(' || c == ')') {
+				tokens.add(new Token(String.valueOf(c), false));
+				i++;
+			}
+			else if (c == '"') {
+				StringBuilder value = new StringBuilder();
+				i++;
+				while (i < filter.length() && filter.charAt(i) != '"') {
+					if (filter.charAt(i) == '\\' && i + 1 < filter.length()) {
+						i++;
+					}
+					value.append(filter.charAt(i++));
+				}
+				if (i == filter.length()) {
+					throw new IllegalArgumentException("Unterminated string in " + filter);
+				}
+				tokens.add(new Token(value.toString(), true));
+				i++;
+			}
+			else {
+				int start = i;
+				while (i < filter.length() && !Character.isWhitespace(filter.charAt(i)) && filter.charAt(i) != '('
+						&& filter.charAt(i) != ')') {
+					i++;
+				}
+				tokens.add(new Token(filter.substring(start, i), false));
+			}
+		}
+
+		return tokens;
+	}
+
+	private static boolean compare(JsonNode value, String operator, Token operand) {
+		if (value.isNull() || value.isContainerNode()) {
+			return false;
+		}
+
+		String actual = value.asText();
+		String expected = operand.text;
+
+		if ("eq".equals(operator)) {
+			if (value.isNumber() && !operand.quoted) {
+				return new BigDecimal(actual).compareTo(new BigDecimal(expected)) == 0;
+			}
+			return actual.equalsIgnoreCase(expected);
+		}
+		else if ("co".equals(operator)) {
+			return actual.toLowerCase().contains(expected.toLowerCase());
+		}
+		else if ("sw".equals(operator)) {
+			return actual.toLowerCase().startsWith(expected.toLowerCase());
+		}
+
+		int comparison;
+		Date actualDate = parseDate(actual);
+		Date expectedDate = parseDate(expected);
+		if (actualDate != null && expectedDate != null) {
+			comparison = actualDate.compareTo(expectedDate);
+		}
+		else if (value.isNumber() && !operand.quoted) {
+			comparison = new BigDecimal(actual).compareTo(new BigDecimal(expected));
+		}
+		else {
+			comparison = actual.compareToIgnoreCase(expected);
+		}
+
+		if ("gt".equals(operator)) {
+			return comparison > 0;
+		}
+		else if ("ge".equals(operator)) {
+			return comparison >= 0;
+		}
+		else if ("lt".equals(operator)) {
+			return comparison < 0;
+		}
+		return comparison <= 0;
+	}
+
+	private static Date parseDate(String text) {
+		if (text.length() < 20 || text.charAt(10) != 'T') {
+			return null;
+		}
+
+		for (String pattern : DATE_PATTERNS) {
+			SimpleDateFormat format = new SimpleDateFormat(pattern);
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			format.setLenient(false);
+
+			ParsePosition position = new ParsePosition(0);
+			Date date = format.parse(text, position);
+			if (date != null && position.getIndex() == text.length()) {
+				return date;
+			}
+		}
+
+		return null;
+	}
+
+	private static class Token {
+		private final String text;
+
+		private final boolean quoted;
+
+		Token(String text, boolean quoted) {
+			this.text = text;
+			this.quoted = quoted;
+		}
+
+		boolean is(String keyword) {
+			return !quoted && text.equalsIgnoreCase(keyword);
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+
+	private static class Parser {
+		private final List<Token> tokens;
+
+		private int position;
+
+		Parser(List<Token> tokens) {
+			this.tokens = tokens;
+		}
+
+		FakeScimFilter parseOr() {
+			FakeScimFilter left = parseAnd();
+			while (peekIs("or")) {
+				position++;
+				final FakeScimFilter first = left;
+				final FakeScimFilter second = parseAnd();
+				left = new FakeScimFilter() {
+					@Override
+					public boolean matches(JsonNode resource) {
+						return first.matches(resource) || second.matches(resource);
+					}
+				};
+			}
+			return left;
+		}
+
+		FakeScimFilter parseAnd() {
+			FakeScimFilter left = parseTerm();
+			while (peekIs("and")) {
+				position++;
+				final FakeScimFilter first = left;
+				final FakeScimFilter second = parseTerm();
+				left = new FakeScimFilter() {
+					@Override
+					public boolean matches(JsonNode resource) {
+						return first.matches(resource) && second.matches(resource);
+					}
+				};
+			}
+			return left;
+		}
+
+		FakeScimFilter parseTerm() {
+			if (peekIs("(")) {
+				position++;
+				FakeScimFilter inner = parseOr();
+				if (!next().is(")")) {
+					throw new IllegalArgumentException("Expected )");
+				}
+				return inner;
+			}
+
+			final String attribute = next().text;
+			final String operator = next().text.toLowerCase();
+
+			if ("pr".equals(operator)) {
+				return new FakeScimFilter() {
+					@Override
+					public boolean matches(JsonNode resource) {
+						for (JsonNode value : valuesOf(resource, attribute)) {
+							if (!value.isNull() && !(value.isTextual() && value.textValue().isEmpty())) {
+								return true;
+							}
+						}
+						return false;
+					}
+				};
+			}
+
+			if (!operator.matches("eq|co|sw|gt|ge|lt|le")) {
+				throw new IllegalArgumentException("Unsupported operator " + operator);
+			}
+
+			final Token operand = next();
+			return new FakeScimFilter() {
+				@Override
+				public boolean matches(JsonNode resource) {
+					List<JsonNode> values = valuesOf(resource, attribute);
+					if (operand.is("null")) {
+						return "eq".equals(operator) && (values.isEmpty() || values.get(0).isNull());
+					}
+
+					for (JsonNode value : values) {
+						if (compare(value, operator, operand)) {
+							return true;
+						}
+					}
+					return false;
+				}
+			};
+		}
+
+		private boolean peekIs(String keyword) {
+			return position < tokens.size() && tokens.get(position).is(keyword);
+		}
+
+		private Token next() {
+			if (position == tokens.size()) {
+				throw new IllegalArgumentException("Unexpected end of filter");
+			}
+			return tokens.get(position++);
+		}
+	}
+}
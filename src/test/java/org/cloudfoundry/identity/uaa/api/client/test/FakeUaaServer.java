@@ -0,0 +1,1547 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cloudfoundry.identity.uaa.scim.ScimCore;
+import org.cloudfoundry.identity.uaa.scim.ScimMeta;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.client.token.grant.password.ResourceOwnerPasswordResourceDetails;
+import org.springframework.security.oauth2.common.AuthenticationScheme;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-memory stand-in for the UAA, for testing the client offline. It serves <code>/oauth/token</code> (client
+ * credentials, password and refresh token grants), <code>/check_token</code>, <code>/token_keys</code>,
+ * <code>/Users</code>, <code>/Groups</code>, <code>/Groups/External</code> and <code>/oauth/clients</code> under
+ * <code>/uaa</code>, with SCIM filtering ({@link FakeScimFilter}), paging, attribute selection, versioning through
+ * <code>If-Match</code> and ETags on every GET. Users carry the groups they belong to, directly or through nested
+ * groups, as the real UAA reports them.
+ * <p>
+ * Latency and errors can be injected per path prefix, and every request is counted by method and route, so retry,
+ * hedging and caching behavior can be checked deterministically. A client <code>admin</code> with secret
+ * <code>adminsecret</code> is registered at startup.
+ */
+public class FakeUaaServer {
+	public static final String ADMIN_CLIENT_ID = "admin";
+
+	public static final String ADMIN_CLIENT_SECRET = "adminsecret";
+
+	private static final String CONTEXT = "/uaa";
+
+	private static final List<String> SCHEMAS = Arrays.asList(ScimCore.SCHEMAS);
+
+	static {
+		// without TCP_NODELAY, delayed ACKs on loopback add ~40ms to every request. Must be set before the first
+		// server is created.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Map<String, ObjectNode> users = new LinkedHashMap<String, ObjectNode>();
+
+	private final Map<String, String> passwords = new HashMap<String, String>();
+
+	private final Map<String, ObjectNode> groups = new LinkedHashMap<String, ObjectNode>();
+
+	private final List<ObjectNode> mappings = new ArrayList<ObjectNode>();
+
+	private final Map<String, ObjectNode> clients = new LinkedHashMap<String, ObjectNode>();
+
+	private final Map<String, String> clientSecrets = new HashMap<String, String>();
+
+	private final ConcurrentMap<String, IssuedToken> accessTokens = new ConcurrentHashMap<String, IssuedToken>();
+
+	private final ConcurrentMap<String, IssuedToken> refreshTokens = new ConcurrentHashMap<String, IssuedToken>();
+
+	private final ConcurrentMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private final List<Fault> faults = new CopyOnWriteArrayList<Fault>();
+
+	private final Map<String, KeyPair> tokenKeys = new LinkedHashMap<String, KeyPair>();
+
+	private volatile int tokenValiditySeconds = 43200;
+
+	private volatile long clockOffsetMillis;
+
+	/**
+	 * Start a server on an ephemeral port of the loopback interface
+	 * 
+	 * @throws IOException if the server cannot be started
+	 */
+	public FakeUaaServer() throws IOException {
+		registerClient(ADMIN_CLIENT_ID, ADMIN_CLIENT_SECRET, "client_credentials", "password", "refresh_token");
+
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext(CONTEXT, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				FakeUaaServer.this.handle(exchange);
+			}
+		});
+
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "fake-uaa-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return the base URL of the fake UAA, for example <code>http://localhost:54321/uaa</code>
+	 */
+	public URL getUrl() {
+		try {
+			return new URL("http", "localhost", server.getAddress().getPort(), CONTEXT);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return credentials for the <code>admin</code> client
+	 */
+	public ClientCredentialsResourceDetails getClientCredentials() {
+		ClientCredentialsResourceDetails credentials = new ClientCredentialsResourceDetails();
+		credentials.setAccessTokenUri(getUrl() + "/oauth/token");
+		credentials.setClientAuthenticationScheme(AuthenticationScheme.header);
+		credentials.setClientId(ADMIN_CLIENT_ID);
+		credentials.setClientSecret(ADMIN_CLIENT_SECRET);
+
+		return credentials;
+	}
+
+	/**
+	 * @param userName a user added with {@link #addUser(String, String)}
+	 * @param password the user's password
+	 * @return password grant credentials for the user, through the <code>admin</code> client
+	 */
+	public ResourceOwnerPasswordResourceDetails getUserCredentials(String userName, String password) {
+		ResourceOwnerPasswordResourceDetails credentials = new ResourceOwnerPasswordResourceDetails();
+		credentials.setAccessTokenUri(getUrl() + "/oauth/token");
+		credentials.setClientAuthenticationScheme(AuthenticationScheme.header);
+		credentials.setClientId(ADMIN_CLIENT_ID);
+		credentials.setClientSecret(ADMIN_CLIENT_SECRET);
+		credentials.setUsername(userName);
+		credentials.setPassword(password);
+
+		return credentials;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Register a client that can get tokens
+	 * 
+	 * @param clientId the client ID
+	 * @param secret the client secret
+	 * @param grantTypes the grants the client may use
+	 */
+	public void registerClient(String clientId, String secret, String... grantTypes) {
+		ObjectNode client = mapper.createObjectNode();
+		client.put("client_id", clientId);
+		client.putArray("scope").add("openid").add("scim.read").add("scim.write");
+		client.putArray("resource_ids").add("none");
+		ArrayNode grants = client.putArray("authorized_grant_types");
+		for (String grantType : grantTypes) {
+			grants.add(grantType);
+		}
+		client.putArray("authorities").add("clients.read").add("clients.write").add("clients.secret")
+				.add("scim.read").add("scim.write").add("uaa.admin");
+
+		lock.writeLock().lock();
+		try {
+			clients.put(clientId, client);
+			clientSecrets.put(clientId, secret);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Add a user directly, without going through the API
+	 * 
+	 * @param userName the user name
+	 * @param password the password
+	 * @return the new user's ID
+	 */
+	public String addUser(String userName, String password) {
+		ObjectNode user = mapper.createObjectNode();
+		user.put("userName", userName);
+		user.putObject("name").put("givenName", userName).put("familyName", "User");
+		user.putArray("emails").addObject().put("value", userName + "@example.com").put("primary", true);
+		user.put("password", password);
+
+		lock.writeLock().lock();
+		try {
+			return createUser(user).get("id").asText();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Add a group directly, without going through the API
+	 * 
+	 * @param displayName the group name
+	 * @param memberIds the IDs of the users and groups that are members
+	 * @return the new group's ID
+	 */
+	public String addGroup(String displayName, String... memberIds) {
+		ObjectNode group = mapper.createObjectNode();
+		group.put("displayName", displayName);
+
+		lock.writeLock().lock();
+		try {
+			ArrayNode members = group.putArray("members");
+			for (String memberId : memberIds) {
+				members.addObject().put("value", memberId).put("type", groups.containsKey(memberId) ? "GROUP" : "USER")
+						.put("origin", "uaa");
+			}
+
+			return createGroup(group).get("id").asText();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Add members to a group directly, without going through the API. The group's version is incremented as an update
+	 * through the API would.
+	 * 
+	 * @param groupId the group's ID
+	 * @param memberIds the IDs of the users and groups to add
+	 */
+	public void addMembers(String groupId, String... memberIds) {
+		lock.writeLock().lock();
+		try {
+			ObjectNode existing = groups.get(groupId);
+			if (existing == null) {
+				throw new IllegalArgumentException("No group " + groupId);
+			}
+
+			ObjectNode group = update(existing, existing.deepCopy());
+			ArrayNode members = (ArrayNode) group.get("members");
+			for (String memberId : memberIds) {
+				members.addObject().put("value", memberId).put("type", groups.containsKey(memberId) ? "GROUP" : "USER")
+						.put("origin", "uaa");
+			}
+
+			groups.put(groupId, group);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sign a JWT with an RSA key published on <code>/token_keys</code>, creating the key if it is new
+	 * 
+	 * @param kid the key ID
+	 * @param claims the claims
+	 * @return the encoded token
+	 */
+	public String signToken(String kid, Map<String, ?> claims) {
+		try {
+			KeyPair keyPair;
+			synchronized (tokenKeys) {
+				keyPair = tokenKeys.get(kid);
+				if (keyPair == null) {
+					KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+					generator.initialize(2048);
+					keyPair = generator.generateKeyPair();
+					tokenKeys.put(kid, keyPair);
+				}
+			}
+
+			ObjectNode header = mapper.createObjectNode();
+			header.put("alg", "RS256");
+			header.put("kid", kid);
+			header.put("typ", "JWT");
+
+			String content = Base64.encodeBase64URLSafeString(mapper.writeValueAsBytes(header)) + "."
+					+ Base64.encodeBase64URLSafeString(mapper.writeValueAsBytes(claims));
+
+			Signature signature = Signature.getInstance("SHA256withRSA");
+			signature.initSign(keyPair.getPrivate());
+			signature.update(content.getBytes("US-ASCII"));
+			return content + "." + Base64.encodeBase64URLSafeString(signature.sign());
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Stop publishing a signing key, as the UAA does when a key is rotated out
+	 * 
+	 * @param kid the key ID
+	 */
+	public void removeTokenKey(String kid) {
+		synchronized (tokenKeys) {
+			tokenKeys.remove(kid);
+		}
+	}
+
+	/**
+	 * @param tokenValiditySeconds the lifetime of access tokens issued from now on; if negative, they are issued
+	 * already expired
+	 */
+	public void setTokenValiditySeconds(int tokenValiditySeconds) {
+		this.tokenValiditySeconds = tokenValiditySeconds;
+	}
+
+	/**
+	 * Move the clock that dates the users, groups and mappings the server creates and modifies, and that expires the
+	 * access tokens it issues
+	 * 
+	 * @param amount how far to move it forward, or back if negative
+	 * @param unit the unit of the amount
+	 */
+	public void advanceClock(long amount, TimeUnit unit) {
+		clockOffsetMillis += unit.toMillis(amount);
+	}
+
+	/**
+	 * Issue an access token directly, without going through the token endpoint
+	 * 
+	 * @param clientId the client the token is for
+	 * @param userId the user the token is for, or null for a client token
+	 * @return the token
+	 */
+	public String issueAccessToken(String clientId, String userId) {
+		long expiresAt = now().getTime() + TimeUnit.SECONDS.toMillis(tokenValiditySeconds);
+		IssuedToken token = new IssuedToken(UUID.randomUUID().toString(), clientId, userId, expiresAt);
+		accessTokens.put(token.value, token);
+		return token.value;
+	}
+
+	/**
+	 * Forget every access token issued so far, so requests using them are rejected with 401. Refresh tokens remain
+	 * valid.
+	 */
+	public void revokeAccessTokens() {
+		accessTokens.clear();
+	}
+
+	/**
+	 * Forget every refresh token issued so far, so refreshing fails with <code>invalid_grant</code>
+	 */
+	public void revokeRefreshTokens() {
+		refreshTokens.clear();
+	}
+
+	/**
+	 * Delay requests to matching paths by a random time between the bounds
+	 * 
+	 * @param pathPrefix the path relative to <code>/uaa</code>, for example <code>/Users</code>; empty for all paths
+	 */
+	public void injectLatency(String pathPrefix, long minimum, long maximum, TimeUnit unit) {
+		faults.add(new Fault(pathPrefix, unit.toNanos(minimum), unit.toNanos(maximum), 0, -1, 0));
+	}
+
+	/**
+	 * Delay the next requests to matching paths
+	 * 
+	 * @param pathPrefix the path relative to <code>/uaa</code>; empty for all paths
+	 * @param count the number of requests to delay
+	 */
+	public void delayNext(String pathPrefix, int count, long delay, TimeUnit unit) {
+		faults.add(new Fault(pathPrefix, unit.toNanos(delay), unit.toNanos(delay), 0, count, 0));
+	}
+
+	/**
+	 * Fail a random fraction of requests to matching paths
+	 * 
+	 * @param pathPrefix the path relative to <code>/uaa</code>; empty for all paths
+	 * @param ratio the fraction of requests to fail, between 0 and 1
+	 * @param status the HTTP status to fail with
+	 */
+	public void injectErrors(String pathPrefix, double ratio, int status) {
+		faults.add(new Fault(pathPrefix, 0, 0, ratio, -1, status));
+	}
+
+	/**
+	 * Fail the next requests to matching paths
+	 * 
+	 * @param pathPrefix the path relative to <code>/uaa</code>; empty for all paths
+	 * @param count the number of requests to fail
+	 * @param status the HTTP status to fail with
+	 */
+	public void failNext(String pathPrefix, int count, int status) {
+		faults.add(new Fault(pathPrefix, 0, 0, 0, count, status));
+	}
+
+	/**
+	 * Remove all injected latency and errors
+	 */
+	public void clearFaults() {
+		faults.clear();
+	}
+
+	/**
+	 * @param method the HTTP method
+	 * @param route the route template, for example <code>/Users</code>, <code>/Users/{id}</code> or
+	 * <code>/oauth/token</code>
+	 * @return the number of requests received for the route, including failed ones
+	 */
+	public int getRequestCount(String method, String route) {
+		AtomicInteger count = requestCounts.get(method + " " + route);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @param grantType a grant type, such as <code>client_credentials</code> or <code>refresh_token</code>
+	 * @return the number of tokens issued for the grant
+	 */
+	public int getTokenGrantCount(String grantType) {
+		return getRequestCount("POST", "/oauth/token?grant_type=" + grantType);
+	}
+
+	/**
+	 * @return the total number of requests received
+	 */
+	public int getRequestCount() {
+		int total = 0;
+		for (Map.Entry<String, AtomicInteger> entry : requestCounts.entrySet()) {
+			if (!entry.getKey().contains("?")) {
+				total += entry.getValue().get();
+			}
+		}
+		return total;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		Response response;
+		try {
+			String path = exchange.getRequestURI().getRawPath().substring(CONTEXT.length());
+			response = route(exchange, exchange.getRequestMethod(), path);
+		}
+		catch (FakeError e) {
+			response = e.response;
+		}
+		catch (IllegalArgumentException e) {
+			response = error(400, "invalid_request", e.getMessage());
+		}
+		catch (RuntimeException e) {
+			response = error(500, "server_error", e.toString());
+		}
+
+		try {
+			if (response.etag != null) {
+				exchange.getResponseHeaders().set("ETag", response.etag);
+				if (response.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					exchange.sendResponseHeaders(304, -1);
+					return;
+				}
+			}
+
+			if (response.body == null) {
+				exchange.sendResponseHeaders(response.status, -1);
+			}
+			else {
+				byte[] body = mapper.writeValueAsBytes(response.body);
+				exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+				exchange.sendResponseHeaders(response.status, body.length);
+
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Count a request and apply any faults injected for its path
+	 */
+	private void receive(String method, String route, String path) {
+		count(method, route);
+		applyFaults(path);
+	}
+
+	private void applyFaults(String path) {
+		for (Fault fault : faults) {
+			if (!path.startsWith(fault.pathPrefix)) {
+				continue;
+			}
+
+			if (fault.limited && fault.remaining.getAndDecrement() <= 0) {
+				continue;
+			}
+
+			if (fault.maxLatencyNanos > 0) {
+				long latency = fault.minLatencyNanos;
+				if (fault.maxLatencyNanos > fault.minLatencyNanos) {
+					latency += ThreadLocalRandom.current().nextLong(fault.maxLatencyNanos - fault.minLatencyNanos);
+				}
+
+				try {
+					TimeUnit.NANOSECONDS.sleep(latency);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			if (fault.status > 0 && (fault.limited || ThreadLocalRandom.current().nextDouble() < fault.ratio)) {
+				throw new FakeError(error(fault.status, "injected", "Injected failure"));
+			}
+		}
+	}
+
+	private Response route(HttpExchange exchange, String method, String path) throws IOException {
+		String[] segments = path.length() <= 1 ? new String[0] : path.substring(1).split("/");
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = percentDecode(segments[i]);
+		}
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+		if (segments.length == 2 && "oauth".equals(segments[0]) && "token".equals(segments[1])) {
+			receive(method, "/oauth/token", path);
+			return token(exchange);
+		}
+		if (segments.length == 1 && "check_token".equals(segments[0])) {
+			receive(method, "/check_token", path);
+			return checkToken(exchange);
+		}
+		if (segments.length == 1 && "token_keys".equals(segments[0])) {
+			receive(method, "/token_keys", path);
+			return tokenKeys();
+		}
+		if (segments.length == 1 && "healthz".equals(segments[0])) {
+			receive(method, "/healthz", path);
+			return new Response(200, mapper.getNodeFactory().textNode("ok"), null);
+		}
+
+		if (segments.length >= 1 && "Users".equals(segments[0])) {
+			return users(exchange, method, path, segments, query);
+		}
+		if (segments.length >= 2 && "Groups".equals(segments[0]) && "External".equals(segments[1])) {
+			return mappings(exchange, method, path, segments, query);
+		}
+		if (segments.length >= 1 && "Groups".equals(segments[0])) {
+			return groups(exchange, method, path, segments, query);
+		}
+		if (segments.length >= 2 && "oauth".equals(segments[0]) && "clients".equals(segments[1])) {
+			return clients(exchange, method, path, segments, query);
+		}
+
+		receive(method, path, path);
+		throw new FakeError(error(404, "not_found", "No such endpoint " + path));
+	}
+
+	private Response users(HttpExchange exchange, String method, String path, String[] segments,
+			Map<String, String> query) throws IOException {
+		String route = segments.length == 1 ? "/Users" : segments.length == 2 ? "/Users/{id}" : "/Users/{id}/"
+				+ segments[2];
+		receive(method, route, path);
+		authenticate(exchange);
+
+		if ("/Users".equals(route) && "GET".equals(method)) {
+			lock.readLock().lock();
+			try {
+				Map<String, List<ObjectNode>> memberships = membershipIndex();
+				List<JsonNode> rendered = new ArrayList<JsonNode>(users.size());
+				for (ObjectNode user : users.values()) {
+					rendered.add(renderUser(user, memberships));
+				}
+				return search(rendered, query);
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+		else if ("/Users".equals(route) && "POST".equals(method)) {
+			ObjectNode body = readObject(exchange);
+			lock.writeLock().lock();
+			try {
+				return new Response(201, renderUser(createUser(body), membershipIndex()), null);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+		else if ("/Users/{id}".equals(route) && "GET".equals(method)) {
+			lock.readLock().lock();
+			try {
+				ObjectNode user = find(users, segments[1]);
+				return new Response(200, renderUser(user, membershipIndex()), versionTag(user));
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+		else if ("/Users/{id}".equals(route) && "PUT".equals(method)) {
+			ObjectNode body = readObject(exchange);
+			lock.writeLock().lock();
+			try {
+				ObjectNode existing = find(users, segments[1]);
+				checkVersion(exchange, existing);
+				checkUnique(users.values(), "userName", body, existing);
+
+				body.remove("password");
+				body.remove("groups");
+				ObjectNode updated = update(existing, body);
+				users.put(segments[1], updated);
+				return new Response(200, renderUser(updated, membershipIndex()), versionTag(updated));
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+		else if ("/Users/{id}".equals(route) && "DELETE".equals(method)) {
+			lock.writeLock().lock();
+			try {
+				ObjectNode user = find(users, segments[1]);
+				JsonNode rendered = renderUser(user, membershipIndex());
+				users.remove(segments[1]);
+				passwords.remove(segments[1]);
+				removeMember(segments[1]);
+				return new Response(200, rendered, null);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+		else if ("/Users/{id}/password".equals(route) && "PUT".equals(method)) {
+			ObjectNode body = readObject(exchange);
+			lock.writeLock().lock();
+			try {
+				find(users, segments[1]);
+				String oldPassword = body.path("oldPassword").asText(null);
+				if (oldPassword != null && !oldPassword.equals(passwords.get(segments[1]))) {
+					throw new FakeError(error(401, "unauthorized", "Old password is incorrect"));
+				}
+				passwords.put(segments[1], body.path("password").asText());
+				return status("password updated");
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		throw new FakeError(error(405, "method_not_allowed", method + " " + route));
+	}
+
+	private Response groups(HttpExchange exchange, String method, String path, String[] segments,
+			Map<String, String> query) throws IOException {
+		String route = segments.length == 1 ? "/Groups" : "/Groups/{id}";
+		receive(method, route, path);
+		authenticate(exchange);
+
+		if ("/Groups".equals(route) && "GET".equals(method)) {
+			lock.readLock().lock();
+			try {
+				return search(new ArrayList<JsonNode>(groups.values()), query);
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+		else if ("/Groups".equals(route) && "POST".equals(method)) {
+			ObjectNode body = readObject(exchange);
+			lock.writeLock().lock();
+			try {
+				return new Response(201, createGroup(body), null);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+		else if ("GET".equals(method)) {
+			lock.readLock().lock();
+			try {
+				ObjectNode group = find(groups, segments[1]);
+				return new Response(200, group, versionTag(group));
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+		else if ("PUT".equals(method)) {
+			ObjectNode body = readObject(exchange);
+			lock.writeLock().lock();
+			try {
+				ObjectNode existing = find(groups, segments[1]);
+				checkVersion(exchange, existing);
+				checkUnique(groups.values(), "displayName", body, existing);
+
+				normalizeMembers(body);
+				ObjectNode updated = update(existing, body);
+				groups.put(segments[1], updated);
+				return new Response(200, updated, versionTag(updated));
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+		else if ("DELETE".equals(method)) {
+			lock.writeLock().lock();
+			try {
+				ObjectNode group = find(groups, segments[1]);
+				groups.remove(segments[1]);
+				removeMember(segments[1]);
+				for (Iterator<ObjectNode> iter = mappings.iterator(); iter.hasNext();) {
+					if (segments[1].equals(iter.next().path("groupId").asText())) {
+						iter.remove();
+					}
+				}
+				return new Response(200, group, null);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		throw new FakeError(error(405, "method_not_allowed", method + " " + route));
+	}
+
+	private Response mappings(HttpExchange exchange, String method, String path, String[] segments,
+			Map<String, String> query) throws IOException {
+		String route = segments.length == 2 ? "/Groups/External"
+				: "/Groups/External/{type}/{id}/externalGroup/{externalGroup}";
+		receive(method, route, path);
+		authenticate(exchange);
+
+		if (segments.length == 2 && "GET".equals(method)) {
+			lock.readLock().lock();
+			try {
+				return search(new ArrayList<JsonNode>(mappings), query);
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+		else if (segments.length == 2 && "POST".equals(method)) {
+			ObjectNode body = readObject(exchange);
+			lock.writeLock().lock();
+			try {
+				ObjectNode group = null;
+				if (body.hasNonNull("groupId")) {
+					group = find(groups, body.get("groupId").asText());
+				}
+				else {
+					group = findGroupByName(body.path("displayName").asText());
+				}
+
+				ObjectNode mapping = mapper.createObjectNode();
+				mapping.put("groupId", group.get("id").asText());
+				mapping.put("displayName", group.get("displayName").asText());
+				mapping.put("externalGroup", body.path("externalGroup").asText());
+				mapping.put("origin", "ldap");
+				Date now = now();
+				mapping.set("meta", meta(now, now, 0));
+				mapping.set("schemas", mapper.valueToTree(SCHEMAS));
+				mappings.add(mapping);
+
+				return new Response(201, mapping, null);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+		else if (segments.length == 6 && "externalGroup".equals(segments[4]) && "DELETE".equals(method)) {
+			lock.writeLock().lock();
+			try {
+				for (Iterator<ObjectNode> iter = mappings.iterator(); iter.hasNext();) {
+					ObjectNode mapping = iter.next();
+					if (segments[3].equals(mapping.path(segments[2]).asText())
+							&& segments[5].equals(mapping.path("externalGroup").asText())) {
+						iter.remove();
+						return new Response(200, mapping, null);
+					}
+				}
+				throw new FakeError(error(404, "scim_resource_not_found", "No such mapping"));
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		throw new FakeError(error(405, "method_not_allowed", method + " " + route));
+	}
+
+	private Response clients(HttpExchange exchange, String method, String path, String[] segments,
+			Map<String, String> query) throws IOException {
+		String route = segments.length == 2 ? "/oauth/clients" : segments.length == 3 ? "/oauth/clients/{id}"
+				: "/oauth/clients/{id}/" + segments[3];
+		receive(method, route, path);
+		authenticate(exchange);
+
+		if ("/oauth/clients".equals(route) && "GET".equals(method)) {
+			lock.readLock().lock();
+			try {
+				return search(new ArrayList<JsonNode>(clients.values()), query);
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+		else if ("/oauth/clients".equals(route) && "POST".equals(method)) {
+			ObjectNode body = readObject(exchange);
+			lock.writeLock().lock();
+			try {
+				String clientId = body.path("client_id").asText(null);
+				if (clientId == null || clientId.isEmpty()) {
+					throw new FakeError(error(400, "invalid_client", "client_id is required"));
+				}
+				if (clients.containsKey(clientId)) {
+					throw new FakeError(error(409, "invalid_client", "Client already exists: " + clientId));
+				}
+
+				JsonNode secret = body.remove("client_secret");
+				clientSecrets.put(clientId, secret == null ? null : secret.asText());
+				clients.put(clientId, body);
+				return new Response(201, body, null);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+		else if ("/oauth/clients/{id}".equals(route) && "GET".equals(method)) {
+			lock.readLock().lock();
+			try {
+				ObjectNode client = find(clients, segments[2]);
+				return new Response(200, client, null);
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+		else if ("/oauth/clients/{id}".equals(route) && "PUT".equals(method)) {
+			ObjectNode body = readObject(exchange);
+			lock.writeLock().lock();
+			try {
+				find(clients, segments[2]);
+				body.remove("client_secret");
+				body.put("client_id", segments[2]);
+				clients.put(segments[2], body);
+				return new Response(200, body, null);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+		else if ("/oauth/clients/{id}".equals(route) && "DELETE".equals(method)) {
+			lock.writeLock().lock();
+			try {
+				ObjectNode client = find(clients, segments[2]);
+				clients.remove(segments[2]);
+				clientSecrets.remove(segments[2]);
+				return new Response(200, client, null);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+		else if ("/oauth/clients/{id}/secret".equals(route) && "PUT".equals(method)) {
+			ObjectNode body = readObject(exchange);
+			lock.writeLock().lock();
+			try {
+				find(clients, segments[2]);
+				String oldSecret = body.path("oldSecret").asText(null);
+				if (oldSecret != null && !oldSecret.equals(clientSecrets.get(segments[2]))) {
+					throw new FakeError(error(400, "invalid_client", "Previous secret is required and must be valid"));
+				}
+				clientSecrets.put(segments[2], body.path("secret").asText());
+				return status("secret updated");
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		throw new FakeError(error(405, "method_not_allowed", method + " " + route));
+	}
+
+	private Response token(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			throw new FakeError(error(405, "method_not_allowed", "Use POST"));
+		}
+
+		Map<String, String> form = parseForm(new String(readBody(exchange), "UTF-8"));
+
+		String clientId = form.get("client_id");
+		String clientSecret = form.get("client_secret");
+		String[] basic = basicCredentials(exchange);
+		if (basic != null) {
+			clientId = basic[0];
+			clientSecret = basic[1];
+		}
+
+		String grantType = form.get("grant_type");
+		String userId = null;
+		IssuedToken refreshed = null;
+
+		lock.readLock().lock();
+		try {
+			ObjectNode client = clients.get(clientId);
+			if (client == null || clientSecret == null || !clientSecret.equals(clientSecrets.get(clientId))) {
+				throw new FakeError(error(401, "invalid_client", "Bad client credentials"));
+			}
+
+			boolean allowed = false;
+			for (JsonNode grant : client.path("authorized_grant_types")) {
+				allowed |= grant.asText().equals(grantType);
+			}
+			if (!allowed) {
+				throw new FakeError(error(400, "unsupported_grant_type", "Grant not allowed: " + grantType));
+			}
+
+			if ("password".equals(grantType)) {
+				ObjectNode user = findUserByName(form.get("username"));
+				userId = user == null ? null : user.get("id").asText();
+				if (userId == null || passwords.get(userId) == null
+						|| !passwords.get(userId).equals(form.get("password"))) {
+					throw new FakeError(error(400, "invalid_grant", "Bad credentials"));
+				}
+			}
+			else if ("refresh_token".equals(grantType)) {
+				refreshed = refreshTokens.get(String.valueOf(form.get("refresh_token")));
+				if (refreshed == null || !refreshed.clientId.equals(clientId)) {
+					throw new FakeError(error(400, "invalid_grant", "Invalid refresh token"));
+				}
+				userId = refreshed.userId;
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+
+		count("POST", "/oauth/token?grant_type=" + grantType);
+
+		long expiresAt = now().getTime() + TimeUnit.SECONDS.toMillis(tokenValiditySeconds);
+		IssuedToken token = new IssuedToken(UUID.randomUUID().toString(), clientId, userId, expiresAt);
+		accessTokens.put(token.value, token);
+
+		ObjectNode body = mapper.createObjectNode();
+		body.put("access_token", token.value);
+		body.put("token_type", "bearer");
+		body.put("expires_in", tokenValiditySeconds);
+		body.put("scope", "scim.read scim.write");
+		body.put("jti", token.value);
+
+		if (refreshed != null) {
+			body.put("refresh_token", refreshed.value);
+		}
+		else if (userId != null) {
+			IssuedToken refresh = new IssuedToken(UUID.randomUUID().toString(), clientId, userId, Long.MAX_VALUE);
+			refreshTokens.put(refresh.value, refresh);
+			body.put("refresh_token", refresh.value);
+		}
+
+		return new Response(200, body, null);
+	}
+
+	private Response tokenKeys() {
+		ObjectNode body = mapper.createObjectNode();
+		ArrayNode keys = body.putArray("keys");
+		synchronized (tokenKeys) {
+			for (Map.Entry<String, KeyPair> entry : tokenKeys.entrySet()) {
+				RSAPublicKey publicKey = (RSAPublicKey) entry.getValue().getPublic();
+				ObjectNode key = keys.addObject();
+				key.put("kty", "RSA");
+				key.put("kid", entry.getKey());
+				key.put("alg", "RS256");
+				key.put("use", "sig");
+				key.put("value", "-----BEGIN PUBLIC KEY-----\n"
+						+ Base64.encodeBase64String(publicKey.getEncoded()) + "\n-----END PUBLIC KEY-----");
+				key.put("n", Base64.encodeBase64URLSafeString(unsigned(publicKey.getModulus().toByteArray())));
+				key.put("e", Base64.encodeBase64URLSafeString(publicKey.getPublicExponent().toByteArray()));
+			}
+		}
+		return new Response(200, body, null);
+	}
+
+	private static byte[] unsigned(byte[] bytes) {
+		return bytes.length > 1 && bytes[0] == 0 ? Arrays.copyOfRange(bytes, 1, bytes.length) : bytes;
+	}
+
+	private Response checkToken(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			throw new FakeError(error(405, "method_not_allowed", "Use POST"));
+		}
+
+		String[] basic = basicCredentials(exchange);
+		lock.readLock().lock();
+		try {
+			if (basic == null || !clients.containsKey(basic[0]) || !basic[1].equals(clientSecrets.get(basic[0]))) {
+				throw new FakeError(error(401, "unauthorized", "Bad client credentials"));
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+
+		IssuedToken token = accessTokens.get(String.valueOf(parseForm(new String(readBody(exchange), "UTF-8")).get(
+				"token")));
+		if (token == null) {
+			throw new FakeError(error(400, "invalid_token", "Token was not recognised"));
+		}
+		if (token.expiresAtMillis < now().getTime()) {
+			throw new FakeError(error(400, "invalid_token", "Token has expired"));
+		}
+
+		ObjectNode body = mapper.createObjectNode();
+		body.put("jti", token.value);
+		body.put("sub", token.userId != null ? token.userId : token.clientId);
+		body.put("client_id", token.clientId);
+		body.put("cid", token.clientId);
+		if (token.userId != null) {
+			body.put("user_id", token.userId);
+			lock.readLock().lock();
+			try {
+				ObjectNode user = users.get(token.userId);
+				if (user != null) {
+					body.put("user_name", user.path("userName").asText());
+				}
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+		}
+		body.putArray("scope").add("scim.read").add("scim.write");
+		body.putArray("aud").add("scim");
+		body.put("iss", getUrl() + "/oauth/token");
+		body.put("exp", token.expiresAtMillis / 1000);
+		return new Response(200, body, null);
+	}
+
+	/**
+	 * @return the client ID and secret from an HTTP Basic <code>Authorization</code> header, or null if there is none
+	 */
+	private static String[] basicCredentials(HttpExchange exchange) throws IOException {
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+			return null;
+		}
+
+		String decoded = new String(Base64.decodeBase64(authorization.substring(6).trim().getBytes("UTF-8")), "UTF-8");
+		int colon = decoded.indexOf(':');
+		return new String[] { decoded.substring(0, colon), decoded.substring(colon + 1) };
+	}
+
+	private void authenticate(HttpExchange exchange) {
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if (authorization == null || !authorization.regionMatches(true, 0, "bearer ", 0, 7)) {
+			throw new FakeError(error(401, "unauthorized", "Full authentication is required"));
+		}
+
+		IssuedToken token = accessTokens.get(authorization.substring(7).trim());
+		if (token == null) {
+			throw new FakeError(error(401, "invalid_token", "Invalid access token"));
+		}
+		if (token.expiresAtMillis < now().getTime()) {
+			throw new FakeError(error(401, "invalid_token", "Access token expired"));
+		}
+	}
+
+	private ObjectNode createUser(ObjectNode user) {
+		String userName = user.path("userName").asText(null);
+		if (userName == null || userName.isEmpty()) {
+			throw new FakeError(error(400, "invalid_scim_resource", "A username must be provided"));
+		}
+		checkUnique(users.values(), "userName", user, null);
+
+		String id = UUID.randomUUID().toString();
+		JsonNode password = user.remove("password");
+		user.remove("groups");
+		user.put("id", id);
+		if (!user.hasNonNull("origin")) {
+			user.put("origin", "uaa");
+		}
+		if (!user.hasNonNull("active")) {
+			user.put("active", true);
+		}
+		if (!user.hasNonNull("verified")) {
+			user.put("verified", true);
+		}
+		Date now = now();
+		user.set("meta", meta(now, now, 0));
+		user.set("schemas", mapper.valueToTree(SCHEMAS));
+
+		users.put(id, user);
+		passwords.put(id, password == null ? null : password.asText());
+		return user;
+	}
+
+	private ObjectNode createGroup(ObjectNode group) {
+		String displayName = group.path("displayName").asText(null);
+		if (displayName == null || displayName.isEmpty()) {
+			throw new FakeError(error(400, "invalid_scim_resource", "A displayName must be provided"));
+		}
+		checkUnique(groups.values(), "displayName", group, null);
+
+		String id = UUID.randomUUID().toString();
+		group.put("id", id);
+		normalizeMembers(group);
+		Date now = now();
+		group.set("meta", meta(now, now, 0));
+		group.set("schemas", mapper.valueToTree(SCHEMAS));
+
+		groups.put(id, group);
+		return group;
+	}
+
+	private void normalizeMembers(ObjectNode group) {
+		if (!group.path("members").isArray()) {
+			group.putArray("members");
+		}
+
+		for (JsonNode member : group.get("members")) {
+			if (member.isObject() && !member.hasNonNull("type")) {
+				((ObjectNode) member).put("type", groups.containsKey(member.path("value").asText()) ? "GROUP"
+						: "USER");
+			}
+			if (member.isObject() && !member.hasNonNull("origin")) {
+				((ObjectNode) member).put("origin", "uaa");
+			}
+		}
+	}
+
+	private Date now() {
+		return new Date(System.currentTimeMillis() + clockOffsetMillis);
+	}
+
+	/**
+	 * @return a copy of the new body with the existing resource's ID, creation date and the next version
+	 */
+	private ObjectNode update(ObjectNode existing, ObjectNode body) {
+		JsonNode meta = existing.get("meta");
+		int version = meta.path("version").asInt();
+
+		body.put("id", existing.get("id").asText());
+		body.set("meta", meta(null, now(), version + 1));
+		((ObjectNode) body.get("meta")).set("created", meta.get("created"));
+		body.set("schemas", mapper.valueToTree(SCHEMAS));
+		if (existing.has("origin") && !body.hasNonNull("origin")) {
+			body.set("origin", existing.get("origin"));
+		}
+
+		return body;
+	}
+
+	private void checkVersion(HttpExchange exchange, ObjectNode existing) {
+		String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+		if (ifMatch == null || "*".equals(ifMatch.trim())) {
+			return;
+		}
+
+		String expected = ifMatch.trim().replaceFirst("^W/", "").replace("\"", "");
+		String actual = existing.path("meta").path("version").asText();
+		if (!expected.equals(actual)) {
+			throw new FakeError(error(412, "scim_resource_version_mismatch", "Expected version " + actual + " but was "
+					+ expected));
+		}
+	}
+
+	private void checkUnique(Iterable<ObjectNode> resources, String attribute, ObjectNode candidate,
+			ObjectNode replacing) {
+		String value = candidate.path(attribute).asText();
+		for (ObjectNode resource : resources) {
+			if (resource != replacing && value.equalsIgnoreCase(resource.path(attribute).asText())) {
+				throw new FakeError(error(409, "scim_resource_already_exists", attribute + " " + value
+						+ " already exists"));
+			}
+		}
+	}
+
+	/**
+	 * Remove a deleted user or group from every group. Stored resources may be serialized outside the lock, so
+	 * changed groups are replaced by copies rather than modified.
+	 */
+	private void removeMember(String memberId) {
+		for (Map.Entry<String, ObjectNode> entry : groups.entrySet()) {
+			ObjectNode copy = null;
+			for (Iterator<JsonNode> iter = entry.getValue().path("members").iterator(); iter.hasNext();) {
+				if (memberId.equals(iter.next().path("value").asText())) {
+					copy = entry.getValue().deepCopy();
+					break;
+				}
+			}
+
+			if (copy != null) {
+				for (Iterator<JsonNode> iter = copy.path("members").iterator(); iter.hasNext();) {
+					if (memberId.equals(iter.next().path("value").asText())) {
+						iter.remove();
+					}
+				}
+				entry.setValue(copy);
+			}
+		}
+	}
+
+	/**
+	 * @return the groups directly containing each member ID
+	 */
+	private Map<String, List<ObjectNode>> membershipIndex() {
+		Map<String, List<ObjectNode>> index = new HashMap<String, List<ObjectNode>>();
+		for (ObjectNode group : groups.values()) {
+			for (JsonNode member : group.path("members")) {
+				String memberId = member.path("value").asText();
+				List<ObjectNode> containing = index.get(memberId);
+				if (containing == null) {
+					containing = new ArrayList<ObjectNode>(2);
+					index.put(memberId, containing);
+				}
+				containing.add(group);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return a copy of the user with its direct and inherited groups
+	 */
+	private JsonNode renderUser(ObjectNode user, Map<String, List<ObjectNode>> memberships) {
+		ObjectNode rendered = user.deepCopy();
+		ArrayNode userGroups = rendered.putArray("groups");
+
+		String id = user.get("id").asText();
+		Set<String> seen = new LinkedHashSet<String>();
+		List<ObjectNode> frontier = memberships.containsKey(id) ? memberships.get(id) : Collections
+				.<ObjectNode> emptyList();
+		String type = "DIRECT";
+
+		while (!frontier.isEmpty()) {
+			List<ObjectNode> next = new ArrayList<ObjectNode>();
+			for (ObjectNode group : frontier) {
+				String groupId = group.get("id").asText();
+				if (seen.add(groupId)) {
+					userGroups.addObject().put("value", groupId).put("display", group.path("displayName").asText())
+							.put("type", type);
+					if (memberships.containsKey(groupId)) {
+						next.addAll(memberships.get(groupId));
+					}
+				}
+			}
+			frontier = next;
+			type = "INDIRECT";
+		}
+
+		return rendered;
+	}
+
+	private Response search(List<JsonNode> resources, Map<String, String> query) {
+		FakeScimFilter filter = FakeScimFilter.parse(query.get("filter"));
+		int startIndex = Math.max(1, intParam(query, "startIndex", 1));
+		int count = Math.max(0, intParam(query, "count", 100));
+		String attributes = query.get("attributes");
+
+		List<JsonNode> matches = new ArrayList<JsonNode>();
+		for (JsonNode resource : resources) {
+			if (filter.matches(resource)) {
+				matches.add(resource);
+			}
+		}
+
+		ObjectNode results = mapper.createObjectNode();
+		ArrayNode page = results.putArray("resources");
+		for (int i = startIndex - 1; i < matches.size() && i < startIndex - 1 + count; i++) {
+			page.add(attributes == null ? matches.get(i) : project(matches.get(i), attributes.split(",")));
+		}
+		results.put("startIndex", startIndex);
+		results.put("itemsPerPage", count);
+		results.put("totalResults", matches.size());
+		results.set("schemas", mapper.valueToTree(SCHEMAS));
+
+		return new Response(200, results, "\"" + Integer.toHexString(results.hashCode()) + "\"");
+	}
+
+	private JsonNode project(JsonNode resource, String[] attributes) {
+		ObjectNode projected = mapper.createObjectNode();
+		for (String attribute : attributes) {
+			String name = attribute.trim().split("\\.")[0];
+			for (Iterator<Map.Entry<String, JsonNode>> fields = resource.fields(); fields.hasNext();) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				if (field.getKey().equalsIgnoreCase(name)) {
+					projected.set(field.getKey(), field.getValue());
+				}
+			}
+		}
+		return projected;
+	}
+
+	private ObjectNode find(Map<String, ObjectNode> resources, String id) {
+		ObjectNode resource = resources.get(id);
+		if (resource == null) {
+			throw new FakeError(error(404, "scim_resource_not_found", "Resource " + id + " does not exist"));
+		}
+		return resource;
+	}
+
+	private ObjectNode findUserByName(String userName) {
+		for (ObjectNode user : users.values()) {
+			if (user.path("userName").asText().equalsIgnoreCase(userName)) {
+				return user;
+			}
+		}
+		return null;
+	}
+
+	private ObjectNode findGroupByName(String displayName) {
+		for (ObjectNode group : groups.values()) {
+			if (group.path("displayName").asText().equalsIgnoreCase(displayName)) {
+				return group;
+			}
+		}
+		throw new FakeError(error(404, "scim_resource_not_found", "Group " + displayName + " does not exist"));
+	}
+
+	private JsonNode meta(Date created, Date lastModified, int version) {
+		return mapper.valueToTree(new ScimMeta(created, lastModified, version));
+	}
+
+	private static String versionTag(ObjectNode resource) {
+		return "\"" + resource.path("meta").path("version").asText() + "\"";
+	}
+
+	private Response status(String message) {
+		ObjectNode body = mapper.createObjectNode();
+		body.put("status", "ok");
+		body.put("message", message);
+		return new Response(200, body, null);
+	}
+
+	private Response error(int status, String error, String description) {
+		ObjectNode body = mapper.createObjectNode();
+		body.put("error", error);
+		body.put("error_description", description);
+		body.put("message", description);
+		return new Response(status, body, null);
+	}
+
+	private void count(String method, String route) {
+		String key = method + " " + route;
+		AtomicInteger count = requestCounts.get(key);
+		if (count == null) {
+			AtomicInteger created = new AtomicInteger();
+			count = requestCounts.putIfAbsent(key, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	private ObjectNode readObject(HttpExchange exchange) throws IOException {
+		JsonNode body = mapper.readTree(readBody(exchange));
+		if (body == null || !body.isObject()) {
+			throw new IllegalArgumentException("Expected a JSON object");
+		}
+		return (ObjectNode) body;
+	}
+
+	private static byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int read; (read = in.read(buffer)) >= 0;) {
+			body.write(buffer, 0, read);
+		}
+		return body.toByteArray();
+	}
+
+	private static int intParam(Map<String, String> query, String name, int defaultValue) {
+		String value = query.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	private static Map<String, String> parseForm(String form) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		for (String pair : form.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0) {
+				params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Query strings are percent-decoded without treating <code>+</code> as a space, as the client leaves a literal
+	 * <code>+</code> in time zone offsets
+	 */
+	private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (rawQuery == null) {
+			return params;
+		}
+
+		for (String pair : rawQuery.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0) {
+				params.put(percentDecode(pair.substring(0, equals)), percentDecode(pair.substring(equals + 1)));
+			}
+		}
+		return params;
+	}
+
+	private static String percentDecode(String encoded) throws IOException {
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream(encoded.length());
+		for (int i = 0; i < encoded.length(); i++) {
+			char c = encoded.charAt(i);
+			if (c == '%' && i + 2 < encoded.length()) {
+				decoded.write(Integer.parseInt(encoded.substring(i + 1, i + 3), 16));
+				i += 2;
+			}
+			else {
+				decoded.write(String.valueOf(c).getBytes("UTF-8"));
+			}
+		}
+		return decoded.toString("UTF-8");
+	}
+
+	private static class Response {
+		private final int status;
+
+		private final JsonNode body;
+
+		private final String etag;
+
+		Response(int status, JsonNode body, String etag) {
+			this.status = status;
+			this.body = body;
+			this.etag = etag;
+		}
+	}
+
+	/**
+	 * Thrown to abandon a request with an error response
+	 */
+	@SuppressWarnings("serial")
+	private static class FakeError extends RuntimeException {
+		private final transient Response response;
+
+		FakeError(Response response) {
+			super(null, null, false, false);
+			this.response = response;
+		}
+	}
+
+	private static class IssuedToken {
+		private final String value;
+
+		private final String clientId;
+
+		private final String userId;
+
+		private final long expiresAtMillis;
+
+		IssuedToken(String value, String clientId, String userId, long expiresAtMillis) {
+			this.value = value;
+			this.clientId = clientId;
+			this.userId = userId;
+			this.expiresAtMillis = expiresAtMillis;
+		}
+	}
+
+	private static class Fault {
+		private final String pathPrefix;
+
+		private final long minLatencyNanos;
+
+		private final long maxLatencyNanos;
+
+		private final double ratio;
+
+		private final boolean limited;
+
+		private final AtomicInteger remaining;
+
+		private final int status;
+
+		/**
+		 * @param count the number of requests to affect, or -1 to affect every request
+		 */
+		Fault(String pathPrefix, long minLatencyNanos, long maxLatencyNanos, double ratio, int count, int status) {
+			this.pathPrefix = pathPrefix == null ? "" : pathPrefix;
+			this.minLatencyNanos = minLatencyNanos;
+			this.maxLatencyNanos = Math.max(minLatencyNanos, maxLatencyNanos);
+			this.ratio = ratio;
+			this.limited = count >= 0;
+			this.remaining = new AtomicInteger(count);
+			this.status = status;
+		}
+	}
+}
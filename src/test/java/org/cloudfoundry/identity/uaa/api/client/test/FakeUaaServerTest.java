@@ -0,0 +1,212 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.cloudfoundry.identity.uaa.api.client.UaaClientOperations;
+import org.cloudfoundry.identity.uaa.api.common.CircuitBreakerOpenException;
+import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
+import org.cloudfoundry.identity.uaa.api.common.impl.CircuitBreakerConfig;
+import org.cloudfoundry.identity.uaa.api.common.impl.CircuitBreakerRegistry;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.api.group.UaaGroupOperations;
+import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
+import org.cloudfoundry.identity.uaa.rest.SearchResults;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.cloudfoundry.identity.uaa.scim.ScimUser.Email;
+import org.cloudfoundry.identity.uaa.scim.ScimUser.Name;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+import org.springframework.web.client.HttpServerErrorException;
+
+/**
+ * Exercises the client against {@link FakeUaaServer}, so these run without a real UAA
+ */
+public class FakeUaaServerTest {
+	private FakeUaaServer server;
+
+	private UaaConnectionHelper helper;
+
+	private UaaConnection connection;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+		helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+		connection = new UaaConnectionImpl(helper);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testUserLifecycle() throws Exception {
+		UaaUserOperations operations = connection.userOperations();
+
+		ScimUser created = operations.createUser(newUser("testuser"));
+		assertNotNull(created.getId());
+		assertEquals(0, created.getVersion());
+
+		ScimUser found = operations.getUserByName("TestUser");
+		assertEquals(created.getId(), found.getId());
+
+		found.setName(new Name("Updated", "User"));
+		ScimUser updated = operations.updateUser(found);
+		assertEquals(1, updated.getVersion());
+		assertEquals("Updated", updated.getName().getGivenName());
+
+		operations.changeUserPassword(created.getId(), "p4ssw0rd", "newk0ala");
+		operations.deleteUser(created.getId());
+
+		assertNull(operations.getUserByName("testuser"));
+	}
+
+	@Test
+	public void testFilteringAndPaging() throws Exception {
+		for (int i = 1; i <= 25; i++) {
+			server.addUser("pager" + i, "secret");
+		}
+		server.addUser("other", "secret");
+
+		UaaUserOperations operations = connection.userOperations();
+
+		SearchResults<ScimUser> page = operations.getUsers(new FilterRequestBuilder().startsWith("userName", "pager")
+				.start(11).count(10).build());
+		assertEquals(25, page.getTotalResults());
+		assertEquals(11, page.getStartIndex());
+		assertEquals(10, page.getResources().size());
+		assertEquals("pager11", page.getResources().iterator().next().getUserName());
+
+		SearchResults<ScimUser> either = operations.getUsers(new FilterRequestBuilder(false)
+				.equals("userName", "pager3").equals("userName", "pager4").build());
+		assertEquals(2, either.getTotalResults());
+	}
+
+	@Test
+	public void testNestedGroupsReportedOnUser() throws Exception {
+		String userId = server.addUser("member", "secret");
+		String innerId = server.addGroup("inner", userId);
+		String outerId = server.addGroup("outer", innerId);
+
+		ScimUser user = connection.userOperations().getUserByName("member");
+		assertEquals(2, user.getGroups().size());
+
+		for (ScimUser.Group group : user.getGroups()) {
+			if (innerId.equals(group.getValue())) {
+				assertEquals(ScimUser.Group.Type.DIRECT, group.getType());
+			}
+			else {
+				assertEquals(outerId, group.getValue());
+				assertEquals(ScimUser.Group.Type.INDIRECT, group.getType());
+			}
+		}
+	}
+
+	@Test
+	public void testGroupMembership() throws Exception {
+		server.addUser("joiner", "secret");
+		UaaGroupOperations operations = connection.groupOperations();
+
+		ScimGroup group = new ScimGroup();
+		group.setDisplayName("joinable");
+		ScimGroup created = operations.createGroup(group);
+
+		ScimGroup joined = operations.addMember(created.getId(), "joiner");
+		assertEquals(1, joined.getMembers().size());
+
+		ScimGroup left = operations.deleteMember(created.getId(), "joiner");
+		assertTrue(left.getMembers() == null || left.getMembers().isEmpty());
+		assertEquals(2, left.getVersion());
+	}
+
+	@Test
+	public void testClientLifecycle() throws Exception {
+		UaaClientOperations operations = connection.clientOperations();
+
+		BaseClientDetails client = new BaseClientDetails("fake-app", "none", "openid", "authorization_code",
+				"uaa.resource");
+		client.setClientSecret("appsecret");
+		operations.create(client);
+
+		assertEquals("fake-app", operations.findById("fake-app").getClientId());
+		assertTrue(operations.changeClientSecret("fake-app", "appsecret", "newsecret"));
+
+		operations.delete("fake-app");
+		assertEquals(0, operations.getClients(new FilterRequestBuilder().equals("client_id", "fake-app").build())
+				.getTotalResults());
+	}
+
+	@Test
+	public void testCircuitBreakerOpensOnServerErrors() throws Exception {
+		CircuitBreakerConfig config = new CircuitBreakerConfig();
+		config.setWindowSize(4);
+		config.setMinimumCalls(4);
+		helper.setCircuitBreakers(new CircuitBreakerRegistry(config));
+
+		server.injectErrors("/Users", 1.0, 503);
+
+		UaaUserOperations operations = connection.userOperations();
+		for (int i = 0; i < 4; i++) {
+			try {
+				operations.getUserByName("anyone");
+				fail("Expected a server error");
+			}
+			catch (HttpServerErrorException e) {
+				assertEquals(503, e.getStatusCode().value());
+			}
+		}
+
+		try {
+			operations.getUserByName("anyone");
+			fail("Expected the breaker to be open");
+		}
+		catch (CircuitBreakerOpenException e) {
+			assertEquals(4, server.getRequestCount("GET", "/Users"));
+		}
+	}
+
+	@Test
+	public void testPasswordGrant() throws Exception {
+		server.addUser("marissa", "koala");
+
+		UaaConnection userConnection = new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(),
+				server.getUserCredentials("marissa", "koala")));
+		assertNotNull(userConnection.userOperations().getUserByName("marissa"));
+
+		assertEquals(1, server.getTokenGrantCount("password"));
+	}
+
+	private static ScimUser newUser(String userName) {
+		ScimUser user = new ScimUser();
+		user.setUserName(userName);
+		user.setPassword("p4ssw0rd");
+		user.setName(new Name("Test", "User"));
+
+		Email email = new Email();
+		email.setValue(userName + "@test.com");
+		user.setEmails(Collections.singletonList(email));
+
+		return user;
+	}
+}
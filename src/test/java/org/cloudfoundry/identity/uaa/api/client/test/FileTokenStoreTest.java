@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cloudfoundry.identity.uaa.api.UaaConnectionFactory;
+import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
+import org.cloudfoundry.identity.uaa.api.common.impl.FileTokenStore;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class FileTokenStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakeUaaServer server;
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+		file = new File(folder.getRoot(), "uaa/tokens.json");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testTokenIsReusedByLaterRuns() throws Exception {
+		for (int run = 0; run < 3; run++) {
+			assertNotNull(connection().clientOperations().findById("admin"));
+		}
+
+		assertEquals(1, server.getTokenGrantCount("client_credentials"));
+	}
+
+	@Test
+	public void testFileIsPrivate() throws Exception {
+		Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+
+		connection().clientOperations().findById("admin");
+
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+		assertEquals("rwx------",
+				PosixFilePermissions.toString(Files.getPosixFilePermissions(file.getParentFile().toPath())));
+	}
+
+	@Test
+	public void testExpiredTokenIsNotReused() throws Exception {
+		server.setTokenValiditySeconds(-1);
+		UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+		helper.setTokenStore(new FileTokenStore(file));
+		assertTrue(helper.getAccessToken().isExpired());
+
+		server.setTokenValiditySeconds(600);
+		connection().clientOperations().findById("admin");
+
+		assertEquals(2, server.getTokenGrantCount("client_credentials"));
+	}
+
+	@Test
+	public void testUnreadableFileIsIgnored() throws Exception {
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), "{not json".getBytes("UTF-8"));
+
+		assertNotNull(connection().clientOperations().findById("admin"));
+		assertNotNull(new ObjectMapper().readTree(file).get(firstKey()));
+	}
+
+	@Test
+	public void testConcurrentWritersKeepEachOthersTokens() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> writes = new ArrayList<Future<?>>();
+			for (int i = 0; i < 40; i++) {
+				final String key = "key" + i;
+				writes.add(executor.submit(new Callable<Void>() {
+					public Void call() {
+						DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken("token-" + key);
+						new FileTokenStore(file).put(key, token);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> write : writes) {
+				write.get();
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		FileTokenStore store = new FileTokenStore(file);
+		for (int i = 0; i < 40; i++) {
+			OAuth2AccessToken token = store.get("key" + i);
+			assertNotNull("key" + i, token);
+			assertEquals("token-key" + i, token.getValue());
+		}
+
+		store.remove("key0", new DefaultOAuth2AccessToken("token-key1"));
+		assertNotNull("Only the expected token is removed", store.get("key0"));
+		store.remove("key0", new DefaultOAuth2AccessToken("token-key0"));
+		assertNull(store.get("key0"));
+		assertEquals(39, new ObjectMapper().readTree(file).size());
+	}
+
+	@Test
+	public void testKeyHoldsNoFastHashOfSecrets() throws Exception {
+		connection().clientOperations().findById("admin");
+
+		String key = firstKey();
+		String prefix = key.substring(0, key.lastIndexOf(' '));
+		String derived = key.substring(key.lastIndexOf(' ') + 1);
+		assertFalse(key.contains(FakeUaaServer.ADMIN_CLIENT_SECRET));
+
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(prefix.getBytes("UTF-8"));
+		digest.update(FakeUaaServer.ADMIN_CLIENT_SECRET.getBytes("UTF-8"));
+		assertNotEquals(Base64.encodeBase64URLSafeString(digest.digest()), derived);
+		assertEquals(43, derived.length());
+	}
+
+	private UaaConnection connection() {
+		return UaaConnectionFactory.getConnection(server.getUrl(), server.getClientCredentials(), new FileTokenStore(
+				file));
+	}
+
+	private String firstKey() throws Exception {
+		JsonNode tokens = new ObjectMapper().readTree(file);
+		assertEquals(1, tokens.size());
+		return tokens.fieldNames().next();
+	}
+}
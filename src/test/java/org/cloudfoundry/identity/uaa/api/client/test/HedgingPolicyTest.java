@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.HedgingPolicy;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+public class HedgingPolicyTest {
+	private FakeUaaServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testDelayStartsAtMinimum() throws Exception {
+		HedgingPolicy policy = new HedgingPolicy(0.9, 25, TimeUnit.MILLISECONDS, 0.1, null);
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(25), policy.getDelayNanos());
+	}
+
+	@Test
+	public void testHedgedGetReturnsFasterAttempt() throws Exception {
+		server.addUser("hedged", "secret");
+
+		UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+		UaaUserOperations operations = new UaaConnectionImpl(helper).userOperations();
+		operations.getUserByName("hedged");
+		helper.setHedgingPolicy(new HedgingPolicy(0.5, 20, TimeUnit.MILLISECONDS, 1.0, null));
+
+		int before = server.getRequestCount("GET", "/Users");
+		server.delayNext("/Users", 1, 5, TimeUnit.SECONDS);
+
+		long start = System.nanoTime();
+		assertNotNull(operations.getUserByName("hedged"));
+		assertTrue("The hedge should answer first", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		assertEquals(before + 2, server.getRequestCount("GET", "/Users"));
+	}
+
+	@Test
+	public void testDefaultExecutorIsBounded() throws Exception {
+		HedgingPolicy policy = new HedgingPolicy();
+		assertTrue(((ThreadPoolExecutor) policy.getExecutor()).getMaximumPoolSize() < 100);
+	}
+
+	@Test
+	public void testBusyExecutorSendsOnCallersThread() throws Exception {
+		server.addUser("hedged", "secret");
+
+		final UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+		final UaaUserOperations operations = new UaaConnectionImpl(helper).userOperations();
+		operations.getUserByName("hedged");
+		ExecutorService single = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		helper.setHedgingPolicy(new HedgingPolicy(0.5, 20, TimeUnit.MILLISECONDS, 1.0, single));
+
+		ExecutorService caller = Executors.newSingleThreadExecutor();
+		try {
+			server.delayNext("/Users", 1, 3, TimeUnit.SECONDS);
+			Future<?> slow = caller.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					return operations.getUserByName("hedged");
+				}
+			});
+			while (server.getRequestCount("GET", "/Users") < 2) {
+				Thread.sleep(10);
+			}
+
+			long start = System.nanoTime();
+			assertNotNull(operations.getUserByName("hedged"));
+			assertTrue("The request should not wait for the busy thread",
+					System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+			assertNotNull(slow.get(10, TimeUnit.SECONDS));
+		}
+		finally {
+			caller.shutdown();
+			single.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentAttemptsRenewExpiredTokenOnce() throws Exception {
+		server.addUser("marissa", "koala");
+		server.setTokenValiditySeconds(-1);
+
+		final UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getUserCredentials(
+				"marissa", "koala"));
+		OAuth2AccessToken first = helper.getAccessToken();
+		assertTrue(first.isExpired());
+		server.setTokenValiditySeconds(600);
+
+		server.injectLatency("/oauth/token", 100, 100, TimeUnit.MILLISECONDS);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Future<OAuth2AccessToken>> results = new ArrayList<Future<OAuth2AccessToken>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(new Callable<OAuth2AccessToken>() {
+					public OAuth2AccessToken call() throws Exception {
+						start.await();
+						return helper.getAccessToken();
+					}
+				}));
+			}
+			start.countDown();
+
+			OAuth2AccessToken renewed = results.get(0).get(10, TimeUnit.SECONDS);
+			assertNotEquals(first.getValue(), renewed.getValue());
+			for (Future<OAuth2AccessToken> result : results) {
+				assertSame(renewed, result.get(10, TimeUnit.SECONDS));
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		assertEquals(1, server.getTokenGrantCount("password"));
+		assertEquals("The expired token is renewed once", 1, server.getTokenGrantCount("refresh_token"));
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.impl.StreamingSearchResultsReader;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
+import org.cloudfoundry.identity.uaa.rest.SearchResults;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ProjectionTest {
+	@Test
+	public void testRecordHoldsRequestedAttributes() throws Exception {
+		String page = "{\"resources\":[{\"ID\":\"1\",\"userName\":\"one\",\"active\":true,\"meta\":{\"version\":3},"
+				+ "\"name\":{\"familyName\":\"Smith\"},\"emails\":[{\"value\":\"a@b.c\"},{\"value\":\"d@e.f\"}],"
+				+ "\"groups\":[{\"display\":\"admins\"}]}],\"totalResults\":1}";
+		List<String> attributes = Arrays.asList("id", "userName", "active", "meta.version", "name.familyName",
+				"emails.value", "phoneNumbers");
+
+		final List<ScimRecord> records = new ArrayList<ScimRecord>();
+		StreamingSearchResultsReader reader = new StreamingSearchResultsReader(new ObjectMapper());
+		reader.readRecords(new ByteArrayInputStream(page.getBytes("UTF-8")), attributes,
+				new UaaResultHandler<ScimRecord>() {
+					public boolean handle(ScimRecord record) {
+						records.add(record);
+						return true;
+					}
+				});
+
+		assertEquals(1, records.size());
+		ScimRecord record = records.get(0);
+		assertEquals(attributes, record.getAttributes());
+		assertEquals("1", record.get("id"));
+		assertEquals("one", record.getString("USERNAME"));
+		assertEquals(Boolean.TRUE, record.get("active"));
+		assertEquals(3, ((Number) record.get("meta.version")).intValue());
+		assertEquals("Smith", record.get("name.familyName"));
+		assertEquals(Arrays.asList("a@b.c", "d@e.f"), record.get("emails.value"));
+		assertNull(record.get("phoneNumbers"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRecordRejectsUnrequestedAttribute() {
+		new ScimRecord(Arrays.asList("id"), new Object[] { "1" }).get("userName");
+	}
+
+	@Test
+	public void testProjectedSearch() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			for (int i = 0; i < 5; i++) {
+				server.addUser("projected" + i, "secret");
+			}
+
+			UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+			UaaUserOperations operations = new UaaConnectionImpl(helper).userOperations();
+
+			SearchResults<ScimRecord> records = operations.getUsers(new FilterRequestBuilder()
+					.startsWith("userName", "projected").attributes("id", "userName").count(3).build(),
+					ScimRecord.class);
+
+			assertEquals(5, records.getTotalResults());
+			assertEquals(3, records.getResources().size());
+			ScimRecord first = records.getResources().iterator().next();
+			assertEquals("projected0", first.get("userName"));
+			assertNotNull(first.get("id"));
+
+			SearchResults<UserRef> refs = operations.getUsers(new FilterRequestBuilder()
+					.equals("userName", "projected4").attributes("id", "userName").build(), UserRef.class);
+
+			assertEquals(1, refs.getResources().size());
+			UserRef ref = refs.getResources().iterator().next();
+			assertEquals("projected4", ref.getUserName());
+			assertEquals(helper.getUserIdByName("projected4"), ref.getId());
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testProjectionNeedsAttributes() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(), server.getClientCredentials()))
+					.userOperations().getUsers(new FilterRequestBuilder().build(), ScimRecord.class);
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	public static class UserRef {
+		private String id;
+
+		private String userName;
+
+		public String getId() {
+			return id;
+		}
+
+		public void setId(String id) {
+			this.id = id;
+		}
+
+		public String getUserName() {
+			return userName;
+		}
+
+		public void setUserName(String userName) {
+			this.userName = userName;
+		}
+	}
+}
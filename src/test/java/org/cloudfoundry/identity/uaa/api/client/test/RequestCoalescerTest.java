@@ -0,0 +1,249 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.RequestCoalescer;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaResponseCache;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequest;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.api.group.UaaGroupOperations;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+
+public class RequestCoalescerTest {
+
+	@Test
+	public void testConcurrentCallsShareOneRequest() throws Exception {
+		final RequestCoalescer coalescer = new RequestCoalescer();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final Callable<Object> request = new Callable<Object>() {
+			public Object call() throws Exception {
+				calls.incrementAndGet();
+				release.await();
+				return new Object();
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int i = 0; i < 8; i++) {
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					return coalescer.execute("GET /Users/1", request);
+				}
+			}));
+		}
+
+		while (coalescer.getCollapsedCount() < 7) {
+			Thread.sleep(5);
+		}
+		release.countDown();
+
+		Object first = results.get(0).get(5, TimeUnit.SECONDS);
+		for (Future<Object> result : results) {
+			assertSame("Callers should share the result", first, result.get(5, TimeUnit.SECONDS));
+		}
+
+		executor.shutdown();
+
+		assertEquals(1, calls.get());
+		assertEquals(7, coalescer.getCollapsedCount());
+		assertEquals(0, coalescer.getInFlightCount());
+
+		coalescer.execute("GET /Users/1", new Callable<Object>() {
+			public Object call() throws Exception {
+				return calls.incrementAndGet();
+			}
+		});
+		assertEquals("Completed requests should not be reused", 2, calls.get());
+	}
+
+	@Test
+	public void testJoinedCallersGetCopies() throws Exception {
+		final RequestCoalescer coalescer = new RequestCoalescer();
+		final AtomicInteger snapshots = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final Callable<List<String>> request = new Callable<List<String>>() {
+			public List<String> call() throws Exception {
+				release.await();
+				return new ArrayList<String>(Arrays.asList("a", "b"));
+			}
+		};
+		final RequestCoalescer.Copier<List<String>> copier = new RequestCoalescer.Copier<List<String>>() {
+			public byte[] snapshot(List<String> result) {
+				snapshots.incrementAndGet();
+				StringBuilder joined = new StringBuilder();
+				for (String element : result) {
+					joined.append(joined.length() == 0 ? "" : ",").append(element);
+				}
+				return joined.toString().getBytes();
+			}
+
+			public List<String> copy(byte[] snapshot) {
+				return new ArrayList<String>(Arrays.asList(new String(snapshot).split(",")));
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+		for (int i = 0; i < 4; i++) {
+			results.add(executor.submit(new Callable<List<String>>() {
+				public List<String> call() throws Exception {
+					List<String> result = coalescer.execute("GET /Groups", request, copier);
+					result.add("mine");
+					return result;
+				}
+			}));
+		}
+
+		while (coalescer.getCollapsedCount() < 3) {
+			Thread.sleep(5);
+		}
+		release.countDown();
+
+		Set<List<String>> distinct = Collections.newSetFromMap(new IdentityHashMap<List<String>, Boolean>());
+		for (Future<List<String>> result : results) {
+			List<String> list = result.get(5, TimeUnit.SECONDS);
+			assertEquals(Arrays.asList("a", "b", "mine"), list);
+			distinct.add(list);
+		}
+		executor.shutdown();
+
+		assertEquals("Each caller should get an object of its own", 4, distinct.size());
+		assertEquals("The result should be snapshotted once", 1, snapshots.get());
+
+		coalescer.execute("GET /Groups", new Callable<List<String>>() {
+			public List<String> call() throws Exception {
+				return new ArrayList<String>();
+			}
+		}, copier);
+		assertEquals("A caller no one joined should not copy", 1, snapshots.get());
+	}
+
+	@Test
+	public void testConcurrentAddMemberDoesNotShareGroups() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final String groupId = server.addGroup("shared");
+			final Map<String, String> userIds = new HashMap<String, String>();
+			for (int i = 0; i < 8; i++) {
+				userIds.put("user" + i, server.addUser("user" + i, "secret"));
+			}
+
+			UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+			RequestCoalescer coalescer = new RequestCoalescer();
+			helper.setRequestCoalescer(coalescer);
+			helper.setResponseCache(new UaaResponseCache(100, 1, TimeUnit.MINUTES));
+			final UaaGroupOperations operations = new UaaConnectionImpl(helper).groupOperations();
+			operations.getGroups(new FilterRequestBuilder().equals("id", groupId).build());
+
+			server.injectLatency("/Groups", 50, 50, TimeUnit.MILLISECONDS);
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (final String userName : userIds.keySet()) {
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						start.await();
+						try {
+							operations.addMember(groupId, userName);
+							return userName;
+						}
+						catch (HttpClientErrorException e) {
+							assertEquals("Only version conflicts are expected", HttpStatus.PRECONDITION_FAILED,
+									e.getStatusCode());
+							return null;
+						}
+					}
+				}));
+			}
+			start.countDown();
+
+			Set<String> added = new HashSet<String>();
+			for (Future<String> result : results) {
+				String userName = result.get(30, TimeUnit.SECONDS);
+				if (userName != null) {
+					added.add(userIds.get(userName));
+				}
+			}
+			server.clearFaults();
+
+			ScimGroup group = new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(),
+					server.getClientCredentials())).groupOperations()
+					.getGroups(new FilterRequestBuilder().equals("id", groupId).build()).getResources().iterator()
+					.next();
+			Set<String> members = new HashSet<String>();
+			for (ScimGroupMember member : group.getMembers()) {
+				members.add(member.getMemberId());
+			}
+
+			assertFalse(added.isEmpty());
+			assertEquals("Only members whose update succeeded are in the group", added, members);
+		}
+		finally {
+			executor.shutdown();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testCachedResultsAreCopies() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			String groupId = server.addGroup("original");
+
+			UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+			helper.setRequestCoalescer(new RequestCoalescer());
+			helper.setResponseCache(new UaaResponseCache(100, 1, TimeUnit.MINUTES));
+			UaaGroupOperations operations = new UaaConnectionImpl(helper).groupOperations();
+
+			FilterRequest request = new FilterRequestBuilder().equals("id", groupId).build();
+			operations.getGroups(request).getResources().iterator().next().setDisplayName("modified");
+
+			assertEquals("original", operations.getGroups(request).getResources().iterator().next()
+					.getDisplayName());
+			assertEquals(1, server.getRequestCount("GET", "/Groups"));
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
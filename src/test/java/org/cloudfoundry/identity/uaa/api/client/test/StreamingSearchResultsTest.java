@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.impl.StreamingSearchResultsReader;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.common.model.StreamedSearchResults;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class StreamingSearchResultsTest {
+	private static final String PAGE = "{\"resources\":[{\"id\":\"1\",\"userName\":\"one\",\"unknown\":{\"a\":[1]}},"
+			+ "null,{\"id\":\"2\",\"userName\":\"two\"},{\"id\":\"3\",\"userName\":\"three\"}],"
+			+ "\"extra\":[{\"x\":1}],\"startIndex\":4,\"itemsPerPage\":3,\"totalResults\":42,"
+			+ "\"schemas\":[\"urn:scim:schemas:core:1.0\"]}";
+
+	private final StreamingSearchResultsReader reader = new StreamingSearchResultsReader(new ObjectMapper());
+
+	@Test
+	public void testReadsEveryResourceAndPaging() throws Exception {
+		CollectingHandler<ScimGroup> handler = new CollectingHandler<ScimGroup>(Integer.MAX_VALUE);
+		StreamedSearchResults<ScimGroup> page = read(PAGE, ScimGroup.class, handler);
+
+		assertEquals(3, handler.resources.size());
+		assertEquals("1", handler.resources.get(0).getId());
+		assertEquals("3", handler.resources.get(2).getId());
+
+		assertTrue(page.isComplete());
+		assertEquals(3, page.getDeliveredCount());
+		assertTrue(page.getResources().isEmpty());
+		assertEquals(4, page.getStartIndex());
+		assertEquals(3, page.getItemsPerPage());
+		assertEquals(42, page.getTotalResults());
+		assertEquals(Arrays.asList("urn:scim:schemas:core:1.0"), new ArrayList<String>(page.getSchemas()));
+	}
+
+	@Test
+	public void testHandlerCanStopEarly() throws Exception {
+		CollectingHandler<ScimGroup> handler = new CollectingHandler<ScimGroup>(1);
+		StreamedSearchResults<ScimGroup> page = read(PAGE, ScimGroup.class, handler);
+
+		assertEquals(1, handler.resources.size());
+		assertFalse(page.isComplete());
+		assertEquals(1, page.getDeliveredCount());
+		assertEquals(0, page.getTotalResults());
+	}
+
+	@Test
+	public void testEmptyPage() throws Exception {
+		CollectingHandler<ScimGroup> handler = new CollectingHandler<ScimGroup>(Integer.MAX_VALUE);
+		StreamedSearchResults<ScimGroup> page = read("{\"resources\":[],\"totalResults\":0}", ScimGroup.class,
+				handler);
+
+		assertTrue(handler.resources.isEmpty());
+		assertTrue(page.isComplete());
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedPage() throws Exception {
+		read("{\"resources\":[{\"id\":\"1\"},", ScimGroup.class, new CollectingHandler<ScimGroup>(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testStreamUsers() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			for (int i = 0; i < 25; i++) {
+				server.addUser("streamed" + i, "secret");
+			}
+
+			UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+			UaaUserOperations operations = new UaaConnectionImpl(helper).userOperations();
+
+			CollectingHandler<ScimUser> handler = new CollectingHandler<ScimUser>(Integer.MAX_VALUE);
+			StreamedSearchResults<ScimUser> page = operations.streamUsers(new FilterRequestBuilder()
+					.startsWith("userName", "streamed").count(10).build(), handler);
+
+			assertEquals(10, handler.resources.size());
+			assertEquals("streamed0", handler.resources.get(0).getUserName());
+			assertNotNull(handler.resources.get(0).getId());
+			assertTrue(page.isComplete());
+			assertEquals(25, page.getTotalResults());
+			assertEquals(10, page.getItemsPerPage());
+
+			handler = new CollectingHandler<ScimUser>(2);
+			page = operations.streamUsers(new FilterRequestBuilder().startsWith("userName", "streamed").build(),
+					handler);
+
+			assertEquals(2, handler.resources.size());
+			assertFalse(page.isComplete());
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	private <T> StreamedSearchResults<T> read(String json, Class<T> type, UaaResultHandler<T> handler)
+			throws IOException {
+		return reader.read(new ByteArrayInputStream(json.getBytes("UTF-8")), type, handler);
+	}
+
+	private static class CollectingHandler<T> implements UaaResultHandler<T> {
+		private final List<T> resources = new ArrayList<T>();
+
+		private final int limit;
+
+		CollectingHandler(int limit) {
+			this.limit = limit;
+		}
+
+		public boolean handle(T resource) {
+			resources.add(resource);
+			return resources.size() < limit;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.impl.StringPool;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.common.model.ScimRecord;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
+import org.cloudfoundry.identity.uaa.rest.SearchResults;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StringPoolTest {
+	private FakeUaaServer server;
+
+	private UaaConnectionHelper helper;
+
+	private UaaUserOperations operations;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+		helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+		operations = new UaaConnectionImpl(helper).userOperations();
+
+		List<String> memberIds = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			memberIds.add(server.addUser("pooled" + i, "secret"));
+		}
+		server.addGroup("pooled.readers", memberIds.toArray(new String[memberIds.size()]));
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testPool() {
+		StringPool pool = new StringPool(100, 8);
+		assertEquals(128, pool.getCapacity());
+
+		String first = new String("uaa");
+		assertSame(first, pool.intern(first));
+		assertSame(first, pool.intern(new String("uaa")));
+		assertSame(first, pool.intern("xuaay".toCharArray(), 1, 3));
+		assertNull(pool.intern(null));
+
+		String tooLong = new String("not pooled");
+		assertSame(tooLong, pool.intern(tooLong));
+		assertNotSame(tooLong, pool.intern(new String("not pooled")));
+	}
+
+	@Test
+	public void testPoolStaysBounded() {
+		StringPool pool = new StringPool(16, 64);
+		for (int i = 0; i < 10000; i++) {
+			pool.intern("value" + i);
+		}
+
+		assertEquals(16, pool.getCapacity());
+		String recent = pool.intern("value9999");
+		assertSame(recent, pool.intern(new String("value9999")));
+	}
+
+	@Test
+	public void testRepeatedValuesShared() throws Exception {
+		helper.setStringPool(new StringPool());
+
+		SearchResults<ScimUser> page = operations.getUsers(new FilterRequestBuilder().startsWith("userName", "pooled")
+				.build());
+		assertEquals(5, page.getResources().size());
+
+		Iterator<ScimUser> users = page.getResources().iterator();
+		ScimUser first = users.next();
+		while (users.hasNext()) {
+			ScimUser user = users.next();
+			assertSame(first.getOrigin(), user.getOrigin());
+			assertSame(first.getGroups().iterator().next().getDisplay(), user.getGroups().iterator().next()
+					.getDisplay());
+			assertNotSame(first.getId(), user.getId());
+		}
+	}
+
+	@Test
+	public void testRepeatedValuesSharedWhenStreaming() throws Exception {
+		helper.setStringPool(new StringPool());
+
+		final List<ScimUser> users = new ArrayList<ScimUser>();
+		operations.streamUsers(new FilterRequestBuilder().startsWith("userName", "pooled").build(),
+				new UaaResultHandler<ScimUser>() {
+					public boolean handle(ScimUser user) {
+						users.add(user);
+						return true;
+					}
+				});
+		assertEquals(5, users.size());
+		assertSame(users.get(0).getOrigin(), users.get(4).getOrigin());
+
+		List<ScimRecord> records = new ArrayList<ScimRecord>(operations.getUsers(
+				new FilterRequestBuilder().startsWith("userName", "pooled").attributes("origin").build(),
+				ScimRecord.class).getResources());
+		assertEquals(5, records.size());
+		assertSame(records.get(0).get("origin"), records.get(4).get("origin"));
+		assertSame(users.get(0).getOrigin(), records.get(0).get("origin"));
+	}
+
+	@Test
+	public void testUnpooledByDefault() throws Exception {
+		SearchResults<ScimUser> page = operations.getUsers(new FilterRequestBuilder().startsWith("userName", "pooled")
+				.build());
+
+		Iterator<ScimUser> users = page.getResources().iterator();
+		assertNotSame(users.next().getOrigin(), users.next().getOrigin());
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenClaims;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenOperations;
+import org.cloudfoundry.identity.uaa.api.token.impl.TokenCheckCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+
+public class TokenCheckCacheTest {
+	private FakeUaaServer server;
+
+	private TokenCheckCache cache;
+
+	private UaaTokenOperations operations;
+
+	private String userId;
+
+	private final AtomicLong elapsedNanos = new AtomicLong();
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+		cache = newCache(10, 1, TimeUnit.MINUTES);
+		operations = new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(), server.getClientCredentials()),
+				null, cache).tokenOperations();
+		userId = server.addUser("marissa", "koala");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testCheckToken() throws Exception {
+		UaaTokenClaims claims = operations.checkToken(server.issueAccessToken("cf", userId));
+
+		assertEquals("marissa", claims.getUserName());
+		assertEquals(userId, claims.getUserId());
+		assertEquals("cf", claims.getClientId());
+		assertTrue(claims.getScopes().contains("scim.read"));
+		assertEquals("No access token is needed to check one", 0, server.getTokenGrantCount("client_credentials"));
+	}
+
+	@Test
+	public void testValidTokenIsCached() throws Exception {
+		String token = server.issueAccessToken("cf", userId);
+		UaaTokenClaims claims = operations.checkToken(token);
+
+		for (int i = 0; i < 100; i++) {
+			assertSame(claims, operations.checkToken(token));
+		}
+
+		assertEquals(1, server.getRequestCount("POST", "/check_token"));
+		assertEquals(100, cache.getHitCount());
+	}
+
+	@Test
+	public void testInvalidTokenIsCachedBriefly() throws Exception {
+		cache = newCache(10, 100, TimeUnit.MILLISECONDS);
+		operations = new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(), server.getClientCredentials()),
+				null, cache).tokenOperations();
+
+		for (int i = 0; i < 10; i++) {
+			try {
+				operations.checkToken("not-a-token");
+				fail("Expected the token to be rejected");
+			}
+			catch (InvalidTokenException e) {
+				assertEquals("Token was not recognised", e.getMessage());
+			}
+		}
+		assertEquals(1, server.getRequestCount("POST", "/check_token"));
+
+		elapsedNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(150));
+		try {
+			operations.checkToken("not-a-token");
+			fail("Expected the token to be rejected");
+		}
+		catch (InvalidTokenException e) {
+			assertEquals(2, server.getRequestCount("POST", "/check_token"));
+		}
+	}
+
+	@Test
+	public void testCacheIsBoundedByExpiry() throws Exception {
+		server.setTokenValiditySeconds(1);
+		String token = server.issueAccessToken("cf", userId);
+		operations.checkToken(token);
+
+		elapsedNanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+		server.advanceClock(2, TimeUnit.SECONDS);
+		try {
+			operations.checkToken(token);
+			fail("Expected the expired token to be checked again and rejected");
+		}
+		catch (InvalidTokenException e) {
+			assertEquals("Token has expired", e.getMessage());
+		}
+		assertEquals(2, server.getRequestCount("POST", "/check_token"));
+	}
+
+	@Test
+	public void testConcurrentChecksAreCoalesced() throws Exception {
+		final String token = server.issueAccessToken("cf", userId);
+		server.delayNext("/check_token", 1, 300, TimeUnit.MILLISECONDS);
+
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<UaaTokenClaims>> checks = new ArrayList<Future<UaaTokenClaims>>();
+			for (int i = 0; i < 16; i++) {
+				checks.add(executor.submit(new Callable<UaaTokenClaims>() {
+					public UaaTokenClaims call() {
+						return operations.checkToken(token);
+					}
+				}));
+			}
+
+			for (Future<UaaTokenClaims> check : checks) {
+				assertEquals(userId, check.get().getUserId());
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		assertEquals(1, server.getRequestCount("POST", "/check_token"));
+		assertTrue(cache.getCollapsedCount() > 0);
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		String token = server.issueAccessToken("cf", userId);
+		operations.checkToken(token);
+
+		server.revokeAccessTokens();
+		cache.invalidate(token);
+		try {
+			operations.checkToken(token);
+			fail("Expected the revoked token to be rejected");
+		}
+		catch (InvalidTokenException e) {
+			assertEquals(2, server.getRequestCount("POST", "/check_token"));
+		}
+	}
+
+	private TokenCheckCache newCache(long ttl, long negativeTtl, TimeUnit unit) {
+		return new TokenCheckCache(100, ttl, negativeTtl, unit) {
+			@Override
+			protected long nanoTime() {
+				return super.nanoTime() + elapsedNanos.get();
+			}
+		};
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.directory.UaaAuthorizer;
+import org.cloudfoundry.identity.uaa.api.directory.UaaGroupResolver;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+
+public class UaaAuthorizerTest {
+	private FakeUaaServer server;
+
+	private UaaConnection connection;
+
+	private UaaAuthorizer authorizer;
+
+	private String alice;
+
+	private String reader;
+
+	private String admin;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+		connection = new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(), server.getClientCredentials()));
+		authorizer = new UaaAuthorizer(connection, 100);
+
+		alice = server.addUser("alice", "secret");
+		reader = server.addGroup("docs.read", alice);
+		admin = server.addGroup("docs.admin", reader);
+		server.addGroup("billing.read", alice);
+
+		BaseClientDetails client = new BaseClientDetails("docs-app", "none", "openid,docs.*", "authorization_code",
+				"uaa.resource");
+		client.setClientSecret("appsecret");
+		connection.clientOperations().create(client);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testEffectiveScopes() throws Exception {
+		assertEquals(new HashSet<String>(Arrays.asList("docs.read", "docs.admin")),
+				authorizer.getEffectiveScopes(alice, "docs-app"));
+
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.admin"));
+		assertFalse("alice is in no openid group", authorizer.isAuthorized(alice, "docs-app", "openid"));
+		assertFalse("The client has no billing scope", authorizer.isAuthorized(alice, "docs-app", "billing.read"));
+		assertFalse(authorizer.isAuthorized(alice, "no-such-app", "docs.read"));
+		assertFalse(authorizer.isAuthorized("no-such-user", "docs-app", "docs.read"));
+	}
+
+	@Test
+	public void testDecisionsAreCached() throws Exception {
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+		int requests = server.getRequestCount();
+
+		for (int i = 0; i < 10; i++) {
+			assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+		}
+
+		assertEquals(server.getRequestCount(), requests);
+		assertEquals(10, authorizer.getHitCount());
+		assertEquals(1, authorizer.getMissCount());
+	}
+
+	@Test
+	public void testObservedVersionsInvalidateDecisions() throws Exception {
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+
+		BaseClientDetails client = connection.clientOperations().findById("docs-app");
+		client.setScope(Arrays.asList("openid", "docs.admin"));
+		authorizer.observe(connection.clientOperations().update(client));
+		assertFalse(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.admin"));
+
+		ScimUser user = connection.userOperations().getUserByName("alice");
+		user.setActive(false);
+		authorizer.observe(connection.userOperations().updateUser(user));
+		assertFalse(authorizer.isAuthorized(alice, "docs-app", "docs.admin"));
+		assertEquals(0, authorizer.getHitCount());
+	}
+
+	@Test
+	public void testRecheckSeesChangesMadeElsewhere() throws Exception {
+		authorizer.setRecheckInterval(0, TimeUnit.SECONDS);
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+		assertEquals("Unchanged versions keep the decision", 1, authorizer.getHitCount());
+
+		ScimUser user = connection.userOperations().getUserByName("alice");
+		user.setActive(false);
+		connection.userOperations().updateUser(user);
+
+		assertFalse(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+		assertEquals(1, authorizer.getHitCount());
+	}
+
+	@Test
+	public void testRemovedMembershipRevokesCachedGrant() throws Exception {
+		UaaGroupResolver resolver = new UaaGroupResolver(connection.groupOperations());
+		resolver.setRefreshInterval(0, TimeUnit.SECONDS);
+		authorizer = new UaaAuthorizer(connection, resolver, 100);
+		authorizer.setRecheckInterval(0, TimeUnit.SECONDS);
+
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+		assertEquals(1, authorizer.getHitCount());
+
+		connection.groupOperations().deleteMember(reader, "alice");
+
+		assertFalse(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+		assertEquals(1, authorizer.getHitCount());
+	}
+
+	@Test
+	public void testDeletedGroupRevokesCachedGrant() throws Exception {
+		UaaGroupResolver resolver = new UaaGroupResolver(connection.groupOperations());
+		resolver.setRefreshInterval(0, TimeUnit.SECONDS);
+		authorizer = new UaaAuthorizer(connection, resolver, 100);
+		authorizer.setRecheckInterval(0, TimeUnit.SECONDS);
+
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.admin"));
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.admin"));
+		assertEquals(1, authorizer.getHitCount());
+
+		connection.groupOperations().deleteGroup(admin);
+
+		assertFalse(authorizer.isAuthorized(alice, "docs-app", "docs.admin"));
+		assertTrue(authorizer.isAuthorized(alice, "docs-app", "docs.read"));
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
+import org.cloudfoundry.identity.uaa.api.common.UaaResultHandler;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.directory.UaaDirectorySnapshot;
+import org.cloudfoundry.identity.uaa.api.directory.UaaDirectorySnapshotLoader;
+import org.cloudfoundry.identity.uaa.api.directory.UaaDirectorySnapshotWriter;
+import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.scim.ScimMeta;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UaaDirectorySnapshotTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+		File file = new File(folder.getRoot(), "directory.snapshot");
+
+		UaaDirectorySnapshotWriter writer = new UaaDirectorySnapshotWriter(file);
+		for (int i = 0; i < 100; i++) {
+			writer.addUser(user("user-" + i, "User" + i, i));
+		}
+		writer.addUser(user("user-7", "Renamed", 200));
+		writer.removeUser("user-8");
+
+		ScimGroup group = new ScimGroup("group-1", "Readers");
+		group.setMeta(new ScimMeta(new Date(0), new Date(50), 2));
+		ScimGroupMember member = new ScimGroupMember("user-1", ScimGroupMember.Type.USER, null);
+		member.setOrigin("uaa");
+		group.setMembers(Arrays.asList(member, new ScimGroupMember("group-2", ScimGroupMember.Type.GROUP, null)));
+		writer.addGroup(group);
+
+		UaaDirectorySnapshot snapshot = writer.commit();
+		assertEquals(99, snapshot.getUserCount());
+		assertEquals(1, snapshot.getGroupCount());
+		assertEquals(new Date(200), snapshot.getLastModified());
+		assertEquals(1, folder.getRoot().list().length);
+
+		ScimUser user = snapshot.getUser("user-3");
+		assertEquals("User3", user.getUserName());
+		assertEquals("Given3", user.getName().getGivenName());
+		assertEquals("user3@example.com", user.getPrimaryEmail());
+		assertEquals("uaa", user.getOrigin());
+		assertTrue(user.isActive());
+		assertFalse(user.isVerified());
+		assertEquals(3, user.getVersion());
+		assertEquals("Readers", user.getGroups().iterator().next().getDisplay());
+		assertEquals(ScimUser.Group.Type.DIRECT, user.getGroups().iterator().next().getType());
+
+		assertEquals("user-3", snapshot.getUserByName("USER3").getId());
+		assertEquals("user-7", snapshot.getUserByName("renamed").getId());
+		assertNull(snapshot.getUserByName("User7"));
+		assertNull(snapshot.getUser("user-8"));
+		assertFalse(snapshot.containsUser("user-8"));
+		assertTrue(snapshot.containsUser("user-99"));
+
+		ScimGroup read = snapshot.getGroupByName("readers");
+		assertEquals("group-1", read.getId());
+		assertEquals(2, read.getVersion());
+		assertEquals(2, read.getMembers().size());
+		assertEquals("uaa", read.getMembers().get(0).getOrigin());
+		assertEquals(ScimGroupMember.Type.GROUP, read.getMembers().get(1).getType());
+		assertTrue(snapshot.containsGroup("group-1"));
+
+		final List<String> ids = new ArrayList<String>();
+		assertEquals(3, snapshot.users(new UaaResultHandler<ScimUser>() {
+			public boolean handle(ScimUser user) {
+				ids.add(user.getId());
+				return ids.size() < 3;
+			}
+		}));
+		assertEquals(Arrays.asList("user-0", "user-1", "user-2"), ids);
+
+		snapshot.close();
+		try {
+			snapshot.getUser("user-3");
+			fail("Expected the snapshot to be closed");
+		}
+		catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testCopyReplacesAndKeepsRecords() throws Exception {
+		File file = new File(folder.getRoot(), "directory.snapshot");
+
+		UaaDirectorySnapshotWriter writer = new UaaDirectorySnapshotWriter(file);
+		writer.addUser(user("user-1", "one", 1));
+		writer.addUser(user("user-2", "two", 2));
+		UaaDirectorySnapshot first = writer.commit();
+
+		writer = new UaaDirectorySnapshotWriter(file);
+		writer.addAll(first);
+		writer.addUser(user("user-2", "deux", 5));
+		writer.removeUser("user-1");
+		writer.addUser(user("user-3", "three", 3));
+		UaaDirectorySnapshot second = writer.commit();
+
+		assertEquals(2, second.getUserCount());
+		assertNull(second.getUser("user-1"));
+		assertEquals("deux", second.getUser("user-2").getUserName());
+		assertEquals(new Date(5), second.getLastModified());
+		assertEquals("two", first.getUser("user-2").getUserName());
+	}
+
+	@Test
+	public void testRejectsOtherFiles() throws Exception {
+		File file = folder.newFile("not.snapshot");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[100]);
+		out.close();
+		assertOpenFails(file);
+
+		File snapshot = new File(folder.getRoot(), "directory.snapshot");
+		UaaDirectorySnapshotWriter writer = new UaaDirectorySnapshotWriter(snapshot);
+		writer.addUser(user("user-1", "one", 1));
+		writer.commit().close();
+
+		RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+		raf.setLength(raf.length() - 4);
+		raf.close();
+		assertOpenFails(snapshot);
+	}
+
+	@Test
+	public void testClosedWriterLeavesNothing() throws Exception {
+		File file = new File(folder.getRoot(), "directory.snapshot");
+
+		UaaDirectorySnapshotWriter writer = new UaaDirectorySnapshotWriter(file);
+		writer.addUser(user("user-1", "one", 1));
+		writer.close();
+
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void testLoadBuildsThenCatchesUp() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			// filters compare whole seconds, so keep the users out of the second the snapshot ends in
+			server.advanceClock(-2, TimeUnit.SECONDS);
+			List<String> ids = new ArrayList<String>();
+			for (int i = 0; i < 30; i++) {
+				ids.add(server.addUser("snapped" + i, "secret"));
+			}
+			server.advanceClock(2, TimeUnit.SECONDS);
+			String groupId = server.addGroup("snapped.readers", ids.get(0), ids.get(1));
+
+			UaaConnection connection = new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(),
+					server.getClientCredentials()));
+			UaaDirectorySnapshotLoader loader = new UaaDirectorySnapshotLoader(connection);
+			loader.setPageSize(7);
+			loader.setClockSkew(0, TimeUnit.SECONDS);
+
+			File file = new File(folder.getRoot(), "directory.snapshot");
+			UaaDirectorySnapshot snapshot = loader.load(file);
+			assertEquals(30, snapshot.getUserCount());
+			assertEquals(1, snapshot.getGroupCount());
+			assertEquals(2, snapshot.getGroupByName("snapped.readers").getMembers().size());
+			assertEquals(5, server.getRequestCount("GET", "/Users"));
+
+			int before = server.getRequestCount("GET", "/Users");
+			UaaDirectorySnapshot reloaded = loader.load(file);
+			assertEquals("Nothing changed, so nothing is rewritten", snapshot.getWrittenAt(), reloaded.getWrittenAt());
+			assertEquals("Only the catch-up and count queries", before + 2, server.getRequestCount("GET", "/Users"));
+			reloaded.close();
+			snapshot.close();
+
+			snapshot = UaaDirectorySnapshot.open(file);
+			String addedId = server.addUser("snapped-late", "secret");
+			connection.userOperations().deleteUser(ids.get(5));
+			connection.groupOperations().addMember(groupId, "snapped2");
+
+			before = server.getRequestCount("GET", "/Users");
+			UaaDirectorySnapshot caughtUp = loader.catchUp(snapshot);
+			assertNotSame(snapshot, caughtUp);
+			assertEquals(30, caughtUp.getUserCount());
+			assertTrue(caughtUp.containsUser(addedId));
+			assertFalse(caughtUp.containsUser(ids.get(5)));
+			assertEquals(3, caughtUp.getGroup(groupId).getMembers().size());
+			assertTrue("Catching up should not rescan every user",
+					server.getRequestCount("GET", "/Users") - before < 30 / 7 + 4);
+			caughtUp.close();
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testCatchUpRegroupsUsers() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			String alice = server.addUser("alice", "secret");
+			String bob = server.addUser("bob", "secret");
+			String readers = server.addGroup("readers", alice);
+			String staff = server.addGroup("staff", readers);
+
+			UaaConnection connection = new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(),
+					server.getClientCredentials()));
+			UaaDirectorySnapshotLoader loader = new UaaDirectorySnapshotLoader(connection);
+			UaaDirectorySnapshot snapshot = loader.load(new File(folder.getRoot(), "directory.snapshot"));
+			assertEquals(0, snapshot.getUser(bob).getGroups().size());
+
+			server.addMembers(readers, bob);
+			String fresh = server.addGroup("fresh", alice);
+
+			UaaDirectorySnapshot caughtUp = loader.catchUp(snapshot);
+			assertEquals(new HashSet<String>(Arrays.asList("readers DIRECT", "staff INDIRECT")),
+					groups(caughtUp.getUser(bob)));
+			assertEquals(new HashSet<String>(Arrays.asList("readers DIRECT", "fresh DIRECT", "staff INDIRECT")),
+					groups(caughtUp.getUserByName("alice")));
+			assertEquals(fresh, caughtUp.getGroupByName("fresh").getId());
+			assertEquals(staff, caughtUp.getGroupByName("staff").getId());
+			caughtUp.close();
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testChangeDuringScanIsCaughtUp() throws Exception {
+		final FakeUaaServer server = new FakeUaaServer();
+		try {
+			final String early = server.addUser("early", "secret");
+			server.addUser("early2", "secret");
+			final String late = server.addUser("late", "secret");
+
+			final UaaConnection connection = new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(),
+					server.getClientCredentials()));
+			// after the first page, modify a user on it, then one on the next page a few seconds later
+			final UaaUserOperations scanning = (UaaUserOperations) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { UaaUserOperations.class }, new InvocationHandler() {
+				private boolean modified;
+
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					Object result = method.invoke(connection.userOperations(), args);
+					if ("streamUsers".equals(method.getName()) && !modified) {
+						modified = true;
+						rename(connection, "early", "early-renamed");
+						server.advanceClock(5, TimeUnit.SECONDS);
+						rename(connection, "late", "late-renamed");
+					}
+					return result;
+				}
+			});
+			UaaConnection intercepted = (UaaConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { UaaConnection.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+							return "userOperations".equals(method.getName()) ? scanning : method.invoke(connection,
+									args);
+						}
+					});
+
+			UaaDirectorySnapshotLoader loader = new UaaDirectorySnapshotLoader(intercepted);
+			loader.setPageSize(2);
+			loader.setClockSkew(0, TimeUnit.SECONDS);
+
+			UaaDirectorySnapshot snapshot = loader.load(new File(folder.getRoot(), "directory.snapshot"));
+			assertEquals("early", snapshot.getUser(early).getUserName());
+			assertEquals("late-renamed", snapshot.getUser(late).getUserName());
+
+			UaaDirectorySnapshot caughtUp = loader.catchUp(snapshot);
+			assertEquals("early-renamed", caughtUp.getUser(early).getUserName());
+			caughtUp.close();
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	private static void rename(UaaConnection connection, String userName, String newName) {
+		ScimUser user = connection.userOperations().getUserByName(userName);
+		user.setUserName(newName);
+		connection.userOperations().updateUser(user);
+	}
+
+	private static void assertOpenFails(File file) {
+		try {
+			UaaDirectorySnapshot.open(file);
+			fail("Expected " + file + " to be rejected");
+		}
+		catch (IOException e) {
+		}
+	}
+
+	private static Set<String> groups(ScimUser user) {
+		Set<String> groups = new HashSet<String>();
+		for (ScimUser.Group group : user.getGroups()) {
+			groups.add(group.getDisplay() + " " + group.getType());
+		}
+		return groups;
+	}
+
+	private static ScimUser user(String id, String userName, int version) {
+		ScimUser user = new ScimUser(id, userName, "Given" + version, "Family" + version);
+		user.addEmail(userName.toLowerCase() + "@example.com");
+		user.setOrigin("uaa");
+		user.setMeta(new ScimMeta(new Date(0), new Date(version), version));
+		user.setGroups(Arrays.asList(new ScimUser.Group("group-1", "Readers", ScimUser.Group.Type.DIRECT)));
+		return user;
+	}
+}
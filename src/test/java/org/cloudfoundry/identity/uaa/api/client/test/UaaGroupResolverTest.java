@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.directory.UaaGroupResolver;
+import org.cloudfoundry.identity.uaa.api.group.UaaGroupOperations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UaaGroupResolverTest {
+	private FakeUaaServer server;
+
+	private UaaGroupOperations operations;
+
+	private UaaGroupResolver resolver;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+		operations = new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(), server.getClientCredentials()))
+				.groupOperations();
+		resolver = new UaaGroupResolver(operations);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testNestedGroupsWithCycle() throws Exception {
+		String alice = server.addUser("alice", "secret");
+		String bob = server.addUser("bob", "secret");
+		String readers = server.addGroup("readers", alice, bob);
+		String staff = server.addGroup("staff", readers);
+		String everyone = server.addGroup("everyone", staff);
+		server.addMembers(readers, everyone);
+		server.addGroup("unrelated", bob);
+
+		assertEquals(new HashSet<String>(Arrays.asList(readers, staff, everyone)), resolver.getGroupIds(alice));
+		assertEquals(new HashSet<String>(Arrays.asList("readers", "staff", "everyone")), resolver.getGroupNames(alice));
+		assertTrue(resolver.isMemberOf(alice, everyone));
+		assertEquals(new HashSet<String>(Arrays.asList(readers, everyone)), resolver.getGroupIds(staff));
+
+		long lookups = resolver.getLookupCount();
+		assertEquals(4, resolver.getGroupIds(bob).size());
+		assertEquals("Only bob and the group only he is in are looked up", lookups + 2, resolver.getLookupCount());
+
+		int requests = server.getRequestCount("GET", "/Groups");
+		resolver.getGroupIds(alice);
+		assertEquals(requests, server.getRequestCount("GET", "/Groups"));
+	}
+
+	@Test
+	public void testParallelBatches() throws Exception {
+		String carol = server.addUser("carol", "secret");
+		String[] groups = new String[25];
+		for (int i = 0; i < groups.length; i++) {
+			groups[i] = server.addGroup("direct" + i, carol);
+			server.addGroup("parent" + i, groups[i]);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			resolver.setExecutor(executor);
+			resolver.setBatchSize(5);
+
+			assertEquals(50, resolver.getGroupIds(carol).size());
+			assertEquals("One request for carol, then five batches for each level above", 11,
+					server.getRequestCount("GET", "/Groups"));
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testVersionChangeInvalidates() throws Exception {
+		String dave = server.addUser("dave", "secret");
+		String erin = server.addUser("erin", "secret");
+		String readers = server.addGroup("readers", dave);
+		String admins = server.addGroup("admins", erin);
+
+		resolver.setRefreshInterval(0, TimeUnit.SECONDS);
+		assertEquals(1, resolver.getGroupIds(dave).size());
+		assertEquals(1, resolver.getGroupIds(erin).size());
+
+		server.addMembers(admins, readers);
+		assertEquals(new HashSet<String>(Arrays.asList(readers, admins)), resolver.getGroupIds(dave));
+		assertEquals(1, resolver.getGroupIds(erin).size());
+
+		resolver.invalidateAll();
+		assertEquals(2, resolver.getGroupIds(dave).size());
+	}
+
+	@Test
+	public void testMemberAddedToUnseenGroup() throws Exception {
+		String dave = server.addUser("dave", "secret");
+		String erin = server.addUser("erin", "secret");
+		String readers = server.addGroup("readers", dave);
+		String other = server.addGroup("other", erin);
+
+		resolver.setRefreshInterval(0, TimeUnit.SECONDS);
+		assertEquals(Collections.singleton(readers), resolver.getGroupIds(dave));
+
+		server.addMembers(other, dave);
+		assertEquals(new HashSet<String>(Arrays.asList(readers, other)), resolver.getGroupIds(dave));
+	}
+
+	@Test
+	public void testNewGroupContainingResolvedMember() throws Exception {
+		String dave = server.addUser("dave", "secret");
+		String readers = server.addGroup("readers", dave);
+
+		resolver.setRefreshInterval(0, TimeUnit.SECONDS);
+		assertEquals(Collections.singleton(readers), resolver.getGroupIds(dave));
+
+		String fresh = server.addGroup("fresh", dave);
+		assertEquals(new HashSet<String>(Arrays.asList(readers, fresh)), resolver.getGroupIds(dave));
+
+		int requests = server.getRequestCount("GET", "/Groups");
+		resolver.getGroupIds(dave);
+		assertEquals("Unchanged groups are not treated as modified again, only counted", requests + 2,
+				server.getRequestCount("GET", "/Groups"));
+	}
+
+	@Test
+	public void testDeletedGroupIsForgotten() throws Exception {
+		String dave = server.addUser("dave", "secret");
+		String readers = server.addGroup("readers", dave);
+		String staff = server.addGroup("staff", readers);
+		String admins = server.addGroup("admins", readers);
+
+		resolver.setRefreshInterval(0, TimeUnit.SECONDS);
+		assertEquals(new HashSet<String>(Arrays.asList(readers, staff, admins)), resolver.getGroupIds(dave));
+
+		operations.deleteGroup(staff);
+		assertEquals(new HashSet<String>(Arrays.asList(readers, admins)), resolver.getGroupIds(dave));
+
+		operations.deleteGroup(admins);
+		String fresh = server.addGroup("fresh", dave);
+		assertEquals("A deletion is noticed even when a new group keeps the count the same",
+				new HashSet<String>(Arrays.asList(readers, fresh)), resolver.getGroupIds(dave));
+	}
+}
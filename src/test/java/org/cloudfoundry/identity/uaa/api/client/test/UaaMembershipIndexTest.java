@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.directory.UaaMembershipIndex;
+import org.cloudfoundry.identity.uaa.api.directory.UaaMembershipIndexBuilder;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.junit.Test;
+
+public class UaaMembershipIndexTest {
+	@Test
+	public void testMemberships() {
+		UaaMembershipIndexBuilder builder = new UaaMembershipIndexBuilder();
+		builder.addGroup(group("readers", "alice", "bob", "alice"));
+		builder.addGroup(group("writers", "bob"));
+		builder.addGroup(group("admins", "carol", "writers"));
+		builder.addGroup(group("empty"));
+		UaaMembershipIndex index = builder.build();
+
+		assertEquals(5, index.getMembershipCount());
+		assertTrue(index.isMember("alice", "readers"));
+		assertTrue(index.isMember("bob", "writers"));
+		assertTrue(index.isMember("writers", "admins"));
+		assertFalse(index.isMember("bob", "admins"));
+		assertFalse(index.isMember("alice", "nobody"));
+		assertFalse(index.isMember(null, "readers"));
+
+		assertEquals(2, index.getGroupCount("bob"));
+		assertEquals(Arrays.asList("readers", "writers"), index.getGroupIds("bob"));
+		assertEquals(Arrays.asList("carol", "writers"), sorted(index.getMemberIds("admins")));
+		assertEquals(0, index.getMemberCount("empty"));
+		assertEquals(0, index.getGroupCount("dave"));
+		assertTrue(index.getGroupIds("dave").isEmpty());
+
+		int[] ordinals = new int[1];
+		assertEquals(2, index.groupsOf("bob", ordinals));
+		assertEquals("readers", index.id(ordinals[0]));
+		assertTrue(index.getOffHeapBytes() > 0);
+	}
+
+	@Test
+	public void testReplacedAndRemovedGroups() {
+		UaaMembershipIndexBuilder builder = new UaaMembershipIndexBuilder();
+		builder.addGroup(group("readers", "alice", "bob"));
+		builder.addGroup(group("writers", "alice"));
+		builder.addGroup(group("readers", "carol"));
+		builder.removeGroup("writers");
+		UaaMembershipIndex index = builder.build();
+
+		assertFalse(index.isMember("alice", "readers"));
+		assertTrue(index.isMember("carol", "readers"));
+		assertFalse(index.isMember("alice", "writers"));
+		assertEquals(1, index.getMembershipCount());
+
+		try {
+			builder.addGroup(group("late", "alice"));
+			fail("Expected the builder to be spent");
+		}
+		catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testQueriesDoNotAllocate() {
+		UaaMembershipIndexBuilder builder = new UaaMembershipIndexBuilder();
+		List<String> users = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			users.add("user-" + i);
+		}
+		for (int g = 0; g < 50; g++) {
+			builder.addGroup(group("group-" + g, users.subList(g * 10, g * 10 + 200).toArray(new String[200])));
+		}
+		UaaMembershipIndex index = builder.build();
+
+		String user = users.get(150);
+		String group = "group-10";
+		int[] into = new int[64];
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		int found = query(index, user, group, into, 100000);
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		found += query(index, user, group, into, 100000);
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+		assertEquals(2 * 100000 * 17, found);
+		assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+	}
+
+	@Test
+	public void testFilledFromGroupPages() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			String alice = server.addUser("alice", "secret");
+			String bob = server.addUser("bob", "secret");
+			List<String> groupIds = new ArrayList<String>();
+			for (int i = 0; i < 12; i++) {
+				groupIds.add(server.addGroup("paged" + i, i % 2 == 0 ? alice : bob));
+			}
+
+			UaaMembershipIndexBuilder builder = new UaaMembershipIndexBuilder();
+			builder.addAll(new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(), server
+					.getClientCredentials())).groupOperations(), 5);
+			UaaMembershipIndex index = builder.build();
+
+			assertEquals(6, index.getGroupCount(alice));
+			assertTrue(index.isMember(bob, groupIds.get(11)));
+			assertFalse(index.isMember(bob, groupIds.get(10)));
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	private static int query(UaaMembershipIndex index, String user, String group, int[] into, int iterations) {
+		int found = 0;
+		for (int i = 0; i < iterations; i++) {
+			found += index.isMember(user, group) ? 1 : 0;
+			found += index.groupsOf(user, into);
+		}
+		return found;
+	}
+
+	private static ScimGroup group(String id, String... memberIds) {
+		ScimGroup group = new ScimGroup(id, id);
+		List<ScimGroupMember> members = new ArrayList<ScimGroupMember>();
+		for (String memberId : memberIds) {
+			members.add(new ScimGroupMember(memberId));
+		}
+		group.setMembers(members);
+		return group;
+	}
+
+	private static List<String> sorted(List<String> ids) {
+		List<String> sorted = new ArrayList<String>(ids);
+		Collections.sort(sorted);
+		return sorted;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.common.model.UaaEndpointCategory;
+import org.cloudfoundry.identity.uaa.api.metrics.UaaMetrics;
+import org.cloudfoundry.identity.uaa.api.metrics.impl.InMemoryUaaMetrics;
+import org.cloudfoundry.identity.uaa.api.metrics.impl.InMemoryUaaMetrics.OperationStats;
+import org.cloudfoundry.identity.uaa.api.metrics.impl.LatencyHistogram;
+import org.junit.Test;
+
+public class UaaMetricsTest {
+
+	@Test
+	public void testPercentilesWithinBucketPrecision() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int millis = 1; millis <= 1000; millis++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(TimeUnit.SECONDS.toNanos(1), histogram.getMax());
+
+		assertWithin(TimeUnit.MILLISECONDS.toNanos(500), histogram.getPercentile(0.5));
+		assertWithin(TimeUnit.MILLISECONDS.toNanos(990), histogram.getPercentile(0.99));
+		assertEquals(histogram.getMax(), histogram.getPercentile(1));
+	}
+
+	@Test
+	public void testEmptyHistogram() throws Exception {
+		assertEquals(0, new LatencyHistogram().getPercentile(0.99));
+	}
+
+	@Test
+	public void testRequestsGroupedByOperation() throws Exception {
+		InMemoryUaaMetrics metrics = new InMemoryUaaMetrics();
+		metrics.recordRequest("users.getByName", UaaEndpointCategory.USERS, 200, 1000, 0, 512);
+		metrics.recordRequest("users.getByName", UaaEndpointCategory.USERS, 503, 2000, 0, 64);
+		metrics.recordRequest("users.getByName", UaaEndpointCategory.USERS, UaaMetrics.NO_RESPONSE, 3000, 0, 0);
+		metrics.recordRetry("users.getByName");
+		metrics.recordOperation("users.getByName", 7000);
+
+		OperationStats stats = metrics.getOperations().get("users.getByName");
+		assertEquals(3, stats.getRequestLatency().getCount());
+		assertEquals(1, stats.getOperationLatency().getCount());
+		assertEquals(1, stats.getStatusCount(2));
+		assertEquals(1, stats.getStatusCount(5));
+		assertEquals(1, stats.getStatusCount(0));
+		assertEquals(576, stats.getBytesReceived());
+		assertEquals(1, stats.getRetries());
+
+		String scrape = metrics.scrape();
+		assertTrue(scrape, scrape.contains("uaa_client_requests_total{operation=\"users.getByName\",status=\"5xx\"} 1"));
+		assertTrue(scrape, scrape.contains("uaa_client_operation_seconds_count{operation=\"users.getByName\"} 1"));
+	}
+
+	@Test
+	public void testRequestsAttributedToOperation() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			server.addUser("measured", "secret");
+
+			InMemoryUaaMetrics metrics = new InMemoryUaaMetrics();
+			UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+			helper.setMetrics(metrics);
+
+			new UaaConnectionImpl(helper).userOperations().getUserByName("measured");
+
+			OperationStats stats = metrics.getOperations().get("users.getByName");
+			assertEquals(1, stats.getOperationLatency().getCount());
+			assertEquals(1, stats.getRequestLatency().getCount());
+			assertEquals(1, stats.getStatusCount(2));
+			assertTrue(stats.getBytesReceived() > 0);
+			assertEquals(1, metrics.getTokenRequests().getCount());
+			assertFalse("users.search is nested and reported under its root",
+					metrics.getOperations().containsKey("users.search"));
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 8);
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaNodeBalancer;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaNodeBalancer.Node;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaNodeBalancer.Strategy;
+import org.junit.After;
+import org.junit.Before;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.junit.Test;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+
+public class UaaNodeBalancerTest {
+
+	private UaaNodeBalancer balancer;
+
+	@Before
+	public void setup() throws Exception {
+		balancer = new UaaNodeBalancer(Arrays.asList(new URL("http://localhost:1/uaa"), new URL(
+				"http://localhost:2/uaa")), Strategy.LEAST_OUTSTANDING, 2, 1, TimeUnit.HOURS);
+	}
+
+	@After
+	public void teardown() {
+		balancer.shutdown();
+	}
+
+	@Test
+	public void testLeastOutstanding() throws Exception {
+		Node first = balancer.select();
+		Node second = balancer.select();
+		assertNotSame("Second request should go to the idle node", first, second);
+
+		balancer.onSuccess(first, 1000);
+		assertSame(first, balancer.select());
+	}
+
+	@Test
+	public void testEjection() throws Exception {
+		Node bad = balancer.getNodes().get(0);
+		Node good = balancer.getNodes().get(1);
+
+		balancer.onFailure(balancer.select(good));
+		balancer.onFailure(balancer.select(good));
+		assertFalse(bad.isHealthy());
+
+		for (int i = 0; i < 5; i++) {
+			assertNotSame("Ejected node should not be selected", bad, balancer.select());
+		}
+
+		assertSame("Avoided node should still be used when nothing else is left", bad,
+				balancer.select(good));
+	}
+
+	@Test
+	public void testEjectedNodeIsProbedAndReadmitted() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		UaaNodeBalancer probing = new UaaNodeBalancer(Arrays.asList(new URL("http://localhost:1/uaa"), new URL(
+				server.getUrl() + "/")), Strategy.LEAST_OUTSTANDING, 1, 20, TimeUnit.MILLISECONDS);
+		try {
+			Node node = probing.getNodes().get(1);
+			probing.onFailure(probing.select(probing.getNodes().get(0)));
+			assertFalse(node.isHealthy());
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (!node.isHealthy() && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+
+			assertTrue("The probe should re-admit the node", node.isHealthy());
+			assertTrue(server.getRequestCount("GET", "/healthz") > 0);
+		}
+		finally {
+			probing.shutdown();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testClientErrorsAreIgnored() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		UaaNodeBalancer nodes = new UaaNodeBalancer(Arrays.asList(server.getUrl(), new URL(server.getUrl() + "/")),
+				Strategy.LEAST_OUTSTANDING, 1, 1, TimeUnit.HOURS);
+		try {
+			UaaConnectionHelper helper = new UaaConnectionHelper(nodes, server.getClientCredentials());
+			helper.getAccessToken();
+
+			for (int i = 0; i < 4; i++) {
+				try {
+					helper.get("/Users/{id}", new ParameterizedTypeReference<ScimUser>() {
+					}, "missing");
+					fail("Expected 404");
+				}
+				catch (HttpClientErrorException e) {
+					assertEquals(HttpStatus.NOT_FOUND, e.getStatusCode());
+				}
+			}
+
+			for (Node node : nodes.getNodes()) {
+				assertTrue(node.isHealthy());
+				assertEquals(0, node.getOutstanding());
+				assertEquals("Errors are not timed as successes", 0, node.getEwmaLatencyNanos(), 0);
+			}
+		}
+		finally {
+			nodes.shutdown();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaRateLimitExceededException;
+import org.cloudfoundry.identity.uaa.api.common.impl.TokenBucket;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaRateLimiter;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaRateLimiter.Category;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaRateLimiter.Mode;
+import org.junit.Test;
+
+public class UaaRateLimiterTest {
+
+	@Test
+	public void testBurstThenEmpty() throws Exception {
+		TokenBucket bucket = new TokenBucket(1, 3);
+
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse("Bucket should be empty after the burst", bucket.tryAcquire());
+	}
+
+	@Test
+	public void testTimeoutWaitsForRefill() throws Exception {
+		TokenBucket bucket = new TokenBucket(20, 1);
+		assertTrue(bucket.tryAcquire());
+
+		long start = System.nanoTime();
+		assertTrue("Permit should arrive within the timeout", bucket.tryAcquire(1, TimeUnit.SECONDS));
+		assertTrue("Should have waited for the refill", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+
+		assertFalse("Permit cannot arrive within the timeout", bucket.tryAcquire(1, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testCategoriesAreIndependent() throws Exception {
+		UaaRateLimiter limiter = new UaaRateLimiter(Mode.NON_BLOCKING, 0, TimeUnit.SECONDS);
+		limiter.setLimit(Category.WRITE, 1, 1);
+
+		limiter.acquire(Category.WRITE);
+		limiter.acquire(Category.READ);
+		limiter.acquire(Category.READ);
+
+		try {
+			limiter.acquire(Category.WRITE);
+			fail("Second write should have been rejected");
+		}
+		catch (UaaRateLimitExceededException expected) {
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaConnection;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaResponseCache;
+import org.cloudfoundry.identity.uaa.api.common.model.expr.FilterRequestBuilder;
+import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UaaResponseCacheTest {
+	private FakeUaaServer server;
+
+	private UaaConnectionHelper helper;
+
+	private UaaConnection connection;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+		helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+		connection = new UaaConnectionImpl(helper);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testFreshResponseIsServedFromCache() throws Exception {
+		server.addUser("cached", "secret");
+
+		UaaResponseCache cache = new UaaResponseCache(100, 1, TimeUnit.MINUTES);
+		helper.setResponseCache(cache);
+
+		UaaUserOperations operations = connection.userOperations();
+		assertNotNull(operations.getUserByName("cached"));
+		assertNotNull(operations.getUserByName("cached"));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, server.getRequestCount("GET", "/Users"));
+	}
+
+	@Test
+	public void testResponseCacheRevalidatesWithEtag() throws Exception {
+		server.addUser("cached", "secret");
+
+		UaaResponseCache cache = new UaaResponseCache(100, 1, TimeUnit.MILLISECONDS);
+		helper.setResponseCache(cache);
+
+		UaaUserOperations operations = connection.userOperations();
+		assertNotNull(operations.getUserByName("cached"));
+		Thread.sleep(5);
+		assertNotNull(operations.getUserByName("cached"));
+
+		assertEquals(1, cache.getRevalidationCount());
+		assertEquals(2, server.getRequestCount("GET", "/Users"));
+	}
+
+	@Test
+	public void testGroupWriteInvalidatesUsers() throws Exception {
+		server.addUser("joiner", "secret");
+		String groupId = server.addGroup("joined");
+
+		helper.setResponseCache(new UaaResponseCache(100, 1, TimeUnit.MINUTES));
+
+		UaaUserOperations operations = connection.userOperations();
+		ScimUser user = operations.getUserByName("joiner");
+		assertTrue(user.getGroups() == null || user.getGroups().isEmpty());
+
+		connection.groupOperations().addMember(groupId, "joiner");
+
+		user = operations.getUserByName("joiner");
+		assertEquals(1, user.getGroups().size());
+		assertEquals(groupId, user.getGroups().iterator().next().getValue());
+	}
+
+	@Test
+	public void testUserWriteInvalidatesGroups() throws Exception {
+		String userId = server.addUser("leaver", "secret");
+		String groupId = server.addGroup("left", userId);
+
+		UaaResponseCache cache = new UaaResponseCache(100, 1, TimeUnit.MINUTES);
+		helper.setResponseCache(cache);
+		connection.groupOperations().getGroups(new FilterRequestBuilder().equals("id", groupId).build());
+
+		int requests = server.getRequestCount("GET", "/Groups");
+		connection.userOperations().deleteUser(userId);
+		connection.groupOperations().getGroups(new FilterRequestBuilder().equals("id", groupId).build());
+
+		assertEquals(requests + 1, server.getRequestCount("GET", "/Groups"));
+	}
+}
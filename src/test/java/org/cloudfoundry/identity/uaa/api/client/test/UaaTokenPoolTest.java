@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaTokenPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+public class UaaTokenPoolTest {
+	private FakeUaaServer server;
+
+	private UaaTokenPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+		pool = new UaaTokenPool(100);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testMintManyUsers() throws Exception {
+		List<UaaConnectionHelper> helpers = new ArrayList<UaaConnectionHelper>();
+		for (int i = 0; i < 50; i++) {
+			server.addUser("user" + i, "secret" + i);
+			helpers.add(helper("user" + i, "secret" + i));
+		}
+		helpers.add(helper("nobody", "secret"));
+
+		assertEquals(50, pool.mint(helpers, 8));
+		assertEquals(50, pool.size());
+		assertEquals(50, server.getTokenGrantCount("password"));
+
+		assertEquals("Pooled tokens are not obtained again", 50, pool.mint(helpers.subList(0, 50), 8));
+		assertEquals(50, server.getTokenGrantCount("password"));
+	}
+
+	@Test
+	public void testTokenOutlivesConnection() throws Exception {
+		server.addUser("marissa", "koala");
+		new UaaConnectionImpl(helper("marissa", "koala")).userOperations().getUserByName("marissa");
+
+		assertNotNull(new UaaConnectionImpl(helper("marissa", "koala")).userOperations().getUserByName("marissa"));
+		assertEquals(1, server.getTokenGrantCount("password"));
+	}
+
+	@Test
+	public void testExpiredTokenIsRefreshedNotObtained() throws Exception {
+		server.addUser("marissa", "koala");
+		server.setTokenValiditySeconds(-1);
+		pool.mint(Collections.singletonList(helper("marissa", "koala")), 1);
+
+		server.setTokenValiditySeconds(600);
+		assertNotNull(new UaaConnectionImpl(helper("marissa", "koala")).userOperations().getUserByName("marissa"));
+
+		assertEquals(1, server.getTokenGrantCount("password"));
+		assertEquals(1, server.getTokenGrantCount("refresh_token"));
+	}
+
+	@Test
+	public void testTokenIsOnlySharedWithTheSameCredentials() throws Exception {
+		server.addUser("marissa", "koala");
+		pool.mint(Collections.singletonList(helper("marissa", "koala")), 1);
+
+		try {
+			helper("marissa", "wrong").getAccessToken();
+			fail("Expected the wrong password to be sent to the UAA and rejected");
+		}
+		catch (OAuth2AccessDeniedException e) {
+			assertEquals(2, server.getRequestCount("POST", "/oauth/token"));
+		}
+	}
+
+	@Test
+	public void testLeastRecentlyUsedTokenIsEvicted() throws Exception {
+		pool = new UaaTokenPool(2);
+		List<UaaConnectionHelper> helpers = new ArrayList<UaaConnectionHelper>();
+		for (int i = 0; i < 3; i++) {
+			server.addUser("user" + i, "secret");
+			helpers.add(helper("user" + i, "secret"));
+		}
+
+		assertEquals(3, pool.mint(helpers, 1));
+		assertEquals(2, pool.size());
+		assertEquals(1, pool.getEvictionCount());
+	}
+
+	@Test
+	public void testExpiredTokenIsRefreshedOncePerKey() throws Exception {
+		server.addUser("marissa", "koala");
+		server.setTokenValiditySeconds(-1);
+		UaaConnectionHelper first = helper("marissa", "koala");
+		UaaConnectionHelper second = helper("marissa", "koala");
+		assertTrue(first.getAccessToken().isExpired());
+
+		server.setTokenValiditySeconds(600);
+		OAuth2AccessToken refreshed = first.getAccessToken();
+		assertEquals("The second connection uses the token the first refreshed", refreshed.getValue(), second
+				.getAccessToken().getValue());
+
+		assertEquals(1, server.getTokenGrantCount("password"));
+		assertEquals(1, server.getTokenGrantCount("refresh_token"));
+	}
+
+	@Test
+	public void testRemoveOnlyForgetsExpectedToken() throws Exception {
+		pool.put("key", new DefaultOAuth2AccessToken("newer"));
+
+		pool.remove("key", new DefaultOAuth2AccessToken("failed"));
+		assertEquals("newer", pool.get("key").getValue());
+
+		pool.remove("key", new DefaultOAuth2AccessToken("newer"));
+		assertNull(pool.get("key"));
+	}
+
+	private UaaConnectionHelper helper(String userName, String password) {
+		UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getUserCredentials(userName,
+				password));
+		helper.setTokenStore(pool);
+		return helper;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+
+import org.cloudfoundry.identity.uaa.api.common.UaaTokenStore;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.user.UaaUserOperations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.resource.OAuth2ProtectedResourceDetails;
+import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeResourceDetails;
+import org.springframework.security.oauth2.common.AuthenticationScheme;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+/**
+ * Renewal of expired tokens by grant, starting from tokens the server issued already expired
+ */
+public class UaaTokenRenewalTest {
+	private FakeUaaServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+		server.addUser("marissa", "koala");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testClientCredentialsTokenIsObtainedAgain() throws Exception {
+		UaaUserOperations operations = new UaaConnectionImpl(expired(server.getClientCredentials()))
+				.userOperations();
+		assertNotNull(operations.getUserByName("marissa"));
+
+		assertEquals(2, server.getTokenGrantCount("client_credentials"));
+		assertEquals("A client credentials token has nothing to refresh with", 2,
+				server.getRequestCount("POST", "/oauth/token"));
+	}
+
+	@Test
+	public void testPasswordTokenIsRefreshed() throws Exception {
+		UaaUserOperations operations = new UaaConnectionImpl(expired(server.getUserCredentials("marissa", "koala")))
+				.userOperations();
+		assertNotNull(operations.getUserByName("marissa"));
+
+		assertEquals(1, server.getTokenGrantCount("password"));
+		assertEquals(1, server.getTokenGrantCount("refresh_token"));
+	}
+
+	@Test
+	public void testRejectedRefreshTokenFallsBackToObtaining() throws Exception {
+		UaaUserOperations operations = new UaaConnectionImpl(expired(server.getUserCredentials("marissa", "koala")))
+				.userOperations();
+
+		server.revokeRefreshTokens();
+		assertNotNull(operations.getUserByName("marissa"));
+
+		assertEquals(2, server.getTokenGrantCount("password"));
+		assertEquals("One rejected refresh, then the password grant", 3, server.getRequestCount("POST",
+				"/oauth/token"));
+	}
+
+	@Test
+	public void testAuthorizationCodeTokenIsRefreshed() throws Exception {
+		server.setTokenValiditySeconds(600);
+		OAuth2AccessToken issued = new UaaConnectionHelper(server.getUrl(), server.getUserCredentials("marissa",
+				"koala")).getAccessToken();
+
+		DefaultOAuth2AccessToken expired = new DefaultOAuth2AccessToken("expired");
+		expired.setExpiration(new Date(System.currentTimeMillis() - 1000));
+		expired.setRefreshToken(issued.getRefreshToken());
+		final OAuth2AccessToken[] stored = { expired };
+
+		AuthorizationCodeResourceDetails credentials = new AuthorizationCodeResourceDetails();
+		credentials.setAccessTokenUri(server.getUrl() + "/oauth/token");
+		credentials.setClientAuthenticationScheme(AuthenticationScheme.header);
+		credentials.setClientId(FakeUaaServer.ADMIN_CLIENT_ID);
+		credentials.setClientSecret(FakeUaaServer.ADMIN_CLIENT_SECRET);
+
+		UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), credentials);
+		helper.setTokenStore(new UaaTokenStore() {
+			public OAuth2AccessToken get(String key) {
+				return stored[0];
+			}
+
+			public void put(String key, OAuth2AccessToken token) {
+				stored[0] = token;
+			}
+
+			public void remove(String key, OAuth2AccessToken token) {
+				if (stored[0] == token) {
+					stored[0] = null;
+				}
+			}
+		});
+
+		assertNotNull(new UaaConnectionImpl(helper).userOperations().getUserByName("marissa"));
+		assertEquals(1, server.getTokenGrantCount("refresh_token"));
+		assertFalse(stored[0].isExpired());
+	}
+
+	private UaaConnectionHelper expired(OAuth2ProtectedResourceDetails credentials) {
+		UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), credentials);
+		server.setTokenValiditySeconds(-1);
+		assertTrue(helper.getAccessToken().isExpired());
+		server.setTokenValiditySeconds(600);
+		return helper;
+	}
+}
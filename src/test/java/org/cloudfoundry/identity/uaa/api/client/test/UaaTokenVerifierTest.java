@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenClaims;
+import org.cloudfoundry.identity.uaa.api.token.UaaTokenVerifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+
+public class UaaTokenVerifierTest {
+	private static final String ISSUER = "http://localhost/uaa/oauth/token";
+
+	private FakeUaaServer server;
+
+	private UaaTokenVerifier verifier;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FakeUaaServer();
+		verifier = new UaaTokenVerifier(new UaaConnectionImpl(new UaaConnectionHelper(server.getUrl(),
+				server.getClientCredentials())).tokenOperations(), ISSUER, 100);
+		verifier.setAudience("cloud_controller");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void testVerifiedClaims() throws Exception {
+		UaaTokenClaims claims = verifier.verify(server.signToken("key-1", claims("marissa", 600)));
+
+		assertEquals("marissa", claims.getUserName());
+		assertEquals("marissa-id", claims.getUserId());
+		assertEquals("cf", claims.getClientId());
+		assertEquals(ISSUER, claims.getIssuer());
+		assertEquals(new HashSet<String>(Arrays.asList("openid", "cloud_controller.read")), claims.getScopes());
+		assertTrue(claims.getExpiresAt().getTime() > System.currentTimeMillis());
+		assertEquals(1, server.getRequestCount("GET", "/token_keys"));
+	}
+
+	@Test
+	public void testRepeatedTokenIsCached() throws Exception {
+		String token = server.signToken("key-1", claims("marissa", 600));
+		UaaTokenClaims first = verifier.verify(token);
+
+		for (int i = 0; i < 1000; i++) {
+			assertSame(first, verifier.verify(new String(token)));
+		}
+
+		assertEquals(1, verifier.getMissCount());
+		assertEquals(1000, verifier.getHitCount());
+		assertEquals(1, server.getRequestCount("GET", "/token_keys"));
+	}
+
+	@Test
+	public void testInvalidTokensAreRejected() throws Exception {
+		String token = server.signToken("key-1", claims("marissa", 600));
+		String other = server.signToken("key-1", claims("admin", 600));
+		String[] parts = token.split("\\.");
+
+		assertRejected(parts[0] + "." + other.split("\\.")[1] + "." + parts[2], "signature");
+		assertRejected(parts[0] + "." + parts[1], "Malformed");
+		assertRejected(server.signToken("key-1", claims("marissa", -120)), "expired");
+
+		Map<String, Object> foreign = claims("marissa", 600);
+		foreign.put("iss", "https://elsewhere/oauth/token");
+		assertRejected(server.signToken("key-1", foreign), "issuer");
+
+		Map<String, Object> audience = claims("marissa", 600);
+		audience.put("aud", Arrays.asList("openid", "scim"));
+		assertRejected(server.signToken("key-1", audience), "audience");
+
+		assertEquals(0, verifier.getHitCount());
+	}
+
+	@Test
+	public void testCachedTokenExpires() throws Exception {
+		verifier.verify(server.signToken("key-1", claims("admin", 600)));
+
+		// expired, but within the default clock skew
+		String token = server.signToken("key-1", claims("marissa", -30));
+		verifier.verify(token);
+		verifier.verify(token);
+		assertEquals(1, verifier.getHitCount());
+
+		verifier.setClockSkew(0, TimeUnit.SECONDS);
+		assertRejected(token, "expired");
+	}
+
+	@Test
+	public void testKeyRotation() throws Exception {
+		verifier.setUnknownKeyInterval(0, TimeUnit.SECONDS);
+		String old = server.signToken("key-1", claims("marissa", 600));
+		verifier.verify(old);
+
+		String rotated = server.signToken("key-2", claims("marissa", 600));
+		assertEquals("marissa", verifier.verify(rotated).getUserName());
+		assertEquals("A new key is read as soon as a token names it", 2, server.getRequestCount("GET", "/token_keys"));
+		verifier.verify(old);
+		assertEquals("Unchanged keys keep their tokens cached", 1, verifier.getHitCount());
+
+		server.removeTokenKey("key-1");
+		verifier.refreshKeys();
+		assertRejected(old, "Unknown signing key");
+		assertEquals("marissa", verifier.verify(rotated).getUserName());
+		assertEquals(2, verifier.getHitCount());
+	}
+
+	@Test
+	public void testUnknownKeysAreReadAtMostOncePerInterval() throws Exception {
+		verifier.verify(server.signToken("key-1", claims("marissa", 600)));
+
+		String unknown = server.signToken("key-2", claims("marissa", 600));
+		server.removeTokenKey("key-2");
+		for (int i = 0; i < 10; i++) {
+			assertRejected(unknown, "Unknown signing key");
+		}
+
+		assertEquals(1, server.getRequestCount("GET", "/token_keys"));
+	}
+
+	private void assertRejected(String token, String reason) {
+		try {
+			verifier.verify(token);
+			fail("Expected the token to be rejected for its " + reason);
+		}
+		catch (InvalidTokenException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(reason));
+		}
+	}
+
+	private static Map<String, Object> claims(String userName, int expiresIn) {
+		long now = System.currentTimeMillis() / 1000;
+
+		Map<String, Object> claims = new LinkedHashMap<String, Object>();
+		claims.put("jti", userName + now);
+		claims.put("sub", userName + "-id");
+		claims.put("user_id", userName + "-id");
+		claims.put("user_name", userName);
+		claims.put("client_id", "cf");
+		claims.put("scope", Arrays.asList("openid", "cloud_controller.read"));
+		claims.put("aud", Arrays.asList("openid", "cloud_controller"));
+		claims.put("iss", ISSUER);
+		claims.put("iat", now);
+		claims.put("exp", now + expiresIn);
+		return claims;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cloudfoundry.identity.uaa.api.client.test;
+
+import static org.junit.Assert.*;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionHelper;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaConnectionImpl;
+import org.cloudfoundry.identity.uaa.api.common.impl.UaaOperation;
+import org.cloudfoundry.identity.uaa.api.tracing.UaaSpan;
+import org.cloudfoundry.identity.uaa.api.tracing.UaaTracer;
+import org.junit.Test;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+
+public class UaaTracingTest {
+
+	@Test
+	public void testNestedOperationsNestSpans() throws Exception {
+		RecordingTracer tracer = new RecordingTracer();
+
+		UaaConnectionHelper helper = new UaaConnectionHelper(new URL("http://localhost:1/uaa"),
+				new ClientCredentialsResourceDetails());
+		helper.setTracer(tracer);
+
+		UaaOperation outer = helper.beginOperation("groups.addMember");
+		UaaOperation inner = helper.beginOperation("groups.search");
+		assertSame(outer, inner.getRoot());
+
+		inner.end();
+		outer.end();
+
+		assertEquals(2, tracer.spans.size());
+		RecordedSpan outerSpan = tracer.spans.get(0);
+		RecordedSpan innerSpan = tracer.spans.get(1);
+
+		assertEquals("groups.addMember", outerSpan.name);
+		assertNull(outerSpan.parent);
+		assertSame(outerSpan, innerSpan.parent);
+		assertTrue(outerSpan.ended);
+		assertTrue(innerSpan.ended);
+	}
+
+	@Test
+	public void testEndedOperationIsNoLongerCurrent() throws Exception {
+		RecordingTracer tracer = new RecordingTracer();
+
+		UaaConnectionHelper helper = new UaaConnectionHelper(new URL("http://localhost:1/uaa"),
+				new ClientCredentialsResourceDetails());
+		helper.setTracer(tracer);
+
+		helper.beginOperation("users.search").end();
+		helper.beginOperation("users.delete").end();
+
+		assertNull("Sequential operations should both be roots", tracer.spans.get(1).parent);
+	}
+
+	@Test
+	public void testRequestSpans() throws Exception {
+		FakeUaaServer server = new FakeUaaServer();
+		try {
+			server.addUser("traced", "secret");
+
+			RecordingTracer tracer = new RecordingTracer();
+			UaaConnectionHelper helper = new UaaConnectionHelper(server.getUrl(), server.getClientCredentials());
+			helper.setTracer(tracer);
+
+			new UaaConnectionImpl(helper).userOperations().getUserByName("traced");
+
+			assertEquals(5, tracer.spans.size());
+			RecordedSpan root = tracer.spans.get(0);
+			RecordedSpan operation = tracer.spans.get(1);
+			RecordedSpan token = tracer.spans.get(2);
+			RecordedSpan http = tracer.spans.get(3);
+			RecordedSpan decode = tracer.spans.get(4);
+
+			assertEquals("users.getByName", root.name);
+			assertNull(root.parent);
+			assertEquals("users.search", operation.name);
+			assertSame(root, operation.parent);
+
+			assertEquals(UaaTracer.TOKEN_SPAN, token.name);
+			assertSame(operation, token.parent);
+			assertEquals("obtain", token.attributes.get(UaaSpan.GRANT));
+
+			assertEquals(UaaTracer.HTTP_SPAN, http.name);
+			assertSame(operation, http.parent);
+			assertEquals("users", http.attributes.get(UaaSpan.ENDPOINT));
+			assertEquals(200, http.attributes.get(UaaSpan.STATUS));
+			assertEquals(1, http.attributes.get(UaaSpan.RESULT_COUNT));
+
+			assertEquals(UaaTracer.DECODE_SPAN, decode.name);
+			assertSame(http, decode.parent);
+			assertEquals(1, decode.attributes.get(UaaSpan.RESULT_COUNT));
+
+			for (RecordedSpan span : tracer.spans) {
+				assertTrue(span.name + " should have ended", span.ended);
+			}
+		}
+		finally {
+			server.stop();
+		}
+	}
+
+	private static class RecordingTracer implements UaaTracer {
+		private final List<RecordedSpan> spans = Collections.synchronizedList(new ArrayList<RecordedSpan>());
+
+		public UaaSpan startSpan(String name, UaaSpan parent) {
+			RecordedSpan span = new RecordedSpan(name, (RecordedSpan) parent);
+			spans.add(span);
+			return span;
+		}
+	}
+
+	private static class RecordedSpan implements UaaSpan {
+		private final String name;
+
+		private final RecordedSpan parent;
+
+		private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+		private volatile boolean ended;
+
+		RecordedSpan(String name, RecordedSpan parent) {
+			this.name = name;
+			this.parent = parent;
+		}
+
+		public synchronized void setAttribute(String key, Object value) {
+			attributes.put(key, value);
+		}
+
+		public void setError(Throwable error) {
+			setAttribute("error", error);
+		}
+
+		public void end() {
+			assertFalse("Span " + name + " ended twice", ended);
+			ended = true;
+		}
+	}
+}